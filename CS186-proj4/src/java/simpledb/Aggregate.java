@@ -1,30 +1,49 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates over different columns are computed in a
+ * single pass over the child, grouped by any number of columns.
+ * <p>
+ * Groups are hashed into an in-memory {@link Aggregator} until it holds as
+ * many groups as the memory budget allows. From then on, tuples of groups
+ * already in memory are still merged there, while tuples of new groups are
+ * written to one of {@link #NUM_PARTITIONS} spill files, partitioned on a
+ * hash of the group-by value. Once the in-memory groups have been returned,
+ * each partition is aggregated in turn the same way, with a different hash
+ * so that a partition that is still too large splits further.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Number of partitions that overflowing groups are spilled to. */
+    public static final int NUM_PARTITIONS = 16;
+
+    private static long defaultMemoryBudget = Math.max(1 << 20, Runtime
+            .getRuntime().maxMemory() / 8);
+
     private DbIterator child;
-    private int afield;
-    private int gfield;
-    private Aggregator.Op aop;
+    private int[] afields;
+    private int[] gfields;
+    private Aggregator.Op[] aops;
+    private long memoryBudget;
     private Aggregator ag;
     private DbIterator i;
 
+    // partitions spilled at the current level, and those waiting to be read
+    transient private TupleSpillFile[] spilling = null;
+    transient private LinkedList<TupleSpillFile> pending = null;
+    transient private LinkedList<Integer> pendingLevels = null;
+    transient private int level = 0;
+    transient private int partitionsSpilled = 0;
+
     /**
      * Constructor.
      * 
-     * Implementation hint: depending on the type of afield, you will want to
-     * construct an {@link IntAggregator} or {@link StringAggregator} to help
-     * you with your implementation of readNext().
-     * 
-     * 
      * @param child
      *            The DbIterator that is feeding us tuples.
      * @param afield
@@ -36,48 +55,161 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, afield, gfield, aop, defaultMemoryBudget);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use
+     * @param memoryBudget
+     *            the approximate number of bytes of group state to hold in
+     *            memory at once
+     */
+    public Aggregate(DbIterator child, int afield, int gfield,
+            Aggregator.Op aop, long memoryBudget) {
+        this(child, new int[] { afield },
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+                new Aggregator.Op[] { aop }, memoryBudget);
+    }
+
+    /**
+     * Constructor for several aggregates over a composite group-by value.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator to apply to each of afields
+     * @throws IllegalArgumentException
+     *             if afields and aops differ in length, or an aggregate over a
+     *             string column is not a COUNT
+     */
+    public Aggregate(DbIterator child, int[] afields, int[] gfields,
+            Aggregator.Op[] aops) {
+        this(child, afields, gfields, aops, defaultMemoryBudget);
+    }
+
+    /**
+     * Constructor for several aggregates over a composite group-by value.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator to apply to each of afields
+     * @param memoryBudget
+     *            the approximate number of bytes of group state to hold in
+     *            memory at once
+     * @throws IllegalArgumentException
+     *             if afields and aops differ in length, or an aggregate over a
+     *             string column is not a COUNT
+     */
+    public Aggregate(DbIterator child, int[] afields, int[] gfields,
+            Aggregator.Op[] aops, long memoryBudget) {
         // some code goes here
+        if (afields.length == 0)
+            throw new IllegalArgumentException("no aggregates to compute");
+        MultiAggregator.outputTupleDesc(child.getTupleDesc(), gfields,
+                afields, aops);
         this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
+        this.afields = afields.clone();
+        this.gfields = gfields.clone();
+        this.aops = aops.clone();
+        this.memoryBudget = memoryBudget;
         ag = null;
         i = null;
     }
 
     /**
-     * @return If this aggregate is accompanied by a groupby, return the groupby
-     *         field index in the <b>INPUT</b> tuples. If not, return
-     *         {@link simpledb.Aggregator#NO_GROUPING}
+     * Sets the memory budget used by aggregates created without an explicit
+     * one.
+     */
+    public static void setDefaultMemoryBudget(long bytes) {
+        defaultMemoryBudget = bytes;
+    }
+
+    /**
+     * @return the memory budget used by aggregates created without an
+     *         explicit one
+     */
+    public static long getDefaultMemoryBudget() {
+        return defaultMemoryBudget;
+    }
+
+    /** @return the number of partitions spilled to disk since the last open */
+    public int numPartitionsSpilled() {
+        return partitionsSpilled;
+    }
+
+    /**
+     * @return If this aggregate is accompanied by a groupby, return the
+     *         (first) groupby field index in the <b>INPUT</b> tuples. If not,
+     *         return {@link simpledb.Aggregator#NO_GROUPING}
      * */
     public int groupField() {
         // some code goes here
-        return gfield;
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
     }
 
     /**
      * @return If this aggregate is accompanied by a group by, return the name
-     *         of the groupby field in the <b>OUTPUT</b> tuples If not, return
-     *         null;
+     *         of the (first) groupby field in the <b>OUTPUT</b> tuples If not,
+     *         return null;
      * */
     public String groupFieldName() {
         // some code goes here
-        return (gfield == Aggregator.NO_GROUPING) 
+        return (gfields.length == 0) 
                ? null 
                : child.getTupleDesc().getFieldName(groupField());
     }
 
     /**
-     * @return the aggregate field
+     * @return the indices of the groupby fields in the <b>INPUT</b> tuples;
+     *         empty if there is no grouping
+     */
+    public int[] groupFields() {
+        return gfields.clone();
+    }
+
+    /**
+     * @return the names of the groupby fields, which are the same in the
+     *         input and the <b>OUTPUT</b> tuples
+     */
+    public String[] groupFieldNames() {
+        String[] names = new String[gfields.length];
+        for (int g = 0; g < gfields.length; g++)
+            names[g] = child.getTupleDesc().getFieldName(gfields[g]);
+        return names;
+    }
+
+    /**
+     * @return the (first) aggregate field
      * */
     public int aggregateField() {
         // some code goes here
-        return afield;
+        return afields[0];
     }
 
     /**
-     * @return return the name of the aggregate field in the <b>OUTPUT</b>
-     *         tuples
+     * @return return the name of the (first) aggregate field in the
+     *         <b>INPUT</b> tuples
      * */
     public String aggregateFieldName() {
         // some code goes here
@@ -85,11 +217,26 @@ public class Aggregate extends Operator {
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the (first) aggregate operator
      * */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return aop;
+        return aops[0];
+    }
+
+    /** @return the number of aggregates computed */
+    public int numAggregates() {
+        return afields.length;
+    }
+
+    /** @return the aggregate fields, in the order of the output columns */
+    public int[] aggregateFields() {
+        return afields.clone();
+    }
+
+    /** @return the aggregate operators, in the order of the output columns */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -100,66 +247,219 @@ public class Aggregate extends Operator {
            TransactionAbortedException {
         // some code goes here
         child.open();
+        aggregateChild();
+        super.open();
+    }
+
+    /** @return the indices 0 to n - 1, then n to n + m - 1 */
+    private static int[][] spillFields(int n, int m) {
+        int[][] fields = new int[][] { new int[n], new int[m] };
+        for (int k = 0; k < n; k++)
+            fields[0][k] = k;
+        for (int k = 0; k < m; k++)
+            fields[1][k] = n + k;
+        return fields;
+    }
+
+    /**
+     * @return the schema of spilled tuples: the group-by values, then the
+     *         values to aggregate, under their names in the child
+     */
+    private TupleDesc spillTupleDesc() {
         TupleDesc tdc = child.getTupleDesc();
-        int gf = groupField(),
-            af = aggregateField();
-        if(tdc.getFieldType(af) == Type.INT_TYPE) {
-            ag = new IntegerAggregator(gf, 
-                                      (gf == Aggregator.NO_GROUPING) ? null : tdc.getFieldType(gf), 
-                                       af, aggregateOp());
-        } else {
-            ag = new StringAggregator(gf, 
-                                      (gf == Aggregator.NO_GROUPING) ? null : tdc.getFieldType(gf), 
-                                      af, aggregateOp());
+        Type[] types = new Type[gfields.length + afields.length];
+        String[] names = new String[types.length];
+        for (int k = 0; k < types.length; k++) {
+            int f = k < gfields.length ? gfields[k] : afields[k - gfields.length];
+            types[k] = tdc.getFieldType(f);
+            names[k] = tdc.getFieldName(f);
         }
-        while(child.hasNext()) {
+        return new TupleDesc(types, names);
+    }
+
+    /** @return the largest number of groups to hold in memory at once */
+    private long maxGroups() {
+        Type[] gtypes = new Type[gfields.length];
+        for (int k = 0; k < gfields.length; k++)
+            gtypes[k] = child.getTupleDesc().getFieldType(gfields[k]);
+        return Math.max(1, memoryBudget
+                / GroupTable.estimateGroupBytes(gtypes, afields.length));
+    }
+
+    /** Aggregates the whole child, spilling the groups that do not fit. */
+    private void aggregateChild() throws DbException,
+            TransactionAbortedException {
+        deletePartitions();
+        pending = new LinkedList<TupleSpillFile>();
+        pendingLevels = new LinkedList<Integer>();
+        partitionsSpilled = 0;
+        level = 0;
+        ag = new MultiAggregator(child.getTupleDesc(), gfields, afields, aops);
+        TupleDesc spillTd = spillTupleDesc();
+        long maxGroups = maxGroups();
+        while (child.hasNext()) {
             Tuple tup = child.next();
-            ag.mergeTupleIntoGroup(tup);
+            if (ag.numGroups() < maxGroups || ag.containsGroup(tup)) {
+                ag.mergeTupleIntoGroup(tup);
+            } else {
+                Tuple s = new Tuple(spillTd);
+                for (int k = 0; k < gfields.length; k++)
+                    s.setField(k, tup.getField(gfields[k]));
+                for (int k = 0; k < afields.length; k++)
+                    s.setField(gfields.length + k, tup.getField(afields[k]));
+                spill(s);
+            }
         }
+        finishLevel();
         i = ag.iterator();
         i.open();
-        super.open();
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate, If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Aggregates a spilled partition of (group-by values, aggregate values)
+     * tuples, spilling again the groups that do not fit.
+     */
+    private void aggregatePartition(TupleSpillFile part, int partLevel)
+            throws DbException, TransactionAbortedException {
+        level = partLevel;
+        int[][] fields = spillFields(gfields.length, afields.length);
+        ag = new MultiAggregator(part.getTupleDesc(), fields[0], fields[1], aops);
+        long maxGroups = maxGroups();
+        try {
+            TupleSpillFile.Reader r = part.reader();
+            Tuple tup;
+            while ((tup = r.next()) != null) {
+                if (ag.numGroups() < maxGroups || ag.containsGroup(tup))
+                    ag.mergeTupleIntoGroup(tup);
+                else
+                    spill(tup);
+            }
+            r.close();
+        } catch (IOException e) {
+            throw new DbException("aggregate spill failed: " + e.getMessage());
+        } finally {
+            part.delete();
+        }
+        finishLevel();
+        i = ag.iterator();
+        i.open();
+    }
+
+    /** @return the partition of the group-by value of a spilled tuple */
+    private int partition(Tuple s) {
+        int h = 0;
+        for (int k = 0; k < gfields.length; k++)
+            h = 31 * h + s.getField(k).hashCode();
+        // a different mix at every level, so a partition splits further
+        h ^= (level + 1) * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % NUM_PARTITIONS;
+    }
+
+    private void spill(Tuple s) throws DbException {
+        try {
+            if (spilling == null)
+                spilling = new TupleSpillFile[NUM_PARTITIONS];
+            int p = partition(s);
+            if (spilling[p] == null) {
+                spilling[p] = new TupleSpillFile(s.getTupleDesc());
+                partitionsSpilled++;
+            }
+            spilling[p].write(s);
+        } catch (IOException e) {
+            throw new DbException("aggregate spill failed: " + e.getMessage());
+        }
+    }
+
+    /** Closes the partitions spilled at the current level for reading. */
+    private void finishLevel() throws DbException {
+        if (spilling == null)
+            return;
+        try {
+            for (TupleSpillFile part : spilling) {
+                if (part != null) {
+                    part.finish();
+                    pending.add(part);
+                    pendingLevels.add(level + 1);
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("aggregate spill failed: " + e.getMessage());
+        } finally {
+            spilling = null;
+        }
+    }
+
+    private void deletePartitions() {
+        if (spilling != null) {
+            for (TupleSpillFile part : spilling)
+                if (part != null)
+                    part.delete();
+            spilling = null;
+        }
+        if (pending != null) {
+            for (TupleSpillFile part : pending)
+                part.delete();
+            pending = null;
+        }
+    }
+
+    /**
+     * Returns the next tuple. The first fields are the fields by which we are
+     * grouping, if any, and the remaining fields hold the result of computing
+     * each aggregate. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        Tuple t = i.hasNext() ? i.next() : null;
-        return t;
+        while (!i.hasNext()) {
+            if (pending.isEmpty())
+                return null;
+            i.close();
+            aggregatePartition(pending.removeFirst(), pendingLevels.removeFirst());
+        }
+        return i.next();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        i.rewind();
+        if (partitionsSpilled == 0) {
+            i.rewind();
+            return;
+        }
+        // the groups returned so far are gone, so aggregate all over again
+        i.close();
+        child.rewind();
+        aggregateChild();
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate. The group by fields come
+     * first, keeping their names in the child, followed by one column per
+     * aggregate.
      * 
-     * The name of an aggregate column should be informative. For example:
-     * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
+     * The name of an aggregate column is informative:
+     * "aggName(aop)(child_td.getFieldName(afield))" where aop and afield are
      * given in the constructor, and child_td is the TupleDesc of the child
-     * iterator.
+     * iterator, e.g. "sum(t.x)".
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return child.getTupleDesc();
+        return MultiAggregator.outputTupleDesc(child.getTupleDesc(), gfields,
+                afields, aops);
     }
 
     public void close() {
         // some code goes here
-        i.close();
+        if (i != null)
+            i.close();
+        i = null;
         child.close();
         ag = null;
+        deletePartitions();
         super.close();
     }
 
@@ -57,6 +57,17 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * @return the number of distinct groups merged so far
+     */
+    public int numGroups();
+
+    /**
+     * @return true if the group of the given tuple has already been
+     *         encountered, so merging it would not create a new group
+     */
+    public boolean containsGroup(Tuple tup);
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
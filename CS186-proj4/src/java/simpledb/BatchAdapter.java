@@ -0,0 +1,57 @@
+package simpledb;
+
+/**
+ * BatchAdapter lets tuple-at-a-time operators feed batch operators: it
+ * collects the tuples of a {@link DbIterator} into batches.
+ */
+public class BatchAdapter implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    transient private TupleBatch batch = null;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the tuples to return in batches
+     */
+    public BatchAdapter(DbIterator child) {
+        this.child = child;
+    }
+
+    /** @return the iterator whose tuples are batched */
+    public DbIterator getChild() {
+        return child;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        batch = new TupleBatch(child.getTupleDesc());
+    }
+
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        if (batch == null)
+            throw new IllegalStateException("iterator not open");
+        batch.clear();
+        while (!batch.isFull() && child.hasNext())
+            batch.appendTuple(child.next());
+        return batch.size() > 0 ? batch : null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+        batch = null;
+    }
+
+}
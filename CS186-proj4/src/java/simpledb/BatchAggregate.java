@@ -0,0 +1,175 @@
+package simpledb;
+
+/**
+ * BatchAggregate is the batch counterpart of {@link Aggregate}: it computes
+ * any number of aggregates, grouped by any number of columns, with the same
+ * output schema. Rows are added to a {@link GroupTable} a column at a time;
+ * a single integer group-by column and integer aggregate columns are read
+ * straight from the column arrays.
+ * <p>
+ * Unlike Aggregate, all groups are held in memory.
+ */
+public class BatchAggregate implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchIterator child;
+    private int[] afields;
+    private int[] gfields;
+    private Aggregator.Op[] aops;
+    private TupleDesc td;
+
+    transient private GroupTable groups = null;
+    transient private DbIterator results = null;
+    transient private TupleBatch batch = null;
+    // group number of each selected row of the current input batch
+    transient private int[] rowGroups = null;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The iterator that is feeding us rows.
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use
+     */
+    public BatchAggregate(BatchIterator child, int afield, int gfield,
+            Aggregator.Op aop) {
+        this(child, new int[] { afield },
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+                new Aggregator.Op[] { aop });
+    }
+
+    /**
+     * Constructor for several aggregates over a composite group-by value.
+     *
+     * @param child
+     *            The iterator that is feeding us rows.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator to apply to each of afields
+     * @throws IllegalArgumentException
+     *             if afields and aops differ in length, or an aggregate over a
+     *             string column is not a COUNT
+     */
+    public BatchAggregate(BatchIterator child, int[] afields, int[] gfields,
+            Aggregator.Op[] aops) {
+        if (afields.length == 0)
+            throw new IllegalArgumentException("no aggregates to compute");
+        td = MultiAggregator.outputTupleDesc(child.getTupleDesc(), gfields,
+                afields, aops);
+        this.child = child;
+        this.afields = afields.clone();
+        this.gfields = gfields.clone();
+        this.aops = aops.clone();
+    }
+
+    /** @return the iterator whose rows are aggregated */
+    public BatchIterator getChild() {
+        return child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        aggregate();
+        batch = new TupleBatch(td);
+    }
+
+    private void aggregate() throws DbException, TransactionAbortedException {
+        TupleDesc childtd = child.getTupleDesc();
+        Type[] keyTypes = new Type[gfields.length];
+        for (int i = 0; i < gfields.length; i++)
+            keyTypes[i] = childtd.getFieldType(gfields[i]);
+        groups = new GroupTable(keyTypes, afields.length);
+        rowGroups = new int[TupleBatch.CAPACITY];
+        TupleBatch b;
+        while ((b = child.nextBatch()) != null) {
+            findGroups(b);
+            int[] sel = b.selection();
+            int n = b.size();
+            for (int a = 0; a < afields.length; a++) {
+                if (childtd.getFieldType(afields[a]) == Type.INT_TYPE
+                        && gfields.length == 0) {
+                    // a single group: fold the column, then add it once
+                    int[] col = b.intColumn(afields[a]);
+                    long sum = 0, min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+                    for (int i = 0; i < n; i++) {
+                        int v = col[sel[i]];
+                        sum += v;
+                        if (v < min)
+                            min = v;
+                        if (v > max)
+                            max = v;
+                    }
+                    groups.add(rowGroups[0], a, n, sum, min, max);
+                } else if (childtd.getFieldType(afields[a]) == Type.INT_TYPE) {
+                    int[] col = b.intColumn(afields[a]);
+                    for (int i = 0; i < n; i++)
+                        groups.add(rowGroups[i], a, col[sel[i]]);
+                } else {
+                    for (int i = 0; i < n; i++)
+                        groups.increment(rowGroups[i], a);
+                }
+            }
+        }
+        results = groups.iterator(td, aops);
+        results.open();
+    }
+
+    /** Fills rowGroups with the group of each selected row of a batch. */
+    private void findGroups(TupleBatch b) {
+        int[] sel = b.selection();
+        int n = b.size();
+        if (gfields.length == 0) {
+            int g = groups.findOrAdd((Field) null);
+            for (int i = 0; i < n; i++)
+                rowGroups[i] = g;
+        } else if (gfields.length == 1
+                && b.getTupleDesc().getFieldType(gfields[0]) == Type.INT_TYPE) {
+            int[] col = b.intColumn(gfields[0]);
+            for (int i = 0; i < n; i++)
+                rowGroups[i] = groups.findOrAdd(col[sel[i]]);
+        } else if (gfields.length == 1) {
+            for (int i = 0; i < n; i++)
+                rowGroups[i] = groups.findOrAdd(b.getField(gfields[0], sel[i]));
+        } else {
+            for (int i = 0; i < n; i++)
+                rowGroups[i] = groups.findOrAdd(b.getTuple(sel[i]), gfields);
+        }
+    }
+
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        if (batch == null)
+            throw new IllegalStateException("iterator not open");
+        batch.clear();
+        while (!batch.isFull() && results.hasNext())
+            batch.appendTuple(results.next());
+        return batch.size() > 0 ? batch : null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        results.rewind();
+    }
+
+    public void close() {
+        child.close();
+        groups = null;
+        results = null;
+        batch = null;
+    }
+
+}
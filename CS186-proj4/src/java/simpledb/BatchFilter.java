@@ -0,0 +1,144 @@
+package simpledb;
+
+/**
+ * BatchFilter is the batch counterpart of {@link Filter}. It evaluates its
+ * predicate over a whole column at a time, with one loop per comparison
+ * operator, and narrows the selection of each batch to the rows that pass.
+ */
+public class BatchFilter implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private Predicate p;
+    private BatchIterator child;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to filter rows with
+     * @param child
+     *            The child iterator
+     */
+    public BatchFilter(Predicate p, BatchIterator child) {
+        this.p = p;
+        this.child = child;
+    }
+
+    public Predicate getPredicate() {
+        return p;
+    }
+
+    /** @return the iterator whose rows are filtered */
+    public BatchIterator getChild() {
+        return child;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        TupleBatch b;
+        while ((b = child.nextBatch()) != null) {
+            select(b);
+            if (b.size() > 0)
+                return b;
+        }
+        return null;
+    }
+
+    /** Narrows the selection of a batch to the rows that pass the predicate. */
+    private void select(TupleBatch b) {
+        int[] sel = b.selection();
+        int n = b.size();
+        int out = 0;
+        int f = p.getField();
+        if (b.getTupleDesc().getFieldType(f) == Type.INT_TYPE) {
+            int[] col = b.intColumn(f);
+            int v = ((IntField) p.getOperand()).getValue();
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                for (int i = 0; i < n; i++)
+                    if (col[sel[i]] == v)
+                        sel[out++] = sel[i];
+                break;
+            case NOT_EQUALS:
+                for (int i = 0; i < n; i++)
+                    if (col[sel[i]] != v)
+                        sel[out++] = sel[i];
+                break;
+            case GREATER_THAN:
+                for (int i = 0; i < n; i++)
+                    if (col[sel[i]] > v)
+                        sel[out++] = sel[i];
+                break;
+            case GREATER_THAN_OR_EQ:
+                for (int i = 0; i < n; i++)
+                    if (col[sel[i]] >= v)
+                        sel[out++] = sel[i];
+                break;
+            case LESS_THAN:
+                for (int i = 0; i < n; i++)
+                    if (col[sel[i]] < v)
+                        sel[out++] = sel[i];
+                break;
+            case LESS_THAN_OR_EQ:
+                for (int i = 0; i < n; i++)
+                    if (col[sel[i]] <= v)
+                        sel[out++] = sel[i];
+                break;
+            }
+        } else {
+            String[] col = b.stringColumn(f);
+            String v = ((StringField) p.getOperand()).getValue();
+            Predicate.Op op = p.getOp();
+            for (int i = 0; i < n; i++) {
+                String s = col[sel[i]];
+                boolean pass;
+                if (op == Predicate.Op.LIKE) {
+                    pass = s.indexOf(v) >= 0;
+                } else {
+                    int c = s.compareTo(v);
+                    switch (op) {
+                    case EQUALS:
+                        pass = c == 0;
+                        break;
+                    case NOT_EQUALS:
+                        pass = c != 0;
+                        break;
+                    case GREATER_THAN:
+                        pass = c > 0;
+                        break;
+                    case GREATER_THAN_OR_EQ:
+                        pass = c >= 0;
+                        break;
+                    case LESS_THAN:
+                        pass = c < 0;
+                        break;
+                    default:
+                        pass = c <= 0;
+                    }
+                }
+                if (pass)
+                    sel[out++] = sel[i];
+            }
+        }
+        b.setSize(out);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void close() {
+        child.close();
+    }
+
+}
@@ -0,0 +1,168 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * BatchHashEquiJoin is the batch counterpart of {@link HashEquiJoin}. When
+ * opened it copies all the rows of child1 into batches of its own and hashes
+ * their join values with a {@link GroupTable}, which numbers the distinct
+ * values; rows with the same value are chained through an
+ * <code>int[]</code> in input order. Each batch of child2 then probes the
+ * table, and the matching pairs are copied into output batches.
+ * <p>
+ * Unlike HashEquiJoin, the whole of child1 is held in memory.
+ */
+public class BatchHashEquiJoin implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate pred;
+    private BatchIterator child1, child2;
+    private TupleDesc comboTD;
+
+    // the rows of child1; row r is in build.get(r / CAPACITY)
+    transient private ArrayList<TupleBatch> build = null;
+    transient private GroupTable keys = null;
+    // distinct join value -> its first and last row; row -> next row, or -1
+    transient private int[] first, last, next;
+    transient private TupleBatch out = null;
+
+    // probe state: the current child2 batch, the position in its selection,
+    // the row being joined and the next child1 row it matches
+    transient private TupleBatch probe = null;
+    transient private int probePos = 0;
+    transient private int probeRow = 0;
+    transient private int match = -1;
+    transient private boolean probeDone = false;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on
+     *
+     * @param p
+     *            The predicate to use to join the children; its operator is
+     *            taken to be EQUALS
+     * @param child1
+     *            Iterator for the left relation, which is hashed
+     * @param child2
+     *            Iterator for the right relation, which probes the hash table
+     */
+    public BatchHashEquiJoin(JoinPredicate p, BatchIterator child1,
+            BatchIterator child2) {
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    private boolean intKeys() {
+        return child1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child1.open();
+        child2.open();
+        TupleDesc td1 = child1.getTupleDesc();
+        int f1 = pred.getField1();
+        boolean ints = intKeys();
+        build = new ArrayList<TupleBatch>();
+        keys = new GroupTable(new Type[] { td1.getFieldType(f1) }, 0);
+        first = new int[16];
+        last = new int[16];
+        next = new int[TupleBatch.CAPACITY];
+        int rows = 0;
+        TupleBatch b;
+        while ((b = child1.nextBatch()) != null) {
+            int[] sel = b.selection();
+            for (int i = 0; i < b.size(); i++) {
+                if (rows % TupleBatch.CAPACITY == 0)
+                    build.add(new TupleBatch(td1));
+                TupleBatch dst = build.get(build.size() - 1);
+                int row = dst.appendRow(b, sel[i]);
+                int distinct = keys.numGroups();
+                int g = ints ? keys.findOrAdd(dst.intColumn(f1)[row])
+                        : keys.findOrAdd(dst.getField(f1, row));
+                if (rows == next.length)
+                    next = Arrays.copyOf(next, rows * 2);
+                next[rows] = -1;
+                if (g == distinct) {
+                    if (g == first.length) {
+                        first = Arrays.copyOf(first, g * 2);
+                        last = Arrays.copyOf(last, g * 2);
+                    }
+                    first[g] = rows;
+                } else {
+                    next[last[g]] = rows;
+                }
+                last[g] = rows;
+                rows++;
+            }
+        }
+        out = new TupleBatch(comboTD);
+        resetProbe();
+    }
+
+    private void resetProbe() {
+        probe = null;
+        probePos = 0;
+        match = -1;
+        probeDone = false;
+    }
+
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        if (out == null)
+            throw new IllegalStateException("iterator not open");
+        out.clear();
+        int f2 = pred.getField2();
+        boolean ints = intKeys();
+        while (!out.isFull()) {
+            if (match >= 0) {
+                out.appendJoined(build.get(match / TupleBatch.CAPACITY), match
+                        % TupleBatch.CAPACITY, probe, probeRow);
+                match = next[match];
+                continue;
+            }
+            if (probe == null || probePos >= probe.size()) {
+                if (probeDone)
+                    break;
+                probe = child2.nextBatch();
+                probePos = 0;
+                if (probe == null) {
+                    probeDone = true;
+                    break;
+                }
+                continue;
+            }
+            probeRow = probe.selection()[probePos++];
+            int g = ints ? keys.find(probe.intColumn(f2)[probeRow]) : keys
+                    .find(probe.getField(f2, probeRow));
+            match = g < 0 ? -1 : first[g];
+        }
+        return out.size() > 0 ? out : null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child2.rewind();
+        resetProbe();
+    }
+
+    public void close() {
+        child2.close();
+        child1.close();
+        build = null;
+        keys = null;
+        out = null;
+        probe = null;
+    }
+
+}
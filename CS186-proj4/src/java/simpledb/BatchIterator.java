@@ -0,0 +1,41 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * BatchIterator is the batch-at-a-time counterpart of {@link DbIterator}:
+ * instead of one tuple per call, each call returns a {@link TupleBatch} of
+ * up to {@link TupleBatch#CAPACITY} rows, so the cost of a call is spread
+ * over many rows and operators can run tight loops over columns. The two
+ * kinds of iterators can be mixed in a plan through {@link BatchAdapter} and
+ * {@link TupleAdapter}.
+ * <p>
+ * As with DbIterator, open must be called before the other methods, open
+ * and close are passed on to the children, and rewind starts over.
+ */
+public interface BatchIterator extends Serializable {
+
+    /**
+     * Opens the iterator. This must be called before any of the other
+     * methods.
+     */
+    public void open() throws DbException, TransactionAbortedException;
+
+    /**
+     * @return the next batch, with at least one selected row, or null if
+     *         there are no more rows. The batch is only valid until the next
+     *         call to this iterator.
+     */
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException;
+
+    /** Resets the iterator to the start. */
+    public void rewind() throws DbException, TransactionAbortedException;
+
+    /** @return the schema of the rows returned by this iterator */
+    public TupleDesc getTupleDesc();
+
+    /** Closes the iterator. */
+    public void close();
+
+}
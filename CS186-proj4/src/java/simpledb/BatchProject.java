@@ -0,0 +1,64 @@
+package simpledb;
+
+/**
+ * BatchProject is the batch counterpart of {@link Project}. Since batches
+ * are stored by column, projecting a batch only picks out columns: no value
+ * is copied.
+ */
+public class BatchProject implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchIterator child;
+    private int[] fields;
+    private TupleDesc td;
+
+    /**
+     * Constructor.
+     *
+     * @param fields
+     *            The ids of the fields of the child's rows to project out
+     * @param child
+     *            The child iterator
+     */
+    public BatchProject(int[] fields, BatchIterator child) {
+        this.child = child;
+        this.fields = fields.clone();
+        TupleDesc childtd = child.getTupleDesc();
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = childtd.getFieldType(fields[i]);
+            names[i] = childtd.getFieldName(fields[i]);
+        }
+        td = new TupleDesc(types, names);
+    }
+
+    /** @return the iterator whose rows are projected */
+    public BatchIterator getChild() {
+        return child;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        TupleBatch b = child.nextBatch();
+        return b == null ? null : b.project(fields, td);
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void close() {
+        child.close();
+    }
+
+}
@@ -0,0 +1,157 @@
+package simpledb;
+
+/**
+ * BatchSeqScan is the batch counterpart of {@link SeqScan}: it reads the
+ * pages of a table in order and copies the fields of the used slots of each
+ * page from the bytes of the page straight into the columns of a batch,
+ * without decoding the page into tuples or going through page or file
+ * iterators. Predicates pushed down into the scan are tested on the bytes
+ * of each tuple, as {@link SeqScan} does, and only the fields pushed down are
+ * copied, for the tuples that satisfy them.
+ */
+public class BatchSeqScan implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private TransactionId tid;
+    private int tableid;
+    private String alias;
+    private TupleDesc td;
+    // pushed down fields and predicates, in the fields of the table
+    private int[] fields;
+    private Predicate[] preds = new Predicate[0];
+    private CompiledPredicate pred = null;
+
+    transient private TupleBatch batch = null;
+    // the next slot to read
+    transient private int pageNo = 0;
+    transient private int slot = 0;
+
+    // the rows returned in the first pass over the table
+    transient private long produced = 0;
+    transient private boolean exhausted = false;
+
+    /**
+     * Creates a scan over the specified table as a part of the specified
+     * transaction.
+     *
+     * @param tableAlias
+     *            the alias of the table; field names are prefixed with it, as
+     *            in {@link SeqScan#SeqScan(TransactionId, int, String)}
+     */
+    public BatchSeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this.tid = tid;
+        this.tableid = tableid;
+        this.alias = tableAlias;
+        this.td = new SeqScan(tid, tableid, tableAlias).getTupleDesc();
+        this.fields = new int[td.numFields()];
+        for (int k = 0; k < fields.length; k++)
+            fields[k] = k;
+    }
+
+    /**
+     * Restricts the rows this scan returns to those satisfying the given
+     * predicates, and their columns to the given fields of the table, as
+     * {@link SeqScan#pushDown} does. Must be called before the scan is
+     * opened.
+     *
+     * @param fields
+     *            the fields of the table to return, in order, or null for
+     *            all of them; {@link SeqScan#ROW_ID} for the row id of each
+     *            tuple
+     * @param preds
+     *            the predicates over the fields of the table the returned
+     *            rows satisfy, tested in order
+     * @throws IllegalArgumentException
+     *             if no field is to be returned
+     * @throws IllegalStateException
+     *             if the scan has been opened
+     */
+    public void pushDown(int[] fields, Predicate[] preds) {
+        if (batch != null)
+            throw new IllegalStateException("scan already opened");
+        SeqScan ss = new SeqScan(tid, tableid, alias);
+        ss.pushDown(fields, new Predicate[0]);
+        this.td = ss.getTupleDesc();
+        if (fields != null)
+            this.fields = fields.clone();
+        this.preds = preds.clone();
+        this.pred = preds.length == 0 ? null : CompiledPredicate.compile(
+                preds, Database.getCatalog().getTupleDesc(tableid));
+    }
+
+    /** @return the fields of the table this scan returns */
+    public int[] getPushedFields() {
+        return fields.clone();
+    }
+
+    /** @return the predicates the rows this scan returns satisfy */
+    public Predicate[] getPushedPredicates() {
+        return preds.clone();
+    }
+
+    /** @return the alias of the table this operator scans */
+    public String getAlias() {
+        return alias;
+    }
+
+    /** @return the name of the table this operator scans */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        batch = new TupleBatch(td);
+        pageNo = 0;
+        slot = 0;
+        produced = 0;
+        exhausted = false;
+    }
+
+    public TupleBatch nextBatch() throws DbException,
+            TransactionAbortedException {
+        if (batch == null)
+            throw new IllegalStateException("iterator not open");
+        batch.clear();
+        HeapFile file = (HeapFile) Database.getCatalog().getDbFile(tableid);
+        int numPages = file.numPages();
+        while (pageNo < numPages) {
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(tableid, pageNo), Permissions.READ_ONLY);
+            slot = page.appendTo(batch, slot, fields, pred);
+            if (slot < page.numSlots)
+                break;
+            pageNo++;
+            slot = 0;
+        }
+        if (batch.size() == 0) {
+            exhausted = true;
+            return null;
+        }
+        if (!exhausted)
+            produced += batch.size();
+        return batch;
+    }
+
+    /**
+     * @return the number of rows the scan returned in its first pass over
+     *         the table, or -1 if it has not returned all of them yet
+     */
+    public long getActualCardinality() {
+        return exhausted ? produced : -1;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        pageNo = 0;
+        slot = 0;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void close() {
+        batch = null;
+    }
+
+}
@@ -0,0 +1,202 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The BlockNestedLoopJoin operator implements the relational join by reading
+ * the outer (left) relation a block at a time and scanning the inner (right)
+ * relation once per block, instead of once per outer tuple as {@link Join}
+ * does. It evaluates an arbitrary {@link JoinPredicate}, so it is the join to
+ * use for range predicates where {@link HashEquiJoin} does not apply.
+ */
+public class BlockNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of outer pages buffered in memory per block. */
+    public static final int DEFAULT_BLOCK_PAGES = 16;
+
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private TupleDesc comboTD;
+    private int blockTuples;
+    transient private ArrayList<Tuple> block = null;
+    transient private int blockPos = 0;
+    transient private Tuple t2 = null;
+
+    /**
+     * Constructor. Buffers {@link #DEFAULT_BLOCK_PAGES} pages worth of outer
+     * tuples per scan of the inner relation.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, DbIterator child1,
+            DbIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param blockPages
+     *            the number of pages worth of outer tuples to buffer per
+     *            scan of the inner relation
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, DbIterator child1,
+            DbIterator child2, int blockPages) {
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        blockTuples = blockTuples(child1.getTupleDesc(), blockPages);
+    }
+
+    /**
+     * @return the number of tuples with the given schema that fit in
+     *         blockPages heap pages
+     */
+    public static int blockTuples(TupleDesc td, int blockPages) {
+        int perPage = (BufferPool.PAGE_SIZE * 8) / (td.getSize() * 8 + 1);
+        return Math.max(1, blockPages * Math.max(1, perPage));
+    }
+
+    /**
+     * Overrides the block size computed from the number of pages.
+     *
+     * @param n
+     *            the number of outer tuples to buffer per block
+     */
+    public void setBlockTuples(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("block must hold at least one tuple");
+        blockTuples = n;
+    }
+
+    /** @return the number of outer tuples buffered per block */
+    public int getBlockTuples() {
+        return blockTuples;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    /**
+     * Fills the block with up to blockTuples tuples from the outer child.
+     *
+     * @return true if at least one tuple was read
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        while (block.size() < blockTuples && child1.hasNext())
+            block.add(child1.next());
+        blockPos = 0;
+        t2 = null;
+        return !block.isEmpty();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        block = new ArrayList<Tuple>();
+        loadBlock();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        block = null;
+        t2 = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        loadBlock();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. For each block of outer tuples, the inner relation is
+     * scanned once, and each inner tuple is compared against every tuple in
+     * the block.
+     * <p>
+     * As with {@link Join}, the returned tuples are the concatenation of the
+     * joining tuples from the left and right relation.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (block.isEmpty())
+            return null;
+        while (true) {
+            if (t2 != null) {
+                while (blockPos < block.size()) {
+                    Tuple t1 = block.get(blockPos++);
+                    if (pred.filter(t1, t2))
+                        return mergeTuples(t1, t2);
+                }
+                t2 = null;
+            }
+            if (child2.hasNext()) {
+                t2 = child2.next();
+                blockPos = 0;
+            } else {
+                // inner exhausted for this block: move on to the next block
+                if (!loadBlock())
+                    return null;
+                child2.rewind();
+            }
+        }
+    }
+
+    private Tuple mergeTuples(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
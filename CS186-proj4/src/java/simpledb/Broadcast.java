@@ -0,0 +1,62 @@
+package simpledb;
+
+/**
+ * Broadcast sends every tuple produced by its children to each of several
+ * streams, each read by its own Broadcast operator. It lets every partition
+ * of a parallel join see all of the other input, when the join predicate
+ * does not allow that input to be partitioned.
+ */
+public class Broadcast extends ExchangeConsumer {
+
+    private static final long serialVersionUID = 1L;
+
+    private Broadcast(ExchangeChannel channel, int consumer, boolean replayable) {
+        super(channel, consumer, replayable);
+    }
+
+    /**
+     * Creates the operators reading the copies of the output of an exchange.
+     *
+     * @param children
+     *            the subtrees whose output is broadcast, each run on a thread
+     *            of its own; they must all have the same schema
+     * @param numCopies
+     *            the number of streams the output is copied to
+     * @param replayable
+     *            whether the streams can be rewound
+     * @return one operator per stream
+     */
+    public static Broadcast[] broadcast(DbIterator[] children, int numCopies,
+            boolean replayable) {
+        return consumers(new ExchangeChannel(children,
+                ExchangeChannel.Routing.BROADCAST, new int[0], numCopies,
+                QUEUE_CAPACITY), replayable);
+    }
+
+    /**
+     * Creates the operators reading the copies of the output of a pipeline
+     * run over the morsels of a table.
+     *
+     * @see #broadcast(DbIterator[], int, boolean)
+     */
+    public static Broadcast[] broadcast(MorselSource morsels, int numCopies,
+            boolean replayable) {
+        return consumers(new ExchangeChannel(morsels,
+                ExchangeChannel.Routing.BROADCAST, new int[0], numCopies,
+                QUEUE_CAPACITY), replayable);
+    }
+
+    private static Broadcast[] consumers(ExchangeChannel channel,
+            boolean replayable) {
+        Broadcast[] copies = new Broadcast[channel.numConsumers()];
+        for (int k = 0; k < copies.length; k++)
+            copies[k] = new Broadcast(channel, k, replayable);
+        return copies;
+    }
+
+    public String getName() {
+        return "broadcast[" + getConsumer() + "/"
+                + getChannel().numConsumers() + "]";
+    }
+
+}
@@ -67,6 +67,8 @@ public class BufferPool {
             //} catch(InterruptedException e) {
             //    throw new DbException("getPage interrupted");
             //}
+            //the cache is shared by the threads of parallel scans
+            synchronized(this) {
             if(buffer_pool.containsKey(pid)) {
 
                 //move this (MRU) page to back of queue
@@ -84,8 +86,21 @@ public class BufferPool {
             buffer_pool.put(pid, file.readPage(pid));
             lru_queue.add(pid);
             return buffer_pool.get(pid);
+            }
         }
 
+    /**
+     * Returns the page, if it is in the buffer pool, without locking it or
+     * adding it to the pool, for readers that tolerate seeing a page that is
+     * being modified, such as statistics collection.
+     *
+     * @param pid the ID of the requested page
+     * @return the cached page, or null if it is not in the buffer pool
+     */
+    public synchronized Page peekPage(PageId pid) {
+        return buffer_pool.get(pid);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -150,10 +165,12 @@ public class BufferPool {
             // some code goes here
             DbFile table = Database.getCatalog().getDbFile(tableId);
             ArrayList<Page> dirty_pages = table.insertTuple(tid, t);
+            synchronized(this) {
             for(Page dp : dirty_pages) {
                 dp.markDirty(true, tid);
                 buffer_pool.put(dp.getId(), dp);
             }
+            }
         }
 
     /**
@@ -176,7 +193,10 @@ public class BufferPool {
             if(rid == null) {
                 throw new DbException("Tuple has no recordId");
             }
-            HeapPage p = (HeapPage) buffer_pool.get(rid.getPageId());
+            HeapPage p;
+            synchronized(this) {
+                p = (HeapPage) buffer_pool.get(rid.getPageId());
+            }
             if(p != null) { 
                 p.deleteTuple(t); 
                 p.markDirty(true, tid);
@@ -0,0 +1,367 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CardinalityFeedback remembers how many tuples parts of executed plans
+ * actually returned, so that the estimates for later runs of similar
+ * queries can be corrected: the estimates of the optimizer assume that
+ * predicates are independent and that values are spread evenly, and on a
+ * repetitive workload the same estimates go wrong the same way every time.
+ * <p>
+ * Two kinds of observations are kept, by signature:
+ * <ul>
+ * <li>for the predicates pushed into the scan of a table, the ratio of the
+ * tuples the scan returned to the number estimated from the statistics of
+ * the table, under the table and the predicates with their constants, and
+ * under the table and the predicates without the constants of their
+ * equalities, which matches the same query with other values compared for
+ * equality; a range selects a different part of the values with each
+ * constant, so its constant is kept;</li>
+ * <li>for a join predicate between two fields of two tables, the fraction of
+ * the pairs of input tuples the join returned.</li>
+ * </ul>
+ * A new observation is averaged with the one remembered, so that the store
+ * follows changes in the data. The signatures used least recently are
+ * forgotten once there are {@link #MAX_SIGNATURES} of them. An observation
+ * that moves an estimate by more than {@link #REPLAN_FACTOR} changes the
+ * version of the store (see {@link #getVersion}), so that plans made with
+ * the old estimates are made again.
+ */
+public class CardinalityFeedback {
+
+    /** Number of signatures remembered */
+    static final int MAX_SIGNATURES = 10000;
+
+    /** Weight of a new observation against the one remembered */
+    static final double NEW_WEIGHT = 0.5;
+
+    /** Factor an estimate has to move by for plans to be made again */
+    static final double REPLAN_FACTOR = 2.0;
+
+    /** Counts the observations that moved an estimate, see {@link #getVersion} */
+    private static final AtomicLong version = new AtomicLong();
+
+    private static final LinkedHashMap<String, Double> observed = new LinkedHashMap<String, Double>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+            return size() > MAX_SIGNATURES;
+        }
+    };
+
+    /** Forgets every observation */
+    public static synchronized void clear() {
+        observed.clear();
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return a number that changes whenever an observation moves an
+     *         estimate by more than {@link #REPLAN_FACTOR}, or the
+     *         observations are forgotten, so that plans made with the old
+     *         estimates can be told apart
+     */
+    public static long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Averages a new observation into the one remembered under a signature.
+     *
+     * @param assumed
+     *            the value the estimates used when none is remembered, or
+     *            NaN if it is not known
+     */
+    private static synchronized void observe(String signature, double value,
+            double assumed) {
+        Double old = observed.get(signature);
+        double before = old == null ? assumed : old;
+        double now = old == null ? value : (1 - NEW_WEIGHT) * old
+                + NEW_WEIGHT * value;
+        observed.put(signature, now);
+        if (now > before * REPLAN_FACTOR || now * REPLAN_FACTOR < before)
+            version.incrementAndGet();
+    }
+
+    private static synchronized Double lookup(String signature) {
+        return observed.get(signature);
+    }
+
+    /**
+     * @return the signature of predicates on a table, with or without the
+     *         constants of their equalities; the order of the predicates
+     *         does not matter
+     */
+    private static String filterSignature(String table, List<Predicate> preds,
+            boolean constants) {
+        ArrayList<String> terms = new ArrayList<String>();
+        for (Predicate p : preds) {
+            boolean equality = p.getOp() == Predicate.Op.EQUALS
+                    || p.getOp() == Predicate.Op.LIKE;
+            terms.add(p.getField() + " " + p.getOp()
+                    + (constants || !equality ? " " + p.getOperand() : ""));
+        }
+        Collections.sort(terms);
+        return "filter " + table + " " + terms;
+    }
+
+    /**
+     * @return the signature of a join predicate, the same for both orders
+     *         of its fields
+     */
+    private static String joinSignature(String table1, String field1,
+            Predicate.Op op, String table2, String field2) {
+        String left = table1 + "." + field1, right = table2 + "." + field2;
+        if (left.compareTo(right) > 0)
+            return "join " + right + " " + flip(op) + " " + left;
+        return "join " + left + " " + op + " " + right;
+    }
+
+    /** @return the operator that compares its operands the other way round */
+    private static Predicate.Op flip(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    /**
+     * Records the number of tuples of a table that satisfied some predicates.
+     *
+     * @param table
+     *            the name of the table
+     * @param preds
+     *            the predicates, on fields of the table
+     * @param estimated
+     *            the number of tuples estimated from the statistics alone
+     * @param actual
+     *            the number of tuples that satisfied the predicates
+     */
+    public static void recordFilter(String table, List<Predicate> preds,
+            double estimated, long actual) {
+        double ratio = (actual + 1.0) / (Math.max(0.0, estimated) + 1.0);
+        String exact = filterSignature(table, preds, true);
+        String shape = filterSignature(table, preds, false);
+        // with nothing remembered, the estimate is left as it is
+        observe(exact, ratio, 1.0);
+        if (!shape.equals(exact))
+            observe(shape, ratio, 1.0);
+    }
+
+    /**
+     * Corrects the estimated selectivity of predicates on a table with the
+     * number of tuples they were seen to select, if they have been.
+     *
+     * @param table
+     *            the name of the table
+     * @param preds
+     *            the predicates, on fields of the table
+     * @param selectivity
+     *            the selectivity estimated from the statistics alone
+     * @param tuples
+     *            the number of tuples of the table
+     * @return the corrected selectivity
+     */
+    public static double correctFilter(String table, List<Predicate> preds,
+            double selectivity, int tuples) {
+        if (preds.isEmpty() || tuples <= 0)
+            return selectivity;
+        Double ratio = lookup(filterSignature(table, preds, true));
+        if (ratio == null)
+            ratio = lookup(filterSignature(table, preds, false));
+        if (ratio == null)
+            return selectivity;
+        double card = (selectivity * tuples + 1.0) * ratio - 1.0;
+        return Math.max(0.0, Math.min(1.0, card / tuples));
+    }
+
+    /**
+     * Records the number of tuples a join returned.
+     *
+     * @param pairs
+     *            the number of pairs of tuples the join predicate was tested
+     *            on: the product of the cardinalities of the inputs, or the
+     *            cardinality of the input of a join that filters a subplan
+     *            holding both of its tables
+     * @param actual
+     *            the number of tuples that satisfied the join predicate
+     */
+    public static void recordJoin(String table1, String field1,
+            Predicate.Op op, String table2, String field2, double pairs,
+            long actual) {
+        recordJoin(table1, field1, op, table2, field2, pairs, actual,
+                Double.NaN);
+    }
+
+    /**
+     * Records the number of tuples a join returned, as
+     * {@link #recordJoin(String, String, Predicate.Op, String, String, double, long)}
+     * does, given the fraction of the pairs it was estimated to select.
+     */
+    static void recordJoin(String table1, String field1, Predicate.Op op,
+            String table2, String field2, double pairs, long actual,
+            double estimated) {
+        if (pairs <= 0)
+            return;
+        observe(joinSignature(table1, field1, op, table2, field2),
+                Math.min(1.0, actual / pairs), estimated);
+    }
+
+    /**
+     * @return the fraction of the pairs of tuples a join predicate was seen
+     *         to select, or -1 if it has not been
+     */
+    public static double joinSelectivity(String table1, String field1,
+            Predicate.Op op, String table2, String field2) {
+        Double sel = lookup(joinSignature(table1, field1, op, table2, field2));
+        return sel == null ? -1 : sel;
+    }
+
+    /**
+     * Records what an executed plan returned: the tuples each scan with
+     * predicates returned, and the tuples each join returned, that went
+     * through their input to the end.
+     *
+     * @param plan
+     *            the plan, which has been run to the end
+     * @param tableAliasToId
+     *            the table of each alias of the query
+     * @param tableStats
+     *            the statistics of the tables, by name
+     */
+    public static void record(DbIterator plan,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        if (plan instanceof SeqScan) {
+            SeqScan s = (SeqScan) plan;
+            if (s.numPartitions() == 1)
+                recordScan(s.getTableName(), s.getPushedPredicates(),
+                        s.getActualCardinality(), tableStats);
+            return;
+        }
+        if (plan instanceof TupleAdapter) {
+            BatchIterator b = ((TupleAdapter) plan).getBatchChild();
+            while (true) {
+                if (b instanceof BatchAggregate)
+                    b = ((BatchAggregate) b).getChild();
+                else if (b instanceof BatchProject)
+                    b = ((BatchProject) b).getChild();
+                else
+                    break;
+            }
+            if (b instanceof BatchSeqScan) {
+                BatchSeqScan s = (BatchSeqScan) b;
+                recordScan(s.getTableName(), s.getPushedPredicates(),
+                        s.getActualCardinality(), tableStats);
+            }
+            return;
+        }
+        if (!(plan instanceof Operator))
+            return;
+        Operator o = (Operator) plan;
+        DbIterator[] children = o.getChildren();
+        for (DbIterator child : children)
+            if (child != null)
+                record(child, tableAliasToId, tableStats);
+
+        String field1, field2;
+        JoinPredicate jp;
+        if (o instanceof Join) {
+            jp = ((Join) o).getJoinPredicate();
+            field1 = ((Join) o).getJoinField1Name();
+            field2 = ((Join) o).getJoinField2Name();
+        } else if (o instanceof HashEquiJoin) {
+            jp = ((HashEquiJoin) o).getJoinPredicate();
+            field1 = ((HashEquiJoin) o).getJoinField1Name();
+            field2 = ((HashEquiJoin) o).getJoinField2Name();
+        } else if (o instanceof BlockNestedLoopJoin) {
+            jp = ((BlockNestedLoopJoin) o).getJoinPredicate();
+            field1 = ((BlockNestedLoopJoin) o).getJoinField1Name();
+            field2 = ((BlockNestedLoopJoin) o).getJoinField2Name();
+        } else if (o instanceof SortMergeJoin) {
+            jp = ((SortMergeJoin) o).getJoinPredicate();
+            field1 = ((SortMergeJoin) o).getJoinField1Name();
+            field2 = ((SortMergeJoin) o).getJoinField2Name();
+        } else if (o instanceof JoinFilter) {
+            jp = ((JoinFilter) o).getJoinPredicate();
+            field1 = ((JoinFilter) o).getField1Name();
+            field2 = ((JoinFilter) o).getField2Name();
+        } else {
+            return;
+        }
+
+        String[] tmp1 = field1.split("[.]"), tmp2 = field2.split("[.]");
+        if (tmp1.length < 2 || tmp2.length < 2)
+            return;
+        Integer table1 = tableAliasToId.get(tmp1[0]);
+        Integer table2 = tableAliasToId.get(tmp2[0]);
+        long actual = o.getActualCardinality();
+        if (table1 == null || table2 == null || actual < 0)
+            return;
+        double pairs = 1.0;
+        for (DbIterator child : children) {
+            long in = child instanceof Operator ? ((Operator) child)
+                    .getActualCardinality()
+                    : child instanceof SeqScan ? ((SeqScan) child)
+                            .getActualCardinality() : -1;
+            if (in < 0)
+                return;
+            pairs *= in;
+        }
+        Catalog catalog = Database.getCatalog();
+        recordJoin(catalog.getTableName(table1), tmp1[1], jp.getOperator(),
+                catalog.getTableName(table2), tmp2[1], pairs, actual,
+                estimateJoin(jp.getOperator(), tmp1[0], tmp1[1], tmp2[0],
+                        tmp2[1], tableAliasToId, tableStats));
+    }
+
+    /**
+     * @return the fraction of the pairs of tuples of two tables a join
+     *         predicate is estimated to select, as the optimizer estimates
+     *         it, or NaN if the statistics of a table are not known
+     */
+    private static double estimateJoin(Predicate.Op op, String alias1,
+            String field1, String alias2, String field2,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        Catalog catalog = Database.getCatalog();
+        int table1 = tableAliasToId.get(alias1), table2 = tableAliasToId.get(alias2);
+        TableStats s1 = tableStats.get(catalog.getTableName(table1));
+        TableStats s2 = tableStats.get(catalog.getTableName(table2));
+        if (s1 == null || s2 == null)
+            return Double.NaN;
+        int card1 = Math.max(1, s1.totalTuples());
+        int card2 = Math.max(1, s2.totalTuples());
+        return JoinOptimizer.estimateTableJoinCardinality(op, alias1, alias2,
+                field1, field2, card1, card2,
+                field1.equals(catalog.getPrimaryKey(table1)),
+                field2.equals(catalog.getPrimaryKey(table2)), tableStats,
+                tableAliasToId)
+                / ((double) card1 * card2);
+    }
+
+    /**
+     * Records what a scan of a table with pushed down predicates returned,
+     * if it ran to the end.
+     */
+    private static void recordScan(String tableName, Predicate[] pushed,
+            long actual, Map<String, TableStats> tableStats) {
+        TableStats stats = tableStats.get(tableName);
+        if (stats == null || actual < 0 || pushed.length == 0)
+            return;
+        List<Predicate> preds = Arrays.asList(pushed);
+        recordFilter(tableName, preds, stats.totalTuples()
+                * stats.estimateSelectivity(preds), actual);
+    }
+}
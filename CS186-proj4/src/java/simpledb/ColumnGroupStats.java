@@ -0,0 +1,298 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Statistics on a group of two columns of a table whose values are
+ * correlated, such as a city and its zip code, for predicates on both of
+ * them: a {@link HyperLogLog} sketch of the pairs of values, and a
+ * two-dimensional histogram.
+ * <p>
+ * The histogram splits the values of each column into ranges of about the
+ * same number of values, a value never spanning two ranges, and keeps the
+ * count of the pairs in each cell of the grid the ranges make, and the
+ * number of distinct pairs sampled in it; the distinct values of a range
+ * are extrapolated to the values the sample stands for, as in
+ * EquiDepthHistogram. The selectivity of predicates on
+ * both columns is summed over the cells, so that it follows the pairs that
+ * occur together rather than the product of the selectivities on each
+ * column. As in {@link EquiDepthHistogram}, the counts are in units of the
+ * values the sample stands for, so that values added or removed later can
+ * be counted in.
+ */
+public class ColumnGroupStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of ranges the values of each column are split into */
+    static final int NUM_RANGES = 16;
+
+    /** The two columns */
+    private final int[] fields;
+
+    /** The smallest and largest value, and the number of distinct values,
+        of each range of each column, in increasing order */
+    private final Field[][] los, his;
+    private final double[][] distincts;
+
+    /** The count of the pairs in each cell, and the number of distinct
+        pairs sampled in it */
+    private final double[][] counts;
+    private final int[][] pairs;
+    private double total;
+
+    /** The distinct pairs sampled, and the fraction of the sample made of
+        pairs that occur once in it */
+    private final int samplePairs;
+    private final double singletons;
+
+    private final HyperLogLog sketch;
+
+    /**
+     * Create the statistics of a group of two columns.
+     *
+     * @param field1
+     *            the first column
+     * @param field2
+     *            the second column
+     * @param a
+     *            a sample of the values of the first column
+     * @param b
+     *            the values of the second column in the same tuples of the
+     *            sample
+     * @param total
+     *            the number of tuples the sample was drawn from
+     * @param sketch
+     *            a sketch of the pairs of values of all the tuples read,
+     *            built with {@link #hash}
+     */
+    public ColumnGroupStats(int field1, int field2, Field[] a, Field[] b,
+            double total, HyperLogLog sketch) {
+        fields = new int[] { field1, field2 };
+        this.sketch = sketch;
+        int n = a.length;
+        double scale = n == 0 ? 0.0 : total / n;
+
+        Field[][] columns = { a, b };
+        los = new Field[2][];
+        his = new Field[2][];
+        distincts = new double[2][];
+        for (int d = 0; d < 2; d++)
+            split(d, columns[d], scale);
+
+        counts = new double[los[0].length][los[1].length];
+        pairs = new int[los[0].length][los[1].length];
+        HashSet<List<Field>> seen = new HashSet<List<Field>>();
+        HashMap<List<Field>, Integer> occurrences = new HashMap<List<Field>, Integer>();
+        for (int k = 0; k < n; k++) {
+            int i = range(0, a[k]), j = range(1, b[k]);
+            counts[i][j] += scale;
+            List<Field> pair = Arrays.asList(a[k], b[k]);
+            if (seen.add(pair))
+                pairs[i][j]++;
+            Integer c = occurrences.get(pair);
+            occurrences.put(pair, c == null ? 1 : c + 1);
+        }
+        int once = 0;
+        for (Integer c : occurrences.values())
+            if (c == 1)
+                once++;
+        samplePairs = seen.size();
+        singletons = n == 0 ? 0.0 : (double) once / n;
+        this.total = n == 0 ? 0.0 : total;
+    }
+
+    /** Splits the values of column d, each standing for scale values, into
+        ranges of about the same number of values each */
+    private void split(int d, Field[] sample, double scale) {
+        Field[] values = sample.clone();
+        Arrays.sort(values, EquiDepthHistogram.FIELD_ORDER);
+        ArrayList<Field> lo = new ArrayList<Field>(), hi = new ArrayList<Field>();
+        ArrayList<Integer> sizes = new ArrayList<Integer>(), ds = new ArrayList<Integer>();
+        ArrayList<Integer> ones = new ArrayList<Integer>();
+        double depth = Math.max(1.0, (double) values.length / NUM_RANGES);
+        int count = 0, distinct = 0, single = 0;
+        for (int i = 0; i < values.length; i++) {
+            boolean first = i == 0
+                    || EquiDepthHistogram.FIELD_ORDER.compare(values[i - 1], values[i]) != 0;
+            // close the range before a new value once the values so far
+            // fill the ranges so far
+            if (first && i > 0 && i >= depth * (hi.size() + 1)) {
+                hi.add(values[i - 1]);
+                sizes.add(count);
+                ds.add(distinct);
+                ones.add(single);
+                count = 0;
+                distinct = 0;
+                single = 0;
+            }
+            if (count == 0)
+                lo.add(values[i]);
+            count++;
+            if (first)
+                distinct++;
+            if (first && (i + 1 == values.length || EquiDepthHistogram.FIELD_ORDER
+                    .compare(values[i], values[i + 1]) != 0))
+                single++;
+        }
+        if (count > 0) {
+            hi.add(values[values.length - 1]);
+            sizes.add(count);
+            ds.add(distinct);
+            ones.add(single);
+        }
+        los[d] = lo.toArray(new Field[lo.size()]);
+        his[d] = hi.toArray(new Field[hi.size()]);
+        distincts[d] = new double[ds.size()];
+        for (int r = 0; r < ds.size(); r++)
+            distincts[d][r] = EquiDepthHistogram.scaleDistinct(sizes.get(r),
+                    ds.get(r), ones.get(r), sizes.get(r) * scale);
+    }
+
+    /** @return the range of column d that v falls in, or the nearest one */
+    private int range(int d, Field v) {
+        int r = Arrays.binarySearch(his[d], v, EquiDepthHistogram.FIELD_ORDER);
+        r = r >= 0 ? r : -r - 1;
+        return Math.min(r, his[d].length - 1);
+    }
+
+    /** @return the first and second column of the group */
+    public int[] getFields() {
+        return fields.clone();
+    }
+
+    /** @return a sketch of the distinct pairs of values of the columns */
+    public HyperLogLog sketch() {
+        return sketch;
+    }
+
+    /**
+     * @return the fraction of the sample made of pairs of values that occur
+     *         only once in it
+     */
+    public double singletonFraction() {
+        return singletons;
+    }
+
+    /** @return a 64 bit hash of a pair of values, equal for equal pairs */
+    static long hash(Field a, Field b) {
+        return Long.rotateLeft(HyperLogLog.hash(a), 21) ^ HyperLogLog.hash(b);
+    }
+
+    /**
+     * Counts a pair of values added to, or removed from, the columns since
+     * the statistics were built. A value outside of every range of its
+     * column widens the nearest one.
+     *
+     * @param a
+     *            the value of the first column
+     * @param b
+     *            the value of the second column
+     * @param count
+     *            the number of pairs added, or minus the number removed
+     */
+    public synchronized void add(Field a, Field b, double count) {
+        if (los[0].length == 0 || los[1].length == 0)
+            return;
+        if (count > 0)
+            sketch.addHash(hash(a, b));
+        Field[] v = { a, b };
+        int[] r = new int[2];
+        for (int d = 0; d < 2; d++) {
+            r[d] = range(d, v[d]);
+            if (count > 0 && EquiDepthHistogram.FIELD_ORDER.compare(v[d], los[d][r[d]]) < 0) {
+                los[d][r[d]] = v[d];
+                distincts[d][r[d]]++;
+            } else if (count > 0 && EquiDepthHistogram.FIELD_ORDER.compare(v[d], his[d][r[d]]) > 0) {
+                his[d][r[d]] = v[d];
+                distincts[d][r[d]]++;
+            }
+        }
+        double before = counts[r[0]][r[1]];
+        counts[r[0]][r[1]] = Math.max(0.0, before + count);
+        if (count > 0 && pairs[r[0]][r[1]] == 0)
+            pairs[r[0]][r[1]] = 1;
+        total += counts[r[0]][r[1]] - before;
+    }
+
+    /**
+     * Estimate the selectivity of the conjunction of predicates on the two
+     * columns.
+     *
+     * @param preds
+     *            predicates on the columns of the group, each comparing a
+     *            column to a constant
+     * @param distinctPairs
+     *            the estimated number of distinct pairs of values in the
+     *            table, which scales up the distinct pairs sampled in a cell
+     *            for equality predicates on both columns
+     * @return the estimated fraction of the tuples that satisfy all the
+     *         predicates
+     */
+    public synchronized double estimateSelectivity(List<Predicate> preds,
+            double distinctPairs) {
+        if (total <= 0)
+            return 0.0;
+        double[][] frac = new double[2][];
+        Field[] equal = new Field[2];
+        for (int d = 0; d < 2; d++) {
+            frac[d] = new double[los[d].length];
+            Arrays.fill(frac[d], 1.0);
+        }
+        int equalities = 0;
+        for (Predicate p : preds) {
+            int d = p.getField() == fields[0] ? 0 : 1;
+            if ((p.getOp() == Predicate.Op.EQUALS || p.getOp() == Predicate.Op.LIKE)
+                    && equal[d] == null) {
+                equal[d] = p.getOperand();
+                equalities++;
+            }
+            for (int r = 0; r < frac[d].length; r++)
+                frac[d][r] *= fraction(d, r, p.getOp(), p.getOperand());
+        }
+
+        double sel = 0.0;
+        if (equalities == 2 && preds.size() == 2) {
+            // a single pair: its share of the distinct pairs of its cell
+            int i = range(0, equal[0]), j = range(1, equal[1]);
+            if (frac[0][i] > 0 && frac[1][j] > 0 && pairs[i][j] > 0) {
+                double scale = Math.max(1.0, distinctPairs / Math.max(1, samplePairs));
+                sel = counts[i][j] / (pairs[i][j] * scale);
+            }
+        } else {
+            for (int i = 0; i < frac[0].length; i++)
+                for (int j = 0; j < frac[1].length; j++)
+                    sel += counts[i][j] * frac[0][i] * frac[1][j];
+        }
+        return Math.max(0.0, Math.min(1.0, sel / total));
+    }
+
+    /** @return the estimated fraction of the values of range r of column d
+        that satisfy op v */
+    private double fraction(int d, int r, Predicate.Op op, Field v) {
+        Field lo = los[d][r], hi = his[d][r];
+        int cl = EquiDepthHistogram.FIELD_ORDER.compare(v, lo);
+        int ch = EquiDepthHistogram.FIELD_ORDER.compare(v, hi);
+        double eq = cl >= 0 && ch <= 0 ? 1.0 / distincts[d][r] : 0.0;
+        double less = cl <= 0 ? 0.0 : ch > 0 ? 1.0 : EquiDepthHistogram
+                .position(v, lo, hi);
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return eq;
+        case NOT_EQUALS:
+            return 1.0 - eq;
+        case LESS_THAN:
+            return less;
+        case LESS_THAN_OR_EQ:
+            return Math.min(1.0, less + eq);
+        case GREATER_THAN:
+            return Math.max(0.0, 1.0 - less - eq);
+        case GREATER_THAN_OR_EQ:
+            return 1.0 - less;
+        default:
+            throw new IllegalArgumentException("unknown operator " + op);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A CompiledPredicate evaluates a conjunction of {@link Predicate}s against
+ * tuples. It is built once, when a {@link Filter} is created, and replaces
+ * the per-tuple <code>Field.compare(Op, Field)</code> call and the switch on
+ * the operator inside it with a class specialized for the type and operator
+ * of each predicate, which compares the raw int or String value of the field
+ * against a constant unpacked in advance. A conjunction of two predicates,
+ * the common case, calls both directly rather than looping over them.
+ * <p>
+ * When compiled with the TupleDesc of the tuples it tests, a predicate can
+ * also be tested on a tuple as laid out in the bytes of a {@link HeapPage},
+ * without decoding it; this is how {@link SeqScan} filters pushed-down
+ * predicates.
+ */
+public abstract class CompiledPredicate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** @return true if the tuple satisfies the predicate */
+    public abstract boolean eval(Tuple t);
+
+    /**
+     * @return true if the tuple starting at offset base of the bytes of a
+     *         page satisfies the predicate
+     * @throws UnsupportedOperationException
+     *             if the predicate was compiled without a TupleDesc
+     */
+    public abstract boolean evalRaw(byte[] data, int base);
+
+    /**
+     * @return the evaluator of the conjunction of the given predicates,
+     *         tested in the given order; true for every tuple if there are
+     *         none
+     */
+    public static CompiledPredicate compile(Predicate[] preds) {
+        return compile(preds, null);
+    }
+
+    /**
+     * @return the evaluator of the conjunction of the given predicates over
+     *         tuples with the given TupleDesc, which can also test them in
+     *         the bytes of a page
+     */
+    public static CompiledPredicate compile(Predicate[] preds, TupleDesc td) {
+        switch (preds.length) {
+        case 0:
+            return new True();
+        case 1:
+            return compile(preds[0], td);
+        case 2:
+            return new And2(compile(preds[0], td), compile(preds[1], td));
+        default:
+            CompiledPredicate[] terms = new CompiledPredicate[preds.length];
+            for (int i = 0; i < preds.length; i++)
+                terms[i] = compile(preds[i], td);
+            return new And(terms);
+        }
+    }
+
+    /** @return the evaluator of a single predicate */
+    public static CompiledPredicate compile(Predicate p) {
+        return compile(p, null);
+    }
+
+    /**
+     * @return the evaluator of a single predicate over tuples with the given
+     *         TupleDesc; if it is null, it can only test Tuples
+     */
+    public static CompiledPredicate compile(Predicate p, TupleDesc td) {
+        int f = p.getField();
+        int off = td == null ? -1 : td.getFieldOffset(f);
+        if (p.getOperand() instanceof IntField) {
+            int v = ((IntField) p.getOperand()).getValue();
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                return new IntEquals(f, off, v);
+            case NOT_EQUALS:
+                return new IntNotEquals(f, off, v);
+            case GREATER_THAN:
+                return new IntGreaterThan(f, off, v);
+            case GREATER_THAN_OR_EQ:
+                // x >= v is x > v - 1, unless every value passes
+                return v == Integer.MIN_VALUE ? new True()
+                        : new IntGreaterThan(f, off, v - 1);
+            case LESS_THAN:
+                return new IntLessThan(f, off, v);
+            case LESS_THAN_OR_EQ:
+                return v == Integer.MAX_VALUE ? new True()
+                        : new IntLessThan(f, off, v + 1);
+            }
+        } else {
+            String v = ((StringField) p.getOperand()).getValue();
+            switch (p.getOp()) {
+            case EQUALS:
+                return new StringEquals(f, off, v);
+            case NOT_EQUALS:
+                return new Not(new StringEquals(f, off, v));
+            case GREATER_THAN:
+                return new StringCompare(f, off, v, 1, Integer.MAX_VALUE);
+            case GREATER_THAN_OR_EQ:
+                return new StringCompare(f, off, v, 0, Integer.MAX_VALUE);
+            case LESS_THAN:
+                return new StringCompare(f, off, v, Integer.MIN_VALUE, -1);
+            case LESS_THAN_OR_EQ:
+                return new StringCompare(f, off, v, Integer.MIN_VALUE, 0);
+            case LIKE:
+                return new StringLike(f, off, v);
+            }
+        }
+        throw new IllegalArgumentException("unknown operator " + p.getOp());
+    }
+
+    private static int intValue(Tuple t, int field) {
+        return ((IntField) t.getField(field)).getValue();
+    }
+
+    private static String stringValue(Tuple t, int field) {
+        return ((StringField) t.getField(field)).getValue();
+    }
+
+    private static void checkOffset(int off) {
+        if (off < 0)
+            throw new UnsupportedOperationException(
+                    "predicate compiled without a TupleDesc");
+    }
+
+    /**
+     * @return the sign of the comparison of the string at an offset of the
+     *         bytes of a page with v, comparing bytes with characters as long
+     *         as they are ASCII, as they nearly always are
+     */
+    private static int rawCompare(byte[] data, int off, String v) {
+        int len = HeapPage.rawInt(data, off);
+        int n = Math.min(len, v.length());
+        for (int i = 0; i < n; i++) {
+            byte b = data[off + 4 + i];
+            if (b < 0)
+                return HeapPage.rawString(data, off).compareTo(v);
+            int c = b - v.charAt(i);
+            if (c != 0)
+                return c;
+        }
+        // an ASCII prefix of len bytes decodes to len characters, and any
+        // further bytes to at least one more
+        return len - v.length();
+    }
+
+    private static final class True extends CompiledPredicate {
+        private static final long serialVersionUID = 1L;
+
+        public boolean eval(Tuple t) {
+            return true;
+        }
+
+        public boolean evalRaw(byte[] data, int base) {
+            return true;
+        }
+    }
+
+    private static final class Not extends CompiledPredicate {
+        private static final long serialVersionUID = 1L;
+        private final CompiledPredicate p;
+
+        Not(CompiledPredicate p) {
+            this.p = p;
+        }
+
+        public boolean eval(Tuple t) {
+            return !p.eval(t);
+        }
+
+        public boolean evalRaw(byte[] data, int base) {
+            return !p.evalRaw(data, base);
+        }
+    }
+
+    private static final class And2 extends CompiledPredicate {
+        private static final long serialVersionUID = 1L;
+        private final CompiledPredicate p1, p2;
+
+        And2(CompiledPredicate p1, CompiledPredicate p2) {
+            this.p1 = p1;
+            this.p2 = p2;
+        }
+
+        public boolean eval(Tuple t) {
+            return p1.eval(t) && p2.eval(t);
+        }
+
+        public boolean evalRaw(byte[] data, int base) {
+            return p1.evalRaw(data, base) && p2.evalRaw(data, base);
+        }
+    }
+
+    private static final class And extends CompiledPredicate {
+        private static final long serialVersionUID = 1L;
+        private final CompiledPredicate[] terms;
+
+        And(CompiledPredicate[] terms) {
+            this.terms = terms;
+        }
+
+        public boolean eval(Tuple t) {
+            for (CompiledPredicate p : terms)
+                if (!p.eval(t))
+                    return false;
+            return true;
+        }
+
+        public boolean evalRaw(byte[] data, int base) {
+            for (CompiledPredicate p : terms)
+                if (!p.evalRaw(data, base))
+                    return false;
+            return true;
+        }
+    }
+
+    private static final class IntEquals extends CompiledPredicate {
+        private static final long serialVersionUID = 1L;
+        private final int field, off, v;
+
+        IntEquals(int field, int off, int v) {
+            this.field = field;
+            this.off = off;
+            this.v = v;
+        }
+
+        public boolean eval(Tuple t) {
+            return intValue(t, field) == v;
+        }
+
+        public boolean evalRaw(byte[] data, int base) {
+            checkOffset(off);
+            return HeapPage.rawInt(data, base + off) == v;
+        }
+    }
+
+    private static final class IntNotEquals extends CompiledPredicate {
+        private static final long serialVersionUID = 1L;
+        private final int field, off, v;
+
+        IntNotEquals(int field, int off, int v) {
+            this.field = field;
+            this.off = off;
+            this.v = v;
+        }
+
+        public boolean eval(Tuple t) {
+            return intValue(t, field) != v;
+        }
+
+        public boolean evalRaw(byte[] data, int base) {
+            checkOffset(off);
+            return HeapPage.rawInt(data, base + off) != v;
+        }
+    }
+
+    private static final class IntGreaterThan extends CompiledPredicate {
+        private static final long serialVersionUID = 1L;
+        private final int field, off, v;
+
+        IntGreaterThan(int field, int off, int v) {
+            this.field = field;
+            this.off = off;
+            this.v = v;
+        }
+
+        public boolean eval(Tuple t) {
+            return intValue(t, field) > v;
+        }
+
+        public boolean evalRaw(byte[] data, int base) {
+            checkOffset(off);
+            return HeapPage.rawInt(data, base + off) > v;
+        }
+    }
+
+    private static final class IntLessThan extends CompiledPredicate {
+        private static final long serialVersionUID = 1L;
+        private final int field, off, v;
+
+        IntLessThan(int field, int off, int v) {
+            this.field = field;
+            this.off = off;
+            this.v = v;
+        }
+
+        public boolean eval(Tuple t) {
+            return intValue(t, field) < v;
+        }
+
+        public boolean evalRaw(byte[] data, int base) {
+            checkOffset(off);
+            return HeapPage.rawInt(data, base + off) < v;
+        }
+    }
+
+    private static final class StringEquals extends CompiledPredicate {
+        private static final long serialVersionUID = 1L;
+        private final int field, off;
+        private final String v;
+
+        StringEquals(int field, int off, String v) {
+            this.field = field;
+            this.off = off;
+            this.v = v;
+        }
+
+        public boolean eval(Tuple t) {
+            return stringValue(t, field).equals(v);
+        }
+
+        public boolean evalRaw(byte[] data, int base) {
+            checkOffset(off);
+            return rawCompare(data, base + off, v) == 0;
+        }
+    }
+
+    /** Passes values whose comparison with v is within [lo, hi]. */
+    private static final class StringCompare extends CompiledPredicate {
+        private static final long serialVersionUID = 1L;
+        private final int field, off;
+        private final String v;
+        private final int lo, hi;
+
+        StringCompare(int field, int off, String v, int lo, int hi) {
+            this.field = field;
+            this.off = off;
+            this.v = v;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        public boolean eval(Tuple t) {
+            int c = stringValue(t, field).compareTo(v);
+            return c >= lo && c <= hi;
+        }
+
+        public boolean evalRaw(byte[] data, int base) {
+            checkOffset(off);
+            int c = rawCompare(data, base + off, v);
+            return c >= lo && c <= hi;
+        }
+    }
+
+    private static final class StringLike extends CompiledPredicate {
+        private static final long serialVersionUID = 1L;
+        private final int field, off;
+        private final String v;
+
+        StringLike(int field, int off, String v) {
+            this.field = field;
+            this.off = off;
+            this.v = v;
+        }
+
+        public boolean eval(Tuple t) {
+            return stringValue(t, field).indexOf(v) >= 0;
+        }
+
+        public boolean evalRaw(byte[] data, int base) {
+            checkOffset(off);
+            return HeapPage.rawString(data, base + off).indexOf(v) >= 0;
+        }
+    }
+
+}
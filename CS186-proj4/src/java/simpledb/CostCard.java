@@ -1,14 +1,20 @@
 package simpledb;
-import java.util.Vector;
 
 /** Class returned by {@link JoinOptimizer#computeCostAndCardOfSubplan} specifying the
-    cost and cardinality of the optimal plan represented by plan.
+    cost and cardinality of the optimal plan ending with join, and its inputs.
 */
 public class CostCard {
     /** The cost of the optimal subplan */
     public double cost;
     /** The cardinality of the optimal subplan */
     public int card;
-    /** The optimal subplan */
-    public Vector<LogicalJoinNode> plan;
+    /** The join performed last in the optimal subplan, with its inner and
+        outer swapped if the plan does so */
+    public LogicalJoinNode join;
+    /** The mask of the joins of one input of join; those of the other input
+        are the rest of the join set */
+    public long left;
+    /** The algorithm join is performed with, or null if it is performed as
+        a filter */
+    public LogicalJoinNode.Algorithm algorithm;
 }
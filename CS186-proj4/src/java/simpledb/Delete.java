@@ -70,7 +70,9 @@ public class Delete extends Operator {
             BufferPool bp = Database.getBufferPool();
             while(child.hasNext()) {
                 next = child.next();
+                int tableid = next.getRecordId().getPageId().getTableId();
                 bp.deleteTuple(tid, next);
+                TableStats.tupleDeleted(tableid, next);
                 count++;
             }
             t = new Tuple(getTupleDesc());
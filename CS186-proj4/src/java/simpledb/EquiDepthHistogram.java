@@ -0,0 +1,443 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * An equi-depth histogram over a single field, of either type, built from a
+ * sample of its values.
+ * <p>
+ * The most common values of the sample, those that would fill most of a
+ * bucket by themselves, are kept in a list with their frequencies. The other
+ * values are split into buckets of about the same number of values each, a
+ * value never spanning two buckets, so that a narrow range holding many of
+ * the values gets many buckets. Each bucket keeps its smallest and largest
+ * value, the fraction of the values in it and its number of distinct values,
+ * extrapolated from the sample to the values it stands for (see
+ * {@link #scaleDistinct}).
+ * Prefix sums of the fractions of the common values and of the buckets make
+ * the estimate for a predicate two binary searches.
+ * <p>
+ * The counts are kept in units of the values the sample stands for, so that
+ * values added to or removed from the field afterwards can be counted in,
+ * without rebuilding the histogram.
+ */
+public class EquiDepthHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Most common values, in increasing order, and their counts */
+    private final Field[] mcvs;
+    private final double[] mcvCounts;
+    /** mcvBelow[i] is the total count of mcvs[0..i-1] */
+    private final double[] mcvBelow;
+
+    /** The smallest and largest value of each bucket, in increasing order */
+    private Field[] los, his;
+    /** The count of the values, and the number of distinct values, in each
+        bucket */
+    private double[] counts;
+    private double[] distincts;
+    /** bucketBelow[i] is the total count of the values in buckets[0..i-1] */
+    private double[] bucketBelow;
+
+    /** The count of all the values */
+    private double total;
+
+    /** The sum of the squares of the frequencies of the values */
+    private double sumSquares;
+
+    /** The fraction of the sample made of values that occur once in it */
+    private final double singletons;
+
+    /**
+     * Create a new EquiDepthHistogram.
+     *
+     * @param sample
+     *            a sample of the values of the field; the sample is not
+     *            modified
+     * @param buckets
+     *            the number of buckets to split the values that are not
+     *            among the most common ones into
+     * @param maxMcvs
+     *            the largest number of most common values to keep
+     */
+    public EquiDepthHistogram(Field[] sample, int buckets, int maxMcvs) {
+        this(sample, buckets, maxMcvs, sample.length);
+    }
+
+    /**
+     * Create a new EquiDepthHistogram from a sample of the values of a field
+     * that stands for more values.
+     *
+     * @param sample
+     *            a sample of the values of the field; the sample is not
+     *            modified
+     * @param buckets
+     *            the number of buckets to split the values that are not
+     *            among the most common ones into
+     * @param maxMcvs
+     *            the largest number of most common values to keep
+     * @param total
+     *            the number of values the sample was drawn from
+     */
+    public EquiDepthHistogram(Field[] sample, int buckets, int maxMcvs,
+            double total) {
+        Field[] values = sample.clone();
+        Arrays.sort(values, FIELD_ORDER);
+        int n = values.length;
+        // the count each sampled value stands for
+        double scale = n == 0 ? 0.0 : total / n;
+
+        // the runs of equal values, and the most common of them
+        ArrayList<Integer> runStarts = new ArrayList<Integer>();
+        for (int i = 0; i < n; i++)
+            if (i == 0 || FIELD_ORDER.compare(values[i - 1], values[i]) != 0)
+                runStarts.add(i);
+        runStarts.add(n);
+        int runs = runStarts.size() - 1;
+        Integer[] byCount = new Integer[runs];
+        for (int r = 0; r < runs; r++)
+            byCount[r] = r;
+        final ArrayList<Integer> starts = runStarts;
+        Arrays.sort(byCount, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return (starts.get(b + 1) - starts.get(b))
+                        - (starts.get(a + 1) - starts.get(a));
+            }
+        });
+        int once = 0;
+        for (int r = 0; r < runs; r++)
+            if (starts.get(r + 1) - starts.get(r) == 1)
+                once++;
+        singletons = n == 0 ? 0.0 : (double) once / n;
+        boolean[] common = new boolean[runs];
+        int numMcvs = 0;
+        double threshold = (double) n / Math.max(1, buckets);
+        for (int k = 0; k < runs && numMcvs < maxMcvs; k++) {
+            int r = byCount[k];
+            int count = starts.get(r + 1) - starts.get(r);
+            if (count < 2 || count <= threshold)
+                break;
+            common[r] = true;
+            numMcvs++;
+        }
+
+        mcvs = new Field[numMcvs];
+        mcvCounts = new double[numMcvs];
+        mcvBelow = new double[numMcvs + 1];
+        int rest = n;
+        int m = 0;
+        for (int r = 0; r < runs; r++) {
+            if (!common[r])
+                continue;
+            int count = starts.get(r + 1) - starts.get(r);
+            mcvs[m] = values[starts.get(r)];
+            mcvCounts[m] = count * scale;
+            rest -= count;
+            m++;
+        }
+
+        // the other values, a bucket of about rest / buckets at a time
+        ArrayList<Field> lo = new ArrayList<Field>(), hi = new ArrayList<Field>();
+        ArrayList<Integer> sizes = new ArrayList<Integer>(), ds = new ArrayList<Integer>();
+        ArrayList<Integer> ones = new ArrayList<Integer>();
+        double depth = Math.max(1.0, (double) rest / Math.max(1, buckets));
+        int count = 0, distinct = 0, single = 0, before = 0;
+        Field last = null;
+        for (int r = 0; r < runs; r++) {
+            if (common[r])
+                continue;
+            last = values[starts.get(r)];
+            if (count == 0)
+                lo.add(last);
+            int run = starts.get(r + 1) - starts.get(r);
+            count += run;
+            distinct++;
+            if (run == 1)
+                single++;
+            // close the bucket once the values so far fill the buckets so far
+            if (before + count >= depth * (sizes.size() + 1)) {
+                hi.add(last);
+                sizes.add(count);
+                ds.add(distinct);
+                ones.add(single);
+                before += count;
+                count = 0;
+                distinct = 0;
+                single = 0;
+            }
+        }
+        if (count > 0) {
+            hi.add(last);
+            sizes.add(count);
+            ds.add(distinct);
+            ones.add(single);
+        }
+
+        int b = sizes.size();
+        los = lo.toArray(new Field[b]);
+        his = hi.toArray(new Field[b]);
+        counts = new double[b];
+        distincts = new double[b];
+        for (int i = 0; i < b; i++) {
+            counts[i] = sizes.get(i) * scale;
+            distincts[i] = scaleDistinct(sizes.get(i), ds.get(i), ones.get(i),
+                    counts[i]);
+        }
+        sums();
+    }
+
+    /**
+     * @return the number of distinct values among the count values that
+     *         part of a sample stands for, given the number of values
+     *         sampled in it, the distinct ones and those that occur once:
+     *         each value not sampled is a new one with about the probability
+     *         that a sampled value occurs once in the sample
+     */
+    static double scaleDistinct(int sampled, int distinct, int once,
+            double count) {
+        if (sampled == 0 || count <= sampled)
+            return distinct;
+        return Math.min(count, distinct + (double) once / sampled
+                * (count - sampled));
+    }
+
+    /** Recomputes the prefix sums, the total and the sum of squares */
+    private void sums() {
+        int b = counts.length;
+        bucketBelow = new double[b + 1];
+        for (int i = 0; i < b; i++)
+            bucketBelow[i + 1] = bucketBelow[i] + counts[i];
+        for (int i = 0; i < mcvs.length; i++)
+            mcvBelow[i + 1] = mcvBelow[i] + mcvCounts[i];
+        total = bucketBelow[b] + mcvBelow[mcvs.length];
+        double squares = 0;
+        for (int i = 0; i < b; i++)
+            squares += counts[i] * counts[i] / distincts[i];
+        for (double c : mcvCounts)
+            squares += c * c;
+        // no values at all are as good as a single one
+        sumSquares = total <= 0 ? 1.0 : squares / (total * total);
+    }
+
+    /**
+     * Counts values added to, or removed from, the field since the histogram
+     * was built. A value outside of every bucket widens the nearest one,
+     * as a new distinct value of it; the number of distinct values of the
+     * buckets is otherwise left as it is.
+     *
+     * @param v
+     *            the value, of the type of the field
+     * @param count
+     *            the number of values added, or minus the number removed
+     */
+    public synchronized void add(Field v, double count) {
+        int i = Arrays.binarySearch(mcvs, v, FIELD_ORDER);
+        if (i >= 0) {
+            mcvCounts[i] = Math.max(0.0, mcvCounts[i] + count);
+        } else if (counts.length == 0) {
+            if (count <= 0)
+                return;
+            los = new Field[] { v };
+            his = new Field[] { v };
+            counts = new double[] { count };
+            distincts = new double[] { 1 };
+        } else {
+            int b = Math.min(bucketOf(v), counts.length - 1);
+            if (count > 0 && FIELD_ORDER.compare(v, los[b]) < 0) {
+                los[b] = v;
+                distincts[b]++;
+            } else if (count > 0 && FIELD_ORDER.compare(v, his[b]) > 0) {
+                his[b] = v;
+                distincts[b]++;
+            }
+            counts[b] = Math.max(0.0, counts[b] + count);
+        }
+        sums();
+    }
+
+    /** @return the number of values counted in the histogram */
+    public synchronized double total() {
+        return total;
+    }
+
+    /**
+     * @return the fraction of the sample made of values that occur only once
+     *         in it, an estimate of the probability that a value not sampled
+     *         is not in the sample either
+     */
+    public double singletonFraction() {
+        return singletons;
+    }
+
+    /** @return the number of buckets of the histogram */
+    public int numBuckets() {
+        return counts.length;
+    }
+
+    /** @return the number of most common values kept */
+    public int numMostCommonValues() {
+        return mcvs.length;
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on the
+     * values of the field.
+     *
+     * @param op
+     *            Operator
+     * @param v
+     *            Value, of the type of the field
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public synchronized double estimateSelectivity(Predicate.Op op, Field v) {
+        if (total <= 0)
+            return 0.0;
+        double sel;
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            sel = equal(v);
+            break;
+        case NOT_EQUALS:
+            sel = 1.0 - equal(v);
+            break;
+        case LESS_THAN:
+            sel = less(v);
+            break;
+        case LESS_THAN_OR_EQ:
+            sel = less(v) + equal(v);
+            break;
+        case GREATER_THAN:
+            sel = 1.0 - less(v) - equal(v);
+            break;
+        case GREATER_THAN_OR_EQ:
+            sel = 1.0 - less(v);
+            break;
+        default:
+            throw new IllegalArgumentException("unknown operator " + op);
+        }
+        return Math.max(0.0, Math.min(1.0, sel));
+    }
+
+    /**
+     * The selectivity of a predicate on the field for a value drawn from the
+     * field itself, in closed form from the frequencies of the values: two
+     * values drawn are equal with probability the sum of the squares of the
+     * frequencies, and otherwise are as likely to be in either order.
+     *
+     * @param op
+     *            Operator
+     * @return the average selectivity of op over the values of the field
+     */
+    public synchronized double avgSelectivity(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return sumSquares;
+        case NOT_EQUALS:
+            return 1.0 - sumSquares;
+        case LESS_THAN:
+        case GREATER_THAN:
+            return (1.0 - sumSquares) / 2;
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN_OR_EQ:
+            return (1.0 + sumSquares) / 2;
+        default:
+            throw new IllegalArgumentException("unknown operator " + op);
+        }
+    }
+
+    /** @return the estimated fraction of the values equal to v */
+    private double equal(Field v) {
+        int i = Arrays.binarySearch(mcvs, v, FIELD_ORDER);
+        if (i >= 0)
+            return mcvCounts[i] / total;
+        int b = bucketOf(v);
+        if (b == counts.length || FIELD_ORDER.compare(v, los[b]) < 0)
+            return 0.0;
+        return counts[b] / distincts[b] / total;
+    }
+
+    /** @return the estimated fraction of the values less than v */
+    private double less(Field v) {
+        int i = Arrays.binarySearch(mcvs, v, FIELD_ORDER);
+        double sel = mcvBelow[i >= 0 ? i : -i - 1];
+        int b = bucketOf(v);
+        sel += bucketBelow[b];
+        if (b < counts.length && FIELD_ORDER.compare(v, los[b]) > 0)
+            sel += counts[b] * position(v, los[b], his[b]);
+        return sel / total;
+    }
+
+    /** @return the first bucket whose largest value is at least v, or the
+        number of buckets if there is none */
+    private int bucketOf(Field v) {
+        int i = Arrays.binarySearch(his, v, FIELD_ORDER);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * @return the fraction of the range from lo to hi, inclusive, below v,
+     *         for lo < v <= hi. Strings are placed by their first characters
+     *         after those that lo and hi share.
+     */
+    static double position(Field v, Field lo, Field hi) {
+        double x, a, z;
+        if (v instanceof IntField) {
+            x = ((IntField) v).getValue();
+            a = ((IntField) lo).getValue();
+            z = ((IntField) hi).getValue();
+        } else {
+            String sv = ((StringField) v).getValue();
+            String sa = ((StringField) lo).getValue();
+            String sz = ((StringField) hi).getValue();
+            int p = 0;
+            while (p < sa.length() && p < sz.length()
+                    && sa.charAt(p) == sz.charAt(p))
+                p++;
+            x = prefixValue(sv, p);
+            a = prefixValue(sa, p);
+            z = prefixValue(sz, p);
+        }
+        return Math.max(0.0, Math.min(1.0, (x - a) / (z - a + 1)));
+    }
+
+    /** @return the characters of s from position p on, as a base 256
+        fraction */
+    private static double prefixValue(String s, int p) {
+        double v = 0, scale = 1;
+        for (int i = p; i < p + 6; i++) {
+            scale /= 256;
+            if (i < s.length())
+                v += (s.charAt(i) & 0xff) * scale;
+        }
+        return v * (1L << 48);
+    }
+
+    /** Orders integer fields by value and string fields lexicographically */
+    static final Comparator<Field> FIELD_ORDER = new Comparator<Field>() {
+        public int compare(Field a, Field b) {
+            if (a instanceof IntField) {
+                int x = ((IntField) a).getValue(), y = ((IntField) b).getValue();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+            return ((StringField) a).getValue().compareTo(
+                    ((StringField) b).getValue());
+        }
+    };
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public synchronized String toString() {
+        StringBuffer str = new StringBuffer();
+        for (int i = 0; i < mcvs.length; i++)
+            str.append(mcvs[i] + ": " + mcvCounts[i] + "\n");
+        for (int i = 0; i < counts.length; i++)
+            str.append(los[i] + "," + his[i] + ": " + counts[i] + " ("
+                    + distincts[i] + " values)\n");
+        return str.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Exchange is the base class of the operators that move tuples between
+ * threads, so that parts of a plan run in parallel. The subtrees below an
+ * exchange (its producers) each run on a worker thread, typically over a
+ * disjoint range of the pages of a table (see
+ * {@link SeqScan#SeqScan(TransactionId, int, String, int, int)}), and feed
+ * bounded queues that the exchange operators above them read from:
+ * <ul>
+ * <li>{@link Gather} merges the output of all producers into one stream;</li>
+ * <li>{@link HashRepartition} splits it into several streams on a hash of
+ * some fields, so that equal values end up in the same stream;</li>
+ * <li>{@link Broadcast} sends a copy of every tuple to each stream.</li>
+ * </ul>
+ * The degree of parallelism used by the planner, the minimum size of the
+ * tables it parallelizes and the size of the morsels it divides them into are
+ * set here.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of tuples each queue between producers and consumers holds. */
+    public static final int QUEUE_CAPACITY = 1024;
+
+    private static int degreeOfParallelism = Runtime.getRuntime()
+            .availableProcessors();
+    private static int minParallelPages = 64;
+    private static int morselPages = 8;
+    private static ForkJoinPool pool = null;
+
+    /**
+     * Sets the number of threads the planner divides parallel plans into; 1
+     * disables parallel plans.
+     */
+    public static void setDegreeOfParallelism(int dop) {
+        if (dop < 1)
+            throw new IllegalArgumentException("degree of parallelism " + dop);
+        degreeOfParallelism = dop;
+    }
+
+    /**
+     * @return the number of threads the planner divides parallel plans into;
+     *         the number of processors unless set otherwise
+     */
+    public static int getDegreeOfParallelism() {
+        return degreeOfParallelism;
+    }
+
+    /**
+     * Sets the number of pages a table needs before the planner scans it in
+     * parallel; smaller tables are not worth the threads.
+     */
+    public static void setMinParallelPages(int pages) {
+        minParallelPages = pages;
+    }
+
+    /** @return the number of pages a table needs to be scanned in parallel */
+    public static int getMinParallelPages() {
+        return minParallelPages;
+    }
+
+    /**
+     * Sets the number of pages in each of the morsels that tables are
+     * divided into (see {@link MorselSource}).
+     */
+    public static void setMorselPages(int pages) {
+        if (pages < 1)
+            throw new IllegalArgumentException("morsel of " + pages + " pages");
+        morselPages = pages;
+    }
+
+    /** @return the number of pages in each morsel */
+    public static int getMorselPages() {
+        return morselPages;
+    }
+
+    /**
+     * @return the fork-join pool that the morsels of parallel plans and
+     *         parallel sorts run in, shared by all of them; it is created on
+     *         first use with the degree of parallelism as its number of
+     *         workers, and replaced by a larger one once the degree has grown
+     *         past it
+     */
+    static synchronized ForkJoinPool getPool() {
+        if (pool == null || pool.getParallelism() < degreeOfParallelism) {
+            // the workers of the old pool end on their own once idle, after
+            // the tasks already handed to it
+            pool = new ForkJoinPool(degreeOfParallelism);
+        }
+        return pool;
+    }
+
+    /** @return the name of this exchange, as shown in query plans */
+    public abstract String getName();
+
+}
@@ -0,0 +1,446 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The state shared by the consumers of an exchange: the producer subtrees,
+ * and while the exchange is running, one thread per producer and one bounded
+ * queue per consumer. Each producer thread routes the tuples of its subtree
+ * to the queues, then marks the end of its output in every queue with
+ * {@link #END}.
+ * <p>
+ * Alternatively, the producer is a {@link MorselSource}, whose morsels are
+ * run as tasks of the {@link ForkJoinPool} shared by all exchanges (see
+ * {@link Exchange#getPool()}); the end of the output is then marked once,
+ * after the last morsel.
+ * <p>
+ * The producers are started by the first consumer to open, and stopped once
+ * every consumer has closed; a consumer that closes early abandons its queue,
+ * so that the producers do not block on it.
+ */
+class ExchangeChannel {
+
+    /** How tuples are distributed among the consumers. */
+    enum Routing {
+        /** every tuple goes to the only consumer */
+        GATHER,
+        /** each tuple goes to one consumer, chosen by a hash of the key */
+        HASH,
+        /** every tuple goes to every consumer */
+        BROADCAST
+    }
+
+    /** Marks the end of the output of one producer in a queue. */
+    static final Tuple END = new Tuple(new TupleDesc(
+            new Type[] { Type.INT_TYPE }));
+
+    // how long a producer waits on a full queue before checking whether its
+    // consumer has gone away
+    private static final long OFFER_TIMEOUT_MS = 50;
+
+    private DbIterator[] producers;
+    // the morsels run in place of the producers, or null
+    private final MorselSource morsels;
+    private final Routing routing;
+    private final int[] keyFields;
+    private final int numConsumers;
+    private final int capacity;
+
+    private Run run = null;
+
+    /** The queues and threads of one execution of the producers. */
+    private class Run {
+        final ArrayList<BlockingQueue<Tuple>> queues =
+                new ArrayList<BlockingQueue<Tuple>>();
+        // 1 for the consumers that have closed; read by the producers
+        final AtomicIntegerArray closed = new AtomicIntegerArray(numConsumers);
+        final Thread[] threads = new Thread[morsels == null ? producers.length : 1];
+        int numMorsels = 0;
+        // morsels being processed, limited to the degree of parallelism
+        int activeMorsels = 0;
+        volatile boolean stopping = false;
+        volatile Throwable error = null;
+
+        Run() {
+            for (int c = 0; c < numConsumers; c++)
+                queues.add(new ArrayBlockingQueue<Tuple>(capacity));
+        }
+    }
+
+    /**
+     * @param producers
+     *            the subtrees whose output is exchanged; they must all have
+     *            the same schema
+     * @param routing
+     *            how tuples are distributed among the consumers
+     * @param keyFields
+     *            the fields hashed to choose the consumer of a tuple, for
+     *            {@link Routing#HASH}
+     * @param numConsumers
+     *            the number of consumers reading from the exchange
+     * @param capacity
+     *            the number of tuples each queue holds
+     */
+    ExchangeChannel(DbIterator[] producers, Routing routing, int[] keyFields,
+            int numConsumers, int capacity) {
+        this(producers, null, routing, keyFields, numConsumers, capacity);
+    }
+
+    /**
+     * Constructor for an exchange whose producer is run over the morsels of
+     * a table.
+     */
+    ExchangeChannel(MorselSource morsels, Routing routing, int[] keyFields,
+            int numConsumers, int capacity) {
+        this(new DbIterator[] { morsels.pipeline(0, 1) }, morsels, routing,
+                keyFields, numConsumers, capacity);
+    }
+
+    private ExchangeChannel(DbIterator[] producers, MorselSource morsels,
+            Routing routing, int[] keyFields, int numConsumers, int capacity) {
+        if (producers.length == 0)
+            throw new IllegalArgumentException("an exchange needs a producer");
+        if (routing == Routing.GATHER && numConsumers != 1)
+            throw new IllegalArgumentException("a gather has one consumer");
+        this.producers = producers.clone();
+        this.morsels = morsels;
+        this.routing = routing;
+        this.keyFields = keyFields.clone();
+        this.numConsumers = numConsumers;
+        this.capacity = capacity;
+    }
+
+    /** @return whether the producer is run over morsels */
+    boolean isMorselDriven() {
+        return morsels != null;
+    }
+
+    /**
+     * @return the producer subtrees; for an exchange run over morsels, the
+     *         pipeline over the whole table
+     */
+    DbIterator[] getProducers() {
+        return producers.clone();
+    }
+
+    void setProducers(DbIterator[] producers) {
+        this.producers = producers.clone();
+    }
+
+    int numProducers() {
+        return producers.length;
+    }
+
+    /** @return the number of times the end of the output is marked */
+    int numEnds() {
+        return morsels == null ? producers.length : 1;
+    }
+
+    int numConsumers() {
+        return numConsumers;
+    }
+
+    Routing getRouting() {
+        return routing;
+    }
+
+    int[] getKeyFields() {
+        return keyFields.clone();
+    }
+
+    TupleDesc getTupleDesc() {
+        return producers[0].getTupleDesc();
+    }
+
+    /**
+     * Called when a consumer opens; starts the producers unless they are
+     * already running.
+     */
+    synchronized void open(int consumer) throws DbException {
+        if (run != null && run.closed.get(consumer) == 1)
+            throw new DbException("exchange consumer " + consumer
+                    + " reopened while its producers are still running");
+        if (run == null)
+            start();
+    }
+
+    private void start() {
+        final Run r = new Run();
+        if (morsels != null) {
+            r.numMorsels = morsels.numMorsels();
+            r.threads[0] = new Thread(new Runnable() {
+                public void run() {
+                    produceMorsels(r);
+                }
+            }, "exchange-morsels");
+            r.threads[0].setDaemon(true);
+        }
+        for (int p = 0; morsels == null && p < producers.length; p++) {
+            final DbIterator producer = producers[p];
+            r.threads[p] = new Thread(new Runnable() {
+                public void run() {
+                    produce(r, producer);
+                }
+            }, "exchange-producer-" + p);
+            r.threads[p].setDaemon(true);
+        }
+        run = r;
+        for (Thread t : r.threads)
+            t.start();
+    }
+
+    /**
+     * Called when a consumer closes; abandons its queue, and stops the
+     * producers once every consumer has closed.
+     */
+    void close(int consumer) {
+        Run r;
+        synchronized (this) {
+            r = run;
+            if (r == null || r.closed.get(consumer) == 1)
+                return;
+            r.closed.set(consumer, 1);
+            r.queues.get(consumer).clear();
+            for (int c = 0; c < numConsumers; c++)
+                if (r.closed.get(c) == 0)
+                    return;
+            r.stopping = true;
+            run = null;
+        }
+        for (Thread t : r.threads)
+            t.interrupt();
+        try {
+            for (Thread t : r.threads)
+                t.join();
+        } catch (InterruptedException e) {
+            // being stopped ourselves; the producers will finish on their own
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes the next tuple from the queue of a consumer, waiting for one if
+     * necessary.
+     *
+     * @return the next tuple, or {@link #END} at the end of the output of one
+     *         producer
+     * @throws DbException
+     *             if a producer failed, or the wait was interrupted
+     * @throws TransactionAbortedException
+     *             if a producer's transaction was aborted
+     */
+    Tuple take(int consumer) throws DbException, TransactionAbortedException {
+        Run r;
+        synchronized (this) {
+            r = run;
+        }
+        if (r == null)
+            throw new DbException("exchange is not open");
+        Tuple t;
+        try {
+            t = r.queues.get(consumer).take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for tuples");
+        }
+        if (t == END && r.error != null) {
+            Throwable e = r.error;
+            if (e instanceof TransactionAbortedException)
+                throw new TransactionAbortedException();
+            if (e instanceof DbException)
+                throw new DbException(e.getMessage());
+            throw new DbException("exchange producer failed: " + e);
+        }
+        return t;
+    }
+
+    private void produce(Run r, DbIterator producer) {
+        try {
+            producer.open();
+            while (!r.stopping && producer.hasNext())
+                route(r, producer.next());
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (Throwable e) {
+            if (!r.stopping)
+                r.error = e;
+        } finally {
+            producer.close();
+        }
+        try {
+            for (int c = 0; c < numConsumers; c++)
+                put(r, c, END);
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Hands the morsels, in order, to the workers of the shared pool, each as
+     * soon as fewer morsels than the degree of parallelism are being
+     * processed; whichever worker is free takes the next one. Once they have
+     * all been processed, or the exchange is stopped, marks the end of the
+     * output.
+     */
+    private void produceMorsels(final Run r) {
+        ForkJoinPool pool = Exchange.getPool();
+        try {
+            for (int m = 0; m < r.numMorsels; m++) {
+                if (!enterMorsel(r))
+                    break;
+                final int morsel = m;
+                try {
+                    pool.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                runMorsel(r, morsel);
+                            } finally {
+                                exitMorsel(r);
+                            }
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    exitMorsel(r);
+                    throw e;
+                }
+            }
+        } catch (Throwable e) {
+            if (!r.stopping && r.error == null)
+                r.error = e;
+        }
+        awaitMorsels(r);
+        try {
+            for (int c = 0; c < numConsumers; c++)
+                put(r, c, END);
+        } catch (InterruptedException e) {
+            // stopped
+        }
+    }
+
+    private void runMorsel(Run r, int morsel) {
+        if (r.stopping || r.error != null)
+            return;
+        DbIterator pipeline = morsels.pipeline(morsel, r.numMorsels);
+        try {
+            try {
+                pipeline.open();
+                while (!r.stopping && r.error == null && pipeline.hasNext())
+                    route(r, pipeline.next());
+            } finally {
+                pipeline.close();
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (Throwable e) {
+            if (!r.stopping)
+                r.error = e;
+        }
+    }
+
+    /**
+     * Waits until fewer morsels than the degree of parallelism are being
+     * processed, and counts one more. The degree is read again while
+     * waiting, so that raising it lets the next morsel go; lowering it takes
+     * effect as morsels finish.
+     *
+     * @return false, counting nothing, if the exchange is stopped or a
+     *         morsel failed
+     */
+    private boolean enterMorsel(Run r) {
+        synchronized (r) {
+            while (r.activeMorsels >= Exchange.getDegreeOfParallelism()) {
+                if (r.stopping || r.error != null)
+                    return false;
+                try {
+                    r.wait(OFFER_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    // stopped; noticed on the next pass
+                }
+            }
+            if (r.stopping || r.error != null)
+                return false;
+            r.activeMorsels++;
+            return true;
+        }
+    }
+
+    /**
+     * Waits until no morsel is being processed, so that the pipelines of all
+     * morsels are closed before the end of the output is marked.
+     */
+    private void awaitMorsels(Run r) {
+        boolean interrupted = false;
+        synchronized (r) {
+            while (r.activeMorsels > 0) {
+                try {
+                    r.wait(OFFER_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    // the morsels stop on their own once stopping is set
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void exitMorsel(Run r) {
+        synchronized (r) {
+            r.activeMorsels--;
+            r.notifyAll();
+        }
+    }
+
+    private void route(Run r, Tuple t) throws InterruptedException {
+        switch (routing) {
+        case GATHER:
+            put(r, 0, t);
+            break;
+        case HASH:
+            put(r, consumerOf(t), t);
+            break;
+        case BROADCAST:
+            for (int c = 0; c < numConsumers; c++)
+                put(r, c, t);
+            break;
+        }
+    }
+
+    /** @return the consumer a tuple is routed to by {@link Routing#HASH} */
+    int consumerOf(Tuple t) {
+        int h = 0;
+        for (int f : keyFields)
+            h = 31 * h + t.getField(f).hashCode();
+        // spread small integer keys over all consumers
+        h *= 0x9E3779B9;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % numConsumers;
+    }
+
+    private void put(final Run r, final int consumer, final Tuple t)
+            throws InterruptedException {
+        final BlockingQueue<Tuple> q = r.queues.get(consumer);
+        if (r.closed.get(consumer) == 1 || q.offer(t))
+            return;
+        // a worker of the shared pool waiting on a full queue lets the pool
+        // start another, so that the morsels of the other exchanges, e.g. of
+        // the input the consumer reads first, still run
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            public boolean block() throws InterruptedException {
+                while (r.closed.get(consumer) == 0
+                        && !q.offer(t, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    if (r.stopping)
+                        throw new InterruptedException();
+                }
+                return true;
+            }
+
+            public boolean isReleasable() {
+                return false;
+            }
+        });
+    }
+
+}
@@ -0,0 +1,160 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The operator through which a thread reads its share of the output of an
+ * exchange: the tuples that the producer threads routed to its queue, until
+ * every producer has marked the end of its output.
+ * <p>
+ * Producers only run once, so a consumer cannot be rewound by simply
+ * rereading its queue. A replayable consumer records the tuples it reads to a
+ * {@link TupleSpillFile}, and replays them from there when rewound, which
+ * lets it be the inner input of a join.
+ */
+public abstract class ExchangeConsumer extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ExchangeChannel channel;
+    private final int consumer;
+    private final boolean replayable;
+
+    // number of producers whose output has been read completely
+    transient private int ends = 0;
+    transient private TupleSpillFile recording = null;
+    transient private boolean recorded = false;
+    transient private TupleSpillFile.Reader replay = null;
+
+    /**
+     * @param channel
+     *            the exchange read from
+     * @param consumer
+     *            the queue of the channel this operator reads
+     * @param replayable
+     *            whether to record the tuples read, so that the operator can
+     *            be rewound
+     */
+    ExchangeConsumer(ExchangeChannel channel, int consumer, boolean replayable) {
+        this.channel = channel;
+        this.consumer = consumer;
+        this.replayable = replayable;
+    }
+
+    ExchangeChannel getChannel() {
+        return channel;
+    }
+
+    /** @return the queue of the exchange this operator reads */
+    public int getConsumer() {
+        return consumer;
+    }
+
+    /** @return whether this operator can be rewound */
+    public boolean isReplayable() {
+        return replayable;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return channel.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        channel.open(consumer);
+        ends = 0;
+        if (replayable) {
+            try {
+                recording = new TupleSpillFile(getTupleDesc());
+            } catch (IOException e) {
+                throw new DbException("could not create replay file: " + e);
+            }
+            recorded = false;
+        }
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        channel.close(consumer);
+        if (replay != null) {
+            replay.close();
+            replay = null;
+        }
+        if (recording != null) {
+            recording.delete();
+            recording = null;
+        }
+    }
+
+    /**
+     * Starts over from the first tuple read, which the operator must have
+     * recorded.
+     *
+     * @throws DbException
+     *             if the operator is not replayable
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (!replayable)
+            throw new DbException(getName() + " cannot be rewound");
+        try {
+            if (!recorded) {
+                // the rest of the input has to be read before replaying it
+                while (take() != null)
+                    ;
+                recording.finish();
+                recorded = true;
+            }
+            if (replay != null)
+                replay.close();
+            replay = recording.reader();
+        } catch (IOException e) {
+            throw new DbException("could not replay exchange: " + e);
+        }
+    }
+
+    private Tuple take() throws DbException, TransactionAbortedException,
+            IOException {
+        while (ends < channel.numEnds()) {
+            Tuple t = channel.take(consumer);
+            if (t == ExchangeChannel.END) {
+                ends++;
+                continue;
+            }
+            if (recording != null && !recorded)
+                recording.write(t);
+            return t;
+        }
+        return null;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the next tuple routed to
+     * this consumer, waiting for the producers if necessary.
+     *
+     * @return The next tuple, or null once every producer has finished
+     */
+    protected Tuple fetchNext() throws DbException,
+            TransactionAbortedException {
+        try {
+            if (replay != null)
+                return replay.next();
+            return take();
+        } catch (IOException e) {
+            throw new DbException("could not replay exchange: " + e);
+        }
+    }
+
+    /** @return the producer subtrees of the exchange */
+    @Override
+    public DbIterator[] getChildren() {
+        return channel.getProducers();
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        channel.setProducers(children);
+    }
+
+}
@@ -0,0 +1,275 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * ExternalSort is an operator that returns the tuples of its child sorted by
+ * an arbitrary comparator, using no more than a fixed memory budget. Tuples
+ * are collected until the budget is used up, then sorted and spilled to a
+ * {@link TupleSpillFile} as a run. Once the child is exhausted the runs are
+ * merged with a {@link LoserTree}; if there are more runs than can be merged
+ * at once, intermediate merge passes combine them first.
+ * <p>
+ * If the whole input fits in the budget nothing is written to disk. Runs
+ * ordered on a single field are sorted with {@link ParallelSort}. The sort
+ * is stable. It is the sort behind {@link OrderBy}, and can be used directly
+ * by other operators that need sorted input.
+ */
+public class ExternalSort extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Maximum number of runs merged in a single pass. */
+    public static final int MAX_FAN_IN = 64;
+
+    private static long defaultMemoryBudget = Math.max(1 << 20, Runtime
+            .getRuntime().maxMemory() / 8);
+
+    private DbIterator child;
+    private Comparator<Tuple> comparator;
+    private long memoryBudget;
+
+    transient private ArrayList<Tuple> inMemory = null;
+    transient private int inMemoryPos = 0;
+    transient private ArrayList<TupleSpillFile> runs = null;
+    transient private TupleSpillFile.Reader[] readers = null;
+    transient private LoserTree<Tuple> merge = null;
+
+    /**
+     * Constructor which uses the default memory budget.
+     *
+     * @param child
+     *            the tuples to sort
+     * @param comparator
+     *            the order in which to return the tuples
+     */
+    public ExternalSort(DbIterator child, Comparator<Tuple> comparator) {
+        this(child, comparator, defaultMemoryBudget);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the tuples to sort
+     * @param comparator
+     *            the order in which to return the tuples
+     * @param memoryBudget
+     *            the approximate number of bytes of tuples to hold in memory
+     *            at once
+     */
+    public ExternalSort(DbIterator child, Comparator<Tuple> comparator,
+            long memoryBudget) {
+        this.child = child;
+        this.comparator = comparator;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Sets the memory budget used by sorts created without an explicit one.
+     */
+    public static void setDefaultMemoryBudget(long bytes) {
+        defaultMemoryBudget = bytes;
+    }
+
+    /** @return the memory budget used by sorts created without an explicit one */
+    public static long getDefaultMemoryBudget() {
+        return defaultMemoryBudget;
+    }
+
+    /**
+     * @return the approximate heap footprint of a tuple with the given
+     *         schema: the field data plus object headers for the tuple, its
+     *         field array and each field
+     */
+    public static long estimateTupleBytes(TupleDesc td) {
+        return td.getSize() + 32 + 16 * td.numFields();
+    }
+
+    /** @return the number of runs spilled to disk by the last open */
+    public int numRuns() {
+        return runs == null ? 0 : runs.size();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        inMemory = null;
+        runs = new ArrayList<TupleSpillFile>();
+        long tupleBytes = estimateTupleBytes(child.getTupleDesc());
+        long maxTuples = Math.max(1, memoryBudget / tupleBytes);
+
+        ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+        try {
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (buffer.size() >= maxTuples) {
+                    runs.add(spill(buffer));
+                    buffer.clear();
+                }
+                buffer.add(t);
+            }
+            if (runs.isEmpty()) {
+                sortBuffer(buffer);
+                inMemory = buffer;
+                inMemoryPos = 0;
+            } else {
+                if (!buffer.isEmpty())
+                    runs.add(spill(buffer));
+                buffer = null;
+                while (runs.size() > MAX_FAN_IN)
+                    mergePass();
+                openMerge();
+            }
+        } catch (IOException e) {
+            deleteRuns();
+            throw new DbException("external sort failed: " + e.getMessage());
+        }
+        super.open();
+    }
+
+    /**
+     * Sorts buffered tuples; orders on a single field go through the
+     * key-based {@link ParallelSort}.
+     */
+    private void sortBuffer(ArrayList<Tuple> buffer) {
+        if (comparator instanceof TupleComparator) {
+            TupleComparator tc = (TupleComparator) comparator;
+            ParallelSort.sort(buffer, tc.field, tc.asc);
+        } else {
+            Collections.sort(buffer, comparator);
+        }
+    }
+
+    private TupleSpillFile spill(ArrayList<Tuple> buffer) throws IOException {
+        sortBuffer(buffer);
+        TupleSpillFile run = new TupleSpillFile(child.getTupleDesc());
+        for (Tuple t : buffer)
+            run.write(t);
+        run.finish();
+        return run;
+    }
+
+    /**
+     * Merges the runs in groups of MAX_FAN_IN, replacing them with the
+     * (fewer, longer) merged runs. Groups are taken in order so the sort
+     * stays stable.
+     */
+    private void mergePass() throws IOException {
+        ArrayList<TupleSpillFile> merged = new ArrayList<TupleSpillFile>();
+        for (int start = 0; start < runs.size(); start += MAX_FAN_IN) {
+            List<TupleSpillFile> group = runs.subList(start,
+                    Math.min(runs.size(), start + MAX_FAN_IN));
+            TupleSpillFile.Reader[] rs = new TupleSpillFile.Reader[group.size()];
+            Tuple[] heads = new Tuple[group.size()];
+            for (int i = 0; i < rs.length; i++) {
+                rs[i] = group.get(i).reader();
+                heads[i] = rs[i].next();
+            }
+            LoserTree<Tuple> tree = new LoserTree<Tuple>(heads, comparator);
+            TupleSpillFile out = new TupleSpillFile(child.getTupleDesc());
+            int w;
+            while ((w = tree.winner()) >= 0) {
+                out.write(tree.peek());
+                tree.replaceWinner(rs[w].next());
+            }
+            out.finish();
+            for (int i = 0; i < rs.length; i++) {
+                rs[i].close();
+                group.get(i).delete();
+            }
+            merged.add(out);
+        }
+        runs = merged;
+    }
+
+    private void openMerge() throws IOException {
+        closeReaders();
+        readers = new TupleSpillFile.Reader[runs.size()];
+        Tuple[] heads = new Tuple[runs.size()];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = runs.get(i).reader();
+            heads[i] = readers[i].next();
+        }
+        merge = new LoserTree<Tuple>(heads, comparator);
+    }
+
+    private void closeReaders() {
+        if (readers != null) {
+            for (TupleSpillFile.Reader r : readers)
+                r.close();
+            readers = null;
+        }
+        merge = null;
+    }
+
+    private void deleteRuns() {
+        closeReaders();
+        if (runs != null) {
+            for (TupleSpillFile run : runs)
+                run.delete();
+            runs = null;
+        }
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        deleteRuns();
+        inMemory = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (inMemory != null) {
+            inMemoryPos = 0;
+            return;
+        }
+        try {
+            openMerge();
+        } catch (IOException e) {
+            throw new DbException("external sort failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns tuples from the child
+     * operator in sorted order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException,
+            DbException {
+        if (inMemory != null)
+            return inMemoryPos < inMemory.size() ? inMemory.get(inMemoryPos++)
+                    : null;
+        if (merge == null)
+            return null;
+        int w = merge.winner();
+        if (w < 0)
+            return null;
+        Tuple t = merge.peek();
+        try {
+            merge.replaceWinner(readers[w].next());
+        } catch (IOException e) {
+            throw new DbException("external sort failed: " + e.getMessage());
+        }
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
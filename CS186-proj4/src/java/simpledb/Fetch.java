@@ -0,0 +1,195 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Fetch implements late materialization: a table scanned with its row id
+ * (see {@link SeqScan#ROW_ID}) in place of some of its fields is joined on
+ * the narrower tuples, and Fetch reads those fields back from the pages of
+ * the table, through the BufferPool, only for the tuples that come out of
+ * the joins. The row id field of its child is replaced by the fetched fields.
+ * <p>
+ * The pages of the last few tuples fetched are kept, so that tuples from the
+ * same page do not each go through the BufferPool.
+ */
+public class Fetch extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of pages kept from one tuple to the next. */
+    public static final int CACHED_PAGES = 64;
+
+    private static double maxWidthRatio = 0.5;
+
+    private TransactionId tid;
+    private int tableid;
+    private int[] fields;
+    private DbIterator child;
+    private int ridField;
+    private int slotsPerPage;
+    private TupleDesc td;
+
+    transient private LinkedHashMap<Integer, HeapPage> pages = null;
+
+    /**
+     * Sets how narrow the tuples of a table carried through the joins of a
+     * query must become for the planner to fetch the rest of their fields
+     * afterwards: the join fields and row id must take at most this fraction
+     * of the bytes of the fields the query uses. 0 disables late
+     * materialization.
+     */
+    public static void setMaxWidthRatio(double ratio) {
+        if (ratio < 0)
+            throw new IllegalArgumentException("width ratio " + ratio);
+        maxWidthRatio = ratio;
+    }
+
+    /**
+     * @return the largest fraction of the width of a table's used fields that
+     *         its join fields and row id can take for the planner to fetch
+     *         the other fields after the joins
+     */
+    public static double getMaxWidthRatio() {
+        return maxWidthRatio;
+    }
+
+    /**
+     * @return true if every tuple of a table has a row id: row ids are ints
+     *         numbering the slots of the table across all of its pages
+     */
+    public static boolean supports(HeapFile file) {
+        return (long) file.numPages() * HeapPage.numSlots(file.getTupleDesc())
+                <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param tid
+     *            The transaction the pages are read as a part of
+     * @param tableid
+     *            The table the fields are fetched from
+     * @param tableAlias
+     *            The alias of the table; the row id field of the child is
+     *            named tableAlias.{@link SeqScan#ROW_ID_NAME}, and the fetched
+     *            fields tableAlias.fieldName
+     * @param fields
+     *            The fields of the table to fetch
+     * @param child
+     *            The child operator
+     * @throws NoSuchElementException
+     *             if the child has no row id field for the table
+     */
+    public Fetch(TransactionId tid, int tableid, String tableAlias,
+            int[] fields, DbIterator child) {
+        this.tid = tid;
+        this.tableid = tableid;
+        this.fields = fields.clone();
+        this.child = child;
+        TupleDesc childtd = child.getTupleDesc();
+        ridField = childtd.fieldNameToIndex(tableAlias + "."
+                + SeqScan.ROW_ID_NAME);
+        TupleDesc tabletd = Database.getCatalog().getTupleDesc(tableid);
+        slotsPerPage = HeapPage.numSlots(tabletd);
+
+        int n = childtd.numFields() - 1 + fields.length;
+        Type[] types = new Type[n];
+        String[] names = new String[n];
+        int k = 0;
+        for (int i = 0; i < childtd.numFields(); i++) {
+            if (i == ridField) {
+                for (int f : fields) {
+                    types[k] = tabletd.getFieldType(f);
+                    names[k++] = tableAlias + "." + tabletd.getFieldName(f);
+                }
+            } else {
+                types[k] = childtd.getFieldType(i);
+                names[k++] = childtd.getFieldName(i);
+            }
+        }
+        td = new TupleDesc(types, names);
+    }
+
+    /** @return the id of the table the fields are fetched from */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /** @return the fields of the table fetched */
+    public int[] getFields() {
+        return fields.clone();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        pages = new LinkedHashMap<Integer, HeapPage>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(
+                    Map.Entry<Integer, HeapPage> eldest) {
+                return size() > CACHED_PAGES;
+            }
+        };
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        pages = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    private HeapPage page(int pageNo) throws DbException,
+            TransactionAbortedException {
+        HeapPage p = pages.get(pageNo);
+        if (p == null) {
+            p = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(tableid, pageNo), Permissions.READ_ONLY);
+            pages.put(pageNo, p);
+        }
+        return p;
+    }
+
+    protected Tuple fetchNext() throws DbException,
+            TransactionAbortedException {
+        if (!child.hasNext())
+            return null;
+        Tuple t = child.next();
+        int rid = ((IntField) t.getField(ridField)).getValue();
+        Tuple row = page(rid / slotsPerPage).tuples()[rid % slotsPerPage];
+        if (row == null)
+            throw new DbException("row " + rid + " of table " + tableid
+                    + " has been deleted");
+        Tuple out = new Tuple(td);
+        int k = 0;
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            if (i == ridField) {
+                for (int f : fields)
+                    out.setField(k++, row.getField(f));
+            } else {
+                out.setField(k++, t.getField(i));
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
+
+}
@@ -3,12 +3,16 @@ package simpledb;
 import java.util.*;
 
 /**
- * Filter is an operator that implements a relational select.
+ * Filter is an operator that implements a relational select. It applies a
+ * conjunction of predicates, compiled once into a {@link CompiledPredicate}
+ * and tested in the order given, so the most selective ones should come
+ * first.
  */
 public class Filter extends Operator {
 
     private static final long serialVersionUID = 1L;
-    private Predicate p;
+    private Predicate[] preds;
+    private CompiledPredicate eval;
     private DbIterator child;
 
     /**
@@ -22,13 +26,36 @@ public class Filter extends Operator {
      */
     public Filter(Predicate p, DbIterator child) {
         // some code goes here
-        this.p = p;
+        this(new Predicate[] { p }, child);
+    }
+
+    /**
+     * Constructor for a filter returning the tuples that satisfy all of
+     * several predicates.
+     *
+     * @param preds
+     *            The predicates to filter tuples with, in the order in which
+     *            they are tested; there must be at least one
+     * @param child
+     *            The child operator
+     */
+    public Filter(Predicate[] preds, DbIterator child) {
+        if (preds.length == 0)
+            throw new IllegalArgumentException("no predicates to filter with");
+        this.preds = preds.clone();
+        this.eval = CompiledPredicate.compile(this.preds);
         this.child = child;
     }
 
+    /** @return the first (and usually only) predicate of this filter */
     public Predicate getPredicate() {
         // some code goes here
-        return p;
+        return preds[0];
+    }
+
+    /** @return all the predicates of this filter, in the order tested */
+    public Predicate[] getPredicates() {
+        return preds.clone();
     }
 
     public TupleDesc getTupleDesc() {
@@ -57,7 +84,7 @@ public class Filter extends Operator {
     /**
      * AbstractDbIterator.readNext implementation. Iterates over tuples from the
      * child operator, applying the predicate to them and returning those that
-     * pass the predicate (i.e. for which the Predicate.filter() returns true.)
+     * pass the predicates (i.e. for which Predicate.filter() returns true.)
      * 
      * @return The next tuple that passes the filter, or null if there are no
      *         more tuples
@@ -69,7 +96,7 @@ public class Filter extends Operator {
         Tuple t = null;
         while(child.hasNext()) {
             t = child.next();
-            if(p.filter(t)) {
+            if(eval.eval(t)) {
                 return t;
             }
         }
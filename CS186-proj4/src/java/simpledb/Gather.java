@@ -0,0 +1,46 @@
+package simpledb;
+
+/**
+ * Gather runs each of its children on a thread of its own, and returns the
+ * union of their output, in no particular order. It is the top of a parallel
+ * part of a plan: its children are usually the same subtree over disjoint
+ * partitions of the input.
+ */
+public class Gather extends ExchangeConsumer {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     *
+     * @param children
+     *            the subtrees to run in parallel; they must all have the same
+     *            schema
+     */
+    public Gather(DbIterator[] children) {
+        super(new ExchangeChannel(children, ExchangeChannel.Routing.GATHER,
+                new int[0], 1, QUEUE_CAPACITY), 0, false);
+    }
+
+    /**
+     * Constructor for a gather of the output of a pipeline run over the
+     * morsels of a table.
+     */
+    public Gather(MorselSource morsels) {
+        super(new ExchangeChannel(morsels, ExchangeChannel.Routing.GATHER,
+                new int[0], 1, QUEUE_CAPACITY), 0, false);
+    }
+
+    public String getName() {
+        if (getChannel().isMorselDriven())
+            return "gather(morsels)";
+        return "gather(" + getChannel().numProducers() + ")";
+    }
+
+    /** Rewinds by running the children again. */
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+}
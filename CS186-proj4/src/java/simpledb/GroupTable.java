@@ -0,0 +1,502 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * The hash table behind the aggregators. It maps group-by values to dense
+ * group numbers (0, 1, 2, ... in order of first appearance) and keeps the
+ * running state of each aggregate of each group in parallel
+ * <code>long</code> arrays indexed by group number and aggregate: count,
+ * sum, min and max.
+ * <p>
+ * A group-by value may consist of several fields. The table uses open
+ * addressing with linear probing over an <code>int[]</code> of group
+ * numbers. Keys made only of integers are stored unboxed and compared
+ * directly; other keys are kept as {@link Field}s next to their hash code,
+ * so a probe only calls <code>equals</code> when the hashes match. Adding a
+ * tuple to an existing group allocates nothing, and sums are accumulated in
+ * 64 bits.
+ */
+public class GroupTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_GROUPS = 16;
+    private static final int EMPTY = -1;
+
+    private final Type[] keyTypes;
+    // key fields and aggregates per group
+    private final int width;
+    private final int numAggs;
+
+    // slot -> group number, or EMPTY; capacity is a power of two
+    private int[] slots;
+    private int mask;
+    private int numGroups = 0;
+
+    // group number * width + i -> i-th key field
+    private int[] intKeys;
+    private Field[] fieldKeys;
+    // group number -> hash of the key
+    private int[] hashes;
+
+    // group number * numAggs + aggregate -> aggregate state
+    private long[] count;
+    private long[] sum;
+    private long[] min;
+    private long[] max;
+
+    /**
+     * Constructor for a table with a single aggregate.
+     *
+     * @param keyType
+     *            the type of the group-by values, or null if there is no
+     *            grouping, in which case all tuples fall into a single group
+     */
+    public GroupTable(Type keyType) {
+        this(keyType == null ? new Type[0] : new Type[] { keyType }, 1);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param keyTypes
+     *            the types of the fields of the group-by values; if empty
+     *            there is no grouping, and all tuples fall into a single group
+     * @param numAggregates
+     *            the number of aggregates kept for each group
+     */
+    public GroupTable(Type[] keyTypes, int numAggregates) {
+        this.keyTypes = keyTypes.clone();
+        this.width = keyTypes.length;
+        this.numAggs = numAggregates;
+        slots = new int[INITIAL_GROUPS * 2];
+        Arrays.fill(slots, EMPTY);
+        mask = slots.length - 1;
+        if (width > 0) {
+            if (allInts(keyTypes))
+                intKeys = new int[INITIAL_GROUPS * width];
+            else
+                fieldKeys = new Field[INITIAL_GROUPS * width];
+        }
+        hashes = new int[INITIAL_GROUPS];
+        count = new long[INITIAL_GROUPS * numAggs];
+        sum = new long[INITIAL_GROUPS * numAggs];
+        min = new long[INITIAL_GROUPS * numAggs];
+        max = new long[INITIAL_GROUPS * numAggs];
+    }
+
+    private static boolean allInts(Type[] types) {
+        for (Type t : types)
+            if (t != Type.INT_TYPE)
+                return false;
+        return true;
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** @return the hash of the group-by value in the given fields of a tuple */
+    private int hash(Tuple t, int[] fields) {
+        int h = 0;
+        for (int i = 0; i < width; i++)
+            h = 31 * h + t.getField(fields[i]).hashCode();
+        return mix(h);
+    }
+
+    private boolean keyEquals(int g, Tuple t, int[] fields) {
+        int base = g * width;
+        if (intKeys != null) {
+            for (int i = 0; i < width; i++)
+                if (intKeys[base + i] != ((IntField) t.getField(fields[i])).getValue())
+                    return false;
+        } else {
+            for (int i = 0; i < width; i++)
+                if (!fieldKeys[base + i].equals(t.getField(fields[i])))
+                    return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the group number of the group-by value made of the given
+     *         fields of a tuple, creating a new, empty group if the value has
+     *         not been seen before
+     */
+    public int findOrAdd(Tuple t, int[] fields) {
+        if (width == 0)
+            return numGroups == 0 ? newGroup(0) : 0;
+        ensureCapacity();
+        int h = hash(t, fields);
+        for (int s = h & mask;; s = (s + 1) & mask) {
+            int g = slots[s];
+            if (g == EMPTY) {
+                g = newGroup(h);
+                int base = g * width;
+                for (int i = 0; i < width; i++) {
+                    if (intKeys != null)
+                        intKeys[base + i] = ((IntField) t.getField(fields[i])).getValue();
+                    else
+                        fieldKeys[base + i] = t.getField(fields[i]);
+                }
+                slots[s] = g;
+                return g;
+            }
+            if (hashes[g] == h && keyEquals(g, t, fields))
+                return g;
+        }
+    }
+
+    /**
+     * @return the group number of the group-by value made of the given
+     *         fields of a tuple, or -1 if the value has not been seen before
+     */
+    public int find(Tuple t, int[] fields) {
+        if (width == 0)
+            return numGroups == 0 ? -1 : 0;
+        int h = hash(t, fields);
+        for (int s = h & mask;; s = (s + 1) & mask) {
+            int g = slots[s];
+            if (g == EMPTY || (hashes[g] == h && keyEquals(g, t, fields)))
+                return g;
+        }
+    }
+
+    /**
+     * @return the group number of the given single-field group-by value,
+     *         creating a new, empty group if the value has not been seen
+     *         before. Ignored (and may be null) if there is no grouping.
+     */
+    public int findOrAdd(Field key) {
+        if (width == 0)
+            return numGroups == 0 ? newGroup(0) : 0;
+        if (keyTypes[0] == Type.INT_TYPE)
+            return findOrAdd(((IntField) key).getValue());
+        ensureCapacity();
+        int h = mix(key.hashCode());
+        for (int s = h & mask;; s = (s + 1) & mask) {
+            int g = slots[s];
+            if (g == EMPTY) {
+                g = newGroup(h);
+                fieldKeys[g] = key;
+                slots[s] = g;
+                return g;
+            }
+            if (hashes[g] == h && fieldKeys[g].equals(key))
+                return g;
+        }
+    }
+
+    /**
+     * @return the group number of the given single integer group-by value,
+     *         creating a new, empty group if the value has not been seen
+     *         before
+     */
+    public int findOrAdd(int key) {
+        ensureCapacity();
+        int h = mix(key);
+        for (int s = h & mask;; s = (s + 1) & mask) {
+            int g = slots[s];
+            if (g == EMPTY) {
+                g = newGroup(h);
+                intKeys[g] = key;
+                slots[s] = g;
+                return g;
+            }
+            if (intKeys[g] == key)
+                return g;
+        }
+    }
+
+    /**
+     * @return the group number of the given single-field group-by value, or
+     *         -1 if the value has not been seen before
+     */
+    public int find(Field key) {
+        if (width == 0)
+            return numGroups == 0 ? -1 : 0;
+        if (keyTypes[0] == Type.INT_TYPE)
+            return find(((IntField) key).getValue());
+        int h = mix(key.hashCode());
+        for (int s = h & mask;; s = (s + 1) & mask) {
+            int g = slots[s];
+            if (g == EMPTY || (hashes[g] == h && fieldKeys[g].equals(key)))
+                return g;
+        }
+    }
+
+    /**
+     * @return the group number of the given single integer group-by value,
+     *         or -1 if the value has not been seen before
+     */
+    public int find(int key) {
+        for (int s = mix(key) & mask;; s = (s + 1) & mask) {
+            int g = slots[s];
+            if (g == EMPTY || intKeys[g] == key)
+                return g;
+        }
+    }
+
+    private int newGroup(int h) {
+        int g = numGroups++;
+        if (g == hashes.length)
+            growGroups();
+        hashes[g] = h;
+        for (int i = g * numAggs; i < (g + 1) * numAggs; i++) {
+            // the slot may hold the state of a group removed by clear()
+            count[i] = 0;
+            sum[i] = 0;
+            min[i] = Long.MAX_VALUE;
+            max[i] = Long.MIN_VALUE;
+        }
+        return g;
+    }
+
+    private void growGroups() {
+        int n = hashes.length * 2;
+        if (intKeys != null)
+            intKeys = Arrays.copyOf(intKeys, n * width);
+        if (fieldKeys != null)
+            fieldKeys = Arrays.copyOf(fieldKeys, n * width);
+        hashes = Arrays.copyOf(hashes, n);
+        count = Arrays.copyOf(count, n * numAggs);
+        sum = Arrays.copyOf(sum, n * numAggs);
+        min = Arrays.copyOf(min, n * numAggs);
+        max = Arrays.copyOf(max, n * numAggs);
+    }
+
+    /** Keeps the slot array at most half full, counting a group about to be added. */
+    private void ensureCapacity() {
+        if ((numGroups + 1) * 2 <= slots.length)
+            return;
+        slots = new int[slots.length * 2];
+        Arrays.fill(slots, EMPTY);
+        mask = slots.length - 1;
+        for (int g = 0; g < numGroups; g++) {
+            int s = hashes[g] & mask;
+            while (slots[s] != EMPTY)
+                s = (s + 1) & mask;
+            slots[s] = g;
+        }
+    }
+
+    /**
+     * @return the approximate number of bytes of heap used per group by a
+     *         table with a single aggregate and the given key type, including
+     *         the slot array at its worst-case load
+     */
+    public static long estimateGroupBytes(Type keyType) {
+        return estimateGroupBytes(keyType == null ? new Type[0]
+                : new Type[] { keyType }, 1);
+    }
+
+    /**
+     * @return the approximate number of bytes of heap used per group by a
+     *         table with the given key types and number of aggregates
+     */
+    public static long estimateGroupBytes(Type[] keyTypes, int numAggregates) {
+        // four slots and the hash, then count, sum, min and max per aggregate
+        long bytes = 5 * 4 + numAggregates * 4 * 8;
+        boolean unboxed = allInts(keyTypes);
+        for (Type t : keyTypes)
+            bytes += unboxed ? 4 : 8 + t.getLen() + 32;
+        return bytes;
+    }
+
+    /** Adds a value to the count, sum, min and max of the first aggregate of a group. */
+    public void add(int group, long value) {
+        add(group, 0, value);
+    }
+
+    /** Adds a value to the count, sum, min and max of an aggregate of a group. */
+    public void add(int group, int agg, long value) {
+        int i = group * numAggs + agg;
+        count[i]++;
+        sum[i] += value;
+        if (value < min[i])
+            min[i] = value;
+        if (value > max[i])
+            max[i] = value;
+    }
+
+    /**
+     * Adds the count, sum, min and max of some values to an aggregate of a
+     * group, as adding each of the values would.
+     */
+    public void add(int group, int agg, long count, long sum, long min,
+            long max) {
+        int i = group * numAggs + agg;
+        this.count[i] += count;
+        this.sum[i] += sum;
+        if (min < this.min[i])
+            this.min[i] = min;
+        if (max > this.max[i])
+            this.max[i] = max;
+    }
+
+    /** Adds one to the count of the first aggregate of a group. */
+    public void increment(int group) {
+        increment(group, 0);
+    }
+
+    /** Adds one to the count of an aggregate of a group, for non-numeric values. */
+    public void increment(int group, int agg) {
+        count[group * numAggs + agg]++;
+    }
+
+    /** Removes all groups, keeping the space allocated for them. */
+    public void clear() {
+        if (numGroups > 0 && width > 0)
+            Arrays.fill(slots, EMPTY);
+        numGroups = 0;
+    }
+
+    /** @return the number of groups in the table */
+    public int numGroups() {
+        return numGroups;
+    }
+
+    /**
+     * @return the single-field group-by value of a group, or null if there
+     *         is no grouping
+     */
+    public Field key(int group) {
+        return width == 0 ? null : key(group, 0);
+    }
+
+    /** @return the i-th field of the group-by value of a group */
+    public Field key(int group, int i) {
+        if (intKeys != null)
+            return new IntField(intKeys[group * width + i]);
+        return fieldKeys[group * width + i];
+    }
+
+    public long count(int group) {
+        return count[group * numAggs];
+    }
+
+    public long sum(int group) {
+        return sum[group * numAggs];
+    }
+
+    public long min(int group) {
+        return min[group * numAggs];
+    }
+
+    public long max(int group) {
+        return max[group * numAggs];
+    }
+
+    /** @return the value of the given first aggregate for a group */
+    public long value(int group, Aggregator.Op op) {
+        return value(group, 0, op);
+    }
+
+    /**
+     * @return the value of the given aggregate for a group; AVG is the
+     *         truncated quotient of the 64-bit sum and the count
+     */
+    public long value(int group, int agg, Aggregator.Op op) {
+        int i = group * numAggs + agg;
+        switch (op) {
+        case MIN:
+            return min[i];
+        case MAX:
+            return max[i];
+        case SUM:
+            return sum[i];
+        case AVG:
+            return count[i] == 0 ? 0 : sum[i] / count[i];
+        case COUNT:
+            return count[i];
+        default:
+            throw new IllegalArgumentException("unknown aggregate " + op);
+        }
+    }
+
+    /**
+     * @return the value of the given aggregate for a group as a field;
+     *         values are computed in 64 bits, but fields hold 32
+     * @throws DbException
+     *             if the value does not fit in an int
+     */
+    public IntField field(int group, int agg, Aggregator.Op op)
+            throws DbException {
+        long v = value(group, agg, op);
+        try {
+            return new IntField(Math.toIntExact(v));
+        } catch (ArithmeticException e) {
+            throw new DbException(op + " " + v + " does not fit in an int");
+        }
+    }
+
+    /**
+     * @return an iterator over one tuple per group with the given schema:
+     *         the group-by value followed by the value of the aggregate, or
+     *         only the value of the aggregate if there is no grouping. Tuples
+     *         are built as they are returned rather than all at once.
+     */
+    public DbIterator iterator(TupleDesc td, Aggregator.Op op) {
+        return new GroupIterator(td, new Aggregator.Op[] { op });
+    }
+
+    /**
+     * @return an iterator over one tuple per group with the given schema:
+     *         the fields of the group-by value followed by the value of each
+     *         of the given aggregates
+     */
+    public DbIterator iterator(TupleDesc td, Aggregator.Op[] ops) {
+        return new GroupIterator(td, ops.clone());
+    }
+
+    private class GroupIterator implements DbIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TupleDesc td;
+        private final Aggregator.Op[] ops;
+        private int next = -1;
+
+        GroupIterator(TupleDesc td, Aggregator.Op[] ops) {
+            this.td = td;
+            this.ops = ops;
+        }
+
+        public void open() {
+            next = 0;
+        }
+
+        public boolean hasNext() {
+            if (next < 0)
+                throw new IllegalStateException("iterator not open");
+            return next < numGroups;
+        }
+
+        public Tuple next() throws DbException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            int g = next++;
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < width; i++)
+                t.setField(i, key(g, i));
+            for (int a = 0; a < ops.length; a++)
+                t.setField(width + a, field(g, a, ops[a]));
+            return t;
+        }
+
+        public void rewind() {
+            next = 0;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return td;
+        }
+
+        public void close() {
+            next = -1;
+        }
+    }
+}
@@ -11,6 +11,13 @@ public class HashEquiJoin extends Operator {
     private JoinPredicate pred;
     private DbIterator child1, child2;
     private TupleDesc comboTD;
+    private int mapSize;
+
+    /** Approximate heap bytes of a map entry, beyond the tuple it holds */
+    private static final int ENTRY_BYTES = 48;
+
+    private static long defaultMemoryBudget = Math.max(1 << 20, Runtime
+            .getRuntime().maxMemory() / 8);
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
@@ -26,12 +33,46 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, MAP_SIZE);
+    }
+
+    /**
+     * Constructor for a join that hashes up to mapSize tuples of child1 at a
+     * time. child2 is only rewound when child1 has more tuples than that, so
+     * a join whose child1 fits in the map reads each child once.
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            int mapSize) {
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.mapSize = mapSize;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
+    /**
+     * Sets the number of bytes of child1 tuples the optimizer sizes the map
+     * of a hash join for.
+     */
+    public static void setDefaultMemoryBudget(long bytes) {
+        defaultMemoryBudget = bytes;
+    }
+
+    /** @return the number of bytes of tuples a hash join is planned to hold */
+    public static long getDefaultMemoryBudget() {
+        return defaultMemoryBudget;
+    }
+
+    /**
+     * @return the number of tuples of about tupleBytes bytes each (see
+     *         {@link ExternalSort#estimateTupleBytes}) that a map of about
+     *         the given number of bytes holds
+     */
+    public static int mapTuples(long tupleBytes, long bytes) {
+        long n = bytes / (tupleBytes + ENTRY_BYTES);
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE - 1, n));
+    }
+
     public JoinPredicate getJoinPredicate() {
         return pred;
     }
@@ -64,7 +105,7 @@ public class HashEquiJoin extends Operator {
                 map.put(t1.getField(pred.getField1()), list);
             }
             list.add(t1);
-            if (cnt++ == MAP_SIZE)
+            if (cnt++ == mapSize)
                 return true;
         }
         return cnt > 0;
@@ -77,6 +118,7 @@ public class HashEquiJoin extends Operator {
         child1.open();
         child2.open();
         loadMap();
+        super.open();
     }
 
     public void close() {
@@ -92,6 +134,8 @@ public class HashEquiJoin extends Operator {
     public void rewind() throws DbException, TransactionAbortedException {
         child1.rewind();
         child2.rewind();
+        listIt = null;
+        loadMap();
     }
 
     transient Iterator<Tuple> listIt = null;
@@ -152,8 +196,8 @@ public class HashEquiJoin extends Operator {
         }
 
         // child2 is done: advance child1
-        child2.rewind();
         if (loadMap()) {
+            child2.rewind();
             return fetchNext();
         }
 
@@ -0,0 +1,77 @@
+package simpledb;
+
+/**
+ * HashRepartition splits the output of its children into several streams on
+ * a hash of some of its fields, so that all tuples with the same values of
+ * those fields end up in the same stream. Each stream is read by its own
+ * HashRepartition operator, usually from a different thread; repartitioning
+ * both inputs of an equality join on the join fields lets the partitions be
+ * joined independently.
+ */
+public class HashRepartition extends ExchangeConsumer {
+
+    private static final long serialVersionUID = 1L;
+
+    private HashRepartition(ExchangeChannel channel, int consumer,
+            boolean replayable) {
+        super(channel, consumer, replayable);
+    }
+
+    /**
+     * Creates the operators reading the partitions of an exchange.
+     *
+     * @param children
+     *            the subtrees whose output is repartitioned, each run on a
+     *            thread of its own; they must all have the same schema
+     * @param keyFields
+     *            the fields hashed to choose the partition of a tuple
+     * @param numPartitions
+     *            the number of partitions
+     * @param replayable
+     *            whether the partitions can be rewound
+     * @return one operator per partition
+     */
+    public static HashRepartition[] partition(DbIterator[] children,
+            int[] keyFields, int numPartitions, boolean replayable) {
+        return consumers(new ExchangeChannel(children,
+                ExchangeChannel.Routing.HASH, keyFields, numPartitions,
+                QUEUE_CAPACITY), replayable);
+    }
+
+    /**
+     * Creates the operators reading the partitions of the output of a
+     * pipeline run over the morsels of a table.
+     *
+     * @see #partition(DbIterator[], int[], int, boolean)
+     */
+    public static HashRepartition[] partition(MorselSource morsels,
+            int[] keyFields, int numPartitions, boolean replayable) {
+        return consumers(new ExchangeChannel(morsels,
+                ExchangeChannel.Routing.HASH, keyFields, numPartitions,
+                QUEUE_CAPACITY), replayable);
+    }
+
+    private static HashRepartition[] consumers(ExchangeChannel channel,
+            boolean replayable) {
+        HashRepartition[] parts = new HashRepartition[channel.numConsumers()];
+        for (int k = 0; k < parts.length; k++)
+            parts[k] = new HashRepartition(channel, k, replayable);
+        return parts;
+    }
+
+    /** @return the fields hashed to choose the partition of a tuple */
+    public int[] getKeyFields() {
+        return getChannel().getKeyFields();
+    }
+
+    public String getName() {
+        TupleDesc td = getTupleDesc();
+        int[] keys = getKeyFields();
+        String name = "repartition(";
+        for (int k = 0; k < keys.length; k++)
+            name += (k > 0 ? ", " : "") + td.getFieldName(keys[k]);
+        return name + ")[" + getConsumer() + "/"
+                + getChannel().numConsumers() + "]";
+    }
+
+}
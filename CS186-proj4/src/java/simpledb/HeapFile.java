@@ -81,9 +81,10 @@ public class HeapFile implements DbFile {
         byte[] data = HeapPage.createEmptyPageData();
         long offset = (long) BufferPool.PAGE_SIZE * pid.pageNumber();
         try {
+            //pages may be read by several scan threads at once
+            synchronized(raf) {
             raf.seek(offset);
-            for(int i = 0; i < data.length; i++) {
-                data[i] = raf.readByte();
+            raf.readFully(data);
             }
             returnme = new HeapPage((HeapPageId) pid, data);
         } catch(EOFException eofe) {
@@ -97,7 +98,7 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
-        long offset = page.getId().pageNumber() * BufferPool.PAGE_SIZE;
+        long offset = (long) BufferPool.PAGE_SIZE * page.getId().pageNumber();
         byte[] data = page.getPageData();
         try {
             synchronized(raf) {
@@ -117,7 +118,7 @@ public class HeapFile implements DbFile {
     public int numPages() {
         // some code goes here
         try {
-            return (int) raf.length() / BufferPool.PAGE_SIZE;
+            return (int) (raf.length() / BufferPool.PAGE_SIZE);
         } catch(IOException e) {
             throw new RuntimeException("error accessing file length");
         }
@@ -174,5 +175,14 @@ public class HeapFile implements DbFile {
         // some code goes here
         return new HeapFileIterator(this, tid);
     }
+
+    /**
+     * Returns an iterator over the tuples on pages startPage (inclusive) to
+     * endPage (exclusive) of this file.
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage,
+            int endPage) {
+        return new HeapFileIterator(this, tid, startPage, endPage);
+    }
 }
 
@@ -8,22 +8,66 @@ public class HeapFileIterator implements DbFileIterator {
     private Iterator<Tuple> i;
     private Iterator<Tuple> i_pos; //for reopening after close
     private int page_no;
+    private int start_page;
+    private int end_page; //exclusive; -1 for the end of the file
     private BufferPool buffer_pool;
     private HeapFile file;
     private TransactionId tid;
+    // fields returned and predicate tested, or null to return whole tuples
+    private int[] fields = null;
+    private CompiledPredicate pred = null;
+    private TupleDesc outTd = null;
 
     public HeapFileIterator(HeapFile file, TransactionId tid) {
+        this(file, tid, 0, -1);
+    }
+
+    /**
+     * Iterator over the tuples on pages startPage (inclusive) to endPage
+     * (exclusive) of the file, so that several iterators can scan disjoint
+     * parts of the same file.
+     */
+    public HeapFileIterator(HeapFile file, TransactionId tid,
+            int startPage, int endPage) {
         i = null;
         i_pos = null;
         this.file = file;
         this.tid = tid;
         buffer_pool = Database.getBufferPool();
-        page_no = 0;
+        start_page = startPage;
+        end_page = endPage;
+        page_no = startPage;
+    }
+
+    /**
+     * Iterator over the tuples on pages startPage (inclusive) to endPage
+     * (exclusive) of the file that satisfy a predicate, reduced to some of
+     * their fields.
+     *
+     * @see HeapPage#iterator(int[], CompiledPredicate, TupleDesc)
+     */
+    public HeapFileIterator(HeapFile file, TransactionId tid, int startPage,
+            int endPage, int[] fields, CompiledPredicate pred, TupleDesc outTd) {
+        this(file, tid, startPage, endPage);
+        this.fields = fields;
+        this.pred = pred;
+        this.outTd = outTd;
+    }
+
+    private int endPage() {
+        int n = file.numPages();
+        return end_page < 0 ? n : Math.min(end_page, n);
     }
 
     private void setPageIterator() throws DbException {
         if(i_pos != null) {
             i = i_pos;
+            i_pos = null;
+            return;
+        }
+        if(end_page >= 0 && page_no >= endPage()) {
+            //empty range: don't touch a page outside of it
+            i = new ArrayList<Tuple>().iterator();
             return;
         }
         //System.err.println(page_no);
@@ -36,7 +80,8 @@ public class HeapFileIterator implements DbFileIterator {
             e.printStackTrace();
             throw new DbException("error accessing page in heap file iterator");
         }
-        i = page.iterator();
+        i = fields == null ? page.iterator()
+            : page.iterator(fields, pred, outTd);
     }
 
     public void open() 
@@ -47,11 +92,21 @@ public class HeapFileIterator implements DbFileIterator {
         throws DbException, TransactionAbortedException {
             if(i == null) { return false; }
             if(i.hasNext()) { return true; }
+            if(fields != null) {
+                //a page with tuples may have none that qualify: move on to
+                //the next one that has some
+                while(page_no < endPage()-1) {
+                    page_no++;
+                    setPageIterator();
+                    if(i.hasNext()) { return true; }
+                }
+                return false;
+            }
             PageId pid = null;
             HeapPage page = null;
 
             //scan subsequent pages for a next tuple
-            for(int j = page_no+1; j < file.numPages(); j++) {
+            for(int j = page_no+1; j < endPage(); j++) {
                 pid = new HeapPageId(file.getId(), j);
                 page = (HeapPage) buffer_pool.getPage(tid, pid, Permissions.READ_ONLY);
                 if(page.getNumEmptySlots() != page.numSlots) {
@@ -71,7 +126,7 @@ public class HeapFileIterator implements DbFileIterator {
             } 
 
             //keep going if entire page is blank
-            while(page_no < file.numPages()-1) {
+            while(page_no < endPage()-1) {
                 page_no++;
                 setPageIterator();
                 if(i.hasNext()) { return i.next(); }
@@ -83,7 +138,7 @@ public class HeapFileIterator implements DbFileIterator {
         throws DbException, TransactionAbortedException {
             close();
             i_pos = null;
-            page_no = 0;
+            page_no = start_page;
             open();
         }
     public void close() {
@@ -6,6 +6,11 @@ import java.io.*;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Tuples are only decoded into Tuple objects the first time they are
+ * needed. Until the page is modified it also keeps the bytes it was read
+ * from, so that scans can test predicates and pick out fields straight from
+ * them (see {@link #iterator(int[], CompiledPredicate, TupleDesc)}).
  *
  * @see HeapFile
  * @see BufferPool
@@ -16,7 +21,10 @@ public class HeapPage implements Page {
     HeapPageId pid;
     TupleDesc td;
     byte header[];
-    Tuple tuples[];
+    private Tuple tuples[];
+    private volatile boolean decoded = false;
+    // the contents of the page, or null once they are out of date
+    private volatile byte[] data;
     int numSlots;
 
     byte[] oldData;
@@ -53,6 +61,27 @@ public class HeapPage implements Page {
         for (int i=0; i<header.length; i++)
             header[i] = dis.readByte();
 
+        dis.close();
+        this.data = data;
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the tuples in the slots of this page, decoding them from the
+     *         bytes of the page the first time
+     */
+    Tuple[] tuples() {
+        if (!decoded)
+            decode();
+        return tuples;
+    }
+
+    private synchronized void decode() {
+        if (decoded)
+            return;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                data, header.length, data.length - header.length));
         try{
             // allocate and read the actual records of this page
             tuples = new Tuple[numSlots];
@@ -61,9 +90,41 @@ public class HeapPage implements Page {
         }catch(NoSuchElementException e){
             e.printStackTrace();
         }
-        dis.close();
+        decoded = true;
+    }
 
-        setBeforeImage();
+    /** @return the offset in the bytes of this page of the tuple in a slot */
+    int slotOffset(int slot) {
+        return header.length + slot * td.getSize();
+    }
+
+    /**
+     * @return the row id of the tuple in a slot of this page, which numbers
+     *         the slots of the table across all of its pages
+     * @throws IllegalStateException
+     *             if the row id does not fit in an int, which
+     *             {@link Fetch#supports} rules out when a plan is made
+     */
+    private int rowId(int slot) {
+        long id = (long) pid.pageNumber() * numSlots + slot;
+        if (id > Integer.MAX_VALUE)
+            throw new IllegalStateException("row id of slot " + slot
+                    + " of page " + pid.pageNumber() + " is not an int");
+        return (int) id;
+    }
+
+    /** @return the integer stored at an offset in the bytes of a page */
+    static int rawInt(byte[] data, int off) {
+        return ((data[off] & 0xff) << 24) | ((data[off + 1] & 0xff) << 16)
+                | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+    }
+
+    /**
+     * @return the string stored at an offset in the bytes of a page, decoded
+     *         as {@link Type#parse} does
+     */
+    static String rawString(byte[] data, int off) {
+        return new String(data, off + 4, rawInt(data, off), Type.STRING_CHARSET);
     }
 
     /** Retrieve the number of tuples on this page.
@@ -71,6 +132,11 @@ public class HeapPage implements Page {
      */
     private int getNumTuples() {        
         // some code goes here
+        return numSlots(td);
+    }
+
+    /** @return the number of slots on a page of tuples of the given schema */
+    static int numSlots(TupleDesc td) {
         return (int) Math.floor((BufferPool.PAGE_SIZE * 8.0) /
                 (td.getSize() * 8 + 1));
     }
@@ -101,6 +167,7 @@ public class HeapPage implements Page {
 
     public void setBeforeImage() {
         oldData = getPageData().clone();
+        data = oldData;
     }
 
     /**
@@ -157,6 +224,10 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
+        byte[] current = data;
+        if (current != null)
+            return current.clone();
+        Tuple[] tuples = tuples();
         int len = BufferPool.PAGE_SIZE;
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -248,7 +319,8 @@ public class HeapPage implements Page {
         if(!isSlotUsed(i)) {
             throw new DbException("Deleting from empty slot");
         } 
-        tuples[i] = null;
+        tuples()[i] = null;
+        data = null;
         t.setRecordId(null);
         markSlotUsed(i, false);
     }
@@ -271,7 +343,8 @@ public class HeapPage implements Page {
         for(int i = 0; i < numSlots; i++) {
             if(!isSlotUsed(i)) {
                 t.setRecordId(new RecordId(pid, i));
-                tuples[i] = t;
+                tuples()[i] = t;
+                data = null;
                 markSlotUsed(i, true);
                 return;
             }
@@ -353,4 +426,119 @@ public class HeapPage implements Page {
         return new HeapPageIterator(this);
     }
 
+    /**
+     * Appends the tuples in the slots of this page that satisfy a predicate,
+     * from a given slot on, to a batch, reduced to some of their fields,
+     * until the batch is full. While the bytes of the page are up to date,
+     * the predicate is tested on them and the fields are copied straight
+     * from them into the columns of the batch.
+     * @param slot
+     *            the first slot to read
+     * @param fields
+     *            the fields to copy into the columns of the batch, in order;
+     *            {@link SeqScan#ROW_ID} for the row id of the tuple
+     * @param pred
+     *            the predicate over the fields of the page's tuples, compiled
+     *            with their TupleDesc; null to append every tuple
+     * @return the slot after the last one read, numSlots once the whole
+     *         page has been read
+     */
+    int appendTo(TupleBatch batch, int slot, int[] fields,
+            CompiledPredicate pred) {
+        TupleDesc outTd = batch.getTupleDesc();
+        int[][] ints = new int[fields.length][];
+        String[][] strings = new String[fields.length][];
+        int[] offsets = new int[fields.length];
+        for (int k = 0; k < fields.length; k++) {
+            if (outTd.getFieldType(k) == Type.INT_TYPE)
+                ints[k] = batch.intColumn(k);
+            else
+                strings[k] = batch.stringColumn(k);
+            if (fields[k] != SeqScan.ROW_ID)
+                offsets[k] = td.getFieldOffset(fields[k]);
+        }
+        byte[] bytes = data;
+        Tuple[] all = bytes == null ? tuples() : null;
+        for (; slot < numSlots && !batch.isFull(); slot++) {
+            if (!isSlotUsed(slot))
+                continue;
+            int base = slotOffset(slot);
+            if (pred != null && !(bytes == null ? pred.eval(all[slot])
+                    : pred.evalRaw(bytes, base)))
+                continue;
+            int row = batch.appendRow(pid, slot);
+            for (int k = 0; k < fields.length; k++) {
+                if (fields[k] == SeqScan.ROW_ID)
+                    ints[k][row] = rowId(slot);
+                else if (bytes == null && ints[k] != null)
+                    ints[k][row] = ((IntField) all[slot].getField(fields[k])).getValue();
+                else if (bytes == null)
+                    strings[k][row] = ((StringField) all[slot].getField(fields[k])).getValue();
+                else if (ints[k] != null)
+                    ints[k][row] = rawInt(bytes, base + offsets[k]);
+                else
+                    strings[k][row] = rawString(bytes, base + offsets[k]);
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy a
+     *         predicate, reduced to some of their fields. While the bytes of
+     *         the page are up to date, the predicate is tested on them and
+     *         only the fields returned are decoded.
+     * @param fields
+     *            the fields to return, in order; {@link SeqScan#ROW_ID} for
+     *            the row id of the tuple
+     * @param pred
+     *            the predicate over the fields of the page's tuples, compiled
+     *            with their TupleDesc; null to return every tuple
+     * @param outTd
+     *            the schema of the returned tuples
+     */
+    public Iterator<Tuple> iterator(int[] fields, CompiledPredicate pred,
+            TupleDesc outTd) {
+        ArrayList<Tuple> l = new ArrayList<Tuple>();
+        byte[] bytes = data;
+        if (bytes != null) {
+            int[] offsets = new int[fields.length];
+            for (int k = 0; k < fields.length; k++)
+                if (fields[k] != SeqScan.ROW_ID)
+                    offsets[k] = td.getFieldOffset(fields[k]);
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i))
+                    continue;
+                int base = slotOffset(i);
+                if (pred != null && !pred.evalRaw(bytes, base))
+                    continue;
+                Tuple t = new Tuple(outTd);
+                for (int k = 0; k < fields.length; k++) {
+                    if (fields[k] == SeqScan.ROW_ID)
+                        t.setField(k, new IntField(rowId(i)));
+                    else if (outTd.getFieldType(k) == Type.INT_TYPE)
+                        t.setField(k, new IntField(rawInt(bytes, base + offsets[k])));
+                    else
+                        t.setField(k, new StringField(rawString(bytes, base
+                                + offsets[k]), Type.STRING_LEN));
+                }
+                t.setRecordId(new RecordId(pid, i));
+                l.add(t);
+            }
+        } else {
+            Tuple[] all = tuples();
+            for (int i = 0; i < numSlots; i++) {
+                if (!isSlotUsed(i) || (pred != null && !pred.eval(all[i])))
+                    continue;
+                Tuple t = new Tuple(outTd);
+                for (int k = 0; k < fields.length; k++)
+                    t.setField(k, fields[k] == SeqScan.ROW_ID ? new IntField(rowId(i))
+                            : all[i].getField(fields[k]));
+                t.setRecordId(all[i].getRecordId());
+                l.add(t);
+            }
+        }
+        return l.iterator();
+    }
+
 }
@@ -17,7 +17,7 @@ class HeapPageIterator implements Iterator<Tuple> {
         ArrayList<Tuple> l = new ArrayList<Tuple>();
         for(int i = 0; i < page.numSlots; i++) {
             if(page.isSlotUsed(i)) {
-                l.add(page.tuples[i]);
+                l.add(page.tuples()[i]);
             }
         }
         tuples = l.iterator();
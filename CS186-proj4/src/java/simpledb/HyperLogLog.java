@@ -0,0 +1,117 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A HyperLogLog sketch estimates the number of distinct values added to it,
+ * in a fixed amount of memory however many values there are. Each value is
+ * hashed; the first bits of the hash pick one of 2^precision registers, and
+ * the register keeps the longest run of leading zeros seen in the rest. The
+ * standard error of the estimate is about 1.04 / sqrt(2^precision).
+ * <p>
+ * Sketches of the same precision merge: the merge of the sketches of the
+ * parts of a table is the sketch of the whole table, so parts can be
+ * sketched separately.
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default precision: 4096 registers, for an error of about 1.6% */
+    public static final int DEFAULT_PRECISION = 12;
+
+    private final int precision;
+    private final byte[] registers;
+
+    /** Creates an empty sketch of the default precision */
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * Creates an empty sketch.
+     *
+     * @param precision
+     *            the number of hash bits used to pick a register, from 4 to
+     *            16
+     */
+    public HyperLogLog(int precision) {
+        if (precision < 4 || precision > 16)
+            throw new IllegalArgumentException("precision " + precision);
+        this.precision = precision;
+        registers = new byte[1 << precision];
+    }
+
+    /** Adds a value to the sketch */
+    public void add(Field f) {
+        addHash(hash(f));
+    }
+
+    /** Adds a value to the sketch, given a 64 bit hash of it */
+    public void addHash(long h) {
+        int i = (int) (h >>> (Long.SIZE - precision));
+        // a sentinel bit bounds the run of zeros by the bits left
+        int rank = Long.numberOfLeadingZeros((h << precision)
+                | (1L << (precision - 1))) + 1;
+        if (rank > registers[i])
+            registers[i] = (byte) rank;
+    }
+
+    /**
+     * Adds the values of another sketch to this one.
+     *
+     * @throws IllegalArgumentException
+     *             if the sketches are not of the same precision
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision)
+            throw new IllegalArgumentException("precision " + other.precision
+                    + " sketch merged into precision " + precision);
+        for (int i = 0; i < registers.length; i++)
+            if (other.registers[i] > registers[i])
+                registers[i] = other.registers[i];
+    }
+
+    /** @return the estimated number of distinct values added */
+    public double estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0)
+                zeros++;
+        }
+        double alpha = 0.7213 / (1 + 1.079 / m);
+        double e = alpha * m * m / sum;
+        // few values leave registers empty; count those instead
+        if (e <= 2.5 * m && zeros > 0)
+            e = m * Math.log((double) m / zeros);
+        return e;
+    }
+
+    /** @return a 64 bit hash of a field, equal for equal fields */
+    static long hash(Field f) {
+        if (f instanceof IntField)
+            return mix(((IntField) f).getValue());
+        if (f instanceof StringField) {
+            // FNV-1a, as String.hashCode has only 32 bits
+            String s = ((StringField) f).getValue();
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            return mix(h);
+        }
+        return mix(f.hashCode());
+    }
+
+    /** The finalizer of MurmurHash3, which spreads every bit of z over all
+        the bits of the result */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+}
@@ -90,6 +90,7 @@ public class Insert extends Operator {
                 next = child.next();
                 try {
                     bp.insertTuple(tid, tableid, next);
+                    TableStats.tupleInserted(tableid, next);
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
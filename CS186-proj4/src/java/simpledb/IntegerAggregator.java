@@ -12,8 +12,7 @@ public class IntegerAggregator implements Aggregator {
     private Type gbfieldtype;
     private int afield;
     private Op what;
-    private HashMap<Field, Integer> aggregate;
-    private HashMap<Field, Integer> avg_hash;
+    private GroupTable groups;
 
     /**
      * Aggregate constructor
@@ -36,8 +35,7 @@ public class IntegerAggregator implements Aggregator {
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
         this.what = what;
-        this.aggregate = new HashMap<Field, Integer>();
-        this.avg_hash = (what == Op.AVG) ? new HashMap<Field, Integer>() : null;
+        this.groups = new GroupTable(gbfield == NO_GROUPING ? null : gbfieldtype);
     }
 
     /**
@@ -49,31 +47,16 @@ public class IntegerAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        Field gbf = (gbfield == NO_GROUPING) ? null : tup.getField(gbfield);
-        IntField af = (IntField) tup.getField(afield);
-        Integer oldval = aggregate.get(gbf);
-        if(what == Op.COUNT) {
-            if(oldval == null) {
-                aggregate.put(gbf, new Integer(1));
-            } else {
-                aggregate.put(gbf, new Integer(oldval.intValue() + 1));
-            }
-        } else if(oldval == null) {
-            aggregate.put(gbf, new Integer(af.getValue()));
-            if(what == Op.AVG) { avg_hash.put(gbf, new Integer(1)); }
-        } else {
-            if(what == Op.SUM) {
-                aggregate.put(gbf, new Integer(oldval.intValue() + af.getValue()));
-            } else if(what == Op.AVG) {
-                aggregate.put(gbf, new Integer(oldval.intValue() + af.getValue()));
-                Integer old_count = avg_hash.get(gbf);
-                avg_hash.put(gbf, new Integer(old_count.intValue() + 1));
-            } else if(what == Op.MIN) {
-                aggregate.put(gbf, new Integer(Math.min(oldval, af.getValue())));
-            } else if(what == Op.MAX) {
-                aggregate.put(gbf, new Integer(Math.max(oldval, af.getValue())));
-            }
-        }
+        int g = groups.findOrAdd(gbfield == NO_GROUPING ? null : tup.getField(gbfield));
+        groups.add(g, ((IntField) tup.getField(afield)).getValue());
+    }
+
+    public int numGroups() {
+        return groups.numGroups();
+    }
+
+    public boolean containsGroup(Tuple tup) {
+        return groups.find(gbfield == NO_GROUPING ? null : tup.getField(gbfield)) >= 0;
     }
 
     /**
@@ -87,10 +70,6 @@ public class IntegerAggregator implements Aggregator {
     public DbIterator iterator() {
         // some code goes here
         TupleDesc td;
-        Tuple t = null;
-        int i;
-        Field ifield;
-        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
         String aggregateName = what + "aggregateVal"; 
         if(gbfield == NO_GROUPING) {
             td = new TupleDesc(new Type[]{Type.INT_TYPE},
@@ -100,23 +79,7 @@ public class IntegerAggregator implements Aggregator {
                                new String[]{"groupVal", aggregateName});
         }
 
-        for(Field f : aggregate.keySet()) {
-            t = new Tuple(td);
-            i = aggregate.get(f).intValue();
-            if(what != Op.AVG) {
-                ifield = new IntField(i);
-            } else {
-                ifield = new IntField(i / avg_hash.get(f));
-            }
-            if(td.numFields() == 1) { //no grouping
-                t.setField(0, ifield);
-            } else { //grouping
-                t.setField(0, f);
-                t.setField(1, ifield);
-            }
-            tuples.add(t);
-        }
-        return new TupleIterator(td, tuples);
+        return groups.iterator(td, what);
     }
 
 }
@@ -0,0 +1,88 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * JoinFilter applies a join predicate to the tuples of a single child, which
+ * holds the fields of both of the tables it joins. It performs a join that
+ * closes a cycle of joins: once the other joins of a query have brought its
+ * two tables into the same subplan, what is left of the join is a selection.
+ */
+public class JoinFilter extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate p;
+    private DbIterator child;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to filter tuples with; both of its fields are
+     *            fields of the tuples of the child
+     * @param child
+     *            The child operator
+     */
+    public JoinFilter(JoinPredicate p, DbIterator child) {
+        this.p = p;
+        this.child = child;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /** @return the name of the first field compared */
+    public String getField1Name() {
+        return child.getTupleDesc().getFieldName(p.getField1());
+    }
+
+    /** @return the name of the second field compared */
+    public String getField2Name() {
+        return child.getTupleDesc().getFieldName(p.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        child.close();
+        super.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    /**
+     * @return The next tuple whose two fields satisfy the predicate, or null
+     *         if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (p.filter(t, t))
+                return t;
+        }
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        child = children[0];
+    }
+
+}
@@ -14,6 +14,24 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    private static int maxExhaustiveJoins = 15;
+
+    /**
+     * Sets the largest number of joins that {@link #orderJoins} plans
+     * exhaustively; larger queries get a greedy plan, improved by local
+     * search.
+     */
+    public static void setMaxExhaustiveJoins(int joins) {
+        if (joins < 0)
+            throw new IllegalArgumentException("join count " + joins);
+        maxExhaustiveJoins = joins;
+    }
+
+    /** @return the largest number of joins planned exhaustively */
+    public static int getMaxExhaustiveJoins() {
+        return maxExhaustiveJoins;
+    }
+
     /**
      * Constructor
      * 
@@ -34,6 +52,10 @@ public class JoinOptimizer {
      * inner/outer here -- because DbIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * The join is performed with the algorithm {@link #orderJoins} chose for
+     * it, if any, and otherwise with a block nested-loop join; inputs that
+     * both arrive sorted on their join fields are always merged.
      * 
      * @param lj
      *            The join being considered
@@ -68,7 +90,30 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj instanceof LogicalSubplanJoinNode) {
+            j = new BlockNestedLoopJoin(p, plan1, plan2);
+        } else if (SortMergeJoin.supports(lj.p)
+                && OperatorOrdering.isOrderedOn(plan1, lj.f1QuantifiedName)
+                && OperatorOrdering.isOrderedOn(plan2, lj.f2QuantifiedName)) {
+            // both inputs already arrive sorted on the join fields
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.algorithm == LogicalJoinNode.Algorithm.NESTED_LOOP) {
+            j = new Join(p, plan1, plan2);
+        } else if (lj.algorithm == LogicalJoinNode.Algorithm.HASH
+                && lj.p == Predicate.Op.EQUALS) {
+            j = new HashEquiJoin(p, plan1, plan2, HashEquiJoin.mapTuples(
+                    ExternalSort.estimateTupleBytes(plan1.getTupleDesc()),
+                    HashEquiJoin.getDefaultMemoryBudget()));
+        } else if (lj.algorithm == LogicalJoinNode.Algorithm.SORT_MERGE
+                && SortMergeJoin.supports(lj.p)) {
+            if (!OperatorOrdering.isOrderedOn(plan1, lj.f1QuantifiedName))
+                plan1 = new OrderBy(t1id, true, plan1);
+            if (!OperatorOrdering.isOrderedOn(plan2, lj.f2QuantifiedName))
+                plan2 = new OrderBy(t2id, true, plan2);
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else {
+            j = new BlockNestedLoopJoin(p, plan1, plan2);
+        }
 
         return j;
 
@@ -107,12 +152,130 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Project 3.
             return card1 + cost1 + cost2;
         } else {
-            // some code goes here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic nested-loops
-            // join.
-            return cost1 + card1 * cost2 + card1 * card2;
+            return estimateJoinCost(j, chooseJoinAlgorithm(j, card1, card2,
+                    cost1, cost2), card1, card2, cost1, cost2);
+        }
+    }
+
+    /**
+     * @return the algorithm with the lowest estimated cost for the given
+     *         join; the arguments are as for {@link #estimateJoinCost}. A
+     *         block nested-loop join, which performs any join, is kept when
+     *         another algorithm costs no less.
+     */
+    public LogicalJoinNode.Algorithm chooseJoinAlgorithm(LogicalJoinNode j,
+            int card1, int card2, double cost1, double cost2) {
+        LogicalJoinNode.Algorithm best = LogicalJoinNode.Algorithm.BLOCK_NESTED_LOOP;
+        double bestCost = estimateJoinCost(j, best, card1, card2, cost1, cost2);
+        for (LogicalJoinNode.Algorithm a : LogicalJoinNode.Algorithm.values()) {
+            double cost = estimateJoinCost(j, a, card1, card2, cost1, cost2);
+            if (cost < bestCost) {
+                best = a;
+                bestCost = cost;
+            }
         }
+        return best;
+    }
+
+    /**
+     * Estimate the cost of performing a join with the given algorithm; the
+     * other arguments are as for {@link #estimateJoinCost}. The size of the
+     * blocks of a block nested-loop join, of the map of a hash join and of
+     * the runs of a sort are worked out from the widths of the tables of the
+     * join and the memory budgets of those operators.
+     * 
+     * @return the estimated cost, or infinity if the algorithm cannot perform
+     *         the join
+     */
+    public double estimateJoinCost(LogicalJoinNode j,
+            LogicalJoinNode.Algorithm algorithm, int card1, int card2,
+            double cost1, double cost2) {
+        if (j instanceof LogicalSubplanJoinNode)
+            return card1 + cost1 + cost2;
+        switch (algorithm) {
+        case NESTED_LOOP:
+            // the inner is scanned once per outer tuple
+            return cost1 + (double) card1 * cost2 + (double) card1 * card2;
+        case BLOCK_NESTED_LOOP: {
+            // the inner side is scanned once per block of outer tuples
+            // rather than once per outer tuple; every pair is still compared
+            double blocks = Math.max(1.0, (double) card1 / outerBlockTuples(j));
+            return cost1 + blocks * cost2 + (double) card1 * card2;
+        }
+        case HASH: {
+            if (j.p != Predicate.Op.EQUALS)
+                break;
+            // the outer is hashed a map at a time, and the inner is probed
+            // against each map
+            int mapTuples = HashEquiJoin.mapTuples(tupleBytes(j.t1Alias),
+                    HashEquiJoin.getDefaultMemoryBudget());
+            double passes = Math.ceil(Math.max(1.0, (double) card1
+                    / mapTuples));
+            return cost1 + passes * cost2 + card1 + passes * card2;
+        }
+        case SORT_MERGE: {
+            if (!SortMergeJoin.supports(j.p))
+                break;
+            double cost = cost1 + cost2 + sortCost(card1, j.t1Alias)
+                    + sortCost(card2, j.t2Alias) + card1 + card2;
+            if (j.p != Predicate.Op.EQUALS) {
+                // a band join holds the whole inner in memory, and emits a
+                // range of it for each outer tuple
+                if ((double) card2 * tupleBytes(j.t2Alias) > ExternalSort
+                        .getDefaultMemoryBudget())
+                    break;
+                cost += estimateJoinCardinality(j, card1, card2, false,
+                        false, TableStats.getStatsMap());
+            }
+            return cost;
+        }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return the estimated cost of sorting card tuples of the given table
+     *         with an {@link ExternalSort}: the comparisons, and, when the
+     *         tuples do not fit in its memory budget, writing and reading
+     *         the runs once per merge pass
+     */
+    private double sortCost(int card, String alias) {
+        double cost = card * (Math.log(Math.max(2, card)) / Math.log(2));
+        double bytes = (double) card * tupleBytes(alias);
+        double runs = Math.ceil(bytes / ExternalSort.getDefaultMemoryBudget());
+        if (runs > 1) {
+            double passes = Math.ceil(Math.log(runs)
+                    / Math.log(ExternalSort.MAX_FAN_IN));
+            cost += 2 * passes * Math.ceil(bytes / BufferPool.PAGE_SIZE)
+                    * TableStats.IOCOSTPERPAGE;
+        }
+        return cost;
+    }
+
+    /**
+     * @return the approximate heap footprint of a tuple of the given table.
+     *         If the table is unknown, a tuple is assumed to take a page.
+     */
+    private long tupleBytes(String alias) {
+        Integer tableId = alias == null ? null : p.getTableId(alias);
+        if (tableId == null)
+            return BufferPool.PAGE_SIZE;
+        return ExternalSort.estimateTupleBytes(Database.getCatalog()
+                .getTupleDesc(tableId));
+    }
+
+    /**
+     * @return the number of outer tuples a {@link BlockNestedLoopJoin} buffers
+     *         per block for the given join, based on the width of the outer
+     *         table. If the outer table is unknown, a one tuple per page
+     *         layout is assumed.
+     */
+    private int outerBlockTuples(LogicalJoinNode j) {
+        Integer tableId = p.getTableId(j.t1Alias);
+        if (tableId == null)
+            return BlockNestedLoopJoin.DEFAULT_BLOCK_PAGES;
+        return BlockNestedLoopJoin.blockTuples(Database.getCatalog()
+                .getTupleDesc(tableId), BlockNestedLoopJoin.DEFAULT_BLOCK_PAGES);
     }
 
     /**
@@ -148,30 +311,139 @@ public class JoinOptimizer {
     }
     /**
      * Estimate the join cardinality of two tables.
+     * <p>
+     * A join on the primary key of a table returns a tuple for each tuple of
+     * the other table. Otherwise, when the statistics of both tables are
+     * known, an equality join keeps 1 / max(NDV1, NDV2) of the pairs of
+     * tuples, the NDVs being the numbers of distinct values of the fields
+     * (see {@link TableStats#estimateDistinct}), and only the tuples whose
+     * values lie in the range of both integer fields can join. A range join
+     * keeps the fraction of pairs its predicate holds for under the
+     * histograms of the fields.
+     * <p>
+     * A join that has been run before keeps the fraction of pairs it was
+     * seen to keep (see {@link CardinalityFeedback}).
      * */
     public static int estimateTableJoinCardinality(Predicate.Op joinOp,
             String table1Alias, String table2Alias, String field1PureName,
             String field2PureName, int card1, int card2, boolean t1pkey,
             boolean t2pkey, Map<String, TableStats> stats,
             Map<String, Integer> tableAliasToId) {
-        int card = 1;
+        double card = 1;
         // some code goes here
+        TableStats s1 = tableStats(table1Alias, stats, tableAliasToId);
+        TableStats s2 = tableStats(table2Alias, stats, tableAliasToId);
+        int f1 = fieldIndex(table1Alias, field1PureName, tableAliasToId);
+        int f2 = fieldIndex(table2Alias, field2PureName, tableAliasToId);
+        boolean known = s1 != null && s2 != null && f1 >= 0 && f2 >= 0;
+        if (known) {
+            double observed = CardinalityFeedback.joinSelectivity(
+                    Database.getCatalog().getTableName(tableAliasToId.get(table1Alias)),
+                    field1PureName, joinOp,
+                    Database.getCatalog().getTableName(tableAliasToId.get(table2Alias)),
+                    field2PureName);
+            if (observed >= 0) {
+                card = observed * card1 * card2;
+                return card < 1 ? 1 : (int) Math.min(card, Integer.MAX_VALUE);
+            }
+        }
+        boolean ints = known
+                && Database.getCatalog().getTupleDesc(
+                        tableAliasToId.get(table1Alias)).getFieldType(f1) == Type.INT_TYPE
+                && Database.getCatalog().getTupleDesc(
+                        tableAliasToId.get(table2Alias)).getFieldType(f2) == Type.INT_TYPE;
         if(joinOp == Predicate.Op.EQUALS || 
            joinOp == Predicate.Op.LIKE ||
            joinOp == Predicate.Op.NOT_EQUALS) {
-            if(!(t1pkey || t2pkey)) {
-                card = Math.max(card1, card2);
-            } else if(t1pkey && !t2pkey) {
+            if(t1pkey && t2pkey) {
+                card = Math.min(card1, card2);
+            } else if(t1pkey) {
                 card = card2;
-            } else if(t2pkey && !t1pkey) {
+            } else if(t2pkey) {
                 card = card1;
+            } else if(known) {
+                double frac1 = 1.0, frac2 = 1.0;
+                if(ints) {
+                    // only values in the range of both fields can match
+                    int lo = Math.max(s1.minValue(f1), s2.minValue(f2));
+                    int hi = Math.min(s1.maxValue(f1), s2.maxValue(f2));
+                    frac1 = s1.estimateRangeSelectivity(f1, lo, hi);
+                    frac2 = s2.estimateRangeSelectivity(f2, lo, hi);
+                }
+                double ndv1 = Math.min(s1.estimateDistinct(f1), card1) * frac1;
+                double ndv2 = Math.min(s2.estimateDistinct(f2), card2) * frac2;
+                card = card1 * frac1 * card2 * frac2
+                        / Math.max(1.0, Math.max(ndv1, ndv2));
             } else {
-                card = Math.min(card1, card2);
+                card = Math.max(card1, card2);
+            }
+            if(joinOp == Predicate.Op.NOT_EQUALS) {
+                card = (double) card1 * card2 - card;
             }
-        } else { //range scan
-            card = (int) (0.3 * card1 * card2);
+        } else if(ints) { //range scan
+            card = (double) card1 * card2
+                   * rangeJoinSelectivity(joinOp, s1, f1, s2, f2);
+        } else {
+            card = 0.3 * card1 * card2;
+        }
+        return card < 1 ? 1 : (int) Math.min(card, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the fraction of pairs of tuples of two tables for which
+     *         <tt>field1 op field2</tt> holds: the values of field2 are
+     *         taken a histogram bucket at a time, each compared with the
+     *         histogram of field1
+     */
+    private static double rangeJoinSelectivity(Predicate.Op op,
+            TableStats s1, int f1, TableStats s2, int f2) {
+        int lo = s2.minValue(f2), hi = s2.maxValue(f2);
+        if (lo > hi)
+            return 0.0;
+        long values = (long) hi - lo + 1;
+        int width = (int) Math.max(1, (values + TableStats.NUM_HIST_BINS - 1)
+                / TableStats.NUM_HIST_BINS);
+        double sel = 0.0;
+        for (long v = lo; v <= hi; v += width) {
+            int bucketHi = (int) Math.min(hi, v + width - 1);
+            double frac = s2.estimateRangeSelectivity(f2, (int) v, bucketHi);
+            int mid = (int) ((v + bucketHi) / 2);
+            sel += frac * s1.estimateSelectivity(f1, op, new IntField(mid));
+        }
+        return Math.max(0.0, Math.min(1.0, sel));
+    }
+
+    /**
+     * @return the statistics of the table with the given alias, or null if
+     *         they are not known
+     */
+    private static TableStats tableStats(String alias,
+            Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        if (alias == null || stats == null || tableAliasToId == null)
+            return null;
+        Integer tableId = tableAliasToId.get(alias);
+        if (tableId == null)
+            return null;
+        return stats.get(Database.getCatalog().getTableName(tableId));
+    }
+
+    /**
+     * @return the index of a field of the table with the given alias, or -1
+     *         if it is not known
+     */
+    private static int fieldIndex(String alias, String pureName,
+            Map<String, Integer> tableAliasToId) {
+        if (alias == null || tableAliasToId == null)
+            return -1;
+        Integer tableId = tableAliasToId.get(alias);
+        if (tableId == null)
+            return -1;
+        try {
+            return Database.getCatalog().getTupleDesc(tableId)
+                    .fieldNameToIndex(pureName);
+        } catch (NoSuchElementException e) {
+            return -1;
         }
-        return card <= 0 ? 1 : card;
     }
 
     /**
@@ -210,6 +482,20 @@ public class JoinOptimizer {
     /**
      * Compute a logical, reasonably efficient join on the specified tables. See
      * project description for hints on how this should be implemented.
+     * <p>
+     * The plan is a tree of joins, not necessarily left-deep: a join may take
+     * the results of two other joins as its inputs. A join whose two tables
+     * are already joined by the joins below it closes a cycle, and filters
+     * its input instead. Up to {@link #getMaxExhaustiveJoins} joins, the
+     * cheapest tree is found by dynamic programming over the connected sets
+     * of joins (see {@link #computeCostAndCardOfSubplan}); past that, a
+     * greedy order always performs the join with the smallest result next,
+     * and is then improved by moving single joins for as long as that makes
+     * it cheaper. The cardinality of a set of joins is estimated from its
+     * tables and joins alone, whatever order they are performed in (see
+     * {@link #setCard}), so the cheapest plan of a set is built from the
+     * cheapest plans of its parts, and the dynamic programming finds the
+     * cheapest tree.
      * 
      * @param stats
      *            Statistics for each table involved in the join, referenced by
@@ -221,8 +507,11 @@ public class JoinOptimizer {
      * @param explain
      *            Indicates whether your code should explain its query plan or
      *            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     *         order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     *         which they should be executed, each joining the subplans that
+     *         hold its two tables; this is a postorder of the tree of joins.
+     *         If the joins are not connected, they are returned in the order
+     *         given.
      * @throws ParsingException
      *             when stats or filter selectivities is missing a table in the
      *             join, or or when another internal error occurs
@@ -232,201 +521,591 @@ public class JoinOptimizer {
             HashMap<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
 
-        // some code goes here
-        double best_cost = Double.MAX_VALUE;
-        int card = 0;
-        PlanCache cache = new PlanCache();
-        CostCard cc = null;
-        Vector<LogicalJoinNode> best_plan = null;
-        Set<LogicalJoinNode> s = null;
-        for(int i = 1; i <= joins.size(); i++) {
-            for(Set<LogicalJoinNode> set : enumerateSubsets(joins, i)) {
-                best_plan = new Vector<LogicalJoinNode>();
-                best_cost = Double.MAX_VALUE;
-                for(LogicalJoinNode join_to_remove : set) {
-                    cc = computeCostAndCardOfSubplan(stats, 
-                                                     filterSelectivities,
-                                                     join_to_remove,
-                                                     set,
-                                                     best_cost,
-                                                     cache);
-                    if(cc != null) {
-                        best_cost = cc.cost;
-                        best_plan = cc.plan;
-                        card = cc.card;
-                    }
-                }
-                cache.addPlan(set, best_cost, card, best_plan);
-                s = set;
-            }
-        }
-        if(explain) { printJoins(joins, cache, stats, filterSelectivities); }
-        return cache.getOrder(s) == null ? joins : cache.getOrder(s);
+        int n = joins.size();
+        if (n == 0)
+            return joins;
+        prepare(stats, filterSelectivities);
+
+        int[] order;
+        if (n <= maxExhaustiveJoins && n < Long.SIZE) {
+            order = exhaustiveOrder(stats);
+            if (order == null)
+                return joins;
+        } else
+            order = improve(greedyOrder(stats), stats);
+
+        LogicalJoinNode[] nodes = new LogicalJoinNode[n];
+        double[] costs = new double[n];
+        int[] cards = new int[n];
+        evaluate(order, nodes, costs, cards, stats);
+        Vector<LogicalJoinNode> result = new Vector<LogicalJoinNode>(
+                Arrays.asList(nodes));
+        if (explain) { printJoins(result, costs, cards, stats, filterSelectivities); }
+        return result;
     }
 
-    // ===================== Private Methods =================================
-
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
+     * Estimate the cost of performing a list of joins in the given order, as
+     * {@link #orderJoins} would.
      * 
+     * @param order
+     *            the joins of this optimizer, in any order, each joining the
+     *            subplans that hold its two tables; their inner and outer
+     *            are chosen as orderJoins would choose them
      * @param stats
-     *            table stats for all of the tables, referenced by table names
-     *            rather than alias (see {@link #orderJoins})
+     *            Statistics for each table involved in the join, referenced by
+     *            base table names, not alias
      * @param filterSelectivities
-     *            the selectivities of the filters over each of the tables
-     *            (where tables are indentified by their alias or name if no
-     *            alias is given)
-     * @param joinToRemove
-     *            the join to remove from joinSet
-     * @param joinSet
-     *            the set of joins being considered
-     * @param bestCostSoFar
-     *            the best way to join joinSet so far (minimum of previous
-     *            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *            from returned CostCard)
-     * @param pc
-     *            the PlanCache for this join; should have subplans for all
-     *            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     *         optimal subplan
+     *            Selectivities of the filter predicates on each table in the
+     *            join, referenced by table alias
+     * @return the estimated cost of the plan
      * @throws ParsingException
-     *             when stats, filterSelectivities, or pc object is missing
-     *             tables involved in join
+     *             when a table of a join is unknown, or order is not an order
+     *             of the joins
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(
+    public double estimatePlanCost(Vector<LogicalJoinNode> order,
             HashMap<String, TableStats> stats,
-            HashMap<String, Double> filterSelectivities,
-            LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-            double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(
-                this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet)
-                .clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(
-                    filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
-            t2card = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateTableCardinality(
-                            filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias,
-                    j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+            HashMap<String, Double> filterSelectivities)
+            throws ParsingException {
+        if (order.size() != joins.size())
+            throw new ParsingException("not an order of the joins: " + order);
+        prepare(stats, filterSelectivities);
+        boolean[] used = new boolean[joins.size()];
+        int[] indices = new int[order.size()];
+        for (int k = 0; k < order.size(); k++) {
+            int i = 0;
+            while (i < joins.size()
+                    && (used[i] || !joins.get(i).equals(order.get(k))))
+                i++;
+            if (i == joins.size())
+                throw new ParsingException("not one of the joins: "
+                        + order.get(k));
+            used[i] = true;
+            indices[k] = i;
+        }
+        return evaluate(indices, null, null, null, stats);
+    }
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
-            }
+    // ===================== Private Methods =================================
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
-                t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateTableCardinality(
-                                filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias,
-                        j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                                                        // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                                       // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(
-                        filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+    /** For each join, its tables, as indices into tableCost and tableCard */
+    private int[] t1Table, t2Table;
+    /** The scan cost and filtered cardinality of each table */
+    private double[] tableCost;
+    private int[] tableCard;
+    /** For each join, the fraction of pairs of tuples of its tables it keeps */
+    private double[] selectivity;
+    /** Each join, with its inner and outer swapped */
+    private LogicalJoinNode[] swapped;
+
+    /** For each join, the other joins on its left and on its right table */
+    private long[] t1Joins, t2Joins;
+    /** The connected sets of joins enumerated so far */
+    private long[] subsets;
+    private int numSubsets;
+
+    /** Number of plans evaluated while improving a greedy plan */
+    private static final int IMPROVEMENT_EVALUATIONS = 20000;
 
+    /**
+     * Numbers the tables of the joins, and works out the statistics of each
+     * table and join that the costs of plans are computed from.
+     * 
+     * @throws ParsingException
+     *             if a join is on a table not in the plan
+     */
+    private void prepare(HashMap<String, TableStats> stats,
+            HashMap<String, Double> filterSelectivities)
+            throws ParsingException {
+        int n = joins.size();
+        HashMap<String, Integer> tables = new HashMap<String, Integer>();
+        Vector<String> aliases = new Vector<String>();
+        t1Table = new int[n];
+        t2Table = new int[n];
+        boolean[] t1Pkey = new boolean[n];
+        boolean[] t2Pkey = new boolean[n];
+        selectivity = new double[n];
+        swapped = new LogicalJoinNode[n];
+        for (int i = 0; i < n; i++) {
+            LogicalJoinNode j = joins.get(i);
+            boolean subplan = j instanceof LogicalSubplanJoinNode;
+            if (this.p.getTableId(j.t1Alias) == null)
+                throw new ParsingException("Unknown table " + j.t1Alias);
+            if (!subplan && this.p.getTableId(j.t2Alias) == null)
+                throw new ParsingException("Unknown table " + j.t2Alias);
+            for (String alias : new String[] { j.t1Alias, j.t2Alias }) {
+                if (alias != null && !tables.containsKey(alias)) {
+                    tables.put(alias, aliases.size());
+                    aliases.add(alias);
+                }
+            }
+            t1Table[i] = tables.get(j.t1Alias);
+            t1Pkey[i] = isPkey(j.t1Alias, j.f1PureName);
+            if (subplan) {
+                // the subquery is a table of its own, with no alias
+                t2Table[i] = aliases.size();
+                aliases.add(null);
             } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+                t2Table[i] = tables.get(j.t2Alias);
+                t2Pkey[i] = isPkey(j.t2Alias, j.f2PureName);
             }
+            swapped[i] = j.swapInnerOuter();
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        tableCost = new double[aliases.size()];
+        tableCard = new int[aliases.size()];
+        for (int t = 0; t < aliases.size(); t++) {
+            String alias = aliases.get(t);
+            if (alias == null) {
+                // a subquery adds no cost or tuples to the join estimates;
+                // see estimateJoinCost and estimateJoinCardinality
+                tableCost[t] = 0;
+                tableCard[t] = 1;
+                continue;
+            }
+            TableStats s = stats.get(Database.getCatalog().getTableName(
+                    this.p.getTableId(alias)));
+            tableCost[t] = s.estimateScanCost();
+            tableCard[t] = s.estimateTableCardinality(filterSelectivities
+                    .get(alias));
+        }
 
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+        for (int i = 0; i < n; i++) {
+            int card1 = Math.max(1, tableCard[t1Table[i]]);
+            int card2 = Math.max(1, tableCard[t2Table[i]]);
+            selectivity[i] = estimateJoinCardinality(joins.get(i), card1,
+                    card2, t1Pkey[i], t2Pkey[i], stats)
+                    / ((double) card1 * card2);
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
+    }
+
+    /**
+     * @return the cardinality of the result of a set of joins, given as the
+     *         set of their indices: the product of the cardinalities of
+     *         their tables and of the selectivities of the joins. It does not
+     *         depend on the order the joins are performed in, and the
+     *         factors are multiplied in the order of the joins, so that
+     *         rounding does not either.
+     */
+    private int setCard(BitSet set) {
+        boolean[] seen = new boolean[tableCard.length];
+        double card = 1;
+        for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+            for (int t : new int[] { t1Table[i], t2Table[i] }) {
+                if (!seen[t]) {
+                    seen[t] = true;
+                    card *= Math.max(1, tableCard[t]);
+                }
+            }
+            card *= selectivity[i];
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.round(card)));
+    }
+
+    /** @return the set of the joins in mask */
+    private static BitSet bits(long mask) {
+        BitSet set = new BitSet();
+        for (long rest = mask; rest != 0; rest &= rest - 1)
+            set.set(Long.numberOfTrailingZeros(rest));
+        return set;
+    }
 
+    /**
+     * @return the cost, orientation and algorithm of performing join i on
+     *         two subplans, the first holding its left table and the second
+     *         its right table; the join is swapped if the second subplan is
+     *         the cheaper outer, which for a hash join is the side it builds
+     *         on. The cardinality is left to the caller (see
+     *         {@link #setCard}).
+     */
+    private CostCard joinInputs(int i, double cost1, int card1, double cost2,
+            int card2) {
+        LogicalJoinNode j = joins.get(i);
         CostCard cc = new CostCard();
+        cc.algorithm = chooseJoinAlgorithm(j, card1, card2, cost1, cost2);
+        cc.cost = estimateJoinCost(j, cc.algorithm, card1, card2, cost1, cost2);
+        LogicalJoinNode.Algorithm a = chooseJoinAlgorithm(swapped[i], card2,
+                card1, cost2, cost1);
+        double cost = estimateJoinCost(swapped[i], a, card2, card1, cost2,
+                cost1);
+        // a hash join that costs the same either way is built on the
+        // smaller input, to hold fewer tuples in memory
+        if (cost < cc.cost || (cost == cc.cost
+                && a == LogicalJoinNode.Algorithm.HASH && card2 < card1)) {
+            cc.cost = cost;
+            cc.algorithm = a;
+            cc.join = swapped[i];
+        } else {
+            cc.join = j;
+        }
+        return cc;
+    }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey,
-                rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
+    /**
+     * @return the cost of performing join i on a subplan that holds both of
+     *         its tables, which tests the predicate of the join on each of
+     *         its tuples; the cardinality is left to the caller
+     */
+    private CostCard filterInput(int i, double cost, int card) {
+        CostCard cc = new CostCard();
+        cc.cost = cost + card;
+        cc.join = joins.get(i);
         return cc;
     }
 
     /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
+     * The subplans built by performing some of the joins, one for each group
+     * of tables those joins connect; the tables are kept in a union-find
+     * forest, whose roots hold the joins, cost and cardinality of the
+     * subplans.
+     */
+    private class Subplans {
+        private final int[] parent;
+        private final double[] cost;
+        private final int[] card;
+        private final BitSet[] members;
+
+        Subplans() {
+            int t = tableCost.length;
+            parent = new int[t];
+            cost = tableCost.clone();
+            card = tableCard.clone();
+            members = new BitSet[t];
+            for (int k = 0; k < t; k++) {
+                parent[k] = k;
+                members[k] = new BitSet();
+            }
+        }
+
+        private int find(int t) {
+            while (parent[t] != t) {
+                parent[t] = parent[parent[t]];
+                t = parent[t];
+            }
+            return t;
+        }
+
+        /** @return true if the tables of join i are in the same subplan */
+        boolean closesCycle(int i) {
+            return find(t1Table[i]) == find(t2Table[i]);
+        }
+
+        /** @return the cost and cardinality of performing join i next */
+        CostCard cost(int i) {
+            int r1 = find(t1Table[i]), r2 = find(t2Table[i]);
+            CostCard cc = r1 == r2 ? filterInput(i, cost[r1], card[r1])
+                    : joinInputs(i, cost[r1], card[r1], cost[r2], card[r2]);
+            BitSet set = (BitSet) members[r1].clone();
+            set.or(members[r2]);
+            set.set(i);
+            cc.card = setCard(set);
+            return cc;
+        }
+
+        /** Performs join i, whose cost and cardinality are cc */
+        void perform(int i, CostCard cc) {
+            int r1 = find(t1Table[i]), r2 = find(t2Table[i]);
+            parent[r2] = r1;
+            cost[r1] = cc.cost;
+            card[r1] = cc.card;
+            members[r1].or(members[r2]);
+            members[r1].set(i);
+        }
+
+        /** @return the total cost of the subplans built */
+        double totalCost() {
+            double total = 0;
+            for (int t = 0; t < parent.length; t++)
+                if (parent[t] == t && !members[t].isEmpty())
+                    total += cost[t];
+            return total;
+        }
+    }
+
+    /**
+     * Performs the joins in the given order, recording the join (as
+     * oriented, and with the algorithm chosen for it), cost and cardinality
+     * of each step in the arrays given, if they are not null.
+     * 
+     * @return the cost of the plan
+     */
+    private double evaluate(int[] order, LogicalJoinNode[] nodes,
+            double[] costs, int[] cards, HashMap<String, TableStats> stats) {
+        Subplans s = new Subplans();
+        for (int k = 0; k < order.length; k++) {
+            CostCard cc = s.cost(order[k]);
+            s.perform(order[k], cc);
+            if (nodes != null) {
+                nodes[k] = cc.algorithm == null ? cc.join : cc.join
+                        .using(cc.algorithm);
+                costs[k] = cc.cost;
+                cards[k] = cc.card;
+            }
+        }
+        return s.totalCost();
+    }
+
+    /**
+     * @return the greedy order of the joins: a join that closes a cycle is
+     *         performed as soon as it can be, since it only makes a subplan
+     *         smaller, and otherwise the join whose result has the fewest
+     *         tuples is performed next
+     */
+    private int[] greedyOrder(HashMap<String, TableStats> stats) {
+        int n = joins.size();
+        Subplans s = new Subplans();
+        boolean[] done = new boolean[n];
+        int[] order = new int[n];
+        for (int k = 0; k < n; k++) {
+            int best = -1;
+            CostCard bestCc = null;
+            for (int i = 0; i < n; i++) {
+                if (done[i])
+                    continue;
+                CostCard cc = s.cost(i);
+                if (s.closesCycle(i)) {
+                    best = i;
+                    bestCc = cc;
+                    break;
+                }
+                if (bestCc == null || cc.card < bestCc.card
+                        || (cc.card == bestCc.card && cc.cost < bestCc.cost)) {
+                    best = i;
+                    bestCc = cc;
+                }
+            }
+            s.perform(best, bestCc);
+            done[best] = true;
+            order[k] = best;
+        }
+        return order;
+    }
+
+    /**
+     * Improves an order of the joins by moving one join at a time to another
+     * position, keeping each move that makes the plan cheaper, until no move
+     * does, or {@link #IMPROVEMENT_EVALUATIONS} plans have been tried.
+     * 
+     * @return the improved order
+     */
+    private int[] improve(int[] order, HashMap<String, TableStats> stats) {
+        int n = order.length;
+        double best = evaluate(order, null, null, null, stats);
+        int[] candidate = new int[n];
+        int evaluations = 0;
+        boolean improved = true;
+        while (improved && evaluations < IMPROVEMENT_EVALUATIONS) {
+            improved = false;
+            for (int from = 0; from < n && !improved; from++) {
+                for (int to = 0; to < n && !improved
+                        && evaluations < IMPROVEMENT_EVALUATIONS; to++) {
+                    if (to == from)
+                        continue;
+                    // order, with the join at from moved to to
+                    for (int k = 0, m = 0; k < n; k++) {
+                        if (k == to)
+                            candidate[k] = order[from];
+                        else {
+                            if (m == from)
+                                m++;
+                            candidate[k] = order[m++];
+                        }
+                    }
+                    double cost = evaluate(candidate, null, null, null, stats);
+                    evaluations++;
+                    if (cost < best) {
+                        best = cost;
+                        System.arraycopy(candidate, 0, order, 0, n);
+                        improved = true;
+                    }
+                }
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Finds the cheapest tree of joins by dynamic programming. The joins are
+     * numbered by their position in the list of joins, and a set of them is
+     * a bitmask of those numbers. Two joins are adjacent if they share a
+     * table; only the connected sets of joins, which are enumerated
+     * directly, DPccp-style, rather than filtered out of all the subsets,
+     * get a plan, so no plan with a cross product is ever considered. Every
+     * proper subset of a set is a smaller number, so planning the connected
+     * sets in increasing numeric order plans each one after the sets it is
+     * built from.
+     * 
+     * @return the order of the joins in the cheapest plan, or null if the
+     *         joins are not connected
+     */
+    private int[] exhaustiveOrder(HashMap<String, TableStats> stats) {
+        int n = joins.size();
+        buildJoinGraph();
+
+        numSubsets = 0;
+        subsets = new long[Math.max(16, n * n)];
+        for (int i = n - 1; i >= 0; i--) {
+            emit(1L << i);
+            enumerateConnected(1L << i, (1L << (i + 1)) - 1);
+        }
+        Arrays.sort(subsets, 0, numSubsets);
+
+        PlanCache cache = new PlanCache(numSubsets);
+        for (int k = 0; k < numSubsets; k++) {
+            long set = subsets[k];
+            CostCard best = null;
+            int bestJoin = -1;
+            for (long rest = set; rest != 0; rest &= rest - 1) {
+                int join = Long.numberOfTrailingZeros(rest);
+                CostCard cc = computeCostAndCardOfSubplan(stats, join, set,
+                        best == null ? Double.MAX_VALUE : best.cost, cache);
+                if (cc != null) {
+                    best = cc;
+                    bestJoin = join;
+                }
+            }
+            if (best != null)
+                cache.addPlan(set, best.cost, best.card, bestJoin, best.left);
+        }
+        subsets = null;
+
+        long all = (1L << n) - 1;
+        return cache.contains(all) ? cache.getOrder(all) : null;
+    }
+
+    /** Works out which of the joins share a table. */
+    private void buildJoinGraph() {
+        int n = joins.size();
+        t1Joins = new long[n];
+        t2Joins = new long[n];
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < n; k++) {
+                if (k == i)
+                    continue;
+                if (t1Table[i] == t1Table[k] || t1Table[i] == t2Table[k])
+                    t1Joins[i] |= 1L << k;
+                if (t2Table[i] == t1Table[k] || t2Table[i] == t2Table[k])
+                    t2Joins[i] |= 1L << k;
+            }
+        }
+    }
+
+    /** @return the joins outside of set that share a table with a join in it */
+    private long neighbours(long set) {
+        long nbrs = 0;
+        for (long rest = set; rest != 0; rest &= rest - 1) {
+            int i = Long.numberOfTrailingZeros(rest);
+            nbrs |= t1Joins[i] | t2Joins[i];
+        }
+        return nbrs & ~set;
+    }
+
+    /** @return the joins of set connected to the joins of start */
+    private long component(long start, long set) {
+        long c = start;
+        while (true) {
+            long next = c | (neighbours(c) & set);
+            if (next == c)
+                return c;
+            c = next;
+        }
+    }
+
+    private void emit(long set) {
+        if (numSubsets == subsets.length)
+            subsets = Arrays.copyOf(subsets, subsets.length * 2);
+        subsets[numSubsets++] = set;
+    }
+
+    /**
+     * Emits every connected set of joins that extends the connected set with
+     * joins outside of excluded, exactly once: the set is grown by each
+     * subset of its neighbours at once, and the neighbours are excluded from
+     * the recursive calls, which only grow it further out.
      */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table)
-                    || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+    private void enumerateConnected(long set, long excluded) {
+        long nbrs = neighbours(set) & ~excluded;
+        if (nbrs == 0)
+            return;
+        for (long s = nbrs; s != 0; s = (s - 1) & nbrs)
+            emit(set | s);
+        for (long s = nbrs; s != 0; s = (s - 1) & nbrs)
+            enumerateConnected(set | s, excluded | nbrs);
+    }
+
+    /**
+     * This is a helper method that computes the cost and cardinality of
+     * performing joinToRemove last in a plan for joinSet (joinSet should
+     * contain joinToRemove), given that all of the connected subsets of
+     * joinSet have already been computed and stored in PlanCache pc.
+     * <p>
+     * Without joinToRemove, the rest of joinSet falls into at most two
+     * connected parts, since joinSet is connected: the joins on its left
+     * table, and those on its right table. If there is one part, the join
+     * joins its plan to the table that it leaves out, or, if it holds both
+     * tables, filters it. If there are two, the join joins their plans, and
+     * the tree is bushy.
+     * 
+     * @param stats
+     *            table stats for all of the tables, referenced by table names
+     *            rather than alias (see {@link #orderJoins})
+     * @param joinToRemove
+     *            the index of the join to remove from joinSet
+     * @param joinSet
+     *            the mask of the joins being considered
+     * @param bestCostSoFar
+     *            the best way to join joinSet so far (minimum of previous
+     *            invocations of computeCostAndCardOfSubplan for this joinSet,
+     *            from returned CostCard)
+     * @param pc
+     *            the PlanCache for this join; should have plans for all the
+     *            connected subsets of joinSet
+     * @return A {@link CostCard} objects desribing the cost, cardinality and
+     *         inputs of the optimal subplan, or null if there is no plan
+     *         cheaper than bestCostSoFar that performs joinToRemove last
+     */
+    private CostCard computeCostAndCardOfSubplan(
+            HashMap<String, TableStats> stats, int joinToRemove,
+            long joinSet, double bestCostSoFar, PlanCache pc) {
+
+        int j = joinToRemove;
+        long rest = joinSet & ~(1L << j);
+        // the joins of the rest on the left and on the right table of j
+        long on1 = rest & t1Joins[j];
+        long on2 = rest & t2Joins[j];
+        long left, right;
+        boolean cycle = false;
+        if (on2 == 0) { // j.t2 is a base table
+            left = rest;
+            right = 0;
+        } else if (on1 == 0) { // j.t1 is a base table
+            left = 0;
+            right = rest;
+        } else {
+            left = component(on1, rest);
+            right = rest & ~left;
+            cycle = right == 0;
+        }
+        if ((left != 0 && !pc.contains(left))
+                || (right != 0 && !pc.contains(right)))
+            return null;
+
+        CostCard cc;
+        if (cycle) { // both tables are in the rest
+            cc = filterInput(j, pc.getCost(left), pc.getCard(left));
+        } else {
+            int t1 = t1Table[j], t2 = t2Table[j];
+            cc = joinInputs(j,
+                    left == 0 ? tableCost[t1] : pc.getCost(left),
+                    left == 0 ? tableCard[t1] : pc.getCard(left),
+                    right == 0 ? tableCost[t2] : pc.getCost(right),
+                    right == 0 ? tableCard[t2] : pc.getCard(right));
         }
-        return false;
+        if (cc.cost >= bestCostSoFar)
+            return null;
+        cc.card = setCard(bits(joinSet));
+        cc.left = left;
+        return cc;
     }
 
     /**
@@ -445,20 +1124,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName)
-                    || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -466,8 +1131,10 @@ public class JoinOptimizer {
      * 
      * @param js
      *            the join plan to visualize
-     * @param pc
-     *            the PlanCache accumulated whild building the optimal plan
+     * @param costs
+     *            the cost of the subplan built by each join
+     * @param cards
+     *            the cardinality of the subplan built by each join
      * @param stats
      *            table statistics for base tables
      * @param selectivities
@@ -475,8 +1142,8 @@ public class JoinOptimizer {
      *            (where tables are indentified by their alias or name if no
      *            alias is given)
      */
-    private void printJoins(Vector<LogicalJoinNode> js, PlanCache pc,
-            HashMap<String, TableStats> stats,
+    private void printJoins(Vector<LogicalJoinNode> js, double[] costs,
+            int[] cards, HashMap<String, TableStats> stats,
             HashMap<String, Double> selectivities) {
 
         JFrame f = new JFrame("Join Plan for " + p.getQuery());
@@ -489,76 +1156,38 @@ public class JoinOptimizer {
 
         f.setSize(300, 500);
 
+        // the root of the subplan holding each table joined so far
         HashMap<String, DefaultMutableTreeNode> m = new HashMap<String, DefaultMutableTreeNode>();
 
-        // int numTabs = 0;
-
-        // int k;
-        DefaultMutableTreeNode root = null, treetop = null;
-        HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
-        boolean neither;
+        DefaultMutableTreeNode treetop = null;
 
         System.out.println(js);
-        for (LogicalJoinNode j : js) {
-            pathSoFar.add(j);
-            System.out.println("PATH SO FAR = " + pathSoFar);
-
-            String table1Name = Database.getCatalog().getTableName(
-                    this.p.getTableId(j.t1Alias));
-            String table2Name = Database.getCatalog().getTableName(
-                    this.p.getTableId(j.t2Alias));
-
-            // Double c = pc.getCost(pathSoFar);
-            neither = true;
-
-            root = new DefaultMutableTreeNode("Join " + j + " (Cost ="
-                    + pc.getCost(pathSoFar) + ", card = "
-                    + pc.getCard(pathSoFar) + ")");
-            DefaultMutableTreeNode n = m.get(j.t1Alias);
-            if (n == null) { // never seen this table before
-                n = new DefaultMutableTreeNode(j.t1Alias
-                        + " (Cost = "
-                        + stats.get(table1Name).estimateScanCost()
-                        + ", card = "
-                        + stats.get(table1Name).estimateTableCardinality(
-                                selectivities.get(j.t1Alias)) + ")");
-                root.add(n);
-            } else {
-                // make left child root n
-                root.add(n);
-                neither = false;
+        for (int k = 0; k < js.size(); k++) {
+            LogicalJoinNode j = js.get(k);
+            System.out.println("PATH SO FAR = " + js.subList(0, k + 1));
+
+            DefaultMutableTreeNode n1 = m.get(j.t1Alias);
+            DefaultMutableTreeNode n2 = j.t2Alias == null ? null : m
+                    .get(j.t2Alias);
+            boolean cycle = n1 != null && n1 == n2;
+            DefaultMutableTreeNode root = new DefaultMutableTreeNode(
+                    (cycle ? "Filter " : j.algorithm == null ? "Join "
+                            : j.algorithm + " join ") + j + " (Cost =" + costs[k]
+                            + ", card = " + cards[k] + ")");
+            root.add(n1 != null ? n1 : tableNode(j.t1Alias, stats,
+                    selectivities));
+            if (!cycle)
+                root.add(n2 != null ? n2 : tableNode(j.t2Alias, stats,
+                        selectivities));
+
+            // all the tables of both subplans are now accessed from root
+            for (Map.Entry<String, DefaultMutableTreeNode> e : m.entrySet()) {
+                if (e.getValue() == n1 || e.getValue() == n2)
+                    e.setValue(root);
             }
             m.put(j.t1Alias, root);
-
-            n = m.get(j.t2Alias);
-            if (n == null) { // never seen this table before
-
-                n = new DefaultMutableTreeNode(
-                        j.t2Alias == null ? "Subplan"
-                                : (j.t2Alias
-                                        + " (Cost = "
-                                        + stats.get(table2Name)
-                                                .estimateScanCost()
-                                        + ", card = "
-                                        + stats.get(table2Name)
-                                                .estimateTableCardinality(
-                                                        selectivities
-                                                                .get(j.t2Alias)) + ")"));
-                root.add(n);
-            } else {
-                // make right child root n
-                root.add(n);
-                neither = false;
-            }
-            m.put(j.t2Alias, root);
-
-            // unless this table doesn't join with other tables,
-            // all tables are accessed from root
-            if (!neither) {
-                for (String key : m.keySet()) {
-                    m.put(key, root);
-                }
-            }
+            if (j.t2Alias != null)
+                m.put(j.t2Alias, root);
 
             treetop = root;
         }
@@ -591,4 +1220,18 @@ public class JoinOptimizer {
 
     }
 
+    /** @return the node of the tree of joins showing a scan of a table */
+    private DefaultMutableTreeNode tableNode(String alias,
+            HashMap<String, TableStats> stats,
+            HashMap<String, Double> selectivities) {
+        if (alias == null)
+            return new DefaultMutableTreeNode("Subplan");
+        String tableName = Database.getCatalog().getTableName(
+                this.p.getTableId(alias));
+        return new DefaultMutableTreeNode(alias + " (Cost = "
+                + stats.get(tableName).estimateScanCost() + ", card = "
+                + stats.get(tableName).estimateTableCardinality(
+                        selectivities.get(alias)) + ")");
+    }
+
 }
@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Limit is an operator that implements LIMIT/OFFSET: it skips the first
+ * offset tuples of its child and then returns at most limit tuples. As soon
+ * as the last tuple has been returned the child is closed, so the pipeline
+ * below it can release its resources without being drained.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private int limit;
+    private int offset;
+
+    transient private int returned = 0;
+    transient private boolean skipped = false;
+    transient private boolean childOpen = false;
+
+    /**
+     * Constructor.
+     *
+     * @param limit
+     *            the maximum number of tuples to return
+     * @param offset
+     *            the number of leading tuples to skip
+     * @param child
+     *            The child operator
+     */
+    public Limit(int limit, int offset, DbIterator child) {
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("negative LIMIT or OFFSET");
+        this.limit = limit;
+        this.offset = offset;
+        this.child = child;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        childOpen = true;
+        returned = 0;
+        skipped = false;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeChild();
+    }
+
+    private void closeChild() {
+        if (childOpen) {
+            child.close();
+            childOpen = false;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (!childOpen) {
+            // closed early after reaching the limit
+            child.open();
+            childOpen = true;
+        }
+        child.rewind();
+        returned = 0;
+        skipped = false;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Skips the offset on the first call,
+     * and closes the child once the limit has been reached.
+     *
+     * @return The next tuple within the limit, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!childOpen)
+            return null;
+        if (!skipped) {
+            for (int i = 0; i < offset && child.hasNext(); i++)
+                child.next();
+            skipped = true;
+        }
+        if (returned < limit && child.hasNext()) {
+            returned++;
+            Tuple t = child.next();
+            if (returned == limit)
+                closeChild();
+            return t;
+        }
+        closeChild();
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -15,6 +15,10 @@ public class LogicalFilterNode {
     
     /* The constant on the right side of the filter */
     public String c;
+
+    /** The parameter of the query whose value is the constant, or -1 if the
+        constant is c */
+    public int param = -1;
     
     /** The field from t which is in the filter. The pure name, without alias or tablename*/
     public String fieldPureName;
@@ -4,6 +4,19 @@ package simpledb;
  * tables in a LogicalQueryPlan */
 public class LogicalJoinNode {
 
+    /** The physical join operators the optimizer chooses between */
+    public enum Algorithm {
+        /** {@link Join}: the inner is scanned once per outer tuple */
+        NESTED_LOOP,
+        /** {@link BlockNestedLoopJoin}: the inner is scanned once per block
+            of outer tuples */
+        BLOCK_NESTED_LOOP,
+        /** {@link HashEquiJoin}, building on the outer */
+        HASH,
+        /** {@link SortMergeJoin}, sorting the inputs that are not sorted */
+        SORT_MERGE
+    }
+
     /** The first table to join (may be null). It's the alias of the table (if no alias, the true table name) */
     public String t1Alias;
 
@@ -23,6 +36,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The physical join to perform this join with, or null to let
+        {@link JoinOptimizer#instantiateJoin} pick one */
+    public Algorithm algorithm;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +80,14 @@ public class LogicalJoinNode {
         return j2;
     }
     
+    /** Return a copy of this LogicalJoinNode, to be performed with the
+     * given algorithm. */
+    public LogicalJoinNode using(Algorithm a) {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias, t2Alias, f1PureName, f2PureName, p);
+        j2.algorithm = a;
+        return j2;
+    }
+
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
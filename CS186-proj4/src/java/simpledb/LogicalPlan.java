@@ -1,7 +1,13 @@
 package simpledb;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -12,9 +18,8 @@ import java.util.NoSuchElementException;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and a list of group by fields.
+ * Any number of aggregates may be computed over the same grouping.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -29,15 +34,35 @@ public class LogicalPlan {
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields;
+    private Vector<LogicalSelectListNode> aggregates;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
+    private boolean hasLimit = false;
+    private int limit, offset;
     private String query;
+    private int numParameters = 0;
+    private boolean joinsOrdered = false;
 //    private Query owner;
 
+    private static boolean batchExecution = true;
+
+    /**
+     * Sets whether an aggregate over a single table, without GROUP BY, is
+     * computed by batch operators reading the columns of the table straight
+     * from its pages rather than a tuple at a time.
+     */
+    public static void setBatchExecution(boolean batch) {
+        batchExecution = batch;
+    }
+
+    /** @return whether ungrouped aggregates of a single table are computed
+        by batch operators */
+    public static boolean isBatchExecution() {
+        return batchExecution;
+    }
+
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
         joins = new Vector<LogicalJoinNode>();
@@ -47,6 +72,8 @@ public class LogicalPlan {
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
+        groupByFields = new Vector<String>();
+        aggregates = new Vector<LogicalSelectListNode>();
         this.query = "";
     }
 
@@ -105,6 +132,25 @@ public class LogicalPlan {
         filters.addElement(lf);
     }
 
+    /** Add a filter comparing a field with a parameter of the query, whose
+     *  value is given when the plan is built (see {@link #physicalPlan(TransactionId, Map, boolean, String[])}).
+     *  Parameters are numbered from 0 in the order they are added.
+     *   @param field as in {@link #addFilter}
+     *   @param p The predicate for the filter
+     *   @return the number of the parameter
+     *   @throws ParsingException as in {@link #addFilter}
+     */
+    public int addParameterFilter(String field, Predicate.Op p) throws ParsingException {
+        addFilter(field, p, null);
+        filters.lastElement().param = numParameters;
+        return numParameters++;
+    }
+
+    /** @return the number of parameters of the query */
+    public int numParameters() {
+        return numParameters;
+    }
+
     /** Add a join between two fields of two different tables.  
      *  @param joinField1 The name of the first join field; this can
      *  be a fully qualified name (e.g., tableName.field or
@@ -186,23 +232,44 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  All aggregates of a query share the same GROUP BY
+        fields, and are computed together in a single pass.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield the field to group by, or null to leave the GROUP BY
+        fields unchanged
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
+        if (findAggregate(op, afield) < 0)
+            aggregates.addElement(new LogicalSelectListNode(op, afield));
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupByField(gfield);
         hasAgg = true;
     }
 
+    /** Add a field to the GROUP BY list of the query.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupByField(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** @return the position of the aggregate op(afield) among the
+        aggregates of the query, or -1 if it is not computed */
+    private int findAggregate(String op, String afield) {
+        for (int i = 0; i < aggregates.size(); i++) {
+            LogicalSelectListNode a = aggregates.elementAt(i);
+            if (a.aggOp.equalsIgnoreCase(op) && a.fname.equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
     /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
         a single ORDER BY field.
         @param field the field to order by
@@ -216,6 +283,20 @@ public class LogicalPlan {
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT clause, restricting the result to limit rows after skipping
+        the first offset rows.
+        @param limit the maximum number of rows to return
+        @param offset the number of leading rows to skip
+     * @throws ParsingException 
+    */
+    public void addLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0)
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+        hasLimit = true;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -273,6 +354,9 @@ public class LogicalPlan {
 
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
+     *   Each join joins the subplans that hold its two tables, which may both be joins themselves,
+     *   so the tree of joins can be bushy; a join whose tables are already in the same subplan
+     *   filters it with a {@link JoinFilter}.
      *  @param t The transaction that the returned DbIterator will run as a part of
      *  @param baseTableStats a HashMap providing a {@link TableStats}
      *    object for each table used in the LogicalPlan.  This should
@@ -285,10 +369,30 @@ public class LogicalPlan {
      *  @return A DbIterator representing this plan.
      */ 
     public DbIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain) throws ParsingException {
+        return physicalPlan(t, baseTableStats, explain, null);
+    }
+
+    /** Convert this LogicalPlan into a physicalPlan, as {@link #physicalPlan(TransactionId, Map, boolean)},
+     *   with the given values of its parameters.  The joins are ordered the first time only: later calls
+     *   build the same tree of joins, so that a plan kept for a prepared query is optimized once however
+     *   many times it is run.
+     *  @param params the value of each parameter of the query, as a constant in the text of a query
+     *  @throws ParsingException if the logical plan is not valid, or a parameter has no value
+     */
+    public DbIterator physicalPlan(TransactionId t, Map<String,TableStats> baseTableStats, boolean explain,
+            String[] params) throws ParsingException {
         Iterator<LogicalScanNode> tableIt = tables.iterator();
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        // the filter predicates of each table, its scan once they have been
+        // pushed down into it, and the tables that have not been joined yet,
+        // from which parallel scans can still be built
+        HashMap<String,Vector<Predicate>> filterPreds = new HashMap<String,Vector<Predicate>>();
+        HashMap<String,SeqScan> scans = new HashMap<String,SeqScan>();
+        HashSet<String> unjoined = new HashSet<String>();
+        final IdentityHashMap<Predicate,Double> predSelectivities = new IdentityHashMap<Predicate,Double>();
+        int dop = Exchange.getDegreeOfParallelism();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -300,6 +404,9 @@ public class LogicalPlan {
             }
             
             subplanMap.put(table.alias,ss);
+            scans.put(table.alias, ss);
+            filterPreds.put(table.alias, new Vector<Predicate>());
+            unjoined.add(table.alias);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
@@ -323,10 +430,22 @@ public class LogicalPlan {
             } catch (java.util.NoSuchElementException e) {
                 throw new ParsingException("Unknown field in filter expression " + lf.fieldQuantifiedName);
             }
-            if (ftyp == Type.INT_TYPE)
-                f = new IntField(new Integer(lf.c).intValue());
-            else
-                f = new StringField(lf.c, Type.STRING_LEN);
+            String c = lf.c;
+            if (lf.param >= 0) {
+                if (params == null || lf.param >= params.length || params[lf.param] == null)
+                    throw new ParsingException("No value given for parameter " + (lf.param + 1));
+                c = params[lf.param];
+            }
+            if (ftyp == Type.INT_TYPE) {
+                try {
+                    f = new IntField(new Integer(c).intValue());
+                } catch (NumberFormatException e) {
+                    throw new ParsingException((lf.param >= 0 ? "Parameter "
+                            + (lf.param + 1) : "Constant " + c)
+                            + " is not an integer");
+                }
+            } else
+                f = new StringField(c, Type.STRING_LEN);
 
             Predicate p = null;
             try {
@@ -334,19 +453,59 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            filterPreds.get(lf.tableAlias).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
             double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
-            filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            predSelectivities.put(p, sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        // the predicates on a table together, as its columns may be
+        // correlated, corrected by what they returned in earlier queries; they
+        // only serve to order the joins
+        for (String alias : filterPreds.keySet()) {
+            if (joinsOrdered || filterPreds.get(alias).isEmpty())
+                continue;
+            String tableName = Database.getCatalog().getTableName(this.getTableId(alias));
+            TableStats s = statsMap.get(tableName);
+            Vector<Predicate> preds = filterPreds.get(alias);
+            filterSelectivities.put(alias, CardinalityFeedback.correctFilter(tableName, preds,
+                    s.estimateSelectivity(preds), s.totalTuples()));
+        }
+
+        // the scan of each table tests its predicates, the most selective
+        // first, and returns only the fields the rest of the query uses; a
+        // table joined on narrow fields returns its row id instead of its
+        // other fields, which are fetched after the joins
+        Set<String> used = usedFields();
+        LinkedHashMap<String,int[]> fetched = new LinkedHashMap<String,int[]>();
+        for (String alias : filterPreds.keySet()) {
+            Vector<Predicate> preds = filterPreds.get(alias);
+            Collections.sort(preds, new Comparator<Predicate>() {
+                public int compare(Predicate p1, Predicate p2) {
+                    return Double.compare(predSelectivities.get(p1),
+                            predSelectivities.get(p2));
+                }
+            });
+            SeqScan ss = scans.get(alias);
+            int[] fields = usedFields(alias, used);
+            int[] late = used == null ? null : lateFields(alias, fields);
+            if (late != null) {
+                fetched.put(alias, late);
+                fields = scannedFields(alias, fields, late);
+            }
+            ss.pushDown(fields, preds.toArray(new Predicate[preds.size()]));
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        if (!joinsOrdered) {
+            joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+            joinsOrdered = true;
+        }
 
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
@@ -368,6 +527,22 @@ public class LogicalPlan {
 
             plan1 = subplanMap.get(t1name);
 
+            if (!isSubqueryJoin && t1name.equals(t2name)) {
+                // earlier joins already brought both tables into plan1: the
+                // join closes a cycle, and is a selection on plan1
+                if (plan1 == null)
+                    throw new ParsingException("Unknown table in WHERE clause " + lj.t1Alias);
+                TupleDesc td = plan1.getTupleDesc();
+                try {
+                    subplanMap.put(t1name, new JoinFilter(new JoinPredicate(
+                            td.fieldNameToIndex(lj.f1QuantifiedName), lj.p,
+                            td.fieldNameToIndex(lj.f2QuantifiedName)), plan1));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field in join " + lj);
+                }
+                continue;
+            }
+
             if (isSubqueryJoin) {
                 plan2 = ((LogicalSubplanJoinNode)lj).subPlan;
                 if (plan2 == null) 
@@ -381,9 +556,28 @@ public class LogicalPlan {
             if (plan2 == null)
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
+            boolean sortedInputs = false;
+            if (!joinIt.hasNext() && !isSubqueryJoin && sortsForOrderBy(lj)) {
+                sortedInputs = true;
+                // The result of the last join feeds an ORDER BY on the join
+                // key: sort the inputs instead and merge them, so that the
+                // join output is already in the requested order.
+                if (!OperatorOrdering.isOrderedOn(plan1, lj.f1QuantifiedName))
+                    plan1 = new OrderBy(plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName), true, plan1);
+                if (!OperatorOrdering.isOrderedOn(plan2, lj.f2QuantifiedName))
+                    plan2 = new OrderBy(plan2.getTupleDesc().fieldNameToIndex(lj.f2QuantifiedName), true, plan2);
+            }
+
             DbIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
+            if (!isSubqueryJoin && !sortedInputs
+                    && (parallelScan(t1name, unjoined, dop) || parallelScan(t2name, unjoined, dop))) {
+                j = parallelJoin(t, lj, t1name, plan1, t2name, plan2, scans, unjoined, dop);
+            } else {
+                j = jo.instantiateJoin(lj,plan1,plan2);
+            }
             subplanMap.put(t1name, j);
+            unjoined.remove(t1name);
+            unjoined.remove(t2name);
 
             if (!isSubqueryJoin) {
                 subplanMap.remove(t2name);
@@ -406,7 +600,15 @@ public class LogicalPlan {
             throw new ParsingException("Query does not include join expressions joining all nodes!");
         }
         
-        DbIterator node =  (DbIterator)(subplanMap.entrySet().iterator().next().getValue());
+        String nodeAlias = subplanMap.keySet().iterator().next();
+        DbIterator node =  (DbIterator)(subplanMap.get(nodeAlias));
+        for (Map.Entry<String,int[]> e : fetched.entrySet())
+            node = new Fetch(t, getTableId(e.getKey()), e.getKey(), e.getValue(), node);
+        // a single large table is scanned in parallel; a grouped aggregate
+        // over it is also computed in parallel, below
+        boolean parallel = parallelScan(nodeAlias, unjoined, dop);
+        if (parallel && !(hasAgg && groupByFields.size() > 0))
+            node = new Gather(morsels(t, scans.get(nodeAlias)));
 
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
@@ -414,7 +616,11 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int agg = findAggregate(si.aggOp, si.fname);
+                if (agg < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not computed");
+                }
+                outFields.add(groupByFields.size() + agg);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -426,16 +632,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -460,12 +667,38 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            Operator aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggregates.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggregates.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggregates.elementAt(i).fname);
+                    aops[i] = getAggOp(aggregates.elementAt(i).aggOp);
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                if (isGrouped(node)) {
+                    aggNode = new StreamAggregate(node, afields, gfields, aops);
+                } else if (batchExecution && gfields.length == 0
+                        && node == scans.get(nodeAlias)) {
+                    // a single table is aggregated a batch of columns at a
+                    // time, as read from its pages
+                    aggNode = new TupleAdapter(new BatchAggregate(batchScan(t,
+                            scans.get(nodeAlias)), afields, gfields, aops));
+                } else if (parallel && gfields.length > 0) {
+                    // each thread aggregates the groups hashed to it
+                    HashRepartition[] parts = HashRepartition.partition(
+                            morsels(t, scans.get(nodeAlias)),
+                            gfields, dop, false);
+                    DbIterator[] aggs = new DbIterator[dop];
+                    for (int k = 0; k < dop; k++)
+                        aggs[k] = new Aggregate(parts[k], afields, gfields, aops,
+                                Aggregate.getDefaultMemoryBudget() / dop);
+                    aggNode = new Gather(aggs);
+                } else {
+                    aggNode = new Aggregate(node, afields, gfields, aops);
+                }
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -474,13 +707,281 @@ public class LogicalPlan {
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (hasOrderBy && !(oByAsc && OperatorOrdering.isOrderedOn(node, oByField))) {
+            int oByIndex = node.getTupleDesc().fieldNameToIndex(oByField);
+            if (hasLimit)
+                node = new TopN(oByIndex, oByAsc, (int) Math.min(Integer.MAX_VALUE, (long) limit + offset), node);
+            else
+                node = new OrderBy(oByIndex, oByAsc, node);
+        }
+
+        if (hasLimit) {
+            node = new Limit(limit, offset, node);
         }
 
         return new Project(outFields, outTypes, node);
     }
 
+    /** @return a batch scan of the table of a scan, returning the same
+        fields of the tuples that satisfy the same predicates */
+    private BatchIterator batchScan(TransactionId t, SeqScan scan) {
+        BatchSeqScan bs = new BatchSeqScan(t, getTableId(scan.getAlias()), scan.getAlias());
+        bs.pushDown(scan.getPushedFields(), scan.getPushedPredicates());
+        return bs;
+    }
+
+    /**
+     * @return true if the given table has not been joined yet and is large
+     *         enough to be scanned by several threads
+     */
+    private boolean parallelScan(String alias, Set<String> unjoined, int dop) {
+        if (dop < 2 || !unjoined.contains(alias))
+            return false;
+        DbFile f = Database.getCatalog().getDbFile(getTableId(alias));
+        return f instanceof HeapFile
+                && ((HeapFile) f).numPages() >= Exchange.getMinParallelPages();
+    }
+
+    /**
+     * @return the names of the fields the query uses once its tables have
+     *         been scanned and filtered, or null if it uses all of them
+     */
+    private Set<String> usedFields() {
+        HashSet<String> names = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        for (LogicalSelectListNode a : aggregates)
+            names.add(a.fname);
+        names.addAll(groupByFields);
+        if (hasOrderBy)
+            names.add(oByField);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            // the inner of a join to a subquery is not a table
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.f2QuantifiedName);
+        }
+        for (String name : names)
+            if (name.endsWith("*"))
+                return null;
+        return names;
+    }
+
+    /**
+     * @return the fields of the table with the given alias among the used
+     *         ones, or null for all of them; at least one field is returned
+     */
+    private int[] usedFields(String alias, Set<String> used) {
+        if (used == null)
+            return null;
+        TupleDesc td = Database.getCatalog().getTupleDesc(getTableId(alias));
+        ArrayList<Integer> fields = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++)
+            if (used.contains(alias + "." + td.getFieldName(i)))
+                fields.add(i);
+        if (fields.size() == td.numFields())
+            return null;
+        if (fields.isEmpty())
+            fields.add(0);
+        int[] f = new int[fields.size()];
+        for (int i = 0; i < f.length; i++)
+            f[i] = fields.get(i);
+        return f;
+    }
+
+    /**
+     * @return the fields of the table with the given alias that are better
+     *         fetched after the joins (see {@link Fetch}): those it does not
+     *         join on, if the fields it joins on and its row id take at most
+     *         {@link Fetch#getMaxWidthRatio()} of the width of its used fields,
+     *         and its tuples all have row ids; otherwise null
+     * @param fields
+     *            the used fields of the table, or null for all of them
+     */
+    private int[] lateFields(String alias, int[] fields) {
+        DbFile file = Database.getCatalog().getDbFile(getTableId(alias));
+        if (joins.isEmpty() || Fetch.getMaxWidthRatio() <= 0
+                || !(file instanceof HeapFile) || !Fetch.supports((HeapFile) file))
+            return null;
+        HashSet<String> joinFields = new HashSet<String>();
+        for (LogicalJoinNode lj : joins) {
+            if (alias.equals(lj.t1Alias))
+                joinFields.add(lj.f1QuantifiedName);
+            if (alias.equals(lj.t2Alias) && !(lj instanceof LogicalSubplanJoinNode))
+                joinFields.add(lj.f2QuantifiedName);
+        }
+        TupleDesc td = Database.getCatalog().getTupleDesc(getTableId(alias));
+        ArrayList<Integer> late = new ArrayList<Integer>();
+        int width = 0, narrow = Type.INT_TYPE.getLen();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (fields != null && !contains(fields, i))
+                continue;
+            int len = td.getFieldType(i).getLen();
+            width += len;
+            if (joinFields.contains(alias + "." + td.getFieldName(i)))
+                narrow += len;
+            else
+                late.add(i);
+        }
+        if (late.isEmpty() || narrow > Fetch.getMaxWidthRatio() * width)
+            return null;
+        int[] f = new int[late.size()];
+        for (int i = 0; i < f.length; i++)
+            f[i] = late.get(i);
+        return f;
+    }
+
+    /**
+     * @return the fields the scan of a table returns when the late ones are
+     *         fetched after the joins: the others, and its row id
+     */
+    private int[] scannedFields(String alias, int[] fields, int[] late) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(getTableId(alias));
+        ArrayList<Integer> scanned = new ArrayList<Integer>();
+        for (int i = 0; i < td.numFields(); i++)
+            if ((fields == null || contains(fields, i)) && !contains(late, i))
+                scanned.add(i);
+        scanned.add(SeqScan.ROW_ID);
+        int[] f = new int[scanned.size()];
+        for (int i = 0; i < f.length; i++)
+            f[i] = scanned.get(i);
+        return f;
+    }
+
+    private static boolean contains(int[] a, int v) {
+        for (int x : a)
+            if (x == v)
+                return true;
+        return false;
+    }
+
+    /**
+     * @return the pipeline over the morsels of the table of the given scan:
+     *         a scan of the morsel, with the same predicates and fields
+     */
+    private MorselSource morsels(final TransactionId t, final SeqScan scan) {
+        return new MorselSource(getTableId(scan.getAlias())) {
+            public DbIterator pipeline(int morsel, int numMorsels) {
+                SeqScan part = new SeqScan(t, getTableId(), scan.getAlias(), morsel, numMorsels);
+                part.pushDown(scan.getPushedFields(), scan.getPushedPredicates());
+                return part;
+            }
+        };
+    }
+
+    /**
+     * @return the scan of each of numParts disjoint ranges of pages of the
+     *         table of the given scan, with the same predicates and fields
+     */
+    private DbIterator[] scanPartitions(TransactionId t, SeqScan scan,
+            int numParts) {
+        MorselSource source = morsels(t, scan);
+        DbIterator[] parts = new DbIterator[numParts];
+        for (int k = 0; k < numParts; k++)
+            parts[k] = source.pipeline(k, numParts);
+        return parts;
+    }
+
+    /**
+     * @return the single producer of the input of a parallel join from a
+     *         table that is not scanned in parallel: a scan of the whole table
+     *         if it has not been joined yet, which an exchange can rerun, or
+     *         else its plan
+     */
+    private DbIterator[] wholeInput(TransactionId t, String alias,
+            DbIterator plan, HashMap<String,SeqScan> scans,
+            Set<String> unjoined) {
+        if (unjoined.contains(alias))
+            return scanPartitions(t, scans.get(alias), 1);
+        return new DbIterator[] { plan };
+    }
+
+    /**
+     * Builds a join computed by dop threads, over two inputs at least one of
+     * which is a table scanned in parallel. An equality join repartitions
+     * both inputs on the join fields and hash joins each partition; any
+     * other join runs a nested loops join over each of dop ranges of pages of
+     * a table scanned in parallel, against a copy of the other input. Tables
+     * scanned in parallel are read by morsels when feeding an exchange.
+     */
+    private DbIterator parallelJoin(TransactionId t, LogicalJoinNode lj,
+            String t1name, DbIterator plan1, String t2name, DbIterator plan2,
+            HashMap<String,SeqScan> scans, Set<String> unjoined,
+            int dop) throws ParsingException {
+        int f1, f2;
+        try {
+            f1 = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + lj.f1QuantifiedName);
+        }
+        try {
+            f2 = plan2.getTupleDesc().fieldNameToIndex(lj.f2QuantifiedName);
+        } catch (NoSuchElementException e) {
+            throw new ParsingException("Unknown field " + lj.f2QuantifiedName);
+        }
+        boolean par1 = parallelScan(t1name, unjoined, dop);
+        boolean par2 = parallelScan(t2name, unjoined, dop);
+        JoinPredicate p = new JoinPredicate(f1, lj.p, f2);
+        DbIterator[] parts = new DbIterator[dop];
+        if (lj.p == Predicate.Op.EQUALS) {
+            int[] k1 = new int[] { f1 }, k2 = new int[] { f2 };
+            HashRepartition[] l = par1
+                    ? HashRepartition.partition(morsels(t, scans.get(t1name)), k1, dop, false)
+                    : HashRepartition.partition(wholeInput(t, t1name, plan1, scans, unjoined), k1, dop, false);
+            HashRepartition[] r = par2
+                    ? HashRepartition.partition(morsels(t, scans.get(t2name)), k2, dop, false)
+                    : HashRepartition.partition(wholeInput(t, t2name, plan2, scans, unjoined), k2, dop, false);
+            for (int k = 0; k < dop; k++) {
+                // a partition holds about 1/dop of the left input: hash it
+                // all at once, so that the right input is read only once
+                parts[k] = new HashEquiJoin(p, l[k], r[k], Integer.MAX_VALUE);
+            }
+        } else if (par1) {
+            DbIterator[] left = scanPartitions(t, scans.get(t1name), dop);
+            // the inner input is rewound for each block of the outer one
+            Broadcast[] r = par2
+                    ? Broadcast.broadcast(morsels(t, scans.get(t2name)), dop, true)
+                    : Broadcast.broadcast(wholeInput(t, t2name, plan2, scans, unjoined), dop, true);
+            for (int k = 0; k < dop; k++)
+                parts[k] = new BlockNestedLoopJoin(p, left[k], r[k]);
+        } else {
+            DbIterator[] right = scanPartitions(t, scans.get(t2name), dop);
+            Broadcast[] l = Broadcast.broadcast(wholeInput(t, t1name, plan1, scans, unjoined), dop, false);
+            for (int k = 0; k < dop; k++)
+                parts[k] = new BlockNestedLoopJoin(p, l[k], right[k]);
+        }
+        return new Gather(parts);
+    }
+
+    /**
+     * @return true if tuples of the same group arrive together from the
+     *         given plan, which is the case when it is sorted on every GROUP
+     *         BY field: a value repeated in each of those fields cannot have
+     *         different values between its occurrences
+     */
+    private boolean isGrouped(DbIterator node) {
+        if (groupByFields.isEmpty())
+            return false;
+        Set<String> ordered = OperatorOrdering.ascendingFields(node);
+        return ordered.containsAll(groupByFields);
+    }
+
+    /**
+     * @return true if the query orders its result ascending on one of the
+     *         fields of the given equality join, in which case a merge join
+     *         over sorted inputs makes the final sort redundant. If the query
+     *         groups, it must group on that field alone, so the merge join
+     *         also lets the groups be aggregated as they stream past.
+     */
+    private boolean sortsForOrderBy(LogicalJoinNode lj) {
+        if (!hasOrderBy || !oByAsc || hasLimit || lj.p != Predicate.Op.EQUALS)
+            return false;
+        if (hasAgg && !(groupByFields.size() == 1 && groupByFields.elementAt(0).equals(oByField)))
+            return false;
+        return oByField.equals(lj.f1QuantifiedName)
+                || oByField.equals(lj.f2QuantifiedName);
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
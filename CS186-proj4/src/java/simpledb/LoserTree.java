@@ -0,0 +1,103 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * A tournament (loser) tree for merging k sorted sequences. Each leaf holds
+ * the current head of one sequence; each internal node remembers the loser of
+ * the match played there, and the overall winner sits above the root.
+ * Replacing the winner with the next element of its sequence replays only the
+ * matches on the path from its leaf to the root, so each step of a k-way
+ * merge costs about log2(k) comparisons.
+ * <p>
+ * A null head means the sequence is exhausted and loses against everything.
+ * Ties are won by the sequence with the lower index, so merging runs that
+ * were produced in input order is stable.
+ */
+public class LoserTree<T> {
+
+    private final Comparator<? super T> comparator;
+    private final int k;
+    private final Object[] heads;
+    // tree[0] is the winner, tree[1..k-1] the losers of the internal matches
+    private final int[] tree;
+
+    /**
+     * Builds the tree over the given initial heads.
+     *
+     * @param heads
+     *            the first element of each sequence, or null for an empty
+     *            sequence
+     */
+    public LoserTree(T[] heads, Comparator<? super T> comparator) {
+        this.comparator = comparator;
+        this.k = heads.length;
+        this.heads = heads.clone();
+        this.tree = new int[Math.max(1, k)];
+        // every node starts out holding the sentinel k, which beats all
+        // leaves; replaying each leaf pushes the sentinels out of the tree
+        for (int i = 0; i < tree.length; i++)
+            tree[i] = k;
+        for (int i = k - 1; i >= 0; i--)
+            replay(i);
+    }
+
+    /**
+     * @return the index of the sequence holding the smallest head, or -1 if
+     *         all sequences are exhausted
+     */
+    public int winner() {
+        if (k == 0 || heads[tree[0]] == null)
+            return -1;
+        return tree[0];
+    }
+
+    /** @return the smallest head of all sequences, or null if none is left */
+    @SuppressWarnings("unchecked")
+    public T peek() {
+        int w = winner();
+        return w < 0 ? null : (T) heads[w];
+    }
+
+    /**
+     * Replaces the current winner with the next element of its sequence and
+     * restores the tree.
+     *
+     * @param next
+     *            the next element of the winning sequence, or null if it is
+     *            exhausted
+     */
+    public void replaceWinner(T next) {
+        int w = tree[0];
+        heads[w] = next;
+        replay(w);
+    }
+
+    private void replay(int leaf) {
+        int winner = leaf;
+        for (int t = (leaf + k) / 2; t > 0; t /= 2) {
+            if (beats(tree[t], winner)) {
+                int loser = winner;
+                winner = tree[t];
+                tree[t] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    /** @return true if sequence a wins against sequence b */
+    @SuppressWarnings("unchecked")
+    private boolean beats(int a, int b) {
+        if (a == k)
+            return true;
+        if (b == k)
+            return false;
+        T ha = (T) heads[a], hb = (T) heads[b];
+        if (ha == null)
+            return false;
+        if (hb == null)
+            return true;
+        int c = comparator.compare(ha, hb);
+        return c < 0 || (c == 0 && a < b);
+    }
+}
@@ -0,0 +1,59 @@
+package simpledb;
+
+/**
+ * The input of an exchange whose producer is a pipeline over a table (a scan
+ * and the operators applied to each of its tuples), run over small ranges of
+ * pages of the table, called morsels, rather than over one fixed range per
+ * thread. The morsels are processed by the worker threads of the
+ * {@link java.util.concurrent.ForkJoinPool} shared by all exchanges (see
+ * {@link Exchange#getPool()}): each morsel goes to whichever worker is free
+ * next, so all of them stay busy until the end of the table even when some
+ * ranges are much more expensive than others, e.g. because a filter keeps
+ * most of their tuples.
+ * <p>
+ * The number of morsels processed at once follows
+ * {@link Exchange#getDegreeOfParallelism()}, read again before each morsel is
+ * handed out, so it can be changed while a query runs.
+ */
+public abstract class MorselSource {
+
+    private final int tableid;
+
+    /**
+     * @param tableid
+     *            the table whose pages are divided into morsels
+     */
+    public MorselSource(int tableid) {
+        this.tableid = tableid;
+    }
+
+    /** @return the table whose pages are divided into morsels */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return the number of morsels of {@link Exchange#getMorselPages()}
+     *         pages the table is currently divided into
+     */
+    public int numMorsels() {
+        int pages = ((HeapFile) Database.getCatalog().getDbFile(tableid))
+                .numPages();
+        int morselPages = Exchange.getMorselPages();
+        return Math.max(1, (pages + morselPages - 1) / morselPages);
+    }
+
+    /**
+     * Builds the pipeline over one morsel, which scans the morsel with
+     * {@link SeqScan#SeqScan(TransactionId, int, String, int, int)}. A new
+     * pipeline is built for every morsel.
+     *
+     * @param morsel
+     *            the morsel to scan, from 0 to numMorsels - 1
+     * @param numMorsels
+     *            the number of morsels the table is divided into; 1 for a
+     *            pipeline over the whole table
+     */
+    public abstract DbIterator pipeline(int morsel, int numMorsels);
+
+}
@@ -0,0 +1,125 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Knows how to compute several aggregates at once over tuples grouped by a
+ * group-by value made of any number of fields. Aggregates over IntFields
+ * support all of the aggregation operators; aggregates over StringFields
+ * only support COUNT.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+    private int[] gbfields;
+    private int[] afields;
+    private boolean[] intAggs;
+    private Op[] whats;
+    private TupleDesc td;
+    private GroupTable groups;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param childTd
+     *            the schema of the tuples to aggregate
+     * @param gbfields
+     *            the 0-based indices of the group-by fields in the tuple;
+     *            empty if there is no grouping
+     * @param afields
+     *            the 0-based indices of the aggregate fields in the tuple
+     * @param whats
+     *            the aggregation operator applied to each aggregate field
+     * @throws IllegalArgumentException
+     *             if an aggregate over a string field is not a COUNT
+     */
+    public MultiAggregator(TupleDesc childTd, int[] gbfields, int[] afields,
+            Op[] whats) {
+        this.td = outputTupleDesc(childTd, gbfields, afields, whats);
+        this.gbfields = gbfields.clone();
+        this.afields = afields.clone();
+        this.whats = whats.clone();
+        intAggs = new boolean[afields.length];
+        for (int a = 0; a < afields.length; a++)
+            intAggs[a] = childTd.getFieldType(afields[a]) == Type.INT_TYPE;
+        Type[] gbtypes = new Type[gbfields.length];
+        for (int i = 0; i < gbfields.length; i++)
+            gbtypes[i] = childTd.getFieldType(gbfields[i]);
+        this.groups = new GroupTable(gbtypes, afields.length);
+    }
+
+    /**
+     * @return the schema of the results of aggregating tuples with the given
+     *         schema: the group-by fields, under their names in the input,
+     *         followed by one integer field per aggregate, named after the
+     *         operator and the aggregated field, e.g. "sum(t.x)"
+     * @throws IllegalArgumentException
+     *             if the lengths of afields and whats differ, or an aggregate
+     *             over a string field is not a COUNT
+     */
+    public static TupleDesc outputTupleDesc(TupleDesc childTd,
+            int[] gbfields, int[] afields, Op[] whats) {
+        if (afields.length != whats.length)
+            throw new IllegalArgumentException(
+                    "one aggregation operator is needed per aggregate field");
+        Type[] types = new Type[gbfields.length + afields.length];
+        String[] names = new String[types.length];
+        for (int i = 0; i < gbfields.length; i++) {
+            types[i] = childTd.getFieldType(gbfields[i]);
+            names[i] = childTd.getFieldName(gbfields[i]);
+        }
+        for (int a = 0; a < afields.length; a++) {
+            if (childTd.getFieldType(afields[a]) != Type.INT_TYPE
+                    && whats[a] != Op.COUNT)
+                throw new IllegalArgumentException(
+                        "only COUNT is supported over string fields");
+            types[gbfields.length + a] = Type.INT_TYPE;
+            names[gbfields.length + a] = whats[a] + "("
+                    + childTd.getFieldName(afields[a]) + ")";
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * Merge a new tuple into each aggregate, grouping as indicated in the
+     * constructor
+     *
+     * @param tup
+     *            the Tuple containing the aggregate fields and the group-by
+     *            fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int g = groups.findOrAdd(tup, gbfields);
+        for (int a = 0; a < afields.length; a++) {
+            if (intAggs[a])
+                groups.add(g, a, ((IntField) tup.getField(afields[a])).getValue());
+            else
+                groups.increment(g, a);
+        }
+    }
+
+    public int numGroups() {
+        return groups.numGroups();
+    }
+
+    public boolean containsGroup(Tuple tup) {
+        return groups.find(tup, gbfields) >= 0;
+    }
+
+    /** @return the schema of the tuples returned by {@link #iterator()} */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.
+     *
+     * @return a DbIterator whose tuples hold the group-by fields followed by
+     *         the value of each aggregate, in the order given to the
+     *         constructor
+     */
+    public DbIterator iterator() {
+        return groups.iterator(td, whats);
+    }
+
+}
@@ -16,14 +16,14 @@ public abstract class Operator implements DbIterator {
             throw new IllegalStateException("Operator not yet open");
         
         if (next == null)
-            next = fetchNext();
+            next = count(fetchNext());
         return next != null;
     }
 
     public Tuple next() throws DbException, TransactionAbortedException,
             NoSuchElementException {
         if (next == null) {
-            next = fetchNext();
+            next = count(fetchNext());
             if (next == null)
                 throw new NoSuchElementException("No more tuples to operate on");
         }
@@ -57,9 +57,24 @@ public abstract class Operator implements DbIterator {
     private Tuple next = null;
     private boolean open = false;
     private int estimatedCardinality = 0;
+    private long produced = 0;
+    private boolean exhausted = false;
+
+    /** Counts a tuple fetched, or the end of the first pass over them */
+    private Tuple count(Tuple t) {
+        if (!exhausted) {
+            if (t == null)
+                exhausted = true;
+            else
+                produced++;
+        }
+        return t;
+    }
 
     public void open() throws DbException, TransactionAbortedException {
         this.open = true;
+        produced = 0;
+        exhausted = false;
     }
 
     /**
@@ -102,4 +117,13 @@ public abstract class Operator implements DbIterator {
         this.estimatedCardinality = card;
     }
 
+    /**
+     * @return The number of tuples this operator returned since it was
+     *         opened, up to the end of its first pass over them, or -1 if it
+     *         has not returned all of them yet
+     * */
+    public long getActualCardinality() {
+        return exhausted ? produced : -1;
+    }
+
 }
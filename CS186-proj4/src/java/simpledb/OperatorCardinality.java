@@ -1,6 +1,8 @@
 package simpledb;
 
 //import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -25,51 +27,116 @@ public class OperatorCardinality {
             return updateFilterCardinality((Filter) o, tableAliasToId,
                     tableStats);
         } else if (o instanceof Join) {
-            return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
+            Join j = (Join) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
-            return updateHashEquiJoinCardinality((HashEquiJoin) o,
+            HashEquiJoin j = (HashEquiJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof BlockNestedLoopJoin) {
+            BlockNestedLoopJoin j = (BlockNestedLoopJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) o;
+            return updateJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
                     tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
-            return updateAggregateCardinality((Aggregate) o, tableAliasToId,
+            Aggregate a = (Aggregate) o;
+            return updateAggregateCardinality(a, a.groupFieldNames(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof StreamAggregate) {
+            StreamAggregate a = (StreamAggregate) o;
+            return updateAggregateCardinality(a, a.groupFieldNames(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof Limit) {
+            Limit l = (Limit) o;
+            boolean hasJoinPK = updateChildCardinality(l, tableAliasToId,
                     tableStats);
+            l.setEstimatedCardinality(Math.max(0, Math.min(
+                    l.getEstimatedCardinality() - l.getOffset(), l.getLimit())));
+            return hasJoinPK;
+        } else if (o instanceof TopN) {
+            TopN t = (TopN) o;
+            boolean hasJoinPK = updateChildCardinality(t, tableAliasToId,
+                    tableStats);
+            t.setEstimatedCardinality(Math.min(t.getEstimatedCardinality(),
+                    t.getN()));
+            return hasJoinPK;
         } else {
-            DbIterator[] children = o.getChildren();
-            int childC = 1;
-            boolean hasJoinPK = false;
-            if (children.length > 0 && children[0] != null) {
-                if (children[0] instanceof Operator) {
-                    hasJoinPK = updateOperatorCardinality(
-                            (Operator) children[0], tableAliasToId, tableStats);
-                    childC = ((Operator) children[0]).getEstimatedCardinality();
-                } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
-                }
+            return updateChildCardinality(o, tableAliasToId, tableStats);
+        }
+    }
+
+    /**
+     * Sets the estimated cardinality of an operator to that of its first
+     * child.
+     */
+    private static boolean updateChildCardinality(Operator o,
+            Map<String, Integer> tableAliasToId,
+            Map<String, TableStats> tableStats) {
+        DbIterator[] children = o.getChildren();
+        int childC = 1;
+        boolean hasJoinPK = false;
+        if (children.length > 0 && children[0] != null) {
+            if (children[0] instanceof Operator) {
+                hasJoinPK = updateOperatorCardinality(
+                        (Operator) children[0], tableAliasToId, tableStats);
+                childC = ((Operator) children[0]).getEstimatedCardinality();
+            } else if (children[0] instanceof SeqScan) {
+                childC = scanCardinality((SeqScan) children[0], tableStats);
             }
-            o.setEstimatedCardinality(childC);
-            return hasJoinPK;
         }
+        o.setEstimatedCardinality(childC);
+        return hasJoinPK;
+    }
+
+    /**
+     * @return the estimated number of tuples returned by a scan, which only
+     *         returns those that satisfy the predicates pushed down into it
+     */
+    private static int scanCardinality(SeqScan s,
+            Map<String, TableStats> tableStats) {
+        TableStats stats = tableStats.get(s.getTableName());
+        Predicate[] preds = s.getPushedPredicates();
+        if (preds.length == 0)
+            return stats.estimateTableCardinality(1.0);
+        List<Predicate> predList = Arrays.asList(preds);
+        double selectivity = CardinalityFeedback.correctFilter(
+                s.getTableName(), predList,
+                stats.estimateSelectivity(predList), stats.totalTuples());
+        return (int) (stats.estimateTableCardinality(1.0) * selectivity) + 1;
     }
 
     private static boolean updateFilterCardinality(Filter f,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
         DbIterator child = f.getChildren()[0];
-        Predicate pred = f.getPredicate();
-        String[] tmp = child.getTupleDesc().getFieldName(pred.getField())
-                .split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
+        // the predicates of a filter are independent conjuncts
+        Integer tableId = null;
         double selectivity = 1.0;
-        if (tableId != null) {
-            selectivity = tableStats.get(
-                    Database.getCatalog().getTableName(tableId))
+        for (Predicate pred : f.getPredicates()) {
+            String[] tmp = child.getTupleDesc().getFieldName(pred.getField())
+                    .split("[.]");
+            String tableAlias = tmp[0];
+            String pureFieldName = tmp[1];
+            Integer predTableId = tableAliasToId.get(tableAlias);
+            if (predTableId == null)
+                continue;
+            tableId = predTableId;
+            selectivity *= tableStats.get(
+                    Database.getCatalog().getTableName(predTableId))
                     .estimateSelectivity(
-                            Database.getCatalog().getTupleDesc(tableId)
+                            Database.getCatalog().getTupleDesc(predTableId)
                                     .fieldNameToIndex(pureFieldName),
                             pred.getOp(), pred.getOperand());
+        }
+        if (tableId != null) {
             if (child instanceof Operator) {
                 Operator oChild = (Operator) child;
                 boolean hasJoinPK = updateOperatorCardinality(oChild,
@@ -78,9 +145,8 @@ public class OperatorCardinality {
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
             } else if (child instanceof SeqScan) {
-                f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
-                        .estimateTableCardinality(1.0) * selectivity) + 1);
+                f.setEstimatedCardinality((int) (scanCardinality(
+                        (SeqScan) child, tableStats) * selectivity) + 1);
                 return false;
             }
         }
@@ -88,7 +154,12 @@ public class OperatorCardinality {
         return false;
     }
 
-    private static boolean updateJoinCardinality(Join j,
+    /**
+     * Shared by all join operators: they differ only in how they evaluate
+     * the predicate, not in how many tuples they produce.
+     */
+    private static boolean updateJoinCardinality(Operator j,
+            JoinPredicate jp, String field1Name, String field2Name,
             Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
 
@@ -98,11 +169,11 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = field1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
 
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = field2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -121,8 +192,7 @@ public class OperatorCardinality {
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
         } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+            child1Card = scanCardinality((SeqScan) child1, tableStats);
         }
 
         if (child2 instanceof Operator) {
@@ -133,76 +203,18 @@ public class OperatorCardinality {
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
         } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+            child2Card = scanCardinality((SeqScan) child2, tableStats);
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(
+                jp.getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
     }
 
-    private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
-            Map<String, Integer> tableAliasToId,
-            Map<String, TableStats> tableStats) {
-
-        DbIterator[] children = j.getChildren();
-        DbIterator child1 = children[0];
-        DbIterator child2 = children[1];
-        int child1Card = 1;
-        int child2Card = 1;
-
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
-        String tableAlias1 = tmp1[0];
-        String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
-        String tableAlias2 = tmp2[0];
-        String pureFieldName2 = tmp2[1];
-
-        boolean child1HasJoinPK = Database.getCatalog()
-                .getPrimaryKey(tableAliasToId.get(tableAlias1))
-                .equals(pureFieldName1);
-        ;
-        boolean child2HasJoinPK = Database.getCatalog()
-                .getPrimaryKey(tableAliasToId.get(tableAlias2))
-                .equals(pureFieldName2);
-        ;
-
-        if (child1 instanceof Operator) {
-            Operator child1O = (Operator) child1;
-            boolean pk = updateOperatorCardinality(child1O, tableAliasToId,
-                    tableStats);
-            child1HasJoinPK = pk || child1HasJoinPK;
-            child1Card = child1O.getEstimatedCardinality();
-            child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
-        }
-
-        if (child2 instanceof Operator) {
-            Operator child2O = (Operator) child2;
-            boolean pk = updateOperatorCardinality(child2O, tableAliasToId,
-                    tableStats);
-            child2HasJoinPK = pk || child2HasJoinPK;
-            child2Card = child2O.getEstimatedCardinality();
-            child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
-        }
-
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
-                pureFieldName1, pureFieldName2, child1Card, child2Card,
-                child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
-        return child1HasJoinPK || child2HasJoinPK;
-    }
-
-    private static boolean updateAggregateCardinality(Aggregate a,
-            Map<String, Integer> tableAliasToId,
+    private static boolean updateAggregateCardinality(Operator a,
+            String[] groupFieldNames, Map<String, Integer> tableAliasToId,
             Map<String, TableStats> tableStats) {
         DbIterator child = a.getChildren()[0];
         int childCard = 1;
@@ -214,31 +226,37 @@ public class OperatorCardinality {
             childCard = oChild.getEstimatedCardinality();
         }
 
-        if (a.groupField() == Aggregator.NO_GROUPING) {
+        if (groupFieldNames.length == 0) {
             a.setEstimatedCardinality(1);
             return hasJoinPK;
         }
 
         if (child instanceof SeqScan) {
-            childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0));
+            childCard = scanCardinality((SeqScan) child, tableStats);
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
-
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+        // the number of groups is at most the product of the number of
+        // distinct values of each group by field
+        double groups = 1.0;
+        boolean known = false;
+        for (String groupFieldName : groupFieldNames) {
+            String[] tmp = groupFieldName.split("[.]");
+            String tableAlias = tmp[0];
+            String pureFieldName = tmp[1];
+            Integer tableId = tableAliasToId.get(tableAlias);
+            if (tableId == null)
+                continue;
+            double groupFieldAvgSelectivity = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .avgSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
                                     .fieldNameToIndex(pureFieldName),
                             Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
+            groups *= 1.0 / groupFieldAvgSelectivity;
+            known = true;
+        }
+        if (known) {
+            a.setEstimatedCardinality((int) (Math.min(childCard, groups)));
             return hasJoinPK;
         }
         a.setEstimatedCardinality(childCard);
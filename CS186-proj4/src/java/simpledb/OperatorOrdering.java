@@ -0,0 +1,77 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * A utility class, which derives the sort order of the output of an operator
+ * tree. The planner uses it to avoid re-sorting input that is already
+ * ordered, and to pick {@link SortMergeJoin} when both inputs of a join
+ * arrive sorted on the join fields.
+ * <p>
+ * Only ascending orders are tracked. An operator that does not appear below
+ * is conservatively assumed to produce unordered output.
+ */
+public class OperatorOrdering {
+
+    /**
+     * @return the names of the fields on which the output of the given
+     *         iterator is sorted in ascending order. The set is empty if the
+     *         order is unknown.
+     */
+    public static Set<String> ascendingFields(DbIterator it) {
+        Set<String> fields = new HashSet<String>();
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            if (o.isASC())
+                fields.add(o.getOrderFieldName());
+        } else if (it instanceof TopN) {
+            TopN o = (TopN) it;
+            if (o.isASC())
+                fields.add(o.getOrderFieldName());
+        } else if (it instanceof Filter) {
+            fields.addAll(ascendingFields(((Filter) it).getChildren()[0]));
+        } else if (it instanceof JoinFilter) {
+            fields.addAll(ascendingFields(((JoinFilter) it).getChildren()[0]));
+        } else if (it instanceof Fetch) {
+            // the row id is replaced in place, and no sort is on a row id
+            fields.addAll(ascendingFields(((Fetch) it).getChildren()[0]));
+        } else if (it instanceof Limit) {
+            fields.addAll(ascendingFields(((Limit) it).getChildren()[0]));
+        } else if (it instanceof StreamAggregate) {
+            // groups are returned in input order, under their input names
+            StreamAggregate a = (StreamAggregate) it;
+            Set<String> childFields = ascendingFields(a.getChildren()[0]);
+            for (String f : a.groupFieldNames()) {
+                if (childFields.contains(f))
+                    fields.add(f);
+            }
+        } else if (it instanceof Project) {
+            Project p = (Project) it;
+            TupleDesc td = p.getTupleDesc();
+            Set<String> childFields = ascendingFields(p.getChildren()[0]);
+            for (int i = 0; i < td.numFields(); i++) {
+                if (childFields.contains(td.getFieldName(i)))
+                    fields.add(td.getFieldName(i));
+            }
+        } else if (it instanceof SortMergeJoin) {
+            // outer tuples are consumed in order, so the output keeps every
+            // order of the outer child; equal keys also order the inner field
+            SortMergeJoin j = (SortMergeJoin) it;
+            fields.addAll(ascendingFields(j.getChildren()[0]));
+            if (j.getJoinPredicate().getOperator() == Predicate.Op.EQUALS)
+                fields.add(j.getJoinField2Name());
+        } else if (it instanceof Join) {
+            // the inner child is rescanned for every outer tuple in turn
+            fields.addAll(ascendingFields(((Join) it).getChildren()[0]));
+        }
+        return fields;
+    }
+
+    /**
+     * @return true if the output of the given iterator is sorted in
+     *         ascending order on the named field
+     */
+    public static boolean isOrderedOn(DbIterator it, String fieldName) {
+        return ascendingFields(it).contains(fieldName);
+    }
+}
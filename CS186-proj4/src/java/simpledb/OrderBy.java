@@ -3,18 +3,20 @@ package simpledb;
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY. Sorting is
+ * delegated to an {@link ExternalSort}, so inputs larger than memory are
+ * sorted through runs spilled to disk.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
     private int orderByField;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
     private boolean asc;
+    private long memoryBudget;
+    transient private ExternalSort sort = null;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,11 +29,30 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(orderbyField, asc, child, ExternalSort.getDefaultMemoryBudget());
+    }
+
+    /**
+     * Creates a new OrderBy node over the tuples from the iterator, which
+     * holds at most about memoryBudget bytes of tuples in memory at once.
+     * 
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param memoryBudget
+     *            the memory budget of the sort, in bytes
+     */
+    public OrderBy(int orderbyField, boolean asc, DbIterator child,
+            long memoryBudget) {
         this.child = child;
         td = child.getTupleDesc();
         this.orderByField = orderbyField;
         this.orderByFieldName = td.getFieldName(orderbyField);
         this.asc = asc;
+        this.memoryBudget = memoryBudget;
     }
     
     public boolean isASC()
@@ -55,22 +76,22 @@ public class OrderBy extends Operator {
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
-        child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        sort = new ExternalSort(child, new TupleComparator(orderByField, asc),
+                memoryBudget);
+        sort.open();
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        if (sort != null) {
+            sort.close();
+            sort = null;
+        }
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        sort.rewind();
     }
 
     /**
@@ -82,8 +103,8 @@ public class OrderBy extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        if (it != null && it.hasNext()) {
-            return it.next();
+        if (sort != null && sort.hasNext()) {
+            return sort.next();
         } else
             return null;
     }
@@ -99,25 +120,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
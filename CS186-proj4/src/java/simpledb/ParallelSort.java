@@ -0,0 +1,213 @@
+package simpledb;
+
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ParallelSort sorts a list of tuples on one field with a fork-join merge
+ * sort. Rather than comparing tuples, it sorts an array of normalized keys
+ * alongside an array of positions in the input: each key is a 64 bit prefix
+ * of the field value, encoded so that comparing two keys as longs gives the
+ * order of the values. An int field fits in its key entirely; a string field
+ * contributes its first four characters, and only tuples whose keys are equal
+ * are compared on the whole value, with a single comparison.
+ * <p>
+ * Ranges are split in halves that are sorted in parallel and then merged,
+ * down to {@link #SEQUENTIAL_CUTOFF} entries, which are sorted on the calling
+ * worker. Ties are broken on input position, so the sort is stable.
+ */
+public class ParallelSort {
+
+    /** Number of entries below which a range is not split any further. */
+    public static final int SEQUENTIAL_CUTOFF = 8192;
+
+    /** Ranges shorter than this are sorted by insertion. */
+    private static final int INSERTION_CUTOFF = 32;
+
+    private static int minParallelTuples = 1 << 16;
+
+    /**
+     * Sets the number of tuples a sort needs before it is run on several
+     * threads; smaller sorts are not worth the threads.
+     */
+    public static void setMinParallelTuples(int tuples) {
+        minParallelTuples = tuples;
+    }
+
+    /** @return the number of tuples a sort needs to be run in parallel */
+    public static int getMinParallelTuples() {
+        return minParallelTuples;
+    }
+
+    /**
+     * Sorts tuples on a field, in parallel unless the degree of parallelism
+     * ({@link Exchange#getDegreeOfParallelism()}) is 1.
+     *
+     * @param tuples
+     *            the tuples to sort, in place
+     * @param field
+     *            the index of the field to sort on
+     * @param asc
+     *            true to sort in ascending order, false for descending
+     */
+    public static void sort(List<Tuple> tuples, int field, boolean asc) {
+        sort(tuples, field, asc, Exchange.getDegreeOfParallelism());
+    }
+
+    /**
+     * Sorts tuples on a field, in parallel if dop is more than 1, on the
+     * workers of the pool shared with parallel plans (see
+     * {@link Exchange#getPool()}).
+     *
+     * @see #sort(List, int, boolean)
+     */
+    public static void sort(List<Tuple> tuples, int field, boolean asc,
+            int dop) {
+        int n = tuples.size();
+        if (n < 2)
+            return;
+        Tuple[] input = tuples.toArray(new Tuple[n]);
+        long[] keys = new long[n];
+        int[] pos = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = key(input[i].getField(field), asc);
+            pos[i] = i;
+        }
+        boolean exact = input[0].getField(field) instanceof IntField;
+        Sorter s = new Sorter(input, new TupleComparator(field, asc), exact,
+                keys, pos);
+
+        if (dop > 1 && n >= minParallelTuples) {
+            Exchange.getPool().invoke(s.new Task(0, n));
+        } else {
+            s.sequential(0, n);
+        }
+
+        for (int i = 0; i < n; i++)
+            tuples.set(i, input[pos[i]]);
+    }
+
+    /**
+     * @return the normalized key of a field value: ascending values give
+     *         ascending keys, or descending ones when asc is false
+     */
+    static long key(Field f, boolean asc) {
+        long k;
+        if (f instanceof IntField) {
+            k = ((IntField) f).getValue();
+        } else {
+            // four 16 bit characters, padded with zeros, as an unsigned
+            // number, then shifted into the signed range
+            String v = ((StringField) f).getValue();
+            k = 0;
+            for (int i = 0; i < 4; i++)
+                k = (k << 16) | (i < v.length() ? v.charAt(i) : 0);
+            k ^= Long.MIN_VALUE;
+        }
+        return asc ? k : ~k;
+    }
+
+    /** The arrays being sorted, and the merge sort over them. */
+    private static class Sorter {
+        private final Tuple[] input;
+        private final TupleComparator comparator;
+        // whether equal keys mean equal values
+        private final boolean exact;
+        private final long[] keys;
+        private final int[] pos;
+        private final long[] tmpKeys;
+        private final int[] tmpPos;
+
+        Sorter(Tuple[] input, TupleComparator comparator, boolean exact,
+                long[] keys, int[] pos) {
+            this.input = input;
+            this.comparator = comparator;
+            this.exact = exact;
+            this.keys = keys;
+            this.pos = pos;
+            this.tmpKeys = new long[keys.length];
+            this.tmpPos = new int[pos.length];
+        }
+
+        private int compare(long k1, int p1, long k2, int p2) {
+            if (k1 != k2)
+                return k1 < k2 ? -1 : 1;
+            if (!exact) {
+                int c = comparator.compare(input[p1], input[p2]);
+                if (c != 0)
+                    return c;
+            }
+            return p1 < p2 ? -1 : (p1 == p2 ? 0 : 1);
+        }
+
+        void sequential(int lo, int hi) {
+            if (hi - lo <= INSERTION_CUTOFF) {
+                insertionSort(lo, hi);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            sequential(lo, mid);
+            sequential(mid, hi);
+            merge(lo, mid, hi);
+        }
+
+        private void insertionSort(int lo, int hi) {
+            for (int i = lo + 1; i < hi; i++) {
+                long k = keys[i];
+                int p = pos[i];
+                int j = i - 1;
+                while (j >= lo && compare(keys[j], pos[j], k, p) > 0) {
+                    keys[j + 1] = keys[j];
+                    pos[j + 1] = pos[j];
+                    j--;
+                }
+                keys[j + 1] = k;
+                pos[j + 1] = p;
+            }
+        }
+
+        /** Merges the sorted ranges [lo, mid) and [mid, hi). */
+        private void merge(int lo, int mid, int hi) {
+            if (compare(keys[mid - 1], pos[mid - 1], keys[mid], pos[mid]) <= 0)
+                return;
+            System.arraycopy(keys, lo, tmpKeys, lo, hi - lo);
+            System.arraycopy(pos, lo, tmpPos, lo, hi - lo);
+            int i = lo, j = mid, out = lo;
+            while (i < mid && j < hi) {
+                if (compare(tmpKeys[i], tmpPos[i], tmpKeys[j], tmpPos[j]) <= 0) {
+                    keys[out] = tmpKeys[i];
+                    pos[out++] = tmpPos[i++];
+                } else {
+                    keys[out] = tmpKeys[j];
+                    pos[out++] = tmpPos[j++];
+                }
+            }
+            System.arraycopy(tmpKeys, i, keys, out, mid - i);
+            System.arraycopy(tmpPos, i, pos, out, mid - i);
+            // whatever is left of the right half is already in place
+        }
+
+        /** Sorts a range, splitting it between workers while it is large. */
+        private class Task extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final int lo, hi;
+
+            Task(int lo, int hi) {
+                this.lo = lo;
+                this.hi = hi;
+            }
+
+            protected void compute() {
+                if (hi - lo <= SEQUENTIAL_CUTOFF) {
+                    sequential(lo, hi);
+                    return;
+                }
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Task(lo, mid), new Task(mid, hi));
+                merge(lo, mid, hi);
+            }
+        }
+    }
+
+}
@@ -4,6 +4,7 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.*;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -12,6 +13,46 @@ import jline.SimpleCompletor;
 public class Parser {
     static boolean explain = false;
 
+    /**
+     * A trailing "LIMIT n [OFFSET m]" clause. ZQL has no syntax for it, so
+     * it is cut off the statement text before parsing and applied to the
+     * logical plan afterwards.
+     */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "^(.*?)\\s+LIMIT\\s+(\\d+)(?:\\s+OFFSET\\s+(\\d+))?\\s*(;?)\\s*$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    // LIMIT and OFFSET of the statement being processed; -1 if none
+    private int stmtLimit = -1;
+    private int stmtOffset = 0;
+
+    /**
+     * Removes a trailing LIMIT clause from a statement, remembering its
+     * values for the statement's logical plan.
+     * 
+     * @return the statement without its LIMIT clause
+     */
+    private String stripLimit(String s) throws simpledb.ParsingException {
+        stmtLimit = -1;
+        stmtOffset = 0;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.matches())
+            return s;
+        try {
+            stmtLimit = Integer.parseInt(m.group(2));
+            if (m.group(3) != null)
+                stmtOffset = Integer.parseInt(m.group(3));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT or OFFSET out of range");
+        }
+        return m.group(1) + m.group(4);
+    }
+
+    private void applyLimit(LogicalPlan lp) throws simpledb.ParsingException {
+        if (stmtLimit >= 0)
+            lp.addLimit(stmtLimit, stmtOffset);
+    }
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -62,6 +103,18 @@ public class Parser {
             boolean isJoin = false;
             Predicate.Op op = getOp(wx.getOperator());
 
+            if (isParameter(ops.elementAt(0)) || isParameter(ops.elementAt(1))) {
+                // a filter on a parameter of a prepared query
+                ZExp field = isParameter(ops.elementAt(0)) ? ops.elementAt(1) : ops.elementAt(0);
+                if (!(field instanceof ZConstant)
+                        || ((ZConstant) field).getType() != ZConstant.COLUMNNAME) {
+                    throw new simpledb.ParsingException(
+                            "A parameter can only be compared with a field.");
+                }
+                lp.addParameterFilter(((ZConstant) field).getValue(), op);
+                return;
+            }
+
             boolean op1const = ops.elementAt(0) instanceof ZConstant; // otherwise
                                                                       // is a
                                                                       // Query
@@ -121,8 +174,17 @@ public class Parser {
                     column = op1.getValue();
                     compValue = new String(op2.getValue());
                 } else {
+                    // constant op column: compare the column the other way
                     column = op2.getValue();
                     compValue = new String(op1.getValue());
+                    if (op == Predicate.Op.GREATER_THAN)
+                        op = Predicate.Op.LESS_THAN;
+                    else if (op == Predicate.Op.GREATER_THAN_OR_EQ)
+                        op = Predicate.Op.LESS_THAN_OR_EQ;
+                    else if (op == Predicate.Op.LESS_THAN)
+                        op = Predicate.Op.GREATER_THAN;
+                    else if (op == Predicate.Op.LESS_THAN_OR_EQ)
+                        op = Predicate.Op.GREATER_THAN_OR_EQ;
                 }
 
                 lp.addFilter(column, op, compValue);
@@ -132,6 +194,14 @@ public class Parser {
 
     }
 
+    /** @return true if e is a ? parameter, which ZQL parses as an expression
+        without operands */
+    private static boolean isParameter(ZExp e) {
+        return e instanceof ZExpression
+                && ((ZExpression) e).getOperator().equals("?")
+                && ((ZExpression) e).nbOperands() == 0;
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
@@ -182,23 +252,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.addElement(groupByField);
             }
 
         }
@@ -207,8 +273,8 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        Vector<String> aggFields = new Vector<String>();
+        Vector<String> aggFuns = new Vector<String>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +284,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
+                aggFields.addElement(aggField);
+                aggFuns.addElement(aggFun);
                 lp.addProjectField(aggField, aggFun);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,12 +305,15 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        if (!aggFuns.isEmpty()) {
+            for (String groupByField : groupByFields)
+                lp.addGroupByField(groupByField);
+            for (int i = 0; i < aggFuns.size(); i++)
+                lp.addAggregate(aggFuns.elementAt(i), aggFields.elementAt(i), null);
         }
         // sort the data
 
@@ -276,15 +343,76 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
-        // and run it
+        // a query of a shape planned before is not planned again
+        PreparedQuery prepared = PreparedQuery.prepare(this, s.toString(),
+                stmtLimit, stmtOffset);
+        Query query = prepared == null ? null : handlePreparedShape(
+                prepared, tId);
+        return query != null ? query : handleUnpreparedQuery(s, tId);
+    }
+
+    /**
+     * @return the plan of a statement with no <tt>?</tt>, planned once for
+     *         all the statements of its shape, or null if its shape cannot
+     *         be planned (see {@link PreparedQuery#bindIfPlannable})
+     */
+    private Query handlePreparedShape(PreparedQuery prepared,
+            TransactionId tId) throws simpledb.ParsingException {
+        Query query = prepared.bindIfPlannable(tId);
+        if (query != null)
+            printPlan(query.getLogicalPlan(), query.getPhysicalPlan());
+        return query;
+    }
+
+    /** Plans a query as a statement of its own, and runs it */
+    private Query handleUnpreparedQuery(ZQuery s, TransactionId tId)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        applyLimit(lp);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
+        printPlan(lp, physicalPlan);
+        return query;
+    }
 
+    /**
+     * Prepares a SELECT statement to be run many times, planned once for all
+     * the statements of its shape (see {@link PreparedQuery}).
+     * 
+     * @param sql
+     *            the statement, where <tt>?</tt> stands for a constant given
+     *            each time it is run
+     * @throws simpledb.ParsingException
+     *             if the statement is not a single SELECT without subqueries
+     */
+    public PreparedQuery prepare(String sql) throws simpledb.ParsingException {
+        PreparedQuery prepared = PreparedQuery.prepare(this, stripLimit(sql),
+                stmtLimit, stmtOffset);
+        if (prepared == null)
+            throw new simpledb.ParsingException(
+                    "Only a query without subqueries can be prepared: " + sql);
+        return prepared;
+    }
+
+    /**
+     * Builds the plan of a prepared query.
+     * 
+     * @param values
+     *            the value of each <tt>?</tt> of the query
+     */
+    public Query handlePreparedQuery(PreparedQuery prepared, TransactionId tId,
+            String... values) throws simpledb.ParsingException {
+        Query query = prepared.bind(tId, values);
+        printPlan(query.getLogicalPlan(), query.getPhysicalPlan());
+        return query;
+    }
+
+    private void printPlan(LogicalPlan lp, DbIterator physicalPlan) {
         if (physicalPlan != null) {
             Class<?> c;
             try {
@@ -317,8 +445,6 @@ public class Parser {
                 e.printStackTrace();
             }
         }
-
-        return query;
     }
 
     public Query handleInsertStatement(ZInsert s, TransactionId tId)
@@ -466,12 +592,14 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s)
+                .getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                applyLimit(lp);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -504,8 +632,25 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
-            ZStatement s = p.readStatement();
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                text.write(buf, 0, n);
+            String sql = stripLimit(text.toString("UTF-8"));
+            // a query is planned once for all the queries of its shape, and
+            // not even parsed once its plan is cached
+            PreparedQuery prepared = PreparedQuery.prepare(this, sql,
+                    stmtLimit, stmtOffset);
+            ZStatement s = null;
+            if (prepared == null) {
+                ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                        sql.getBytes("UTF-8")));
+                s = p.readStatement();
+                if (stmtLimit >= 0 && !(s instanceof ZQuery))
+                    throw new simpledb.ParsingException(
+                            "LIMIT is only supported on SELECT statements");
+            }
 
             Query query = null;
             if (s instanceof ZTransactStmt)
@@ -518,7 +663,14 @@ public class Parser {
                             + curtrans.getId().getId());
                 }
                 try {
-                    if (s instanceof ZInsert)
+                    if (prepared != null) {
+                        query = handlePreparedShape(prepared, curtrans.getId());
+                        // a shape that cannot be planned is parsed as it is
+                        if (query == null)
+                            query = handleUnpreparedQuery((ZQuery) new ZqlParser(
+                                    new ByteArrayInputStream(sql.getBytes("UTF-8")))
+                                    .readStatement(), curtrans.getId());
+                    } else if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
                                 curtrans.getId());
                     else if (s instanceof ZDelete)
@@ -599,6 +751,7 @@ public class Parser {
     static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
 
     protected void shutdown() {
+        TableStats.saveStatistics();
         System.out.println("Bye");
     }
 
@@ -607,7 +760,7 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        TableStats.loadStatistics(new File(argv[0] + ".stats"));
 
         String queryFile = null;
 
@@ -1,50 +1,150 @@
 package simpledb;
-import java.util.HashMap;
-import java.util.Set;
-import java.util.Vector;
 
 /** A PlanCache is a helper class that can be used to store the best
- * way to order a given set of joins */
+ * way to order a given set of joins.
+ * <p>
+ * A set of joins is identified by a bitmask over the indices of the joins of
+ * the query, and plans are kept in a flat open addressing table indexed by
+ * mask, so that a lookup hashes a single long rather than a whole set.  A
+ * plan is stored as the join performed last and the mask of the joins of one
+ * of its inputs, those of the other being the rest; the full order is only
+ * rebuilt, by following those masks, when asked for. */
 public class PlanCache {
-    HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>> bestOrders= new HashMap<Set<LogicalJoinNode>,Vector<LogicalJoinNode>>();
-    HashMap<Set<LogicalJoinNode>,Double> bestCosts= new HashMap<Set<LogicalJoinNode>,Double>();
-    HashMap<Set<LogicalJoinNode>,Integer> bestCardinalities = new HashMap<Set<LogicalJoinNode>,Integer>();
-    
-    /** Add a new cost, cardinality and ordering for a particular join set.  Does not verify that the
+    private static final long EMPTY = 0L;
+
+    private long[] masks;
+    private double[] costs;
+    private int[] cards;
+    private int[] lastJoins;
+    private long[] lefts;
+    private int size = 0;
+
+    /** Creates a cache for about the given number of join sets */
+    PlanCache(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    PlanCache() {
+        this(16);
+    }
+
+    private void allocate(int capacity) {
+        masks = new long[capacity];
+        costs = new double[capacity];
+        cards = new int[capacity];
+        lastJoins = new int[capacity];
+        lefts = new long[capacity];
+    }
+
+    /** @return the slot of mask in the table, or of the empty slot where it
+        would be added */
+    private int slot(long mask) {
+        int m = masks.length - 1;
+        long h = mask * 0x9E3779B97F4A7C15L;
+        int i = (int) (h ^ (h >>> 32)) & m;
+        while (masks[i] != EMPTY && masks[i] != mask)
+            i = (i + 1) & m;
+        return i;
+    }
+
+    private void grow() {
+        long[] oldMasks = masks;
+        double[] oldCosts = costs;
+        int[] oldCards = cards;
+        int[] oldLastJoins = lastJoins;
+        long[] oldLefts = lefts;
+        allocate(oldMasks.length * 2);
+        for (int i = 0; i < oldMasks.length; i++) {
+            if (oldMasks[i] == EMPTY)
+                continue;
+            int s = slot(oldMasks[i]);
+            masks[s] = oldMasks[i];
+            costs[s] = oldCosts[i];
+            cards[s] = oldCards[i];
+            lastJoins[s] = oldLastJoins[i];
+            lefts[s] = oldLefts[i];
+        }
+    }
+
+    /** Add a new cost, cardinality and plan for a particular join set.  Does not verify that the
         new cost is less than any previously added cost -- simply adds or replaces an existing plan for the
         specified join set
-        @param s the set of joins for which a new ordering (plan) is being added
+        @param mask the (non-empty) mask of the joins for which a new plan is being added
         @param cost the estimated cost of the specified plan
         @param card the estimatied cardinality of the specified plan
-        @param order the ordering of the joins in the plan
+        @param lastJoin the index of the join performed last in the plan
+        @param left the mask of the joins of one input of that join, whose plan is the one cached for it;
+               the other input is planned by the joins in neither (either may be empty, for a base table)
     */
-    void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order) {
-        bestOrders.put(s,order);                        
-        bestCosts.put(s,cost);
-        bestCardinalities.put(s,card);
-    }
-    
-    /** Find the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best order for
-        @return the best order for s in the cache
+    void addPlan(long mask, double cost, int card, int lastJoin, long left) {
+        if (mask == EMPTY)
+            throw new IllegalArgumentException("empty join set");
+        if ((size + 1) * 2 > masks.length)
+            grow();
+        int s = slot(mask);
+        if (masks[s] == EMPTY) {
+            masks[s] = mask;
+            size++;
+        }
+        costs[s] = cost;
+        cards[s] = card;
+        lastJoins[s] = lastJoin;
+        lefts[s] = left;
+    }
+
+    /** @return true if a plan for the specified join set is in the cache */
+    boolean contains(long mask) {
+        return masks[slot(mask)] == mask;
+    }
+
+    /** Find the best join order in the cache for the specified plan
+        @param mask the mask of the joins to look up the best order for
+        @return the indices of the joins in the best order for mask in the cache, each performed
+                after the joins of its inputs, or null if there is none
     */
-    Vector<LogicalJoinNode> getOrder(Set<LogicalJoinNode> s) {
-        return bestOrders.get(s);
+    int[] getOrder(long mask) {
+        if (!contains(mask))
+            return null;
+        int[] order = new int[Long.bitCount(mask)];
+        addOrder(mask, order, 0);
+        return order;
     }
-    
-    /** Find the cost of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cost for
-        @return the cost of the best order for s in the cache
+
+    /** Writes the order of the joins of mask at position pos of order
+        @return the position after them */
+    private int addOrder(long mask, int[] order, int pos) {
+        if (mask == EMPTY)
+            return pos;
+        int s = slot(mask);
+        int last = lastJoins[s];
+        long left = lefts[s];
+        pos = addOrder(left, order, pos);
+        pos = addOrder(mask & ~left & ~(1L << last), order, pos);
+        order[pos] = last;
+        return pos + 1;
+    }
+
+    /** Find the cost of the best join order in the cache for the specified plan
+        @param mask the mask of the joins to look up the best cost for
+        @return the cost of the best order for mask in the cache
     */
-    double getCost(Set<LogicalJoinNode> s) {
-        return bestCosts.get(s);
+    double getCost(long mask) {
+        return costs[slot(mask)];
     }
-    
-    /** Find the cardinality of the best join order in the cache for the specified plan 
-        @param s the set of joins to look up the best cardinality for
-        @return the cardinality of the best order for s in the cache
+
+    /** Find the cardinality of the best join order in the cache for the specified plan
+        @param mask the mask of the joins to look up the best cardinality for
+        @return the cardinality of the best order for mask in the cache
     */
-    int getCard(Set<LogicalJoinNode> s) {
-        return bestCardinalities.get(s);
+    int getCard(long mask) {
+        return cards[slot(mask)];
+    }
+
+    /** @return the number of join sets with a plan in the cache */
+    int size() {
+        return size;
     }
 }
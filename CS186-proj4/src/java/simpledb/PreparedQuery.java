@@ -0,0 +1,211 @@
+package simpledb;
+
+import Zql.*;
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * A SELECT statement prepared to be run many times. Each constant in its
+ * text and each <tt>?</tt> is a parameter of a filter; the text with every
+ * parameter replaced by <tt>?</tt>, and white space collapsed, is the shape
+ * of the query. All the queries of a shape share the plan made for the
+ * first of them, which the {@link QueryPlanCache} keeps until the
+ * statistics of a table are replaced, or a query is seen to return very
+ * different numbers of tuples than estimated (see
+ * {@link CardinalityFeedback#getVersion}), so that only the first is parsed
+ * and has its joins ordered. A query is bound to a transaction with a value for each of its
+ * <tt>?</tt>, its constants keeping theirs, and the physical plan is built
+ * from the kept plan with those values.
+ * <p>
+ * As the joins are ordered for the constants of the first query of a
+ * shape, a later one whose filters select very different numbers of tuples
+ * runs with the same join order.
+ */
+public class PreparedQuery {
+
+    /** A string constant, a number, a parameter, or white space */
+    private static final Pattern TOKEN = Pattern.compile(
+            "'((?:[^']|'')*)'|(?<![\\w.])(\\d+(?:\\.\\d+)?)(?![\\w.])|(\\?)|(\\s+)");
+
+    private static final Pattern SELECT = Pattern.compile("\\bselect\\b",
+            Pattern.CASE_INSENSITIVE);
+
+    private final Parser parser;
+    private final String shape;
+    /** The value of each parameter, in order, or null for each ? */
+    private final String[] constants;
+    private final int numParameters;
+    private final int limit, offset;
+
+    private PreparedQuery(Parser parser, String shape, String[] constants,
+            int limit, int offset) {
+        this.parser = parser;
+        this.shape = shape;
+        this.constants = constants;
+        this.limit = limit;
+        this.offset = offset;
+        int n = 0;
+        for (String c : constants)
+            if (c == null)
+                n++;
+        numParameters = n;
+    }
+
+    /**
+     * Prepares a query.
+     *
+     * @param parser
+     *            the parser that makes the plan of the query
+     * @param sql
+     *            the text of the query, without a LIMIT clause
+     * @param limit
+     *            the LIMIT of the query, or -1 if it has none
+     * @param offset
+     *            the OFFSET of the query
+     * @return the prepared query, or null if the text is not a single
+     *         SELECT statement without subqueries
+     */
+    static PreparedQuery prepare(Parser parser, String sql, int limit,
+            int offset) {
+        StringBuffer shape = new StringBuffer();
+        ArrayList<String> constants = new ArrayList<String>();
+        Matcher m = TOKEN.matcher(sql);
+        while (m.find()) {
+            if (m.group(4) != null) {
+                m.appendReplacement(shape, " ");
+                continue;
+            }
+            constants.add(m.group(1) != null ? m.group(1) : m.group(2));
+            m.appendReplacement(shape, "?");
+        }
+        m.appendTail(shape);
+        String s = shape.toString().trim();
+        if (s.endsWith(";"))
+            s = s.substring(0, s.length() - 1).trim();
+
+        if (s.indexOf(';') >= 0 || !s.regionMatches(true, 0, "select", 0, 6))
+            return null;
+        Matcher select = SELECT.matcher(s);
+        int selects = 0;
+        while (select.find())
+            selects++;
+        if (selects != 1)
+            return null;
+        return new PreparedQuery(parser, s, constants
+                .toArray(new String[constants.size()]), limit, offset);
+    }
+
+    /** @return the text of the query with every parameter replaced by ? */
+    public String getShape() {
+        return shape;
+    }
+
+    /** @return the number of ? in the query, whose values are given when
+        it is bound */
+    public int numParameters() {
+        return numParameters;
+    }
+
+    /**
+     * Builds the physical plan of the query, with the given values of its
+     * ? parameters.
+     *
+     * @param tid
+     *            the transaction the query runs as a part of
+     * @param values
+     *            the value of each ?, in order, as a constant in the text
+     *            of a query: a number, or a string without its quotes
+     * @return the query, ready to be executed
+     * @throws ParsingException
+     *             if the query is not valid, or the number of values is
+     *             not the number of parameters
+     */
+    public Query bind(TransactionId tid, String... values)
+            throws ParsingException {
+        if (values.length != numParameters)
+            throw new ParsingException(numParameters
+                    + " parameter values expected, " + values.length
+                    + " given");
+        String[] params = constants.clone();
+        for (int i = 0, k = 0; i < params.length; i++)
+            if (params[i] == null)
+                params[i] = values[k++];
+        return bind(plan(tid), tid, params);
+    }
+
+    /**
+     * Builds the physical plan of a query without ?, as {@link #bind} does,
+     * if its shape can be planned once for all the values of its constants.
+     * ZQL cannot parse a ? on the left of a comparison, and a constant not
+     * compared with a field is not a parameter of the plan; a query of such
+     * a shape, or one that is not valid, is to be planned as a statement of
+     * its own.
+     *
+     * @return the query, ready to be executed, or null if its shape cannot
+     *         be planned
+     * @throws ParsingException
+     *             if the query has a ?, or its physical plan cannot be built
+     */
+    Query bindIfPlannable(TransactionId tid) throws ParsingException {
+        if (numParameters != 0)
+            throw new ParsingException(numParameters
+                    + " parameter values expected, 0 given");
+        LogicalPlan lp;
+        try {
+            lp = plan(tid);
+        } catch (ParsingException e) {
+            return null;
+        }
+        return bind(lp, tid, constants.clone());
+    }
+
+    /** @return the query, with the physical plan built from lp with the
+        values of all its parameters */
+    private Query bind(LogicalPlan lp, TransactionId tid, String[] params)
+            throws ParsingException {
+        DbIterator physicalPlan;
+        synchronized (lp) {
+            physicalPlan = lp.physicalPlan(tid, TableStats.getStatsMap(),
+                    Parser.explain, params);
+        }
+        Query query = new Query(tid);
+        query.setPhysicalPlan(physicalPlan);
+        query.setLogicalPlan(lp);
+        return query;
+    }
+
+    /**
+     * @return the plan of the shape of the query for the current
+     *         statistics and feedback, made and cached if there is none
+     */
+    private LogicalPlan plan(TransactionId tid) throws ParsingException {
+        String key = shape
+                + (limit >= 0 ? " LIMIT " + limit + " OFFSET " + offset : "")
+                + " @" + TableStats.getStatsVersion() + "."
+                + CardinalityFeedback.getVersion();
+        LogicalPlan lp = QueryPlanCache.get(key);
+        if (lp != null)
+            return lp;
+        try {
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream((shape + ";")
+                    .getBytes("UTF-8")));
+            ZStatement stmt = p.readStatement();
+            if (!(stmt instanceof ZQuery))
+                throw new ParsingException("Not a query: " + shape);
+            lp = parser.parseQueryLogicalPlan(tid, (ZQuery) stmt);
+        } catch (Zql.ParseException e) {
+            throw new ParsingException(e);
+        } catch (IOException e) {
+            throw new ParsingException(e);
+        }
+        if (lp.numParameters() != constants.length)
+            throw new ParsingException(
+                    "Constants are only supported compared with a field: "
+                            + shape);
+        if (limit >= 0)
+            lp.addLimit(limit, offset);
+        QueryPlanCache.put(key, lp);
+        return lp;
+    }
+}
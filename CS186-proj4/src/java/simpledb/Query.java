@@ -113,6 +113,10 @@ public class Query implements Serializable {
             cnt++;
         }
         System.out.println("\n " + cnt + " rows.");
+        // what the plan returned corrects the estimates of later queries
+        if (logicalPlan != null)
+            CardinalityFeedback.record(op, logicalPlan.getTableAliasToIdMapping(),
+                    TableStats.getStatsMap());
         this.close();
     }
 }
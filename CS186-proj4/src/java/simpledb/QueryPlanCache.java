@@ -0,0 +1,92 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * QueryPlanCache keeps the plans made for prepared queries (see
+ * {@link PreparedQuery}), by the shape of the query and the versions of the
+ * statistics and the feedback they were made with (see
+ * {@link TableStats#getStatsVersion} and
+ * {@link CardinalityFeedback#getVersion}), so that a query run again is
+ * neither parsed nor optimized again. A plan made with statistics that have
+ * since been replaced, or with estimates that feedback has since moved
+ * far, is not found any more, and is forgotten in turn: the plans used
+ * least recently are dropped once there are {@link #getCapacity} of them.
+ */
+public class QueryPlanCache {
+
+    /** Default number of plans kept */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static int capacity = DEFAULT_CAPACITY;
+    private static long hits = 0, misses = 0;
+
+    private static final LinkedHashMap<String, LogicalPlan> plans = new LinkedHashMap<String, LogicalPlan>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        protected boolean removeEldestEntry(Map.Entry<String, LogicalPlan> eldest) {
+            return size() > capacity;
+        }
+    };
+
+    /**
+     * Sets the number of plans kept, dropping the ones used least recently
+     * if there are more.
+     *
+     * @param n
+     *            the number of plans, 0 to keep none
+     */
+    public static synchronized void setCapacity(int n) {
+        if (n < 0)
+            throw new IllegalArgumentException("capacity " + n);
+        capacity = n;
+        Iterator<String> it = plans.keySet().iterator();
+        while (plans.size() > capacity) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public static synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /** Forgets every plan, and resets the counts of hits and misses */
+    public static synchronized void clear() {
+        plans.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    /** @return the plan kept under a key, or null if there is none */
+    static synchronized LogicalPlan get(String key) {
+        LogicalPlan lp = plans.get(key);
+        if (lp == null)
+            misses++;
+        else
+            hits++;
+        return lp;
+    }
+
+    /** Keeps a plan under a key */
+    static synchronized void put(String key, LogicalPlan lp) {
+        if (capacity > 0)
+            plans.put(key, lp);
+    }
+
+    /** @return the number of plans kept */
+    public static synchronized int size() {
+        return plans.size();
+    }
+
+    /** @return the number of lookups that found a plan */
+    public static synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that found none */
+    public static synchronized long getMisses() {
+        return misses;
+    }
+}
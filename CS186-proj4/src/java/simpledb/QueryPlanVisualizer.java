@@ -9,12 +9,19 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String BLOCK_JOIN = "⨝(block)";
+    static final String MERGE_JOIN = "⨝(merge)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String BATCH = "batch";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
+    static final String STREAM_GROUPBY = "g(stream)";
+    static final String LIMIT = "limit";
+    static final String TOPN = "top";
+    static final String FETCH = "fetch";
     static final String SPACE = "  ";
 
     private int calculateQueryPlanTreeDepth(DbIterator root) {
@@ -26,14 +33,16 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         DbIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin
+                || o instanceof BlockNestedLoopJoin
+                || o instanceof SortMergeJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
         }
         else
         {
-            if (children!=null && children[0]!=null)
+            if (children!=null && children.length>0 && children[0]!=null)
                 return this.calculateQueryPlanTreeDepth(children[0])+2;
         }
         return 2;
@@ -56,6 +65,106 @@ public class QueryPlanVisualizer {
 
     }
 
+    private SubTreeDescriptor buildJoinNode(String symbol, Operator j,
+            JoinPredicate jp, int queryPlanDepth, int currentDepth,
+            int adjustDepth, int currentStartPosition,
+            int parentUpperBarStartShift) {
+        SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
+        DbIterator[] children = j.getChildren();
+        TupleDesc td = j.getTupleDesc();
+        String field1 = td.getFieldName(jp.getField1());
+        String field2 = td.getFieldName(jp.getField2()
+                + children[0].getTupleDesc().numFields());
+        thisNode.text = String.format("%1$s(%2$s),card:%3$d", symbol, field1
+                + jp.getOperator() + field2, j.getEstimatedCardinality());
+        int upBarShift = parentUpperBarStartShift;
+        if (symbol.length() / 2 > parentUpperBarStartShift)
+            upBarShift = symbol.length() / 2;
+        SubTreeDescriptor left = this.buildTree(queryPlanDepth,
+                currentDepth + 3 + adjustDepth, children[0],
+                currentStartPosition, upBarShift);
+        SubTreeDescriptor right = this.buildTree(queryPlanDepth,
+                currentDepth + 3 + adjustDepth, children[1],
+                currentStartPosition + left.width + SPACE.length(), 0);
+        thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
+        thisNode.textStartPosition = thisNode.upBarPosition - symbol.length()
+                / 2;
+        thisNode.width = Math.max(left.width + right.width + SPACE.length(),
+                thisNode.textStartPosition + thisNode.text.length()
+                        - currentStartPosition);
+        thisNode.leftChild = left;
+        thisNode.rightChild = right;
+        thisNode.height = currentDepth;
+        return thisNode;
+    }
+
+    private SubTreeDescriptor buildUnaryNode(String symbol, String text,
+            Operator o, int queryPlanDepth, int currentDepth, int adjustDepth,
+            int currentStartPosition, int parentUpperBarStartShift) {
+        SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
+        thisNode.text = text;
+        int upBarShift = parentUpperBarStartShift;
+        if (symbol.length() / 2 > parentUpperBarStartShift)
+            upBarShift = symbol.length() / 2;
+        SubTreeDescriptor child = this.buildTree(queryPlanDepth, currentDepth
+                + 2 + adjustDepth, o.getChildren()[0], currentStartPosition,
+                upBarShift);
+        thisNode.upBarPosition = child.upBarPosition;
+        thisNode.textStartPosition = thisNode.upBarPosition - symbol.length()
+                / 2;
+        thisNode.width = Math.max(child.width, thisNode.textStartPosition
+                + thisNode.text.length() - currentStartPosition);
+        thisNode.leftChild = child;
+        thisNode.height = currentDepth;
+        return thisNode;
+    }
+
+    /** @return the table a scan reads, and the predicates pushed into it */
+    private static String scanText(String tableName, String alias,
+            Predicate[] preds) {
+        // predicates pushed down into the scan are tested as it reads
+        String conds = "";
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(
+                Database.getCatalog().getTableId(tableName));
+        for (Predicate p : preds)
+            conds += (conds.length() > 0 ? " AND " : ",") + alias + "."
+                    + tableTd.getFieldName(p.getField()) + p.getOp()
+                    + p.getOperand();
+        return tableName + (tableName.equals(alias) ? "" : " " + alias) + conds;
+    }
+
+    /** @return the operators of a batch pipeline, from the top down */
+    private static String batchText(TupleAdapter a) {
+        String text = BATCH;
+        String close = "";
+        BatchIterator b = a.getBatchChild();
+        while (b != null) {
+            if (b instanceof BatchAggregate) {
+                TupleDesc td = b.getTupleDesc();
+                String aggTxt = td.getFieldName(0);
+                for (int k = 1; k < td.numFields(); k++)
+                    aggTxt += ", " + td.getFieldName(k);
+                text += "(" + aggTxt;
+                close += ")";
+                b = ((BatchAggregate) b).getChild();
+            } else if (b instanceof BatchProject) {
+                b = ((BatchProject) b).getChild();
+            } else if (b instanceof BatchFilter) {
+                b = ((BatchFilter) b).getChild();
+            } else if (b instanceof BatchSeqScan) {
+                BatchSeqScan s = (BatchSeqScan) b;
+                text += (close.length() > 0 ? ", " : "(") + SCAN + "("
+                        + scanText(s.getTableName(), s.getAlias(),
+                                s.getPushedPredicates()) + ")";
+                close = close.length() > 0 ? close : ")";
+                b = null;
+            } else {
+                b = null;
+            }
+        }
+        return text + close + ",card:" + a.getEstimatedCardinality();
+    }
+
     private SubTreeDescriptor buildTree(int queryPlanDepth, int currentDepth,
             DbIterator queryPlan, int currentStartPosition,
             int parentUpperBarStartShift) {
@@ -65,17 +174,16 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
-//            TupleDesc td = s.getTupleDesc();
-            if (!tableName.equals(alias))
-                alias = " " + alias;
-            else
-                alias = "";
-            thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+        if (queryPlan instanceof SeqScan || queryPlan instanceof TupleAdapter) {
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                thisNode.text = String.format("%1$s(%2$s)", SCAN, scanText(
+                        s.getTableName(), s.getAlias(), s.getPushedPredicates()));
+            } else {
+                // a batch pipeline is drawn as a leaf: it has no DbIterator
+                // children
+                thisNode.text = batchText((TupleAdapter) queryPlan);
+            }
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -109,61 +217,27 @@ public class QueryPlanVisualizer {
 
             if (plan instanceof Join) {
                 Join j = (Join) plan;
-                TupleDesc td = j.getTupleDesc();
-                JoinPredicate jp = j.getJoinPredicate();
-                String field1 = td.getFieldName(jp.getField1());
-                String field2 = td.getFieldName(jp.getField2()
-                        + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", JOIN,
-                        field1 + jp.getOperator() + field2,j.getEstimatedCardinality());
-                int upBarShift = parentUpperBarStartShift;
-                if (JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = JOIN.length() / 2;
-
-                SubTreeDescriptor left = this.buildTree(queryPlanDepth,
-                        currentDepth + adjustDepth + 3, children[0],
-                        currentStartPosition, upBarShift);
-                SubTreeDescriptor right = this.buildTree(queryPlanDepth,
-                        currentDepth + adjustDepth + 3, children[1],
-                        currentStartPosition + left.width + SPACE.length(), 0);
-                thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
-                thisNode.textStartPosition = thisNode.upBarPosition
-                        - JOIN.length() / 2;
-                thisNode.width = Math.max(
-                        left.width + right.width + SPACE.length(),
-                        thisNode.textStartPosition + thisNode.text.length()
-                                - currentStartPosition);
-                thisNode.leftChild = left;
-                thisNode.rightChild = right;
-                thisNode.height = currentDepth;
+                thisNode = this.buildJoinNode(JOIN, j, j.getJoinPredicate(),
+                        queryPlanDepth, currentDepth, adjustDepth,
+                        currentStartPosition, parentUpperBarStartShift);
             } else if (plan instanceof HashEquiJoin) {
                 HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
-                String field1 = td.getFieldName(jp.getField1());
-                String field2 = td.getFieldName(jp.getField2()
-                        + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
-                int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
-                SubTreeDescriptor left = this.buildTree(queryPlanDepth,
-                        currentDepth + 3 + adjustDepth, children[0],
-                        currentStartPosition, upBarShift);
-                SubTreeDescriptor right = this.buildTree(queryPlanDepth,
-                        currentDepth + 3 + adjustDepth, children[1],
-                        currentStartPosition + left.width + SPACE.length(), 0);
-                thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
-                thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
-                thisNode.width = Math.max(
-                        left.width + right.width + SPACE.length(),
-                        thisNode.textStartPosition + thisNode.text.length()
-                                - currentStartPosition);
-                thisNode.leftChild = left;
-                thisNode.rightChild = right;
-                thisNode.height = currentDepth;
+                thisNode = this.buildJoinNode(HASH_JOIN, j,
+                        j.getJoinPredicate(), queryPlanDepth, currentDepth,
+                        adjustDepth, currentStartPosition,
+                        parentUpperBarStartShift);
+            } else if (plan instanceof BlockNestedLoopJoin) {
+                BlockNestedLoopJoin j = (BlockNestedLoopJoin) plan;
+                thisNode = this.buildJoinNode(BLOCK_JOIN, j,
+                        j.getJoinPredicate(), queryPlanDepth, currentDepth,
+                        adjustDepth, currentStartPosition,
+                        parentUpperBarStartShift);
+            } else if (plan instanceof SortMergeJoin) {
+                SortMergeJoin j = (SortMergeJoin) plan;
+                thisNode = this.buildJoinNode(MERGE_JOIN, j,
+                        j.getJoinPredicate(), queryPlanDepth, currentDepth,
+                        adjustDepth, currentStartPosition,
+                        parentUpperBarStartShift);
             }
             else if (plan instanceof Aggregate) {
                 Aggregate a = (Aggregate) plan;
@@ -172,14 +246,20 @@ public class QueryPlanVisualizer {
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
 
+                // the aggregate columns are named op(field)
+                String aggTxt = td.getFieldName(td.numFields() - a.numAggregates());
+                for (int k = td.numFields() - a.numAggregates() + 1; k < td.numFields(); k++)
+                    aggTxt += ", " + td.getFieldName(k);
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggTxt, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    String groupTxt = a.groupFieldNames()[0];
+                    for (int k = 1; k < a.groupFields().length; k++)
+                        groupTxt += ", " + a.groupFieldNames()[k];
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groupTxt, aggTxt, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -198,11 +278,13 @@ public class QueryPlanVisualizer {
                 thisNode.height = currentDepth;
             } else if (plan instanceof Filter) {
                 Filter f = (Filter) plan;
-                Predicate p = f.getPredicate();
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, children[0]
-                        .getTupleDesc().getFieldName(p.getField())
-                        + p.getOp()
-                        + p.getOperand(),f.getEstimatedCardinality());
+                String conds = "";
+                for (Predicate p : f.getPredicates())
+                    conds += (conds.length() > 0 ? " AND " : "")
+                            + children[0].getTupleDesc().getFieldName(p.getField())
+                            + p.getOp() + p.getOperand();
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT,
+                        conds, f.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (SELECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = SELECT.length() / 2;
@@ -261,6 +343,57 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
             }
+            else if (plan instanceof StreamAggregate) {
+                StreamAggregate a = (StreamAggregate) plan;
+                TupleDesc td = a.getTupleDesc();
+                int numGroupFields = a.groupFields().length;
+                String text = STREAM_GROUPBY + "(";
+                for (int k = 0; k < numGroupFields; k++)
+                    text += (k > 0 ? ", " : "") + td.getFieldName(k);
+                text += ")";
+                for (int k = numGroupFields; k < td.numFields(); k++)
+                    text += ", " + td.getFieldName(k);
+                thisNode = this.buildUnaryNode(STREAM_GROUPBY, text + ",card:"
+                        + a.getEstimatedCardinality(), a, queryPlanDepth,
+                        currentDepth, adjustDepth, currentStartPosition,
+                        parentUpperBarStartShift);
+            }
+            else if (plan instanceof TopN) {
+                TopN o = (TopN) plan;
+                thisNode = this.buildUnaryNode(TOPN, String.format(
+                        "%1$s(%2$d,%3$s),card:%4$d", TOPN, o.getN(),
+                        o.getOrderFieldName(), o.getEstimatedCardinality()),
+                        o, queryPlanDepth, currentDepth, adjustDepth,
+                        currentStartPosition, parentUpperBarStartShift);
+            } else if (plan instanceof Limit) {
+                Limit l = (Limit) plan;
+                thisNode = this.buildUnaryNode(LIMIT, String.format(
+                        "%1$s(%2$d,%3$d),card:%4$d", LIMIT, l.getLimit(),
+                        l.getOffset(), l.getEstimatedCardinality()), l,
+                        queryPlanDepth, currentDepth, adjustDepth,
+                        currentStartPosition, parentUpperBarStartShift);
+            } else if (plan instanceof JoinFilter) {
+                JoinFilter f = (JoinFilter) plan;
+                thisNode = this.buildUnaryNode(SELECT, String.format(
+                        "%1$s(%2$s%3$s%4$s),card:%5$d", SELECT,
+                        f.getField1Name(), f.getJoinPredicate().getOperator(),
+                        f.getField2Name(), f.getEstimatedCardinality()), f,
+                        queryPlanDepth, currentDepth, adjustDepth,
+                        currentStartPosition, parentUpperBarStartShift);
+            } else if (plan instanceof Fetch) {
+                Fetch f = (Fetch) plan;
+                TupleDesc td = Database.getCatalog().getTupleDesc(f.getTableId());
+                String fields = "";
+                for (int i : f.getFields())
+                    fields += (fields.length() > 0 ? "," : "")
+                            + td.getFieldName(i);
+                thisNode = this.buildUnaryNode(FETCH, String.format(
+                        "%1$s(%2$s.%3$s),card:%4$d", FETCH,
+                        Database.getCatalog().getTableName(f.getTableId()),
+                        fields, f.getEstimatedCardinality()), f,
+                        queryPlanDepth, currentDepth, adjustDepth,
+                        currentStartPosition, parentUpperBarStartShift);
+            }
             else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
                 String name="Exchange";
                 int card=0;
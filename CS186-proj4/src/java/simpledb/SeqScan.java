@@ -6,16 +6,43 @@ import java.util.*;
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * A scan can be given predicates and the fields it must return with
+ * {@link #pushDown}: the predicates are then tested on the bytes of each page,
+ * and only the tuples that satisfy them are decoded, and only those fields.
+ * The fields can include the row id of each tuple, with which {@link Fetch}
+ * reads the other fields of the tuple later on.
  */
 public class SeqScan implements DbIterator {
 
     private static final long serialVersionUID = 1L;
+
+    /**
+     * The field that, pushed down into a scan, returns the row id of each
+     * tuple: an int field named {@link #ROW_ID_NAME}.
+     */
+    public static final int ROW_ID = -1;
+
+    /** The name of the row id field, qualified by the alias of the table */
+    public static final String ROW_ID_NAME = "#rid";
+
     private int tableid;
     private String alias;
     private DbFileIterator i;
     private DbFileIterator i_pos;
     private TupleDesc td;
     private TransactionId tid;
+    private int partition = 0;
+    private int numPartitions = 1;
+    private boolean partitioned = false;
+    // pushed down fields and predicates, in the fields of the table
+    private int[] fields = null;
+    private Predicate[] preds = new Predicate[0];
+    private CompiledPredicate pred = null;
+
+    // the tuples returned in the first pass over the table
+    private long produced = 0;
+    private boolean exhausted = false;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -59,6 +86,21 @@ public class SeqScan implements DbIterator {
             newFieldAr[i] = alias + "." + field;
             typeAr[i] = old_td.getFieldType(i);
         }
+        if (fields != null) {
+            String[] names = new String[fields.length];
+            Type[] types = new Type[fields.length];
+            for (int k = 0; k < fields.length; k++) {
+                if (fields[k] == ROW_ID) {
+                    names[k] = alias + "." + ROW_ID_NAME;
+                    types[k] = Type.INT_TYPE;
+                } else {
+                    names[k] = newFieldAr[fields[k]];
+                    types[k] = typeAr[fields[k]];
+                }
+            }
+            newFieldAr = names;
+            typeAr = types;
+        }
         td = new TupleDesc(typeAr, newFieldAr);
     }
 
@@ -96,21 +138,122 @@ public class SeqScan implements DbIterator {
         // some code goes here
         this.tableid = tableid;
         alias = tableAlias;
+        fields = null;
+        preds = new Predicate[0];
+        pred = null;
         createAliasedTd();
     }
 
+    /**
+     * Creates a sequential scan over one of numPartitions disjoint ranges of
+     * pages of the specified table, so that the table can be scanned by
+     * several threads at once. The ranges are computed when the scan is
+     * opened, and together cover every page of the table. Unlike a scan of
+     * the whole table, a partition scan that is reopened after being closed
+     * starts over, as exchanges reopen their producers to run them again.
+     *
+     * @param partition
+     *            the range to scan, from 0 to numPartitions - 1
+     * @param numPartitions
+     *            the number of ranges the table is divided into
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias,
+            int partition, int numPartitions) {
+        this(tid, tableid, tableAlias);
+        if (numPartitions < 1 || partition < 0 || partition >= numPartitions)
+            throw new IllegalArgumentException("no partition " + partition
+                    + " of " + numPartitions);
+        this.partition = partition;
+        this.numPartitions = numPartitions;
+        this.partitioned = true;
+    }
+
+    /** @return the range of pages scanned, from 0 to numPartitions() - 1 */
+    public int getPartition() {
+        return partition;
+    }
+
+    /** @return the number of ranges the table is divided into */
+    public int numPartitions() {
+        return numPartitions;
+    }
+
     public SeqScan(TransactionId tid, int tableid) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * Restricts the tuples this scan returns to those satisfying the given
+     * predicates, and their fields to the given ones. Must be called before
+     * the scan is opened.
+     *
+     * @param fields
+     *            the fields of the table to return, in order, or null for
+     *            all of them; {@link #ROW_ID} for the row id of the tuple
+     * @param preds
+     *            the predicates over the fields of the table the returned
+     *            tuples satisfy, tested in order
+     * @throws IllegalArgumentException
+     *             if no field is to be returned
+     * @throws IllegalStateException
+     *             if the scan has been opened
+     */
+    public void pushDown(int[] fields, Predicate[] preds) {
+        if (i != null || i_pos != null)
+            throw new IllegalStateException("scan already opened");
+        if (fields != null && fields.length == 0)
+            throw new IllegalArgumentException("no field to return");
+        this.fields = fields == null ? null : fields.clone();
+        this.preds = preds.clone();
+        this.pred = preds.length == 0 ? null : CompiledPredicate.compile(
+                preds, Database.getCatalog().getTupleDesc(tableid));
+        createAliasedTd();
+    }
+
+    /** @return the fields of the table this scan returns, or null for all */
+    public int[] getPushedFields() {
+        return fields == null ? null : fields.clone();
+    }
+
+    /** @return the predicates the tuples this scan returns satisfy */
+    public Predicate[] getPushedPredicates() {
+        return preds.clone();
+    }
+
+    /**
+     * @return an iterator over the given pages of the file, applying any
+     *         pushed down predicates and fields
+     */
+    private DbFileIterator fileIterator(HeapFile file, int startPage,
+            int endPage) {
+        if (fields == null && pred == null)
+            return file.iterator(tid, startPage, endPage);
+        int[] f = fields;
+        if (f == null) {
+            f = new int[td.numFields()];
+            for (int k = 0; k < f.length; k++)
+                f[k] = k;
+        }
+        return new HeapFileIterator(file, tid, startPage, endPage, f, pred, td);
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        if(i_pos != null) {
+        if(i_pos != null && !partitioned) {
             i = i_pos;
         } else {
+            produced = 0;
+            exhausted = false;
             Catalog gc = Database.getCatalog();
             HeapFile file = (HeapFile) gc.getDbFile(tableid);
-            i = file.iterator(tid);
+            if (!partitioned) {
+                i = fileIterator(file, 0, -1);
+            } else {
+                long pages = file.numPages();
+                i = fileIterator(file,
+                        (int) (pages * partition / numPartitions),
+                        (int) (pages * (partition + 1) / numPartitions));
+            }
         }
         i.open();
     }
@@ -131,7 +274,11 @@ public class SeqScan implements DbIterator {
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return i != null && i.hasNext();
+        boolean more = i != null && i.hasNext();
+        if(!more && i != null) {
+            exhausted = true;
+        }
+        return more;
     }
 
     public Tuple next() throws NoSuchElementException,
@@ -141,11 +288,23 @@ public class SeqScan implements DbIterator {
             throw new NoSuchElementException("iterator is closed");
         }
         if(!i.hasNext()) {
+            exhausted = true;
             throw new NoSuchElementException("end of seq scan");
         }
+        if(!exhausted) {
+            produced++;
+        }
         return i.next();
     }
 
+    /**
+     * @return the number of tuples the scan returned in its first pass over
+     *         the table, or -1 if it has not returned all of them yet
+     */
+    public long getActualCardinality() {
+        return exhausted ? produced : -1;
+    }
+
     public void close() {
         // some code goes here
         if(i != null) { 
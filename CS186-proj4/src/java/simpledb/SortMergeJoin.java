@@ -0,0 +1,261 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator joins two children that are both sorted in
+ * ascending order on their join fields. Equality joins are evaluated by
+ * merging the two inputs, buffering only the current run of inner tuples that
+ * share a key so that duplicate keys on both sides are handled. Inequality
+ * (band) joins materialize the sorted inner relation once and, for every
+ * outer tuple, emit the contiguous range of inner tuples that satisfies the
+ * predicate; because the outer input is sorted too, the range boundary only
+ * ever moves forward.
+ * <p>
+ * The output is sorted on the outer join field (and, for equality joins, on
+ * the inner join field as well).
+ *
+ * @see OperatorOrdering
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate pred;
+    private DbIterator child1, child2;
+    private TupleDesc comboTD;
+
+    transient private Tuple outer = null;
+
+    // equality joins: the run of inner tuples equal to runKey
+    transient private ArrayList<Tuple> run = null;
+    transient private Field runKey = null;
+    transient private int runPos = 0;
+    transient private Tuple nextInner = null;
+
+    // band joins: the materialized inner relation and the matching range
+    transient private ArrayList<Tuple> inner = null;
+    transient private int bound = 0;
+    transient private int rangePos = 0;
+    transient private int rangeEnd = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; must be one that
+     *            {@link #supports} accepts
+     * @param child1
+     *            Iterator for the left(outer) relation, sorted ascending on
+     *            the predicate's first field
+     * @param child2
+     *            Iterator for the right(inner) relation, sorted ascending on
+     *            the predicate's second field
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("merge join does not support "
+                    + p.getOperator());
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /**
+     * @return true if a merge join can evaluate predicates with the given
+     *         operator
+     */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LESS_THAN:
+        case LESS_THAN_OR_EQ:
+        case GREATER_THAN:
+        case GREATER_THAN_OR_EQ:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        if (pred.getOperator() == Predicate.Op.EQUALS) {
+            run = new ArrayList<Tuple>();
+        } else {
+            inner = new ArrayList<Tuple>();
+            while (child2.hasNext())
+                inner.add(child2.next());
+        }
+        reset();
+        super.open();
+    }
+
+    private void reset() throws DbException, TransactionAbortedException {
+        outer = null;
+        if (run != null) {
+            run.clear();
+            runKey = null;
+            runPos = 0;
+            nextInner = child2.hasNext() ? child2.next() : null;
+        }
+        bound = rangePos = rangeEnd = 0;
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        run = null;
+        inner = null;
+        outer = nextInner = null;
+        runKey = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        if (run != null)
+            child2.rewind();
+        reset();
+    }
+
+    private static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.GREATER_THAN, b) ? 1 : -1;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The returned tuples are the concatenation of the joining
+     * tuples from the left and right relation.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (run != null)
+            return fetchNextEquals();
+        return fetchNextBand();
+    }
+
+    private Tuple fetchNextEquals() throws TransactionAbortedException,
+            DbException {
+        while (true) {
+            if (outer != null && runPos < run.size())
+                return mergeTuples(outer, run.get(runPos++));
+
+            if (!child1.hasNext())
+                return null;
+            outer = child1.next();
+            Field k1 = outer.getField(pred.getField1());
+            runPos = 0;
+            if (runKey != null && compare(k1, runKey) == 0)
+                continue; // duplicate outer key: replay the buffered run
+
+            run.clear();
+            runKey = null;
+            while (nextInner != null
+                    && compare(nextInner.getField(pred.getField2()), k1) < 0)
+                nextInner = child2.hasNext() ? child2.next() : null;
+            if (nextInner == null)
+                return null; // no inner tuple can match any later outer key
+            if (compare(nextInner.getField(pred.getField2()), k1) == 0) {
+                runKey = nextInner.getField(pred.getField2());
+                while (nextInner != null
+                        && compare(nextInner.getField(pred.getField2()), runKey) == 0) {
+                    run.add(nextInner);
+                    nextInner = child2.hasNext() ? child2.next() : null;
+                }
+            }
+        }
+    }
+
+    private Tuple fetchNextBand() throws TransactionAbortedException,
+            DbException {
+        while (true) {
+            if (outer != null && rangePos < rangeEnd)
+                return mergeTuples(outer, inner.get(rangePos++));
+
+            if (!child1.hasNext())
+                return null;
+            outer = child1.next();
+            Field k1 = outer.getField(pred.getField1());
+            int n = inner.size();
+            switch (pred.getOperator()) {
+            case LESS_THAN: // inner keys > k1: a suffix
+                while (bound < n && compare(innerKey(bound), k1) <= 0)
+                    bound++;
+                rangePos = bound;
+                rangeEnd = n;
+                break;
+            case LESS_THAN_OR_EQ: // inner keys >= k1: a suffix
+                while (bound < n && compare(innerKey(bound), k1) < 0)
+                    bound++;
+                rangePos = bound;
+                rangeEnd = n;
+                break;
+            case GREATER_THAN: // inner keys < k1: a prefix
+                while (bound < n && compare(innerKey(bound), k1) < 0)
+                    bound++;
+                rangePos = 0;
+                rangeEnd = bound;
+                break;
+            case GREATER_THAN_OR_EQ: // inner keys <= k1: a prefix
+                while (bound < n && compare(innerKey(bound), k1) <= 0)
+                    bound++;
+                rangePos = 0;
+                rangeEnd = bound;
+                break;
+            default:
+                throw new DbException("unsupported merge join predicate "
+                        + pred.getOperator());
+            }
+        }
+    }
+
+    private Field innerKey(int i) {
+        return inner.get(i).getField(pred.getField2());
+    }
+
+    private Tuple mergeTuples(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
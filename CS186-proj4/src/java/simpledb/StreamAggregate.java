@@ -0,0 +1,222 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * StreamAggregate computes the same aggregates as {@link Aggregate}, for
+ * input that arrives grouped: all tuples with the same group-by value are
+ * adjacent, as they are when the input is sorted on the group by fields.
+ * Only the state of the current group is kept, and each group is returned as
+ * soon as a tuple of the next group (or the end of the input) is read, so
+ * memory use does not depend on the number of groups and the first result is
+ * available before the input has been consumed.
+ * <p>
+ * The output has the same schema and values as that of {@link Aggregate},
+ * with the groups in input order. If the input is not grouped, a group is
+ * returned once for every run of adjacent tuples.
+ */
+public class StreamAggregate extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private int[] afields;
+    private int[] gfields;
+    private Aggregator.Op[] aops;
+    private boolean[] intAggs;
+
+    // the state of the current group, kept as group 0 of a table without keys
+    transient private GroupTable state = null;
+    transient private Field[] key = null;
+    // the first tuple of the next group, read while finishing the current one
+    transient private Tuple lookahead = null;
+    transient private TupleDesc td = null;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples, grouped on gfields
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator to apply to each of afields
+     * @throws IllegalArgumentException
+     *             if afields and aops differ in length, or an aggregate over a
+     *             string column is not a COUNT
+     */
+    public StreamAggregate(DbIterator child, int[] afields, int[] gfields,
+            Aggregator.Op[] aops) {
+        if (afields.length == 0)
+            throw new IllegalArgumentException("no aggregates to compute");
+        MultiAggregator.outputTupleDesc(child.getTupleDesc(), gfields,
+                afields, aops);
+        this.child = child;
+        this.afields = afields.clone();
+        this.gfields = gfields.clone();
+        this.aops = aops.clone();
+    }
+
+    /**
+     * Constructor for a single aggregate.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples, grouped on gfield
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use
+     */
+    public StreamAggregate(DbIterator child, int afield, int gfield,
+            Aggregator.Op aop) {
+        this(child, new int[] { afield },
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+                new Aggregator.Op[] { aop });
+    }
+
+    /**
+     * @return the (first) groupby field index in the <b>INPUT</b> tuples, or
+     *         {@link simpledb.Aggregator#NO_GROUPING}
+     */
+    public int groupField() {
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+    }
+
+    /** @return the indices of the groupby fields in the <b>INPUT</b> tuples */
+    public int[] groupFields() {
+        return gfields.clone();
+    }
+
+    /**
+     * @return the names of the groupby fields, which are the same in the
+     *         input and the <b>OUTPUT</b> tuples
+     */
+    public String[] groupFieldNames() {
+        String[] names = new String[gfields.length];
+        for (int g = 0; g < gfields.length; g++)
+            names[g] = child.getTupleDesc().getFieldName(gfields[g]);
+        return names;
+    }
+
+    /** @return the number of aggregates computed */
+    public int numAggregates() {
+        return afields.length;
+    }
+
+    /** @return the aggregate fields, in the order of the output columns */
+    public int[] aggregateFields() {
+        return afields.clone();
+    }
+
+    /** @return the aggregate operators, in the order of the output columns */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
+    }
+
+    /**
+     * Returns the TupleDesc of this StreamAggregate, which is the same as
+     * that of an {@link Aggregate} with the same arguments.
+     */
+    public TupleDesc getTupleDesc() {
+        return MultiAggregator.outputTupleDesc(child.getTupleDesc(), gfields,
+                afields, aops);
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        td = getTupleDesc();
+        TupleDesc tdc = child.getTupleDesc();
+        intAggs = new boolean[afields.length];
+        for (int a = 0; a < afields.length; a++)
+            intAggs[a] = tdc.getFieldType(afields[a]) == Type.INT_TYPE;
+        state = new GroupTable(new Type[0], afields.length);
+        key = new Field[gfields.length];
+        lookahead = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        state = null;
+        lookahead = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        state.clear();
+        lookahead = null;
+    }
+
+    private boolean sameGroup(Tuple t) {
+        for (int k = 0; k < gfields.length; k++)
+            if (!key[k].equals(t.getField(gfields[k])))
+                return false;
+        return true;
+    }
+
+    private void merge(Tuple t) {
+        int g = state.findOrAdd(null);
+        for (int a = 0; a < afields.length; a++) {
+            if (intAggs[a])
+                state.add(g, a, ((IntField) t.getField(afields[a])).getValue());
+            else
+                state.increment(g, a);
+        }
+    }
+
+    /**
+     * Operator.fetchNext implementation. Reads the tuples of the next group
+     * and returns its group-by fields followed by the value of each
+     * aggregate.
+     *
+     * @return The next group, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        Tuple first = lookahead;
+        lookahead = null;
+        if (first == null) {
+            if (!child.hasNext())
+                return null;
+            first = child.next();
+        }
+        for (int k = 0; k < gfields.length; k++)
+            key[k] = first.getField(gfields[k]);
+        state.clear();
+        merge(first);
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (!sameGroup(t)) {
+                lookahead = t;
+                break;
+            }
+            merge(t);
+        }
+
+        Tuple out = new Tuple(td);
+        for (int k = 0; k < gfields.length; k++)
+            out.setField(k, key[k]);
+        for (int a = 0; a < afields.length; a++)
+            out.setField(gfields.length + a, state.field(0, a, aops[a]));
+        return out;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
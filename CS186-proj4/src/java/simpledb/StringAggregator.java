@@ -12,7 +12,7 @@ public class StringAggregator implements Aggregator {
     private Type gbfieldtype;
     private int afield;
     private Op what;
-    private HashMap<Field, Integer> aggregate;
+    private GroupTable groups;
 
     /**
      * Aggregate constructor
@@ -32,7 +32,7 @@ public class StringAggregator implements Aggregator {
         this.gbfieldtype = gbfieldtype;
         this.afield = afield;
         this.what = what;
-        this.aggregate = new HashMap<Field, Integer>();
+        this.groups = new GroupTable(gbfield == NO_GROUPING ? null : gbfieldtype);
     }
 
     /**
@@ -41,13 +41,16 @@ public class StringAggregator implements Aggregator {
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        Field gbf = (gbfield == NO_GROUPING) ? null : tup.getField(gbfield);
-        Integer oldval = aggregate.get(gbf);
-        if(oldval == null) {
-            aggregate.put(gbf, new Integer(1));
-        } else {
-            aggregate.put(gbf, new Integer(oldval.intValue() + 1));
-        }
+        int g = groups.findOrAdd(gbfield == NO_GROUPING ? null : tup.getField(gbfield));
+        groups.increment(g);
+    }
+
+    public int numGroups() {
+        return groups.numGroups();
+    }
+
+    public boolean containsGroup(Tuple tup) {
+        return groups.find(gbfield == NO_GROUPING ? null : tup.getField(gbfield)) >= 0;
     }
 
     /**
@@ -61,8 +64,6 @@ public class StringAggregator implements Aggregator {
     public DbIterator iterator() {
         // some code goes here
         TupleDesc td;
-        Tuple t = null;
-        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
         String aggregateName = what + "aggregateVal"; 
         if(gbfield == NO_GROUPING) {
             td = new TupleDesc(new Type[]{Type.INT_TYPE},
@@ -72,18 +73,7 @@ public class StringAggregator implements Aggregator {
                                new String[]{"groupVal", aggregateName});
         }
 
-        for(Field f : aggregate.keySet()) {
-            t = new Tuple(td);
-            IntField ifield = new IntField(aggregate.get(f).intValue());
-            if(td.numFields() == 1) { //no grouping
-                t.setField(0, ifield);
-            } else { //grouping
-                t.setField(0, f);
-                t.setField(1, ifield);
-            }
-            tuples.add(t);
-        }
-        return new TupleIterator(td, tuples);
+        return groups.iterator(td, Op.COUNT);
     }
 
 }
@@ -1,30 +1,77 @@
 package simpledb;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
  * query. 
+ * <p>
+ * The statistics can be saved to a file and loaded back at startup, so that
+ * only the tables that changed since are read again. Inserts and deletes
+ * keep them up to date as they happen; once a table has had enough
+ * modifications since its statistics were gathered, they are gathered again
+ * in the background.
+ * <p>
+ * Groups of two correlated columns of a table can be declared with
+ * {@link #addColumnGroup}; their statistics are then gathered too, and
+ * estimate predicates on both columns together.
  * 
  * This class is not needed in implementing proj1 and proj2.
  */
-public class TableStats {
+public class TableStats implements Serializable {
 
-    private HashSet<PageId> pid_set = new HashSet<PageId>();
+    private static final long serialVersionUID = 2L;
+
+    private int tableid;
+    private int num_pages;
     private int page_io_cost;
-    private Object[] histograms;
+    private EquiDepthHistogram[] histograms;
     private int[] mins;
     private int[] maxes;
     private int tuple_count = 0;
-    private String[] str_fields;
+    private long sampledTuples = 0;
+    private HyperLogLog[] distinct;
+    private ColumnGroupStats[] groups;
     private TupleDesc td;
+    /** Tuples inserted and deleted since the statistics were gathered */
+    private long modifications = 0;
+    private transient boolean analyzing = false;
+
+    // the pages sampled, in order, and the statistics gathered from them
+    private transient HeapFile file;
+    private transient int[] sampledPages;
+    private transient Sample gathered;
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
+    /** The column groups declared for each table, by name */
+    private static final ConcurrentHashMap<String, List<int[]>> columnGroups = new ConcurrentHashMap<String, List<int[]>>();
+
+    /** Counts the times statistics were replaced, see {@link #getStatsVersion} */
+    private static final AtomicLong statsVersion = new AtomicLong();
+
     static final int IOCOSTPERPAGE = 1000;
 
     public static TableStats getTableStats(String tablename) {
@@ -33,10 +80,12 @@ public class TableStats {
 
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
+        statsVersion.incrementAndGet();
     }
     
     public static void setStatsMap(HashMap<String,TableStats> s)
     {
+        statsVersion.incrementAndGet();
         try {
             java.lang.reflect.Field statsMapF = TableStats.class.getDeclaredField("statsMap");
             statsMapF.setAccessible(true);
@@ -57,18 +106,264 @@ public class TableStats {
         return statsMap;
     }
 
+    /**
+     * @return a number that changes whenever the statistics of a table are
+     *         replaced, by computing, loading or analyzing them again, so
+     *         that plans made with the old ones can be told apart; tuples
+     *         counted in since do not change it
+     */
+    public static long getStatsVersion() {
+        return statsVersion.get();
+    }
+
+    /**
+     * Computes the statistics of every table of the catalog. The page ranges
+     * of all the tables are read in parallel.
+     */
     public static void computeStatistics() {
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
 
         System.out.println("Computing table stats.");
+        ArrayList<TableStats> stats = new ArrayList<TableStats>();
+        ArrayList<String> names = new ArrayList<String>();
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            stats.add(new TableStats(tableid, IOCOSTPERPAGE, sampleRate));
+            names.add(Database.getCatalog().getTableName(tableid));
         }
+        gather(stats);
+        for (int k = 0; k < stats.size(); k++)
+            setTableStats(names.get(k), stats.get(k));
+        saveStatistics();
         System.out.println("Done.");
     }
 
+    /**
+     * Declares two columns of a table whose values are correlated, so that
+     * the statistics gathered from then on for the table also hold the
+     * number of distinct pairs of their values and a two-dimensional
+     * histogram of them, used to estimate predicates on both columns. The
+     * declaration is saved with the statistics, if they are saved to a file,
+     * and restored by {@link #loadStatistics}.
+     * 
+     * @param tablename
+     *            the table, which must be in the catalog
+     * @param field1
+     *            the name of a column of the table
+     * @param field2
+     *            the name of another column of the table
+     * @throws NoSuchElementException
+     *             if the table or a column does not exist
+     * @throws IllegalArgumentException
+     *             if the two columns are the same
+     */
+    public static void addColumnGroup(String tablename, String field1,
+            String field2) throws NoSuchElementException {
+        TupleDesc td = Database.getCatalog().getTupleDesc(
+                Database.getCatalog().getTableId(tablename));
+        int[] group = { td.fieldNameToIndex(field1), td.fieldNameToIndex(field2) };
+        if (group[0] == group[1])
+            throw new IllegalArgumentException("column group of " + field1
+                    + " with itself");
+        List<int[]> declared = new ArrayList<int[]>();
+        List<int[]> old = columnGroups.get(tablename);
+        if (old != null)
+            declared.addAll(old);
+        declared.add(group);
+        columnGroups.put(tablename, declared);
+        saveStatistics();
+    }
+
+    /** Removes the column groups declared for a table */
+    public static void removeColumnGroups(String tablename) {
+        if (columnGroups.remove(tablename) != null)
+            saveStatistics();
+    }
+
+    /** @return the column groups declared for a table */
+    private static int[][] declaredGroups(String tablename) {
+        List<int[]> declared = columnGroups.get(tablename);
+        return declared == null ? new int[0][] : declared
+                .toArray(new int[declared.size()][]);
+    }
+
+    /**
+     * Declares again the column groups saved for a table, unless some are
+     * declared already or the saved ones no longer fit its schema.
+     */
+    private static void restoreGroups(String tablename, TupleDesc td,
+            Object saved) {
+        if (!(saved instanceof List) || columnGroups.containsKey(tablename))
+            return;
+        List<int[]> declared = new ArrayList<int[]>();
+        for (Object o : (List<?>) saved) {
+            if (!(o instanceof int[]))
+                return;
+            int[] group = (int[]) o;
+            if (group.length != 2 || group[0] == group[1])
+                return;
+            for (int f : group)
+                if (f < 0 || f >= td.numFields())
+                    return;
+            declared.add(group);
+        }
+        if (!declared.isEmpty())
+            columnGroups.put(tablename, declared);
+    }
+
+    private static File statsFile = null;
+
+    /**
+     * Sets the file that {@link #saveStatistics} saves the statistics to, or
+     * null not to save them.
+     */
+    public static void setStatsFile(File f) {
+        statsFile = f;
+    }
+
+    /** @return the file the statistics are saved to, or null if none */
+    public static File getStatsFile() {
+        return statsFile;
+    }
+
+    /**
+     * Loads the statistics saved to a file, and from then on saves them
+     * there. The column groups saved for a table are declared again if none
+     * are declared yet. The saved statistics of a table are kept if its
+     * schema, number of pages and column groups are still the same; the
+     * statistics of the other tables of the catalog are computed again, as
+     * by {@link #computeStatistics}, and saved.
+     * 
+     * @param f
+     *            the statistics file, which need not exist yet
+     */
+    public static void loadStatistics(File f) {
+        setStatsFile(f);
+        Map<?, ?> saved = new HashMap<String, TableStats>();
+        Map<?, ?> savedGroups = new HashMap<String, List<int[]>>();
+        if (f.exists()) {
+            try {
+                ObjectInputStream in = new ObjectInputStream(
+                        new FileInputStream(f));
+                try {
+                    saved = (Map<?, ?>) in.readObject();
+                    try {
+                        savedGroups = (Map<?, ?>) in.readObject();
+                    } catch (EOFException e) {
+                        // saved without any column groups
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                System.out.println("Unable to read table stats from " + f
+                        + ": " + e);
+            } catch (ClassNotFoundException e) {
+                System.out.println("Unable to read table stats from " + f
+                        + ": " + e);
+            }
+        }
+
+        ArrayList<TableStats> stats = new ArrayList<TableStats>();
+        ArrayList<String> names = new ArrayList<String>();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            String name = Database.getCatalog().getTableName(tableid);
+            DbFile file = Database.getCatalog().getDbFile(tableid);
+            restoreGroups(name, file.getTupleDesc(), savedGroups.get(name));
+            Object s = saved.get(name);
+            if (s instanceof TableStats
+                    && ((TableStats) s).td.equals(file.getTupleDesc())
+                    && ((TableStats) s).num_pages == ((HeapFile) file).numPages()
+                    && Arrays.deepEquals(((TableStats) s).groupFields(),
+                            declaredGroups(name))) {
+                ((TableStats) s).tableid = tableid;
+                setTableStats(name, (TableStats) s);
+            } else {
+                stats.add(new TableStats(tableid, IOCOSTPERPAGE, sampleRate));
+                names.add(name);
+            }
+        }
+        if (stats.isEmpty())
+            return;
+        System.out.println("Computing table stats for " + names + ".");
+        gather(stats);
+        for (int k = 0; k < stats.size(); k++)
+            setTableStats(names.get(k), stats.get(k));
+        saveStatistics();
+        System.out.println("Done.");
+    }
+
+    /**
+     * Saves the statistics of all the tables, and the column groups declared
+     * for them, to the file they were loaded from by {@link #loadStatistics},
+     * if any. The file is replaced whole.
+     */
+    public static synchronized void saveStatistics() {
+        if (statsFile == null)
+            return;
+        File temp = new File(statsFile.getPath() + ".tmp");
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(
+                    new FileOutputStream(temp));
+            try {
+                out.writeObject(new HashMap<String, TableStats>(statsMap));
+                out.writeObject(new HashMap<String, List<int[]>>(columnGroups));
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(statsFile)) {
+                statsFile.delete();
+                if (!temp.renameTo(statsFile))
+                    throw new IOException("cannot rename " + temp);
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to save table stats to " + statsFile
+                    + ": " + e);
+        }
+    }
+
+    /**
+     * Counts a tuple inserted into a table in its statistics, if it has any.
+     * 
+     * @param tableid
+     *            The table the tuple was inserted into
+     * @param t
+     *            The tuple
+     */
+    public static void tupleInserted(int tableid, Tuple t) {
+        TableStats s = forTable(tableid);
+        if (s != null)
+            s.modify(t, 1);
+    }
+
+    /**
+     * Counts a tuple deleted from a table in its statistics, if it has any.
+     * 
+     * @param tableid
+     *            The table the tuple was deleted from
+     * @param t
+     *            The tuple
+     */
+    public static void tupleDeleted(int tableid, Tuple t) {
+        TableStats s = forTable(tableid);
+        if (s != null)
+            s.modify(t, -1);
+    }
+
+    /** @return the statistics of a table of the catalog, or null if there
+        are none */
+    private static TableStats forTable(int tableid) {
+        try {
+            Database.getCatalog().getDbFile(tableid);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+        TableStats s = statsMap.get(Database.getCatalog().getTableName(tableid));
+        return s != null && s.tableid == tableid ? s : null;
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -76,9 +371,46 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /** Number of most common values kept per column, besides the bins */
+    static final int NUM_MCVS = 20;
+
+    /** Number of tuples sampled to build the histograms from */
+    static final int SAMPLE_TUPLES = 10000;
+
+    /** Tables of up to this many pages are read whole, whatever the sample
+        rate */
+    static final int MIN_SAMPLE_PAGES = 256;
+
+    /** Number of sampled pages read by one task */
+    static final int RANGE_PAGES = 256;
+
+    /** A table is analyzed again once the tuples inserted and deleted since
+        it was last exceed this many, plus ANALYZE_SCALE of its tuples */
+    static final int ANALYZE_THRESHOLD = 500;
+    static final double ANALYZE_SCALE = 0.1;
+
+    private static double sampleRate = 0.01;
+
+    /**
+     * Sets the fraction of the pages of a table that
+     * {@link #computeStatistics} reads; tables of at most
+     * {@link #MIN_SAMPLE_PAGES} pages are always read whole. 1 reads every
+     * page.
+     */
+    public static void setSampleRate(double rate) {
+        if (rate <= 0 || rate > 1)
+            throw new IllegalArgumentException("sample rate " + rate);
+        sampleRate = rate;
+    }
+
+    /** @return the fraction of the pages of a table computeStatistics reads */
+    public static double getSampleRate() {
+        return sampleRate;
+    }
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
-     * column of a table
+     * column of a table, from all of its pages.
      * 
      * @param tableid
      *            The table over which to compute statistics
@@ -87,93 +419,338 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
-        // some code goes here
+        this(tableid, ioCostPerPage, 1.0);
+        ArrayList<TableStats> stats = new ArrayList<TableStats>();
+        stats.add(this);
+        gather(stats);
+    }
+
+    /**
+     * Sets up the statistics of a table, to be computed by {@link #gather}
+     * from a sample of its pages.
+     * <p>
+     * The sample is a stratified random sample of whole pages, read in file
+     * order straight from the table's file, or from the buffer pool if a
+     * page is already there, so that neither the buffer pool nor its locks
+     * are disturbed. The number of pages is exact; the tuple count is scaled
+     * up from the sampled pages, and the histograms are built from a
+     * uniform sample of up to {@link #SAMPLE_TUPLES} of their tuples.
+     * 
+     * @param rate
+     *            the fraction of the pages to read
+     */
+    private TableStats(int tableid, int ioCostPerPage, double rate) {
+        this.tableid = tableid;
         page_io_cost = ioCostPerPage;
-        DbFile table = Database.getCatalog().getDbFile(tableid);
-        DbFileIterator i = table.iterator(new TransactionId());
-        td = table.getTupleDesc();
+        file = (HeapFile) Database.getCatalog().getDbFile(tableid);
+        td = file.getTupleDesc();
+        num_pages = file.numPages();
+
+        int n = num_pages;
+        int wanted = n <= MIN_SAMPLE_PAGES ? n : (int) Math.min(n, Math.max(
+                MIN_SAMPLE_PAGES, Math.ceil(rate * n)));
+        // one page picked at random in each of wanted equal ranges, so that
+        // the sample follows data loaded in order more closely
+        Random random = new Random(tableid);
+        sampledPages = new int[wanted];
+        for (int k = 0; k < wanted; k++)
+            sampledPages[k] = (int) ((k + random.nextDouble()) * n / wanted);
+        int[][] grouped = declaredGroups(Database.getCatalog().getTableName(tableid));
+        groups = new ColumnGroupStats[grouped.length];
+        gathered = new Sample(td.numFields(), grouped, tableid);
+    }
+
+    /**
+     * Reads the sampled pages of some tables, a range of pages at a time,
+     * on as many threads as there are processors, and then builds their
+     * statistics.
+     */
+    private static void gather(List<TableStats> stats) {
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        for (final TableStats ts : stats) {
+            for (int start = 0; start < ts.sampledPages.length; start += RANGE_PAGES) {
+                final int from = start;
+                final int to = Math.min(ts.sampledPages.length, start + RANGE_PAGES);
+                tasks.add(new Runnable() {
+                    public void run() {
+                        Sample part = new Sample(ts.td.numFields(),
+                                ts.gathered.groups, from);
+                        for (int k = from; k < to; k++)
+                            part.addPage(ts.readPage(ts.sampledPages[k]));
+                        ts.merge(part);
+                    }
+                });
+            }
+        }
+        int threads = Math.min(tasks.size(), Runtime.getRuntime()
+                .availableProcessors());
+        if (threads <= 1) {
+            for (Runnable task : tasks)
+                task.run();
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                ArrayList<Future<?>> done = new ArrayList<Future<?>>();
+                for (Runnable task : tasks)
+                    done.add(pool.submit(task));
+                for (Future<?> f : done)
+                    f.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("statistics collection interrupted", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("statistics collection failed", e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+        for (TableStats ts : stats)
+            ts.finish();
+    }
+
+    /** @return the page of the table, without going through the buffer
+        pool unless it is there already */
+    private HeapPage readPage(int pageNo) {
+        HeapPageId pid = new HeapPageId(file.getId(), pageNo);
+        Page p = Database.getBufferPool().peekPage(pid);
+        return (HeapPage) (p != null ? p : file.readPage(pid));
+    }
+
+    private synchronized void merge(Sample part) {
+        gathered.merge(part);
+    }
+
+    /** Builds the statistics of the table from the sample gathered */
+    private void finish() {
+        Sample g = gathered;
         int td_len = td.numFields();
-        mins = new int[td_len];
-        maxes = new int[td_len];
-        str_fields = new String[td_len];
+        mins = g.mins;
+        maxes = g.maxes;
+        distinct = g.distinct;
+        // scale the tuples sampled up to the pages of the table
+        tuple_count = sampledPages.length == num_pages ? (int) g.tuples
+                : (int) Math.round((double) g.tuples * num_pages
+                        / Math.max(1, sampledPages.length));
+        sampledTuples = g.tuples;
+        histograms = new EquiDepthHistogram[td_len];
         for(int k = 0; k < td_len; k++) {
-            mins[k] = Integer.MAX_VALUE;
-            maxes[k] = Integer.MIN_VALUE;
+            ArrayList<Field> values = new ArrayList<Field>(g.size);
+            for(int n = 0; n < g.size; n++) {
+                Field f = g.sample[n].getField(k);
+                if(f != null) {
+                    values.add(f);
+                }
+            }
+            histograms[k] = new EquiDepthHistogram(
+                    values.toArray(new Field[values.size()]), NUM_HIST_BINS,
+                    NUM_MCVS, (double) tuple_count * values.size() / Math.max(1, g.size));
+        }
+        for (int k = 0; k < groups.length; k++) {
+            int[] fields = g.groups[k];
+            ArrayList<Field> a = new ArrayList<Field>(g.size), b = new ArrayList<Field>(g.size);
+            for (int n = 0; n < g.size; n++) {
+                Field f1 = g.sample[n].getField(fields[0]);
+                Field f2 = g.sample[n].getField(fields[1]);
+                if (f1 != null && f2 != null) {
+                    a.add(f1);
+                    b.add(f2);
+                }
+            }
+            groups[k] = new ColumnGroupStats(fields[0], fields[1],
+                    a.toArray(new Field[a.size()]), b.toArray(new Field[b.size()]),
+                    (double) tuple_count * a.size() / Math.max(1, g.size),
+                    g.groupDistinct[k]);
+        }
+        file = null;
+        sampledPages = null;
+        gathered = null;
+    }
+
+    /**
+     * Adjusts the statistics for a tuple inserted (sign 1) or deleted (sign
+     * -1): the tuple count, the histograms and, for an insert, the range and
+     * distinct value sketch of each column. Starts gathering the statistics
+     * again in the background once they are stale.
+     */
+    private synchronized void modify(Tuple t, int sign) {
+        tuple_count = Math.max(0, tuple_count + sign);
+        if (sign > 0)
+            sampledTuples++;
+        for (int k = 0; k < histograms.length; k++) {
+            Field f = t.getField(k);
+            if (f == null)
+                continue;
+            histograms[k].add(f, sign);
+            if (sign > 0) {
+                distinct[k].add(f);
+                if (f.getType() == Type.INT_TYPE) {
+                    mins[k] = Math.min(mins[k], ((IntField) f).getValue());
+                    maxes[k] = Math.max(maxes[k], ((IntField) f).getValue());
+                }
+            }
         }
-        histograms = new Object[td_len];
+        for (ColumnGroupStats group : groups) {
+            int[] fields = group.getFields();
+            Field f1 = t.getField(fields[0]), f2 = t.getField(fields[1]);
+            if (f1 != null && f2 != null)
+                group.add(f1, f2, sign);
+        }
+        DbFile f = Database.getCatalog().getDbFile(tableid);
+        if (f instanceof HeapFile)
+            num_pages = ((HeapFile) f).numPages();
+        modifications++;
+        if (!analyzing && modifications > ANALYZE_THRESHOLD + ANALYZE_SCALE
+                * tuple_count) {
+            analyzing = true;
+            analyzer.execute(new Runnable() {
+                public void run() {
+                    analyze();
+                }
+            });
+        }
+    }
 
-        //placeholder variables
-        Tuple t = null;
-        PageId pid = null;
-        Field f = null;
-        Type type = null;
+    /** Runs the background analyses, one at a time */
+    private static final ExecutorService analyzer = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TableStats analyzer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
 
-        //compute min/max values, set pageID for scan cost estimation, count tuples
+    /** Gathers the statistics of the table again, replaces these with them,
+        and saves them */
+    private void analyze() {
         try {
-        i.open();
-        while(i.hasNext()) {
-            t = i.next();
-            for(int k = 0; k < td_len; k++) {
-                f = t.getField(k);
-                type = td.getFieldType(k);
-                if(f != null && type == Type.INT_TYPE) {
+            String name = Database.getCatalog().getTableName(tableid);
+            TableStats fresh = new TableStats(tableid, page_io_cost, sampleRate);
+            ArrayList<TableStats> stats = new ArrayList<TableStats>();
+            stats.add(fresh);
+            gather(stats);
+            if (statsMap.replace(name, this, fresh)) {
+                statsVersion.incrementAndGet();
+                saveStatistics();
+            }
+        } catch (RuntimeException e) {
+            // the table may have been dropped meanwhile
+            e.printStackTrace();
+        } finally {
+            synchronized (this) {
+                analyzing = false;
+            }
+        }
+    }
+
+    /** Keeps the statistics from changing while they are written */
+    private synchronized void writeObject(ObjectOutputStream out)
+            throws IOException {
+        out.defaultWriteObject();
+    }
+
+    /**
+     * The statistics gathered from some pages of a table: the number of
+     * tuples, the range and distinct value sketch of each column, the
+     * distinct value sketch of each column group, and a uniform sample of
+     * the tuples, kept by reservoir sampling. Samples of
+     * disjoint pages merge into the sample of all of them.
+     */
+    private static class Sample {
+        long tuples = 0;
+        final int[] mins, maxes;
+        final HyperLogLog[] distinct;
+        final int[][] groups;
+        final HyperLogLog[] groupDistinct;
+        final Tuple[] sample = new Tuple[SAMPLE_TUPLES];
+        int size = 0;
+        final Random random;
+
+        Sample(int fields, int[][] groups, long seed) {
+            mins = new int[fields];
+            maxes = new int[fields];
+            distinct = new HyperLogLog[fields];
+            for (int k = 0; k < fields; k++) {
+                mins[k] = Integer.MAX_VALUE;
+                maxes[k] = Integer.MIN_VALUE;
+                distinct[k] = new HyperLogLog();
+            }
+            this.groups = groups;
+            groupDistinct = new HyperLogLog[groups.length];
+            for (int k = 0; k < groups.length; k++)
+                groupDistinct[k] = new HyperLogLog();
+            random = new Random(seed);
+        }
+
+        void addPage(HeapPage page) {
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext())
+                add(it.next());
+        }
+
+        void add(Tuple t) {
+            for (int k = 0; k < mins.length; k++) {
+                Field f = t.getField(k);
+                if (f == null)
+                    continue;
+                distinct[k].add(f);
+                if (f.getType() == Type.INT_TYPE) {
                     mins[k] = Math.min(mins[k], ((IntField) f).getValue());
                     maxes[k] = Math.max(maxes[k], ((IntField) f).getValue());
-                } else {
-                    str_fields[k] = ((StringField) f).getValue();
                 }
             }
-            pid = t.getRecordId().getPageId();
-            pid_set.add(pid);
-            tuple_count++;
+            for (int k = 0; k < groups.length; k++) {
+                Field f1 = t.getField(groups[k][0]), f2 = t.getField(groups[k][1]);
+                if (f1 != null && f2 != null)
+                    groupDistinct[k].addHash(ColumnGroupStats.hash(f1, f2));
+            }
+            if (size < SAMPLE_TUPLES) {
+                sample[size++] = t;
+            } else {
+                long slot = (long) (random.nextDouble() * (tuples + 1));
+                if (slot < SAMPLE_TUPLES)
+                    sample[(int) slot] = t;
+            }
+            tuples++;
         }
 
-        //initialize histograms
-        for(int k = 0; k < td_len; k++) {
-            type = td.getFieldType(k);
-            if(type == Type.INT_TYPE) {
-                histograms[k] = new IntHistogram(NUM_HIST_BINS, mins[k], maxes[k]);
-            } else if(type == Type.STRING_TYPE) {
-                histograms[k] = new StringHistogram(NUM_HIST_BINS);
+        /**
+         * Adds the statistics of other pages to these. The merged sample
+         * takes tuples from each sample in proportion to the tuples it was
+         * drawn from.
+         */
+        void merge(Sample other) {
+            for (int k = 0; k < mins.length; k++) {
+                mins[k] = Math.min(mins[k], other.mins[k]);
+                maxes[k] = Math.max(maxes[k], other.maxes[k]);
+                distinct[k].merge(other.distinct[k]);
+            }
+            for (int k = 0; k < groups.length; k++)
+                groupDistinct[k].merge(other.groupDistinct[k]);
+            long total = tuples + other.tuples;
+            if (size + other.size <= SAMPLE_TUPLES) {
+                System.arraycopy(other.sample, 0, sample, size, other.size);
+                size += other.size;
             } else {
-                throw new RuntimeException("Unknown field type found!");
+                int mine = (int) Math.round((double) SAMPLE_TUPLES * tuples / total);
+                mine = Math.max(SAMPLE_TUPLES - other.size, Math.min(size, mine));
+                // a random subset of each sample, moved to its front
+                shuffle(sample, size, mine);
+                shuffle(other.sample, other.size, SAMPLE_TUPLES - mine);
+                System.arraycopy(other.sample, 0, sample, mine, SAMPLE_TUPLES - mine);
+                size = SAMPLE_TUPLES;
             }
+            tuples = total;
         }
 
-        i.rewind();
-        while(i.hasNext()) {
-            t = i.next();
-            for(int k = 0; k < td_len; k++) {
-                type = td.getFieldType(k);
-                f = t.getField(k);
-                if(f != null) {
-                    if(type == Type.INT_TYPE) {
-                        ((IntHistogram) histograms[k])
-                        .addValue(((IntField) f).getValue());
-                    } else if(type == Type.STRING_TYPE) {
-                        ((StringHistogram) histograms[k])
-                        .addValue(((StringField) f).getValue());
-                    } else {
-                        throw new RuntimeException("Unknown field type found!");
-                    }
-                }
+        /** Moves k random elements of a[0..n-1] to its front */
+        private void shuffle(Tuple[] a, int n, int k) {
+            for (int i = 0; i < k; i++) {
+                int j = i + random.nextInt(n - i);
+                Tuple t = a[i];
+                a[i] = a[j];
+                a[j] = t;
             }
         }
-        } catch(DbException e) {
-            System.err.println("See TableStats()");
-            e.printStackTrace();
-        } catch(TransactionAbortedException e) {
-            System.err.println("See TableStats()");
-            e.printStackTrace();
-        }
-        i.close();
     }
 
     /**
@@ -190,7 +767,7 @@ public class TableStats {
      */
     public double estimateScanCost() {
         // some code goes here
-        return page_io_cost * pid_set.size();
+        return (double) page_io_cost * num_pages;
     }
 
     /**
@@ -219,19 +796,7 @@ public class TableStats {
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        double total = 0.0;
-        int n = 0;
-        Type type = td.getFieldType(field);
-        for(int i = mins[field]; i <= maxes[field]; i++) {
-            if(type == Type.INT_TYPE) {
-              total += estimateSelectivity(field, op, new IntField(i));
-            } else {
-              total += estimateSelectivity(field, op, 
-                       new StringField(str_fields[i], str_fields[i].length()));
-            }
-            n++;
-        }
-        return total / n;
+        return histograms[field].avgSelectivity(op);
     }
 
     /**
@@ -249,16 +814,151 @@ public class TableStats {
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
         // some code goes here
-        Type type = td.getFieldType(field);
-        if(type == Type.INT_TYPE) {
-            return ((IntHistogram) histograms[field])
-                   .estimateSelectivity(op, ((IntField) constant).getValue());
-        } else if(type == Type.STRING_TYPE) {
-            return ((StringHistogram) histograms[field])
-                   .estimateSelectivity(op, ((StringField) constant).getValue());
-        } else {
-            throw new RuntimeException("Unknown field type found!");
+        return histograms[field].estimateSelectivity(op, constant);
+    }
+
+    /**
+     * Estimate the fraction of the tuples of the table whose value of an
+     * integer field lies in a range.
+     * 
+     * @param field
+     *            The field, which must be an integer field
+     * @param lo
+     *            The smallest value of the range
+     * @param hi
+     *            The largest value of the range
+     * @return The estimated fraction of the tuples in the range
+     */
+    public double estimateRangeSelectivity(int field, int lo, int hi) {
+        if(lo > hi) {
+            return 0.0;
+        }
+        double sel = estimateSelectivity(field, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(lo))
+                     - estimateSelectivity(field, Predicate.Op.GREATER_THAN, new IntField(hi));
+        return Math.max(0.0, Math.min(1.0, sel));
+    }
+
+    /**
+     * Estimate the number of distinct values of a field, from a
+     * {@link HyperLogLog} sketch of the field built from the pages sampled.
+     * 
+     * @param field
+     *            The field
+     * @return The estimated number of distinct values, at most the number of
+     *         tuples
+     */
+    public double estimateDistinct(int field) {
+        return scaleDistinct(distinct[field].estimate(),
+                histograms[field].singletonFraction());
+    }
+
+    /**
+     * @return the number of distinct values in the table, given their number
+     *         in the tuples read and the fraction of the values sampled that
+     *         occur once in the sample
+     */
+    private double scaleDistinct(double sketched, double singletons) {
+        double d = Math.min(sketched, sampledTuples);
+        if(sampledTuples > 0 && sampledTuples < tuple_count) {
+            // each tuple not sampled has a new value with about the
+            // probability that a sampled value occurs once in the sample
+            d += singletons * (tuple_count - sampledTuples);
+        }
+        return Math.min(d, tuple_count);
+    }
+
+    /**
+     * Estimate the number of distinct pairs of values of two fields declared
+     * as a column group.
+     * 
+     * @param field1
+     *            The first field of the group
+     * @param field2
+     *            The second field of the group
+     * @return The estimated number of distinct pairs of values, or -1 if the
+     *         fields are not a column group of the table
+     */
+    public double estimateDistinct(int field1, int field2) {
+        ColumnGroupStats g = group(field1, field2);
+        return g == null ? -1 : scaleDistinct(g.sketch().estimate(),
+                g.singletonFraction());
+    }
+
+    /** @return the statistics of the column group of two fields, or null */
+    private ColumnGroupStats group(int field1, int field2) {
+        for (ColumnGroupStats g : groups) {
+            int[] fields = g.getFields();
+            if ((fields[0] == field1 && fields[1] == field2)
+                    || (fields[0] == field2 && fields[1] == field1))
+                return g;
         }
+        return null;
+    }
+
+    /** @return the fields of the column groups of the table */
+    private int[][] groupFields() {
+        int[][] fields = new int[groups.length][];
+        for (int k = 0; k < groups.length; k++)
+            fields[k] = groups[k].getFields();
+        return fields;
+    }
+
+    /**
+     * Estimate the selectivity of the conjunction of predicates of the form
+     * <tt>field op constant</tt> on the table. The predicates on both
+     * columns of a column group are estimated together from the statistics
+     * of the group; the others are assumed to be independent.
+     * 
+     * @param preds
+     *            The predicates
+     * @return The estimated fraction of the tuples that satisfy all of them
+     */
+    public double estimateSelectivity(List<Predicate> preds) {
+        boolean[] done = new boolean[preds.size()];
+        double sel = 1.0;
+        for (ColumnGroupStats g : groups) {
+            int[] fields = g.getFields();
+            ArrayList<Predicate> on = new ArrayList<Predicate>();
+            boolean[] onGroup = new boolean[preds.size()];
+            boolean first = false, second = false;
+            for (int k = 0; k < preds.size(); k++) {
+                int field = preds.get(k).getField();
+                if (!done[k] && (field == fields[0] || field == fields[1])) {
+                    on.add(preds.get(k));
+                    onGroup[k] = true;
+                    first |= field == fields[0];
+                    second |= field == fields[1];
+                }
+            }
+            if (!first || !second)
+                continue;
+            sel *= g.estimateSelectivity(on, estimateDistinct(fields[0], fields[1]));
+            for (int k = 0; k < preds.size(); k++)
+                done[k] |= onGroup[k];
+        }
+        for (int k = 0; k < preds.size(); k++) {
+            if (!done[k]) {
+                Predicate p = preds.get(k);
+                sel *= estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+            }
+        }
+        return sel;
+    }
+
+    /**
+     * @return the smallest value of an integer field, or Integer.MAX_VALUE
+     *         if the table is empty
+     */
+    public int minValue(int field) {
+        return mins[field];
+    }
+
+    /**
+     * @return the largest value of an integer field, or Integer.MIN_VALUE if
+     *         the table is empty
+     */
+    public int maxValue(int field) {
+        return maxes[field];
     }
 
     /**
@@ -0,0 +1,152 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY followed by a LIMIT of n rows.
+ * Rather than sorting the whole input, it keeps only the best n tuples seen
+ * so far in a bounded heap whose root is the worst of them, so each input
+ * tuple costs at most O(log n) and memory use is proportional to n. Ties are
+ * broken by input position, giving the same result as a stable sort.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private int orderByField;
+    private String orderByFieldName;
+    private boolean asc;
+    private int n;
+
+    transient private ArrayList<Tuple> top = null;
+    transient private int pos = 0;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param n
+     *            the number of tuples to return
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int n, DbIterator child) {
+        if (n < 0)
+            throw new IllegalArgumentException("negative row count");
+        this.child = child;
+        this.orderByField = orderbyField;
+        this.orderByFieldName = child.getTupleDesc().getFieldName(orderbyField);
+        this.asc = asc;
+        this.n = n;
+    }
+
+    public boolean isASC() {
+        return this.asc;
+    }
+
+    public int getOrderByField() {
+        return this.orderByField;
+    }
+
+    public String getOrderFieldName() {
+        return this.orderByFieldName;
+    }
+
+    /** @return the number of tuples this operator returns at most */
+    public int getN() {
+        return n;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /** A tuple together with its position in the input, to break ties. */
+    private static class Entry {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        final TupleComparator cmp = new TupleComparator(orderByField, asc);
+        // "best first" order; the heap below is its reverse, so its root
+        // is the worst tuple kept so far
+        final Comparator<Entry> order = new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int c = cmp.compare(a.t, b.t);
+                if (c != 0)
+                    return c;
+                return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+            }
+        };
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1, n),
+                Collections.reverseOrder(order));
+        long seq = 0;
+        if (n > 0) {
+            while (child.hasNext()) {
+                Tuple t = child.next();
+                if (heap.size() < n) {
+                    heap.add(new Entry(t, seq));
+                } else if (cmp.compare(t, heap.peek().t) < 0) {
+                    // a later tuple never beats an equal one already kept
+                    heap.poll();
+                    heap.add(new Entry(t, seq));
+                }
+                seq++;
+            }
+        }
+        Entry[] best = heap.toArray(new Entry[heap.size()]);
+        Arrays.sort(best, order);
+        top = new ArrayList<Tuple>(best.length);
+        for (Entry e : best)
+            top.add(e.t);
+        pos = 0;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        top = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        pos = 0;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the best n tuples from the
+     * child operator in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (top != null && pos < top.size())
+            return top.get(pos++);
+        return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -0,0 +1,76 @@
+package simpledb;
+
+import java.util.NoSuchElementException;
+
+/**
+ * TupleAdapter lets batch operators feed tuple-at-a-time operators: it
+ * returns the selected rows of the batches of a {@link BatchIterator} one
+ * tuple at a time.
+ */
+public class TupleAdapter extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private BatchIterator child;
+    transient private TupleBatch batch = null;
+    transient private int pos = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the batches whose rows are returned
+     */
+    public TupleAdapter(BatchIterator child) {
+        this.child = child;
+    }
+
+    /** @return the iterator whose batches are returned a tuple at a time */
+    public BatchIterator getBatchChild() {
+        return child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    protected Tuple fetchNext() throws DbException,
+            TransactionAbortedException {
+        while (batch == null || pos >= batch.size()) {
+            batch = child.nextBatch();
+            pos = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(batch.selection()[pos++]);
+    }
+
+    /** The child is a batch iterator, so there are no DbIterator children. */
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[0];
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+    }
+
+}
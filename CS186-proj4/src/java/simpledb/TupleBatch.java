@@ -0,0 +1,233 @@
+package simpledb;
+
+/**
+ * TupleBatch holds up to {@link #CAPACITY} rows in columnar form: an
+ * <code>int[]</code> per integer field and a <code>String[]</code> per
+ * string field, indexed by row, plus the page and slot of each row. A selection
+ * vector lists the rows that are part of the batch, in order, so an operator
+ * such as a filter can drop rows by narrowing the selection instead of
+ * copying the rows that remain.
+ * <p>
+ * Batches are what {@link BatchIterator}s pass between each other. A batch
+ * returned by an iterator stays valid until the next call to that iterator;
+ * its consumer may narrow its selection, but must copy any rows it keeps
+ * beyond that.
+ */
+public class TupleBatch {
+
+    /** Maximum number of rows in a batch. */
+    public static final int CAPACITY = 1024;
+
+    private final TupleDesc td;
+    // column -> values by row; only one of the two is set for each column
+    private final int[][] ints;
+    private final String[][] strings;
+    // the RecordId of each row, built only when asked for
+    private final PageId[] pages;
+    private final int[] slots;
+    private final int[] sel;
+    private int numRows = 0;
+    private int size = 0;
+
+    /**
+     * Creates an empty batch.
+     *
+     * @param td
+     *            the schema of the rows of the batch
+     */
+    public TupleBatch(TupleDesc td) {
+        this.td = td;
+        int n = td.numFields();
+        ints = new int[n][];
+        strings = new String[n][];
+        for (int c = 0; c < n; c++) {
+            if (td.getFieldType(c) == Type.INT_TYPE)
+                ints[c] = new int[CAPACITY];
+            else
+                strings[c] = new String[CAPACITY];
+        }
+        pages = new PageId[CAPACITY];
+        slots = new int[CAPACITY];
+        sel = new int[CAPACITY];
+    }
+
+    private TupleBatch(TupleDesc td, int[][] ints, String[][] strings,
+            PageId[] pages, int[] slots, int[] sel, int numRows, int size) {
+        this.td = td;
+        this.ints = ints;
+        this.strings = strings;
+        this.pages = pages;
+        this.slots = slots;
+        this.sel = sel;
+        this.numRows = numRows;
+        this.size = size;
+    }
+
+    /** @return the schema of the rows of this batch */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of selected rows */
+    public int size() {
+        return size;
+    }
+
+    /** @return the number of rows stored, whether selected or not */
+    public int numRows() {
+        return numRows;
+    }
+
+    /** @return true if no more rows can be appended */
+    public boolean isFull() {
+        return numRows == CAPACITY;
+    }
+
+    /**
+     * @return the selection vector: its first {@link #size()} entries are
+     *         the selected rows, in increasing order
+     */
+    public int[] selection() {
+        return sel;
+    }
+
+    /**
+     * Narrows the selection to its first size entries, after the caller has
+     * rewritten them in {@link #selection()}.
+     */
+    public void setSize(int size) {
+        if (size < 0 || size > this.size)
+            throw new IllegalArgumentException("selection of " + size
+                    + " rows out of " + this.size);
+        this.size = size;
+    }
+
+    /** Removes all rows. */
+    public void clear() {
+        numRows = 0;
+        size = 0;
+    }
+
+    /** @return the values of an integer column, indexed by row */
+    public int[] intColumn(int col) {
+        return ints[col];
+    }
+
+    /** @return the values of a string column, indexed by row */
+    public String[] stringColumn(int col) {
+        return strings[col];
+    }
+
+    /** @return the value of a column in a row, as a Field */
+    public Field getField(int col, int row) {
+        if (ints[col] != null)
+            return new IntField(ints[col][row]);
+        return new StringField(strings[col][row], Type.STRING_LEN);
+    }
+
+    /** @return the RecordId of a row; may be null */
+    public RecordId getRecordId(int row) {
+        return pages[row] == null ? null : new RecordId(pages[row], slots[row]);
+    }
+
+    /** @return a row of this batch as a Tuple */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int c = 0; c < ints.length; c++)
+            t.setField(c, getField(c, row));
+        t.setRecordId(getRecordId(row));
+        return t;
+    }
+
+    private int newRow() {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        int row = numRows++;
+        // rows are only appended while the selection is the identity
+        sel[size++] = row;
+        return row;
+    }
+
+    /** Appends a tuple as a selected row, and returns the row. */
+    public int appendTuple(Tuple t) {
+        int row = newRow();
+        for (int c = 0; c < ints.length; c++) {
+            if (ints[c] != null)
+                ints[c][row] = ((IntField) t.getField(c)).getValue();
+            else
+                strings[c][row] = ((StringField) t.getField(c)).getValue();
+        }
+        RecordId rid = t.getRecordId();
+        pages[row] = rid == null ? null : rid.getPageId();
+        slots[row] = rid == null ? 0 : rid.tupleno();
+        return row;
+    }
+
+    /**
+     * Appends a selected row, whose values the caller then writes into the
+     * columns, and returns the row.
+     *
+     * @param pid
+     *            the page of the row, or null if it has none
+     * @param slot
+     *            the slot of the row on the page
+     */
+    public int appendRow(PageId pid, int slot) {
+        int row = newRow();
+        pages[row] = pid;
+        slots[row] = slot;
+        return row;
+    }
+
+    /**
+     * Appends a copy of a row of another batch with the same schema, and
+     * returns the new row.
+     */
+    public int appendRow(TupleBatch src, int srcRow) {
+        int row = newRow();
+        copyColumns(src, srcRow, row, 0);
+        pages[row] = src.pages[srcRow];
+        slots[row] = src.slots[srcRow];
+        return row;
+    }
+
+    /**
+     * Appends the concatenation of a row of left and a row of right, as a
+     * join does, and returns the new row. The schema of this batch must be
+     * that of left followed by that of right.
+     */
+    public int appendJoined(TupleBatch left, int leftRow, TupleBatch right,
+            int rightRow) {
+        int row = newRow();
+        copyColumns(left, leftRow, row, 0);
+        copyColumns(right, rightRow, row, left.ints.length);
+        pages[row] = null;
+        return row;
+    }
+
+    private void copyColumns(TupleBatch src, int srcRow, int row, int first) {
+        for (int c = 0; c < src.ints.length; c++) {
+            if (src.ints[c] != null)
+                ints[first + c][row] = src.ints[c][srcRow];
+            else
+                strings[first + c][row] = src.strings[c][srcRow];
+        }
+    }
+
+    /**
+     * @return a batch made of some of the columns of this one, in the given
+     *         order. Nothing is copied: the two batches share their columns
+     *         and their selection.
+     */
+    public TupleBatch project(int[] fields, TupleDesc td) {
+        int[][] pints = new int[fields.length][];
+        String[][] pstrings = new String[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            pints[i] = ints[fields[i]];
+            pstrings[i] = strings[fields[i]];
+        }
+        return new TupleBatch(td, pints, pstrings, pages, slots, sel, numRows,
+                size);
+    }
+
+}
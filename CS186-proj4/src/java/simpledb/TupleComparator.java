@@ -0,0 +1,35 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/** Orders tuples by one of their fields, ascending or descending */
+class TupleComparator implements Comparator<Tuple> {
+    int field;
+    boolean asc;
+
+    public TupleComparator(int field, boolean asc) {
+        this.field = field;
+        this.asc = asc;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        int c = compareFields(o1.getField(field), o2.getField(field));
+        return asc ? c : -c;
+    }
+
+    /**
+     * @return the order of two fields of the same type, as a single
+     *         comparison of their values rather than a series of
+     *         Field.compare calls
+     */
+    static int compareFields(Field f1, Field f2) {
+        if (f1 instanceof IntField) {
+            int v1 = ((IntField) f1).getValue();
+            int v2 = ((IntField) f2).getValue();
+            return v1 < v2 ? -1 : (v1 == v2 ? 0 : 1);
+        }
+        return ((StringField) f1).getValue().compareTo(
+                ((StringField) f2).getValue());
+    }
+
+}
@@ -192,6 +192,20 @@ public class TupleDesc implements Serializable {
         return tuple_size;
     }
 
+    /**
+     * @return The offset (in bytes) of the ith field within a tuple
+     *         corresponding to this TupleDesc, as written to a page.
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+        checkItemsBounds(i);
+        int off = 0;
+        for (int j = 0; j < i; j++)
+            off += items.get(j).fieldType.getLen();
+        return off;
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -0,0 +1,124 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * A temporary file holding a sequence of tuples, used by operators that have
+ * to spill intermediate results to disk. Unlike heap pages, tuples are
+ * written back to back in a compact format: integers take 4 bytes, and
+ * strings take a 2 byte length followed only by their characters, in
+ * modified UTF-8, rather than being padded to {@link Type#STRING_LEN}.
+ * <p>
+ * A spill file is written once, then read back any number of times through
+ * {@link #reader()}. The operator that made it removes it with
+ * {@link #delete()}.
+ */
+public class TupleSpillFile {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final TupleDesc td;
+    private DataOutputStream out;
+    private int numTuples = 0;
+
+    /**
+     * Creates a new, empty spill file for tuples with the given schema, open
+     * for writing.
+     */
+    public TupleSpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        file = File.createTempFile("simpledb-spill", ".tmp");
+        out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), BUFFER_SIZE));
+    }
+
+    /** Appends a tuple to the file. */
+    public void write(Tuple t) throws IOException {
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                out.writeInt(((IntField) f).getValue());
+            } else {
+                out.writeUTF(((StringField) f).getValue());
+            }
+        }
+        numTuples++;
+    }
+
+    /** Flushes and closes the file for writing; no more tuples may be added. */
+    public void finish() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /** @return the number of tuples written to the file */
+    public int numTuples() {
+        return numTuples;
+    }
+
+    /** @return the schema of the tuples in the file */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** Closes the file if necessary and removes it from disk. */
+    public void delete() {
+        try {
+            finish();
+        } catch (IOException e) {
+            // the file is going away anyway
+        }
+        file.delete();
+    }
+
+    /**
+     * @return a new reader positioned at the first tuple of the file. The
+     *         file must have been {@link #finish()}ed.
+     */
+    public Reader reader() throws IOException {
+        if (out != null)
+            throw new IllegalStateException("spill file is still being written");
+        return new Reader();
+    }
+
+    /** Sequential reader over the tuples of a spill file. */
+    public class Reader {
+        private DataInputStream in;
+        private int remaining = numTuples;
+
+        private Reader() throws IOException {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), BUFFER_SIZE));
+        }
+
+        /**
+         * @return the next tuple in the file, or null if all tuples have been
+         *         read
+         */
+        public Tuple next() throws IOException {
+            if (remaining == 0)
+                return null;
+            remaining--;
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < td.numFields(); i++) {
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    t.setField(i, new IntField(in.readInt()));
+                } else {
+                    t.setField(i, new StringField(in.readUTF(), Type.STRING_LEN));
+                }
+            }
+            return t;
+        }
+
+        public void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+    }
+}
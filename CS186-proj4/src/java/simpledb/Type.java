@@ -2,6 +2,7 @@ package simpledb;
 
 import java.text.ParseException;
 import java.io.*;
+import java.nio.charset.Charset;
 
 /**
  * Class representing a type in SimpleDB.
@@ -37,7 +38,7 @@ public enum Type implements Serializable {
                 byte bs[] = new byte[strLen];
                 dis.read(bs);
                 dis.skipBytes(STRING_LEN-strLen);
-                return new StringField(new String(bs), STRING_LEN);
+                return new StringField(new String(bs, STRING_CHARSET), STRING_LEN);
             } catch (IOException e) {
                 throw new ParseException("couldn't parse", 0);
             }
@@ -46,6 +47,10 @@ public enum Type implements Serializable {
     
     public static final int STRING_LEN = 128;
 
+    /** The charset strings are stored in, one byte per character as
+        {@link StringField#serialize} writes them */
+    static final Charset STRING_CHARSET = Charset.forName("ISO-8859-1");
+
   /**
    * @return the number of bytes required to store a field of this type.
    */
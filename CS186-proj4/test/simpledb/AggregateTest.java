@@ -176,6 +176,113 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate.getNext() when the groups do not fit in memory
+   */
+  @Test public void spillingAggregate() throws Exception {
+    // a budget of one byte keeps only a single group in memory
+    Aggregate op = new Aggregate(scan1, 1, 0, Aggregator.Op.SUM, 1);
+    op.open();
+    assertTrue(op.numPartitionsSpilled() > 0);
+    sum.open();
+    TestUtil.matchAllTuples(sum, op);
+
+    op.rewind();
+    sum.rewind();
+    TestUtil.matchAllTuples(sum, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for Aggregate.getNext() with many more groups than fit in memory
+   */
+  @Test public void spillingManyGroups() throws Exception {
+    int[] data = new int[2 * 3000];
+    int[] expected = new int[2 * 1000];
+    for (int i = 0; i < 3000; i++) {
+      data[2 * i] = i % 1000;
+      data[2 * i + 1] = i;
+    }
+    for (int g = 0; g < 1000; g++) {
+      expected[2 * g] = g;
+      expected[2 * g + 1] = g + 2000;
+    }
+    long budget = 50 * GroupTable.estimateGroupBytes(Type.INT_TYPE);
+    Aggregate op = new Aggregate(TestUtil.createTupleList(2, data), 1, 0,
+        Aggregator.Op.MAX, budget);
+    op.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(2, expected), op);
+    int n = 0;
+    op.rewind();
+    while (op.hasNext()) {
+      op.next();
+      n++;
+    }
+    assertEquals(1000, n);
+    op.close();
+  }
+
+  /**
+   * Unit test for Aggregate.getNext() computing several aggregates at once
+   */
+  @Test public void multipleAggregates() throws Exception {
+    Aggregate op = new Aggregate(scan1, new int[] { 1, 1, 1, 1 },
+        new int[] { 0 }, new Aggregator.Op[] { Aggregator.Op.COUNT,
+        Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.MAX });
+    assertEquals(Utility.getTupleDesc(5), op.getTupleDesc());
+    op.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(5,
+        new int[] { 1, 3, 12, 2, 6,
+                    3, 3, 12, 2, 6,
+                    5, 1, 7, 7, 7 }), op);
+    op.close();
+  }
+
+  /**
+   * Unit test for Aggregate.getNext() grouping by more than one field
+   */
+  @Test public void compositeGroupBy() throws Exception {
+    DbIterator scan = TestUtil.createTupleList(3,
+        new Object[] { 1, "a", 2,
+                    1, "b", 4,
+                    1, "a", 6,
+                    2, "a", 2,
+                    2, "a", 3 });
+    Aggregate op = new Aggregate(scan, new int[] { 2, 1 },
+        new int[] { 0, 1 }, new Aggregator.Op[] { Aggregator.Op.AVG,
+        Aggregator.Op.COUNT });
+    op.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(4,
+        new Object[] { 1, "a", 4, 2,
+                    1, "b", 4, 1,
+                    2, "a", 2, 2 }), op);
+    int n = 0;
+    op.rewind();
+    while (op.hasNext()) {
+      op.next();
+      n++;
+    }
+    assertEquals(3, n);
+    op.close();
+  }
+
+  /**
+   * Unit test for Aggregate.getNext() with several aggregates when the groups
+   * do not fit in memory
+   */
+  @Test public void spillingMultipleAggregates() throws Exception {
+    Aggregate op = new Aggregate(scan3, new int[] { 1, 1 },
+        new int[] { 0 }, new Aggregator.Op[] { Aggregator.Op.SUM,
+        Aggregator.Op.MIN }, 1);
+    op.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(3,
+        new Object[] { "a", 12, 2,
+                    "b", 12, 2,
+                    "c", 7, 7 }), op);
+    assertTrue(op.numPartitionsSpilled() > 0);
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
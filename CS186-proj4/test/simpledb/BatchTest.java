@@ -0,0 +1,252 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BatchTest extends SimpleDbTestBase {
+
+  private ArrayList<ArrayList<Integer>> tuples;
+  private HeapFile table;
+  private TransactionId tid;
+
+  @Before public void setUp() throws Exception {
+    tuples = new ArrayList<ArrayList<Integer>>();
+    // several batches' worth, over several pages
+    table = SystemTestUtil.createRandomHeapFile(2, 3000, 50, null, tuples,
+        "c");
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private BatchIterator batchScan() {
+    return new BatchSeqScan(tid, table.getId(), "t");
+  }
+
+  private DbIterator scan() {
+    return new SeqScan(tid, table.getId(), "t");
+  }
+
+  /**
+   * @return the rows of an iterator, as sorted strings, so that results in
+   *         different orders compare equal
+   */
+  private static List<String> rows(DbIterator it) throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    it.open();
+    while (it.hasNext())
+      rows.add(it.next().toString());
+    it.close();
+    Collections.sort(rows);
+    return rows;
+  }
+
+  /**
+   * A batch scan returns every tuple of the table, and can be rewound
+   */
+  @Test public void seqScan() throws Exception {
+    TupleAdapter scan = new TupleAdapter(batchScan());
+    assertEquals(scan().getTupleDesc(), scan.getTupleDesc());
+    SystemTestUtil.matchTuples(scan, tuples);
+    scan.open();
+    int n = 0;
+    while (scan.hasNext()) {
+      assertTrue(scan.next().getRecordId() != null);
+      n++;
+    }
+    scan.rewind();
+    while (scan.hasNext()) {
+      scan.next();
+      n++;
+    }
+    scan.close();
+    assertEquals(2 * tuples.size(), n);
+  }
+
+  /**
+   * A batch scan with pushed down fields and predicates returns the same
+   * rows as a scan with the same ones, whether it reads the bytes of a page
+   * or, once a tuple has been deleted from the page, its tuples
+   */
+  @Test public void pushDown() throws Exception {
+    int[] fields = new int[] { 1, SeqScan.ROW_ID };
+    Predicate[] preds = new Predicate[] {
+        new Predicate(0, Predicate.Op.LESS_THAN, new IntField(25)),
+        new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(5)) };
+    for (int pass = 0; pass < 2; pass++) {
+      SeqScan ss = new SeqScan(tid, table.getId(), "t");
+      ss.pushDown(fields, preds);
+      BatchSeqScan bs = new BatchSeqScan(tid, table.getId(), "t");
+      bs.pushDown(fields, preds);
+      assertEquals(ss.getTupleDesc(), bs.getTupleDesc());
+      assertEquals(rows(ss), rows(new TupleAdapter(bs)));
+      assertTrue(bs.getActualCardinality() > 0);
+
+      HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+          new HeapPageId(table.getId(), 0), Permissions.READ_ONLY);
+      page.deleteTuple(page.iterator().next());
+    }
+  }
+
+  /**
+   * The planner computes an ungrouped aggregate of a single table with batch
+   * operators, with the same result as a tuple at a time
+   */
+  @Test public void plannedAggregate() throws Exception {
+    String name = Database.getCatalog().getTableName(table.getId());
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put(name, new TableStats(table.getId(), 1000));
+    List<List<String>> results = new ArrayList<List<String>>();
+    try {
+      for (int run = 0; run < 2; run++) {
+        LogicalPlan.setBatchExecution(run == 0);
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "t");
+        lp.addFilter("t.c0", Predicate.Op.LESS_THAN, "25");
+        lp.addProjectField("t.c1", "sum");
+        lp.addAggregate("sum", "t.c1", null);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertEquals(run == 0,
+            ((Operator) plan).getChildren()[0] instanceof TupleAdapter);
+        results.add(rows(plan));
+      }
+    } finally {
+      LogicalPlan.setBatchExecution(true);
+    }
+    assertEquals(results.get(1), results.get(0));
+  }
+
+  /**
+   * Batches of the adapters hold at most CAPACITY rows
+   */
+  @Test public void adapters() throws Exception {
+    BatchAdapter batches = new BatchAdapter(scan());
+    batches.open();
+    int n = 0;
+    TupleBatch b;
+    while ((b = batches.nextBatch()) != null) {
+      assertTrue(b.size() > 0 && b.size() <= TupleBatch.CAPACITY);
+      n += b.size();
+    }
+    batches.close();
+    assertEquals(tuples.size(), n);
+    assertEquals(rows(scan()), rows(new TupleAdapter(new BatchAdapter(
+        scan()))));
+  }
+
+  /**
+   * BatchFilter returns the same rows as Filter, for every operator, on int
+   * and string fields
+   */
+  @Test public void filter() throws Exception {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      Predicate p = new Predicate(0, op, new IntField(25));
+      assertEquals(rows(new Filter(p, scan())), rows(new TupleAdapter(
+          new BatchFilter(p, batchScan()))));
+    }
+
+    TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE });
+    ArrayList<Tuple> strings = new ArrayList<Tuple>();
+    for (String s : new String[] { "a", "ab", "b", "abc", "", "ba" }) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new StringField(s, Type.STRING_LEN));
+      strings.add(t);
+    }
+    for (Predicate.Op op : Predicate.Op.values()) {
+      Predicate p = new Predicate(0, op, new StringField("ab",
+          Type.STRING_LEN));
+      assertEquals(rows(new Filter(p, new TupleIterator(td, strings))),
+          rows(new TupleAdapter(new BatchFilter(p, new BatchAdapter(
+              new TupleIterator(td, strings))))));
+    }
+  }
+
+  /**
+   * BatchProject returns the same rows as Project, including over a filter
+   */
+  @Test public void project() throws Exception {
+    ArrayList<Integer> fields = new ArrayList<Integer>();
+    fields.add(1);
+    fields.add(0);
+    Type[] types = new Type[] { Type.INT_TYPE, Type.INT_TYPE };
+    Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(10));
+    BatchProject bp = new BatchProject(new int[] { 1, 0 }, new BatchFilter(p,
+        batchScan()));
+    Project pr = new Project(fields, types, new Filter(p, scan()));
+    assertEquals(pr.getTupleDesc(), bp.getTupleDesc());
+    assertEquals(rows(pr), rows(new TupleAdapter(bp)));
+  }
+
+  /**
+   * BatchHashEquiJoin returns the same rows as HashEquiJoin, including keys
+   * with more matches than fit in one output batch
+   */
+  @Test public void hashEquiJoin() throws Exception {
+    JoinPredicate jp = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    Predicate small = new Predicate(1, Predicate.Op.LESS_THAN,
+        new IntField(5));
+    DbIterator expected = new HashEquiJoin(jp, scan(), new Filter(small,
+        scan()));
+    BatchHashEquiJoin join = new BatchHashEquiJoin(jp, batchScan(),
+        new BatchFilter(small, batchScan()));
+    assertEquals(expected.getTupleDesc(), join.getTupleDesc());
+    List<String> rows = rows(new TupleAdapter(join));
+    assertTrue(rows.size() > TupleBatch.CAPACITY);
+    assertEquals(rows(expected), rows);
+
+    // rewinding reprobes the same table
+    TupleAdapter it = new TupleAdapter(join);
+    it.open();
+    while (it.hasNext())
+      it.next();
+    it.rewind();
+    int n = 0;
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    it.close();
+    assertEquals(rows.size(), n);
+  }
+
+  /**
+   * BatchAggregate returns the same rows as Aggregate, with and without
+   * grouping
+   */
+  @Test public void aggregate() throws Exception {
+    for (Aggregator.Op op : Aggregator.Op.values()) {
+      assertEquals(rows(new Aggregate(scan(), 1, 0, op)),
+          rows(new TupleAdapter(new BatchAggregate(batchScan(), 1, 0, op))));
+      assertEquals(rows(new Aggregate(scan(), 1, Aggregator.NO_GROUPING, op)),
+          rows(new TupleAdapter(new BatchAggregate(batchScan(), 1,
+              Aggregator.NO_GROUPING, op))));
+    }
+    int[] afields = new int[] { 0, 1 };
+    int[] gfields = new int[] { 1, 0 };
+    Aggregator.Op[] aops = new Aggregator.Op[] { Aggregator.Op.COUNT,
+        Aggregator.Op.SUM };
+    assertEquals(rows(new Aggregate(scan(), afields, gfields, aops)),
+        rows(new TupleAdapter(new BatchAggregate(batchScan(), afields,
+            gfields, aops))));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BatchTest.class);
+  }
+}
@@ -0,0 +1,131 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.Predicate.Op;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CardinalityFeedbackTest extends SimpleDbTestBase {
+
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		CardinalityFeedback.clear();
+	}
+
+	/**
+	 * The tuples predicates returned correct their estimate, for the same constants and,
+	 * less closely, for others
+	 */
+	@Test public void filterTest() {
+		List<Predicate> preds = Arrays.asList(new Predicate(0, Op.EQUALS, new IntField(5)),
+				new Predicate(1, Op.LESS_THAN, new IntField(3)));
+		// nothing seen yet
+		Assert.assertEquals(0.01, CardinalityFeedback.correctFilter("t", preds, 0.01, 1000), 1e-9);
+
+		CardinalityFeedback.recordFilter("t", preds, 10, 200);
+		Assert.assertEquals(0.2, CardinalityFeedback.correctFilter("t", preds, 0.01, 1000), 1e-9);
+		// the same predicates in another order
+		List<Predicate> reversed = Arrays.asList(preds.get(1), preds.get(0));
+		Assert.assertEquals(0.2, CardinalityFeedback.correctFilter("t", reversed, 0.01, 1000), 1e-9);
+		// other constants take the ratio seen for the same fields and operators
+		List<Predicate> other = Arrays.asList(new Predicate(0, Op.EQUALS, new IntField(7)),
+				new Predicate(1, Op.LESS_THAN, new IntField(3)));
+		Assert.assertEquals(0.2, CardinalityFeedback.correctFilter("t", other, 0.01, 1000), 1e-9);
+		// but not other tables or operators
+		Assert.assertEquals(0.01, CardinalityFeedback.correctFilter("u", preds, 0.01, 1000), 1e-9);
+		List<Predicate> range = Arrays.asList(new Predicate(0, Op.GREATER_THAN, new IntField(5)),
+				new Predicate(1, Op.LESS_THAN, new IntField(3)));
+		Assert.assertEquals(0.01, CardinalityFeedback.correctFilter("t", range, 0.01, 1000), 1e-9);
+
+		// a new observation is averaged with the old one
+		CardinalityFeedback.recordFilter("t", preds, 10, 0);
+		Assert.assertEquals((10 + 1.0) * (201.0 / 11 + 1.0 / 11) / 2 - 1,
+				CardinalityFeedback.correctFilter("t", preds, 0.01, 1000) * 1000, 1e-6);
+	}
+
+	/**
+	 * Ranges with different constants keep their own ratios, and a range seen with one
+	 * constant does not correct the estimate for another
+	 */
+	@Test public void rangeTest() {
+		List<Predicate> below10 = Arrays.asList(new Predicate(0, Op.LESS_THAN, new IntField(10)));
+		List<Predicate> below50 = Arrays.asList(new Predicate(0, Op.LESS_THAN, new IntField(50)));
+		List<Predicate> below30 = Arrays.asList(new Predicate(0, Op.LESS_THAN, new IntField(30)));
+		CardinalityFeedback.recordFilter("t", below10, 99, 999);
+		CardinalityFeedback.recordFilter("t", below50, 499, 249);
+		Assert.assertEquals(0.999, CardinalityFeedback.correctFilter("t", below10, 0.099, 1000), 1e-9);
+		Assert.assertEquals(0.249, CardinalityFeedback.correctFilter("t", below50, 0.499, 1000), 1e-9);
+		Assert.assertEquals(0.3, CardinalityFeedback.correctFilter("t", below30, 0.3, 1000), 1e-9);
+	}
+
+	/**
+	 * A join is remembered whichever way round its fields are given
+	 */
+	@Test public void joinTest() {
+		Assert.assertEquals(-1, CardinalityFeedback.joinSelectivity("r", "a", Op.LESS_THAN, "s", "b"), 0);
+		CardinalityFeedback.recordJoin("r", "a", Op.LESS_THAN, "s", "b", 1000, 100);
+		Assert.assertEquals(0.1, CardinalityFeedback.joinSelectivity("r", "a", Op.LESS_THAN, "s", "b"), 1e-9);
+		Assert.assertEquals(0.1, CardinalityFeedback.joinSelectivity("s", "b", Op.GREATER_THAN, "r", "a"), 1e-9);
+		Assert.assertEquals(-1, CardinalityFeedback.joinSelectivity("s", "b", Op.LESS_THAN, "r", "a"), 0);
+		Assert.assertEquals(-1, CardinalityFeedback.joinSelectivity("r", "a", Op.EQUALS, "s", "b"), 0);
+	}
+
+	/**
+	 * Running a plan records what its scans and joins returned, which the estimates of
+	 * the optimizer then follow
+	 */
+	@Test public void planTest() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples1 = new ArrayList<ArrayList<Integer>>();
+		ArrayList<ArrayList<Integer>> tuples2 = new ArrayList<ArrayList<Integer>>();
+		HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 300, 20, null, tuples1, "c");
+		HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 200, 20, null, tuples2, "c");
+		Database.getCatalog().addTable(f1, "r");
+		Database.getCatalog().addTable(f2, "s");
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put("r", new TableStats(f1.getId(), 1000));
+		stats.put("s", new TableStats(f2.getId(), 1000));
+		HashMap<String, Integer> aliases = new HashMap<String, Integer>();
+		aliases.put("a", f1.getId());
+		aliases.put("b", f2.getId());
+
+		TransactionId tid = new TransactionId();
+		SeqScan scan1 = new SeqScan(tid, f1.getId(), "a");
+		Predicate[] preds = { new Predicate(1, Op.LESS_THAN, new IntField(10)) };
+		scan1.pushDown(null, preds);
+		SeqScan scan2 = new SeqScan(tid, f2.getId(), "b");
+		Join join = new Join(new JoinPredicate(0, Op.EQUALS, 0), scan1, scan2);
+
+		int filtered = 0, joined = 0;
+		for (ArrayList<Integer> t : tuples1)
+			if (t.get(1) < 10)
+				filtered++;
+		join.open();
+		Assert.assertEquals(-1, join.getActualCardinality());
+		while (join.hasNext()) {
+			join.next();
+			joined++;
+		}
+		Assert.assertEquals(joined, join.getActualCardinality());
+		Assert.assertEquals(filtered, scan1.getActualCardinality());
+		Assert.assertEquals(tuples2.size(), scan2.getActualCardinality());
+		CardinalityFeedback.record(join, aliases, stats);
+		join.close();
+		Database.getBufferPool().transactionComplete(tid);
+
+		double estimated = stats.get("r").estimateSelectivity(Arrays.asList(preds));
+		Assert.assertEquals(filtered, CardinalityFeedback.correctFilter("r", Arrays.asList(preds),
+				estimated, tuples1.size()) * tuples1.size(), 1e-6);
+		double sel = (double) joined / ((double) filtered * tuples2.size());
+		Assert.assertEquals(sel, CardinalityFeedback.joinSelectivity("s", "c0", Op.EQUALS, "r", "c0"), 1e-9);
+		Assert.assertEquals(joined, JoinOptimizer.estimateTableJoinCardinality(Op.EQUALS, "a", "b", "c0", "c0",
+				filtered, tuples2.size(), false, false, stats, aliases), 1);
+	}
+}
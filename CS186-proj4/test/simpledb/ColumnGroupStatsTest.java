@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.Predicate.Op;
+
+public class ColumnGroupStatsTest {
+
+	/**
+	 * A city and zip code column: each of 1000 zip codes is in one of 100 cities, so that
+	 * predicates on both are far from independent
+	 */
+	private static ColumnGroupStats cityZip(int tuples, double total) {
+		Field[] city = new Field[tuples], zip = new Field[tuples];
+		HyperLogLog sketch = new HyperLogLog();
+		for (int i = 0; i < tuples; i++) {
+			zip[i] = new IntField(i % 1000);
+			city[i] = new IntField(i % 1000 / 10);
+			sketch.addHash(ColumnGroupStats.hash(city[i], zip[i]));
+		}
+		return new ColumnGroupStats(0, 1, city, zip, total, sketch);
+	}
+
+	private static ArrayList<Predicate> preds(Predicate p1, Predicate p2) {
+		ArrayList<Predicate> preds = new ArrayList<Predicate>();
+		preds.add(p1);
+		preds.add(p2);
+		return preds;
+	}
+
+	/**
+	 * Predicates on both columns are estimated from the pairs that occur, not as if the
+	 * columns were independent
+	 */
+	@Test public void correlatedTest() {
+		ColumnGroupStats g = cityZip(10000, 10000);
+		Assert.assertEquals(1000, g.sketch().estimate(), 50);
+
+		// the zip code is in the city, and the city follows from it
+		Assert.assertEquals(0.001, g.estimateSelectivity(preds(new Predicate(0, Op.EQUALS, new IntField(5)),
+				new Predicate(1, Op.EQUALS, new IntField(53))), 1000), 0.0005);
+		// it is not
+		Assert.assertEquals(0.0, g.estimateSelectivity(preds(new Predicate(0, Op.EQUALS, new IntField(5)),
+				new Predicate(1, Op.EQUALS, new IntField(630))), 1000), 0.0002);
+		// ranges of both that hold the same tuples, and disjoint ones
+		Assert.assertEquals(0.1, g.estimateSelectivity(preds(new Predicate(0, Op.LESS_THAN, new IntField(10)),
+				new Predicate(1, Op.LESS_THAN, new IntField(100))), 1000), 0.02);
+		Assert.assertEquals(0.0, g.estimateSelectivity(preds(new Predicate(0, Op.LESS_THAN, new IntField(10)),
+				new Predicate(1, Op.GREATER_THAN_OR_EQ, new IntField(500))), 1000), 0.01);
+	}
+
+	/**
+	 * A sample of a key standing for many more tuples: an equality on the key selects one of
+	 * the distinct values the sample stands for, not one of those sampled
+	 */
+	@Test public void sampleTest() {
+		Field[] key = new Field[1000], digit = new Field[1000];
+		HyperLogLog sketch = new HyperLogLog();
+		for (int i = 0; i < key.length; i++) {
+			key[i] = new IntField(i);
+			digit[i] = new IntField(i % 10);
+			sketch.addHash(ColumnGroupStats.hash(key[i], digit[i]));
+		}
+		ColumnGroupStats g = new ColumnGroupStats(0, 1, key, digit, 1000000, sketch);
+		ArrayList<Predicate> one = new ArrayList<Predicate>();
+		one.add(new Predicate(0, Op.EQUALS, new IntField(500)));
+		Assert.assertEquals(1.0 / 1000000, g.estimateSelectivity(one, 1000000), 1e-7);
+		Assert.assertEquals(0.5 / 1000000, g.estimateSelectivity(preds(new Predicate(0, Op.EQUALS, new IntField(500)),
+				new Predicate(1, Op.LESS_THAN, new IntField(5))), 1000000), 2e-7);
+	}
+
+	/**
+	 * Pairs added later are counted in, in units of the tuples the sample stands for
+	 */
+	@Test public void addTest() {
+		ColumnGroupStats g = cityZip(1000, 100000);
+		ArrayList<Predicate> small = preds(new Predicate(0, Op.LESS_THAN, new IntField(50)),
+				new Predicate(1, Op.LESS_THAN, new IntField(500)));
+		Assert.assertEquals(0.5, g.estimateSelectivity(small, 1000), 0.05);
+		for (int i = 0; i < 500; i++)
+			g.add(new IntField(i / 10), new IntField(i), 200);
+		Assert.assertEquals(0.75, g.estimateSelectivity(small, 1000), 0.05);
+	}
+}
@@ -0,0 +1,137 @@
+package simpledb;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+import simpledb.Predicate.Op;
+
+public class EquiDepthHistogramTest {
+
+	private static Field[] ints(int[] values) {
+		Field[] fields = new Field[values.length];
+		for (int i = 0; i < values.length; i++)
+			fields[i] = new IntField(values[i]);
+		return fields;
+	}
+
+	/**
+	 * Skewed values: a hot value, most of the others clustered in a narrow range, and a few
+	 * spread over a wide one. The estimates follow the data, not the range.
+	 */
+	@Test public void skewTest() {
+		Random r = new Random(1);
+		int[] values = new int[10000];
+		for (int i = 0; i < values.length; i++) {
+			if (i % 4 == 0)
+				values[i] = 500;                      // 25% hot value
+			else if (i % 100 == 1)
+				values[i] = r.nextInt(1000000000);    // 1% spread widely
+			else
+				values[i] = 1000 + r.nextInt(1000);   // the rest in [1000, 2000)
+		}
+		EquiDepthHistogram h = new EquiDepthHistogram(ints(values), 100, 20);
+		Assert.assertEquals(1, h.numMostCommonValues());
+
+		Assert.assertEquals(0.25, h.estimateSelectivity(Op.EQUALS, new IntField(500)), 0.001);
+		Assert.assertEquals(0.75, h.estimateSelectivity(Op.NOT_EQUALS, new IntField(500)), 0.001);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, new IntField(600)), 0.001);
+		Assert.assertEquals(0.74 / 1000, h.estimateSelectivity(Op.EQUALS, new IntField(1500)), 0.0005);
+
+		Assert.assertEquals(0.25, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, new IntField(999)), 0.02);
+		Assert.assertEquals(0.25 + 0.37, h.estimateSelectivity(Op.LESS_THAN, new IntField(1500)), 0.02);
+		Assert.assertEquals(0.01, h.estimateSelectivity(Op.GREATER_THAN, new IntField(2000)), 0.005);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, new IntField(-5)), 0.001);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.GREATER_THAN, new IntField(Integer.MAX_VALUE)), 0.001);
+	}
+
+	/**
+	 * Strings that only differ after their first four characters are told apart
+	 */
+	@Test public void stringTest() {
+		Field[] values = new Field[1000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = new StringField("prefix" + (char) ('a' + i % 10) + i, Type.STRING_LEN);
+		EquiDepthHistogram h = new EquiDepthHistogram(values, 100, 20);
+		Assert.assertEquals(0.001, h.estimateSelectivity(Op.EQUALS, new StringField("prefixb1", Type.STRING_LEN)), 0.001);
+		Assert.assertEquals(0.3, h.estimateSelectivity(Op.LESS_THAN, new StringField("prefixd", Type.STRING_LEN)), 0.02);
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, new StringField("prefixf", Type.STRING_LEN)), 0.02);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, new StringField("prefix", Type.STRING_LEN)), 0.001);
+	}
+
+	/**
+	 * The average selectivities are those of predicates against values of the field itself,
+	 * and do not depend on its range
+	 */
+	@Test public void avgSelectivityTest() {
+		int[] values = new int[2000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = (i % 4) * 500000000 - 1000000000;
+		EquiDepthHistogram h = new EquiDepthHistogram(ints(values), 100, 20);
+		Assert.assertEquals(0.25, h.avgSelectivity(Op.EQUALS), 0.001);
+		Assert.assertEquals(0.75, h.avgSelectivity(Op.NOT_EQUALS), 0.001);
+		Assert.assertEquals(0.375, h.avgSelectivity(Op.LESS_THAN), 0.001);
+		Assert.assertEquals(0.625, h.avgSelectivity(Op.GREATER_THAN_OR_EQ), 0.001);
+
+		// distinct values, none common
+		for (int i = 0; i < values.length; i++)
+			values[i] = i * 1000;
+		h = new EquiDepthHistogram(ints(values), 100, 20);
+		Assert.assertEquals(0, h.numMostCommonValues());
+		Assert.assertEquals(100, h.numBuckets());
+		Assert.assertEquals(1.0 / values.length, h.avgSelectivity(Op.EQUALS), 0.0001);
+	}
+
+	/**
+	 * A sample standing for many more values: the distinct values of a bucket are scaled up
+	 * with the values it stands for when the sampled ones occur once, and not when they repeat
+	 */
+	@Test public void sampleTest() {
+		int[] values = new int[1000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i;
+		EquiDepthHistogram h = new EquiDepthHistogram(ints(values), 100, 20, 1000000);
+		Assert.assertEquals(1.0 / 1000000, h.estimateSelectivity(Op.EQUALS, new IntField(500)), 1e-7);
+		Assert.assertEquals(1.0 / 1000000, h.avgSelectivity(Op.EQUALS), 1e-7);
+
+		// 100 values, each sampled 10 times
+		for (int i = 0; i < values.length; i++)
+			values[i] = i % 100;
+		h = new EquiDepthHistogram(ints(values), 100, 20, 1000000);
+		Assert.assertEquals(0.01, h.estimateSelectivity(Op.EQUALS, new IntField(50)), 0.001);
+		Assert.assertEquals(0.01, h.avgSelectivity(Op.EQUALS), 0.001);
+	}
+
+	/**
+	 * Values added and removed after the histogram is built are counted in, in units of the
+	 * values the sample stands for
+	 */
+	@Test public void addTest() {
+		int[] values = new int[1000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i;
+		EquiDepthHistogram h = new EquiDepthHistogram(ints(values), 100, 20, 100000);
+		Assert.assertEquals(100000, h.total(), 0.001);
+		Assert.assertEquals(0.5, h.estimateSelectivity(Op.LESS_THAN, new IntField(500)), 0.01);
+
+		// another 100000 values below 500, and none left from 900 on
+		for (int v = 0; v < 500; v++)
+			h.add(new IntField(v), 200);
+		for (int v = 900; v < 1000; v++)
+			h.add(new IntField(v), -100);
+		Assert.assertEquals(190000, h.total(), 0.001);
+		Assert.assertEquals(150000.0 / 190000, h.estimateSelectivity(Op.LESS_THAN, new IntField(500)), 0.01);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, new IntField(900)), 0.001);
+
+		// a value outside of every bucket widens the nearest one
+		h.add(new IntField(5000), 10);
+		Assert.assertTrue(h.estimateSelectivity(Op.GREATER_THAN, new IntField(2000)) > 0.0);
+
+		EquiDepthHistogram empty = new EquiDepthHistogram(new Field[0], 100, 20);
+		Assert.assertEquals(0.0, empty.estimateSelectivity(Op.EQUALS, new IntField(7)), 0.001);
+		empty.add(new IntField(7), 3);
+		Assert.assertEquals(1.0, empty.estimateSelectivity(Op.EQUALS, new IntField(7)), 0.001);
+		Assert.assertEquals(0.0, empty.estimateSelectivity(Op.LESS_THAN, new IntField(7)), 0.001);
+	}
+}
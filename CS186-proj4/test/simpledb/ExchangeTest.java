@@ -0,0 +1,355 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  private static final int PARTS = 4;
+
+  private int savedDop;
+  private int savedMinPages;
+  private ArrayList<ArrayList<Integer>> tuples;
+  private HeapFile table;
+  private TransactionId tid;
+
+  @Before public void setUp() throws Exception {
+    savedDop = Exchange.getDegreeOfParallelism();
+    savedMinPages = Exchange.getMinParallelPages();
+    tuples = new ArrayList<ArrayList<Integer>>();
+    // about a dozen pages
+    table = SystemTestUtil.createRandomHeapFile(2, 6000, 50, null, tuples,
+        "c");
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    Exchange.setDegreeOfParallelism(savedDop);
+    Exchange.setMinParallelPages(savedMinPages);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private DbIterator[] scanPartitions() {
+    DbIterator[] parts = new DbIterator[PARTS];
+    for (int k = 0; k < PARTS; k++)
+      parts[k] = new SeqScan(tid, table.getId(), "t", k, PARTS);
+    return parts;
+  }
+
+  /**
+   * The partitions of a scan together return every tuple of the table once
+   */
+  @Test public void seqScanPartitions() throws Exception {
+    int total = 0;
+    for (DbIterator part : scanPartitions()) {
+      part.open();
+      while (part.hasNext()) {
+        part.next();
+        total++;
+      }
+      part.rewind();
+      assertTrue(part.hasNext() || total == 0);
+      part.close();
+    }
+    assertEquals(tuples.size(), total);
+
+    // more partitions than pages: some of them are empty
+    int many = table.numPages() * 2;
+    total = 0;
+    for (int k = 0; k < many; k++) {
+      SeqScan part = new SeqScan(tid, table.getId(), "t", k, many);
+      part.open();
+      while (part.hasNext()) {
+        part.next();
+        total++;
+      }
+      part.close();
+    }
+    assertEquals(tuples.size(), total);
+  }
+
+  /**
+   * Gather returns the union of its children, and can be rewound
+   */
+  @Test public void gather() throws Exception {
+    Gather g = new Gather(scanPartitions());
+    SystemTestUtil.matchTuples(g, tuples);
+    g.open();
+    while (g.hasNext())
+      g.next();
+    g.rewind();
+    int n = 0;
+    while (g.hasNext()) {
+      g.next();
+      n++;
+    }
+    g.close();
+    assertEquals(tuples.size(), n);
+  }
+
+  private MorselSource morselScan() {
+    return new MorselSource(table.getId()) {
+      public DbIterator pipeline(int morsel, int numMorsels) {
+        return new SeqScan(tid, getTableId(), "t", morsel, numMorsels);
+      }
+    };
+  }
+
+  /**
+   * Gather over the morsels of a table returns every tuple once, however
+   * many morsels the table is divided into
+   */
+  @Test public void morselGather() throws Exception {
+    int savedMorselPages = Exchange.getMorselPages();
+    try {
+      Exchange.setDegreeOfParallelism(PARTS);
+      for (int pages : new int[] { 1, 3, table.numPages() + 1 }) {
+        Exchange.setMorselPages(pages);
+        Gather g = new Gather(morselScan());
+        SystemTestUtil.matchTuples(g, tuples);
+        assertEquals("gather(morsels)", g.getName());
+      }
+    } finally {
+      Exchange.setMorselPages(savedMorselPages);
+    }
+  }
+
+  /**
+   * Two exchanges over morsels feeding the same joins share the pool of
+   * workers: the workers blocked on the full queues of the input read second
+   * do not keep the morsels of the input read first from running
+   */
+  @Test public void morselJoin() throws Exception {
+    int savedMorselPages = Exchange.getMorselPages();
+    try {
+      // more tuples than the queues of the second input hold
+      ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+      final HeapFile large = SystemTestUtil.createRandomHeapFile(2,
+          PARTS * Exchange.QUEUE_CAPACITY * 5, 100000, null, rows, "c");
+      MorselSource morsels = new MorselSource(large.getId()) {
+        public DbIterator pipeline(int morsel, int numMorsels) {
+          return new SeqScan(tid, getTableId(), "t", morsel, numMorsels);
+        }
+      };
+      Exchange.setMorselPages(1);
+      Exchange.setDegreeOfParallelism(PARTS);
+      int[] key = new int[] { 0 };
+      HashRepartition[] l = HashRepartition.partition(morsels, key, PARTS, false);
+      HashRepartition[] r = HashRepartition.partition(morsels, key, PARTS, false);
+      DbIterator[] parts = new DbIterator[PARTS];
+      JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+      for (int k = 0; k < PARTS; k++)
+        parts[k] = new HashEquiJoin(p, l[k], r[k], Integer.MAX_VALUE);
+      Gather g = new Gather(parts);
+
+      HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+      for (ArrayList<Integer> t : rows) {
+        Integer c = counts.get(t.get(0));
+        counts.put(t.get(0), c == null ? 1 : c + 1);
+      }
+      long expected = 0;
+      for (int c : counts.values())
+        expected += (long) c * c;
+
+      g.open();
+      long n = 0;
+      while (g.hasNext()) {
+        g.next();
+        n++;
+      }
+      g.close();
+      assertEquals(expected, n);
+    } finally {
+      Exchange.setMorselPages(savedMorselPages);
+    }
+  }
+
+  /**
+   * The degree of parallelism can change while morsels are being processed
+   */
+  @Test public void morselParallelismChanges() throws Exception {
+    int savedMorselPages = Exchange.getMorselPages();
+    try {
+      Exchange.setMorselPages(1);
+      Exchange.setDegreeOfParallelism(PARTS);
+      Gather g = new Gather(morselScan());
+      g.open();
+      int n = 0;
+      while (g.hasNext()) {
+        g.next();
+        n++;
+        if (n == 100)
+          Exchange.setDegreeOfParallelism(1);
+        else if (n == tuples.size() / 2)
+          Exchange.setDegreeOfParallelism(2);
+      }
+      g.close();
+      assertEquals(tuples.size(), n);
+    } finally {
+      Exchange.setMorselPages(savedMorselPages);
+    }
+  }
+
+  /**
+   * Closing a gather before its input is exhausted stops the producers
+   */
+  @Test public void gatherClosedEarly() throws Exception {
+    Limit l = new Limit(10, 0, new Gather(scanPartitions()));
+    l.open();
+    int n = 0;
+    while (l.hasNext()) {
+      l.next();
+      n++;
+    }
+    l.close();
+    assertEquals(10, n);
+  }
+
+  /**
+   * HashRepartition sends all tuples with the same key to the same
+   * partition, and every tuple to one partition
+   */
+  @Test public void hashRepartition() throws Exception {
+    HashRepartition[] parts = HashRepartition.partition(scanPartitions(),
+        new int[] { 0 }, PARTS, false);
+    // read in parallel, so that no queue is left full
+    DbIterator[] counts = new DbIterator[PARTS];
+    for (int k = 0; k < PARTS; k++)
+      counts[k] = new Aggregate(parts[k], 1, 0, Aggregator.Op.COUNT);
+    Gather g = new Gather(counts);
+    HashSet<Integer> keys = new HashSet<Integer>();
+    int total = 0;
+    g.open();
+    while (g.hasNext()) {
+      Tuple t = g.next();
+      // a key in two partitions would be counted twice
+      assertTrue(keys.add(((IntField) t.getField(0)).getValue()));
+      total += ((IntField) t.getField(1)).getValue();
+    }
+    g.close();
+    assertEquals(tuples.size(), total);
+  }
+
+  /**
+   * Every copy of a broadcast sees all of the input, and a replayable copy
+   * returns it again when rewound
+   */
+  @Test public void broadcast() throws Exception {
+    TupleIterator input = TestUtil.createTupleList(1, new int[] { 1, 2, 3 });
+    Broadcast[] copies = Broadcast.broadcast(new DbIterator[] { input }, 2,
+        true);
+    DbIterator expected = TestUtil.createTupleList(1, new int[] { 1, 2, 3 });
+    copies[0].open();
+    copies[1].open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, copies[0]);
+    copies[0].rewind();
+    TestUtil.matchAllTuples(expected, copies[0]);
+    TestUtil.matchAllTuples(expected, copies[1]);
+    copies[0].close();
+    copies[1].close();
+  }
+
+  /**
+   * An exchange that cannot be replayed refuses to rewind
+   */
+  @Test(expected = DbException.class) public void notReplayable()
+      throws Exception {
+    HashRepartition[] parts = HashRepartition.partition(
+        new DbIterator[] { TestUtil.createTupleList(1, new int[] { 1 }) },
+        new int[] { 0 }, 1, false);
+    parts[0].open();
+    try {
+      parts[0].rewind();
+    } finally {
+      parts[0].close();
+    }
+  }
+
+  /**
+   * The planner runs scans, grouped aggregates and joins of large tables in
+   * parallel, with the same results as the sequential plans
+   */
+  @Test public void parallelPlans() throws Exception {
+    String name = Database.getCatalog().getTableName(table.getId());
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put(name, new TableStats(table.getId(), 1000));
+
+    String[][] queries = new String[][] {
+        { "filter" }, { "aggregate" }, { "join" }, { "theta join" } };
+    for (String[] q : queries) {
+      List<ArrayList<ArrayList<Integer>>> results =
+          new ArrayList<ArrayList<ArrayList<Integer>>>();
+      for (int run = 0; run < 2; run++) {
+        Exchange.setDegreeOfParallelism(run == 0 ? 1 : PARTS);
+        Exchange.setMinParallelPages(1);
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(table.getId(), "a");
+        if (q[0].equals("filter")) {
+          lp.addFilter("a.c0", Predicate.Op.LESS_THAN, "10");
+          lp.addProjectField("a.c1", null);
+        } else if (q[0].equals("aggregate")) {
+          lp.addProjectField("a.c0", null);
+          lp.addProjectField("a.c1", "sum");
+          lp.addGroupByField("a.c0");
+          lp.addAggregate("sum", "a.c1", null);
+        } else {
+          lp.addScan(table.getId(), "b");
+          lp.addFilter("a.c0", Predicate.Op.LESS_THAN, "3");
+          lp.addFilter("b.c1", Predicate.Op.LESS_THAN, "3");
+          lp.addJoin("a.c0", "b.c1", q[0].equals("join")
+              ? Predicate.Op.EQUALS : Predicate.Op.LESS_THAN);
+          lp.addProjectField("a.c1", null);
+          lp.addProjectField("b.c0", null);
+        }
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertEquals(run == 1, containsGather(plan));
+        ArrayList<ArrayList<Integer>> result =
+            new ArrayList<ArrayList<Integer>>();
+        plan.open();
+        while (plan.hasNext())
+          result.add(SystemTestUtil.tupleToList(plan.next()));
+        results.add(result);
+        plan.close();
+      }
+      assertTrue(results.get(0).size() > 0);
+      assertEquals(sorted(results.get(0)), sorted(results.get(1)));
+    }
+  }
+
+  private static boolean containsGather(DbIterator it) {
+    if (it instanceof Gather)
+      return true;
+    if (it instanceof Operator)
+      for (DbIterator c : ((Operator) it).getChildren())
+        if (containsGather(c))
+          return true;
+    return false;
+  }
+
+  private static List<String> sorted(ArrayList<ArrayList<Integer>> rows) {
+    ArrayList<String> strings = new ArrayList<String>();
+    for (ArrayList<Integer> row : rows)
+      strings.add(row.toString());
+    Collections.sort(strings);
+    return strings;
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
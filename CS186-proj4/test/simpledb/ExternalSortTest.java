@@ -0,0 +1,154 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExternalSortTest extends SimpleDbTestBase {
+
+  int width = 2;
+  int numTuples = 1000;
+  int[] data;
+  long tupleBytes;
+
+  /**
+   * Initialize each unit test: random keys in the first field, input
+   * position in the second
+   */
+  @Before public void createData() {
+    Random r = new Random(186);
+    data = new int[numTuples * width];
+    for (int i = 0; i < numTuples; i++) {
+      data[i * width] = r.nextInt(100);
+      data[i * width + 1] = i;
+    }
+    tupleBytes = ExternalSort.estimateTupleBytes(Utility.getTupleDesc(width));
+  }
+
+  private int value(Tuple t, int field) {
+    return ((IntField) t.getField(field)).getValue();
+  }
+
+  /**
+   * Checks that it returns every input tuple, sorted on the first field, with
+   * ties kept in input order
+   */
+  private void checkSorted(DbIterator it) throws Exception {
+    int n = 0;
+    Tuple prev = null;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      if (prev != null) {
+        assertTrue(value(prev, 0) <= value(t, 0));
+        if (value(prev, 0) == value(t, 0))
+          assertTrue(value(prev, 1) < value(t, 1));
+      }
+      prev = t;
+      n++;
+    }
+    assertEquals(numTuples, n);
+  }
+
+  private ExternalSort createSort(long memoryBudget) {
+    return new ExternalSort(TestUtil.createTupleList(width, data),
+        new TupleComparator(0, true), memoryBudget);
+  }
+
+  /**
+   * Input fits in the memory budget: nothing is spilled
+   */
+  @Test public void inMemory() throws Exception {
+    ExternalSort sort = createSort(numTuples * tupleBytes);
+    sort.open();
+    assertEquals(0, sort.numRuns());
+    checkSorted(sort);
+    sort.close();
+  }
+
+  /**
+   * Input spills to several runs that are merged in one pass
+   */
+  @Test public void spilledRuns() throws Exception {
+    ExternalSort sort = createSort(100 * tupleBytes);
+    sort.open();
+    assertEquals(10, sort.numRuns());
+    checkSorted(sort);
+    sort.close();
+  }
+
+  /**
+   * More runs than can be merged at once require intermediate merge passes
+   */
+  @Test public void multiPassMerge() throws Exception {
+    ExternalSort sort = createSort(5 * tupleBytes);
+    sort.open();
+    assertTrue(sort.numRuns() <= ExternalSort.MAX_FAN_IN);
+    checkSorted(sort);
+    sort.close();
+  }
+
+  /**
+   * Unit test for ExternalSort.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    ExternalSort sort = createSort(100 * tupleBytes);
+    sort.open();
+    checkSorted(sort);
+    sort.rewind();
+    checkSorted(sort);
+    sort.close();
+  }
+
+  /**
+   * String fields survive the round trip through a spill file
+   */
+  @Test public void strings() throws Exception {
+    String[] words = new String[] { "zebra", "", "apple", "mango", "kiwi",
+        "banana", "cherry" };
+    Object[] tups = new Object[words.length * 2];
+    for (int i = 0; i < words.length; i++) {
+      tups[2 * i] = words[i];
+      tups[2 * i + 1] = i;
+    }
+    DbIterator in = TestUtil.createTupleList(2, tups);
+    ExternalSort sort = new ExternalSort(in, new TupleComparator(0, false),
+        2 * ExternalSort.estimateTupleBytes(in.getTupleDesc()));
+    sort.open();
+    assertTrue(sort.numRuns() > 1);
+    String[] expected = words.clone();
+    Arrays.sort(expected, Collections.reverseOrder());
+    for (String w : expected)
+      assertEquals(w, ((StringField) sort.next().getField(0)).getValue());
+    assertTrue(TestUtil.checkExhausted(sort));
+    sort.close();
+  }
+
+  /**
+   * OrderBy sorts through ExternalSort, and can be reopened
+   */
+  @Test public void orderBy() throws Exception {
+    OrderBy ob = new OrderBy(0, true, TestUtil.createTupleList(width, data),
+        50 * tupleBytes);
+    ob.open();
+    checkSorted(ob);
+    ob.close();
+    ob.open();
+    checkSorted(ob);
+    ob.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExternalSortTest.class);
+  }
+}
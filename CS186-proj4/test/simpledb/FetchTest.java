@@ -0,0 +1,206 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FetchTest extends SimpleDbTestBase {
+
+  private TransactionId tid;
+  private HeapFile wide;
+  private HeapFile narrow;
+
+  @Before public void setUp() throws Exception {
+    tid = new TransactionId();
+    // an int key and two strings, joined to a table of ints
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE,
+        Type.STRING_TYPE, Type.STRING_TYPE }, new String[] { "k", "s", "u" });
+    File f = File.createTempFile("fetch", "dat");
+    f.deleteOnExit();
+    wide = new HeapFile(f, td);
+    Database.getCatalog().addTable(wide, "wide");
+    wide.writePage(new HeapPage(new HeapPageId(wide.getId(), 0),
+        HeapPage.createEmptyPageData()));
+    for (int i = 0; i < 300; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(i % 50));
+      t.setField(1, new StringField("s" + i, Type.STRING_LEN));
+      t.setField(2, new StringField("u" + i, Type.STRING_LEN));
+      Database.getBufferPool().insertTuple(tid, wide.getId(), t);
+    }
+    // the pages are locked by tid: write them out, and read them back
+    Database.getBufferPool().flushAllPages();
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    tid = new TransactionId();
+    narrow = SystemTestUtil.createRandomHeapFile(2, 200, 100, null,
+        new ArrayList<ArrayList<Integer>>(), "c");
+    Database.getCatalog().addTable(narrow, "narrow");
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+    Fetch.setMaxWidthRatio(0.5);
+  }
+
+  /**
+   * @return the rows of an iterator, as sorted strings, so that results in
+   *         different orders compare equal
+   */
+  private static List<String> rows(DbIterator it) throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    it.open();
+    while (it.hasNext())
+      rows.add(it.next().toString());
+    it.close();
+    Collections.sort(rows);
+    return rows;
+  }
+
+  /**
+   * @return the fields of the wide table, scanned by the key and fetched by
+   *         row id
+   */
+  private Fetch wideFetch() {
+    SeqScan ss = new SeqScan(tid, wide.getId(), "w");
+    ss.pushDown(new int[] { 0, SeqScan.ROW_ID }, new Predicate[0]);
+    return new Fetch(tid, wide.getId(), "w", new int[] { 1, 2 }, ss);
+  }
+
+  /**
+   * Fetch replaces the row id returned by a scan with the fields of the
+   * tuple it identifies
+   */
+  @Test public void fetch() throws Exception {
+    Fetch fetch = wideFetch();
+    assertEquals("w." + SeqScan.ROW_ID_NAME, fetch.getChildren()[0]
+        .getTupleDesc().getFieldName(1));
+    DbIterator all = new SeqScan(tid, wide.getId(), "w");
+    assertEquals(all.getTupleDesc(), fetch.getTupleDesc());
+    assertEquals(rows(all), rows(fetch));
+
+    // and can be rewound
+    fetch = wideFetch();
+    fetch.open();
+    int n = 0;
+    while (fetch.hasNext()) {
+      fetch.next();
+      n++;
+    }
+    fetch.rewind();
+    while (fetch.hasNext()) {
+      fetch.next();
+      n++;
+    }
+    fetch.close();
+    assertEquals(600, n);
+  }
+
+  private DbIterator plan(String... select) throws Exception {
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(wide.getId(), "w");
+    lp.addScan(narrow.getId(), "n");
+    lp.addJoin("w.k", "n.c0", Predicate.Op.EQUALS);
+    lp.addFilter("n.c1", Predicate.Op.LESS_THAN, "20");
+    for (String f : select)
+      lp.addProjectField(f, null);
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put("wide", new TableStats(wide.getId(), 1));
+    stats.put("narrow", new TableStats(narrow.getId(), 1));
+    return lp.physicalPlan(tid, stats, false);
+  }
+
+  private static boolean hasFetch(DbIterator it) {
+    if (it instanceof Fetch)
+      return true;
+    if (it instanceof Operator)
+      for (DbIterator c : ((Operator) it).getChildren())
+        if (c != null && hasFetch(c))
+          return true;
+    return false;
+  }
+
+  /**
+   * The planner fetches wide fields that are not joined on after the joins,
+   * with the same result as when it scans them
+   */
+  @Test public void lateMaterialization() throws Exception {
+    DbIterator late = plan("w.s", "n.c1", "w.u");
+    assertTrue(hasFetch(late));
+    List<String> rows = rows(late);
+    assertTrue(rows.size() > 0);
+    Fetch.setMaxWidthRatio(0);
+    DbIterator early = plan("w.s", "n.c1", "w.u");
+    assertTrue(!hasFetch(early));
+    assertEquals(rows(early), rows);
+
+    // all the fields of the table are scanned when they are all selected
+    Fetch.setMaxWidthRatio(0.5);
+    assertTrue(!hasFetch(plan("*")));
+  }
+
+  /**
+   * A table joined to a subquery is scanned and fetched as one joined to a
+   * table, with the same result as when its fields are all scanned
+   */
+  @Test public void subqueryJoin() throws Exception {
+    List<List<String>> results = new ArrayList<List<String>>();
+    for (double ratio : new double[] { 0.5, 0 }) {
+      Fetch.setMaxWidthRatio(ratio);
+      ArrayList<Integer> fields = new ArrayList<Integer>();
+      fields.add(0);
+      DbIterator sub = new Project(fields, new Type[] { Type.INT_TYPE },
+          new Filter(new Predicate(1, Predicate.Op.LESS_THAN,
+              new IntField(20)), new SeqScan(tid, narrow.getId(), "n")));
+      LogicalPlan lp = new LogicalPlan();
+      lp.addScan(wide.getId(), "w");
+      lp.addJoin("w.k", sub, Predicate.Op.EQUALS);
+      lp.addProjectField("w.s", null);
+      lp.addProjectField("w.u", null);
+      HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+      stats.put("wide", new TableStats(wide.getId(), 1));
+      DbIterator plan = lp.physicalPlan(tid, stats, false);
+      assertEquals(ratio > 0, hasFetch(plan));
+      results.add(rows(plan));
+    }
+    assertTrue(results.get(0).size() > 0);
+    assertEquals(results.get(1), results.get(0));
+  }
+
+  /**
+   * A row id past the largest int is an error rather than the row id of
+   * another tuple, and tables whose row ids all fit are fetched
+   */
+  @Test public void rowIdOverflow() throws Exception {
+    assertTrue(Fetch.supports(wide));
+    int slots = HeapPage.numSlots(wide.getTupleDesc());
+    HeapPage page = new HeapPage(new HeapPageId(wide.getId(),
+        Integer.MAX_VALUE / slots + 1), wide.readPage(
+        new HeapPageId(wide.getId(), 0)).getPageData());
+    try {
+      page.iterator(new int[] { SeqScan.ROW_ID }, null,
+          new TupleDesc(new Type[] { Type.INT_TYPE })).next();
+      fail("expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(FetchTest.class);
+  }
+}
@@ -3,6 +3,7 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
@@ -120,6 +121,82 @@ public class FilterTest extends SimpleDbTestBase {
     op.close();
   }
 
+  /**
+   * Unit test for Filter.getNext() with several predicates, all of which a
+   * tuple must satisfy
+   */
+  @Test public void filterConjunction() throws Exception {
+    Predicate[] preds = new Predicate[] {
+        new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, TestUtil.getField(-2)),
+        new Predicate(1, Predicate.Op.LESS_THAN, TestUtil.getField(3)),
+        new Predicate(2, Predicate.Op.NOT_EQUALS, TestUtil.getField(0)) };
+    Filter op = new Filter(preds, scan);
+    assertEquals(3, op.getPredicates().length);
+    assertEquals(preds[0], op.getPredicate());
+    op.open();
+    for (int v : new int[] { -2, -1, 1, 2 })
+      assertTrue(TestUtil.compareTuples(Utility.getHeapTuple(v, testWidth),
+          op.next()));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * Compiled predicates agree with Predicate.filter for every operator, on
+   * int and string fields, including at the limits of the int range
+   */
+  @Test public void compiledPredicates() throws Exception {
+    int[] ints = new int[] { Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE };
+    TupleDesc itd = Utility.getTupleDesc(1);
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (int c : ints) {
+        Predicate p = new Predicate(0, op, new IntField(c));
+        CompiledPredicate cp = CompiledPredicate.compile(p);
+        for (int v : ints) {
+          Tuple t = new Tuple(itd);
+          t.setField(0, new IntField(v));
+          assertEquals(p + " on " + v, p.filter(t), cp.eval(t));
+        }
+      }
+    }
+
+    String[] strings = new String[] { "", "a", "ab", "abc", "b" };
+    TupleDesc std = new TupleDesc(new Type[] { Type.STRING_TYPE });
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (String c : strings) {
+        Predicate p = new Predicate(0, op, new StringField(c, Type.STRING_LEN));
+        CompiledPredicate cp = CompiledPredicate.compile(p);
+        for (String v : strings) {
+          Tuple t = new Tuple(std);
+          t.setField(0, new StringField(v, Type.STRING_LEN));
+          assertEquals(p + " on " + v, p.filter(t), cp.eval(t));
+        }
+      }
+    }
+  }
+
+  /**
+   * Predicates compiled without a TupleDesc refuse to read the bytes of a
+   * page, wherever in the page the tuple is
+   */
+  @Test public void compiledWithoutOffsets() throws Exception {
+    byte[] data = new byte[BufferPool.PAGE_SIZE];
+    for (Predicate.Op op : Predicate.Op.values()) {
+      CompiledPredicate[] cps = new CompiledPredicate[] {
+          CompiledPredicate.compile(new Predicate(0, op, new IntField(1))),
+          CompiledPredicate.compile(new Predicate(0, op,
+              new StringField("a", Type.STRING_LEN))) };
+      for (CompiledPredicate cp : cps) {
+        try {
+          cp.evalRaw(data, 64);
+          fail(op + " evaluated without an offset");
+        } catch (UnsupportedOperationException e) {
+          // expected
+        }
+      }
+    }
+  }
+
   /**
    * JUnit suite target
    */
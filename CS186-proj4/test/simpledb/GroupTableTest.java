@@ -0,0 +1,136 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class GroupTableTest extends SimpleDbTestBase {
+
+  /**
+   * Integer keys get dense group numbers in order of first appearance, and
+   * keep them while the table grows
+   */
+  @Test public void intKeys() {
+    GroupTable groups = new GroupTable(Type.INT_TYPE);
+    int n = 10000;
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < n; i++) {
+        int key = i * 7919 - 5000;
+        int g = groups.findOrAdd(new IntField(key));
+        assertEquals(i, g);
+        groups.add(g, i);
+      }
+    }
+    assertEquals(n, groups.numGroups());
+    for (int i = 0; i < n; i++) {
+      assertEquals(new IntField(i * 7919 - 5000), groups.key(i));
+      assertEquals(3, groups.count(i));
+      assertEquals(3L * i, groups.sum(i));
+      assertEquals(i, groups.min(i));
+      assertEquals(i, groups.max(i));
+    }
+  }
+
+  /**
+   * String keys, including ones with colliding hash codes
+   */
+  @Test public void stringKeys() {
+    GroupTable groups = new GroupTable(Type.STRING_TYPE);
+    // "Aa" and "BB" have the same String.hashCode()
+    String[] keys = new String[] { "Aa", "BB", "AaAa", "BBBB", "AaBB", "x" };
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < keys.length; i++) {
+        int g = groups.findOrAdd(new StringField(keys[i], Type.STRING_LEN));
+        assertEquals(i, g);
+        groups.increment(g);
+      }
+    }
+    assertEquals(keys.length, groups.numGroups());
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(keys[i], ((StringField) groups.key(i)).getValue());
+      assertEquals(2, groups.count(i));
+    }
+  }
+
+  /**
+   * Without grouping every tuple lands in group 0
+   */
+  @Test public void noGrouping() {
+    GroupTable groups = new GroupTable(null);
+    assertEquals(0, groups.numGroups());
+    for (int i = 1; i <= 4; i++)
+      groups.add(groups.findOrAdd(null), i);
+    assertEquals(1, groups.numGroups());
+    assertNull(groups.key(0));
+    assertEquals(10, groups.value(0, Aggregator.Op.SUM));
+    assertEquals(2, groups.value(0, Aggregator.Op.AVG));
+    assertEquals(1, groups.value(0, Aggregator.Op.MIN));
+    assertEquals(4, groups.value(0, Aggregator.Op.MAX));
+    assertEquals(4, groups.value(0, Aggregator.Op.COUNT));
+  }
+
+  /**
+   * Sums are accumulated in 64 bits, so AVG of large values is exact, and a
+   * SUM too large for a field is an error rather than a wrapped value
+   */
+  @Test public void noOverflow() throws Exception {
+    GroupTable groups = new GroupTable(null);
+    int g = groups.findOrAdd(null);
+    for (int i = 0; i < 4; i++)
+      groups.add(g, Integer.MAX_VALUE);
+    assertEquals(4L * Integer.MAX_VALUE, groups.sum(g));
+    assertEquals(Integer.MAX_VALUE, groups.value(g, Aggregator.Op.AVG));
+    assertEquals(new IntField(Integer.MAX_VALUE), groups.field(g, 0, Aggregator.Op.AVG));
+    try {
+      groups.field(g, 0, Aggregator.Op.SUM);
+      fail("expected DbException");
+    } catch (DbException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Keys of several fields, with several aggregates per group
+   */
+  @Test public void compositeKeys() {
+    GroupTable groups = new GroupTable(new Type[] { Type.INT_TYPE,
+        Type.STRING_TYPE }, 2);
+    TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE,
+        Type.INT_TYPE });
+    int[] key = new int[] { 1, 0 };
+    String[] names = new String[] { "a", "b" };
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < 100; i++) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new StringField(names[i % 2], Type.STRING_LEN));
+        t.setField(1, new IntField(i / 2));
+        t.setField(2, new IntField(i));
+        assertEquals(round == 0 ? -1 : i, groups.find(t, key));
+        int g = groups.findOrAdd(t, key);
+        assertEquals(i, g);
+        groups.add(g, 0, i);
+        groups.increment(g, 1);
+      }
+    }
+    assertEquals(100, groups.numGroups());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(new IntField(i / 2), groups.key(i, 0));
+      assertEquals(names[i % 2], ((StringField) groups.key(i, 1)).getValue());
+      assertEquals(2L * i, groups.value(i, 0, Aggregator.Op.SUM));
+      assertEquals(i, groups.value(i, 0, Aggregator.Op.MAX));
+      assertEquals(2, groups.value(i, 1, Aggregator.Op.COUNT));
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(GroupTableTest.class);
+  }
+}
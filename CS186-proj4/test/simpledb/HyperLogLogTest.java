@@ -0,0 +1,57 @@
+package simpledb;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+public class HyperLogLogTest {
+
+	/**
+	 * The estimate is within a few standard errors of the number of distinct values,
+	 * however often each is added
+	 */
+	@Test public void estimateTest() {
+		HyperLogLog h = new HyperLogLog();
+		Assert.assertEquals(0.0, h.estimate(), 0.001);
+		for (int c = 0; c < 1000; c++)
+			h.add(new IntField(c));
+		Assert.assertEquals(1000.0, h.estimate(), 50.0);
+		for (int c = 0; c < 1000; c++)
+			h.add(new IntField(c));
+		Assert.assertEquals(1000.0, h.estimate(), 50.0);
+		for (int c = 1000; c < 200000; c++)
+			h.add(new IntField(c * 7));
+		Assert.assertEquals(200000.0, h.estimate(), 200000 * 0.05);
+	}
+
+	/**
+	 * Strings are counted as well
+	 */
+	@Test public void stringTest() {
+		HyperLogLog h = new HyperLogLog();
+		for (int c = 0; c < 30000; c++)
+			h.add(new StringField("s" + (c % 10000), Type.STRING_LEN));
+		Assert.assertEquals(10000.0, h.estimate(), 10000 * 0.05);
+	}
+
+	/**
+	 * The merge of the sketches of two parts of a set of values is the sketch of the whole set
+	 */
+	@Test public void mergeTest() {
+		HyperLogLog all = new HyperLogLog(), a = new HyperLogLog(), b = new HyperLogLog();
+		for (int c = 0; c < 50000; c++) {
+			all.add(new IntField(c));
+			(c % 3 == 0 ? a : b).add(new IntField(c));
+		}
+		// overlapping parts count the values they share once
+		for (int c = 0; c < 10000; c++)
+			a.add(new IntField(c));
+		a.merge(b);
+		Assert.assertEquals(all.estimate(), a.estimate(), 0.0);
+
+		try {
+			a.merge(new HyperLogLog(HyperLogLog.DEFAULT_PRECISION + 1));
+			Assert.fail("merged sketches of different precisions");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
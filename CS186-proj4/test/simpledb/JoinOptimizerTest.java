@@ -5,8 +5,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -73,6 +75,13 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
 		TableStats.setTableStats(tableName2, stats2);
 	}
 	
+	@After public void tearDown() throws Exception {
+		JoinOptimizer.setMaxExhaustiveJoins(15);
+		HashEquiJoin.setDefaultMemoryBudget(hashBudget);
+	}
+
+	private final long hashBudget = HashEquiJoin.getDefaultMemoryBudget();
+	
 	private double[] getRandomJoinCosts(JoinOptimizer jo, LogicalJoinNode js, int[] card1s, int[] card2s, double[] cost1s, double[] cost2s) {
 		double[] ret = new double[card1s.length];
 		for(int i = 0; i < card1s.length; ++i) {
@@ -200,6 +209,15 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
 												stats1.estimateTableCardinality(0.8), stats2.estimateTableCardinality(0.2), false, true,TableStats.getStatsMap());
 
 	         Assert.assertTrue(cardinality == 800 || cardinality == 2000);
+
+		// Otherwise, each value of either field joins the tuples of the other with the same value
+		HashSet<Integer> values = new HashSet<Integer>();
+		for (ArrayList<Integer> t : tuples2)
+			values.add(t.get(7));
+		cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2", "c"+Integer.toString(8), "c"+Integer.toString(7), Predicate.Op.EQUALS),
+												stats2.totalTuples(), stats2.totalTuples(), false, false, TableStats.getStatsMap());
+		double expected = (double) stats2.totalTuples() * stats2.totalTuples() / values.size();
+		Assert.assertEquals(expected, cardinality, expected * 0.1);
 	}
 	
 	/**
@@ -406,6 +424,255 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
 		Assert.assertEquals(result.get(result.size()-1).t2Alias, "bigTable");
 	}
 	
+	/**
+	 * Test that a ring of 20 joins, which has over a million subsets of joins but
+	 * only a few hundred connected ones, is ordered quickly, without cross products,
+	 * both exhaustively and greedily
+	 */
+	@Test(timeout=60000) public void ringOrderJoinsTest() throws IOException, DbException, TransactionAbortedException, ParsingException {
+		final int IO_COST = 101;
+		final int TABLES = 20;
+		
+		HashMap<String, TableStats> stats = new HashMap<String,TableStats>();
+		HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+		Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+		LogicalPlan lp = new LogicalPlan();
+		
+		// tables of growing size, each joined to the next, and the last to the first
+		for (int i = 0; i < TABLES; i++) {
+			HeapFile table = SystemTestUtil.createRandomHeapFile(2, 10 * (i + 1), 100, null, new ArrayList<ArrayList<Integer>>(), "c");
+			Database.getCatalog().addTable(table, "r" + i);
+			lp.addScan(table.getId(), "r" + i);
+			stats.put("r" + i, new TableStats(table.getId(), IO_COST));
+			filterSelectivities.put("r" + i, 1.0);
+			nodes.add(new LogicalJoinNode("r" + i, "r" + ((i + 1) % TABLES), "c" + (i % 2), "c" + (i % 2), Predicate.Op.EQUALS));
+		}
+		Collections.shuffle(nodes);
+		
+		JoinOptimizer.setMaxExhaustiveJoins(TABLES);
+		Vector<LogicalJoinNode> result = new JoinOptimizer(lp, nodes).orderJoins(stats, filterSelectivities, false);
+		checkConnected(TABLES, nodes, result);
+		
+		// and the greedy plan is no cheaper
+		JoinOptimizer.setMaxExhaustiveJoins(0);
+		JoinOptimizer j = new JoinOptimizer(lp, nodes);
+		Vector<LogicalJoinNode> greedy = j.orderJoins(stats, filterSelectivities, false);
+		checkConnected(TABLES, nodes, greedy);
+		Assert.assertTrue(j.estimatePlanCost(result, stats, filterSelectivities) <= j.estimatePlanCost(greedy, stats, filterSelectivities));
+	}
+	
+	/**
+	 * Check that an order of the given joins has each of them once, and that they join all the
+	 * tables into a single plan; a join may start a new subplan, to be joined to the others later
+	 */
+	private static void checkConnected(int tables, Vector<LogicalJoinNode> nodes, Vector<LogicalJoinNode> result) {
+		Assert.assertEquals(nodes.size(), result.size());
+		// the subplan of each table, as the set of tables it joins
+		HashMap<String, HashSet<String>> subplans = new HashMap<String, HashSet<String>>();
+		for (LogicalJoinNode j : result) {
+			Assert.assertTrue(nodes.contains(j));
+			HashSet<String> joined = new HashSet<String>();
+			for (String alias : new String[] { j.t1Alias, j.t2Alias }) {
+				if (subplans.containsKey(alias))
+					joined.addAll(subplans.get(alias));
+				else
+					joined.add(alias);
+			}
+			for (String alias : joined)
+				subplans.put(alias, joined);
+		}
+		Assert.assertEquals(tables, subplans.size());
+		Assert.assertEquals(tables, subplans.get(result.lastElement().t1Alias).size());
+	}
+	
+	/**
+	 * @return the number of tuples returned by the plan of a LogicalPlan
+	 */
+	private static int count(LogicalPlan lp, TransactionId tid, HashMap<String, TableStats> stats) throws Exception {
+		DbIterator it = lp.physicalPlan(tid, stats, false);
+		int n = 0;
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+	
+	/**
+	 * Test that the optimizer costs each physical join: an equality join of two big tables is
+	 * hashed, on the smaller one, unless the map would not fit in memory, and a range join is not
+	 */
+	@Test public void joinAlgorithmTest() throws Exception {
+		TransactionId tid = new TransactionId();
+		HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+		stats.put(tableName1, stats1);
+		stats.put(tableName2, stats2);
+		HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+		filterSelectivities.put("t1", 1.0);
+		filterSelectivities.put("t2", 1.0);
+		LogicalPlan lp = new LogicalPlan();
+		lp.addScan(tableId2, "t2");
+		lp.addScan(tableId1, "t1");
+		lp.addJoin("t2.c1", "t1.c2", Predicate.Op.EQUALS);
+		lp.addProjectField("t1.c0", null);
+
+		Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+		nodes.add(new LogicalJoinNode("t2", "t1", "c1", "c2", Predicate.Op.EQUALS));
+		Vector<LogicalJoinNode> result = new JoinOptimizer(lp, nodes).orderJoins(stats, filterSelectivities, false);
+		Assert.assertEquals(LogicalJoinNode.Algorithm.HASH, result.get(0).algorithm);
+		Assert.assertEquals("t1", result.get(0).t1Alias);
+		DbIterator join = JoinOptimizer.instantiateJoin(result.get(0),
+				new SeqScan(tid, tableId1, "t1"), new SeqScan(tid, tableId2, "t2"));
+		Assert.assertTrue(join instanceof HashEquiJoin);
+
+		int expected = 0;
+		for (ArrayList<Integer> t2 : tuples2)
+			for (ArrayList<Integer> t1 : tuples1)
+				if (t2.get(1).equals(t1.get(2)))
+					expected++;
+		Assert.assertEquals(expected, count(lp, tid, stats));
+
+		// a map of a single tuple rescans the inner once per outer tuple
+		HashEquiJoin.setDefaultMemoryBudget(1);
+		result = new JoinOptimizer(lp, nodes).orderJoins(stats, filterSelectivities, false);
+		Assert.assertTrue(result.get(0).algorithm != LogicalJoinNode.Algorithm.HASH);
+		Assert.assertEquals(expected, count(lp, tid, stats));
+
+		nodes.set(0, new LogicalJoinNode("t2", "t1", "c1", "c2", Predicate.Op.NOT_EQUALS));
+		result = new JoinOptimizer(lp, nodes).orderJoins(stats, filterSelectivities, false);
+		Assert.assertEquals(LogicalJoinNode.Algorithm.BLOCK_NESTED_LOOP, result.get(0).algorithm);
+	}
+
+	/**
+	 * Test that the result of two equality joins, each much smaller than that of the range join
+	 * between them, is joined by a bushy plan, which runs correctly
+	 */
+	@Test public void bushyOrderJoinsTest() throws Exception {
+		final int IO_COST = 100;
+		String[] names = new String[] { "a", "b", "c", "d" };
+		int[] rows = new int[] { 700, 200, 1100, 500 };
+		ArrayList<ArrayList<ArrayList<Integer>>> tuples = new ArrayList<ArrayList<ArrayList<Integer>>>();
+		HashMap<String, TableStats> stats = new HashMap<String,TableStats>();
+		HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+		LogicalPlan lp = new LogicalPlan();
+		for (int i = 0; i < names.length; i++) {
+			tuples.add(new ArrayList<ArrayList<Integer>>());
+			HeapFile table = SystemTestUtil.createRandomHeapFile(2, rows[i], 1000, null, tuples.get(i), "c");
+			Database.getCatalog().addTable(table, names[i], "c0");
+			lp.addScan(table.getId(), names[i]);
+			stats.put(names[i], new TableStats(table.getId(), IO_COST));
+			filterSelectivities.put(names[i], 1.0);
+		}
+		lp.addJoin("a.c1", "b.c0", Predicate.Op.LESS_THAN);
+		lp.addJoin("b.c0", "c.c0", Predicate.Op.EQUALS);
+		lp.addJoin("a.c0", "d.c0", Predicate.Op.EQUALS);
+		lp.addProjectField("a.c0", null);
+		
+		Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+		nodes.add(new LogicalJoinNode("a", "b", "c1", "c0", Predicate.Op.LESS_THAN));
+		nodes.add(new LogicalJoinNode("b", "c", "c0", "c0", Predicate.Op.EQUALS));
+		nodes.add(new LogicalJoinNode("a", "d", "c0", "c0", Predicate.Op.EQUALS));
+		Vector<LogicalJoinNode> result = new JoinOptimizer(lp, nodes).orderJoins(stats, filterSelectivities, false);
+		// the range join is the last one, and joins the results of the other two
+		Assert.assertTrue(result.get(2).equals(nodes.get(0)));
+		
+		// for each tuple of a, the number of tuples of d it joins; for each tuple of b, of c
+		ArrayList<ArrayList<Integer>> a = tuples.get(0), b = tuples.get(1), c = tuples.get(2), d = tuples.get(3);
+		int expected = 0;
+		for (ArrayList<Integer> ta : a) {
+			int ds = 0;
+			for (ArrayList<Integer> td : d)
+				if (ta.get(0).equals(td.get(0)))
+					ds++;
+			for (ArrayList<Integer> tb : b) {
+				if (ta.get(1) >= tb.get(0))
+					continue;
+				for (ArrayList<Integer> tc : c)
+					if (tb.get(0).equals(tc.get(0)))
+						expected += ds;
+			}
+		}
+		Assert.assertEquals(expected, count(lp, new TransactionId(), stats));
+	}
+	
+	/**
+	 * Test that a cycle of joins is planned and runs correctly, whether it is planned exhaustively
+	 * or greedily: the last join of the cycle filters the result of the others
+	 */
+	@Test public void cycleOrderJoinsTest() throws Exception {
+		final int IO_COST = 100;
+		String[] names = new String[] { "a", "b", "c" };
+		ArrayList<ArrayList<ArrayList<Integer>>> tuples = new ArrayList<ArrayList<ArrayList<Integer>>>();
+		HashMap<String, TableStats> stats = new HashMap<String,TableStats>();
+		LogicalPlan lp = new LogicalPlan();
+		for (int i = 0; i < names.length; i++) {
+			tuples.add(new ArrayList<ArrayList<Integer>>());
+			HeapFile table = SystemTestUtil.createRandomHeapFile(2, 60 + 20 * i, 8, null, tuples.get(i), "c");
+			Database.getCatalog().addTable(table, names[i]);
+			lp.addScan(table.getId(), names[i]);
+			stats.put(names[i], new TableStats(table.getId(), IO_COST));
+		}
+		lp.addJoin("a.c0", "b.c0", Predicate.Op.EQUALS);
+		lp.addJoin("b.c1", "c.c1", Predicate.Op.EQUALS);
+		lp.addJoin("c.c0", "a.c1", Predicate.Op.LESS_THAN);
+		lp.addProjectField("a.c0", null);
+		
+		int expected = 0;
+		for (ArrayList<Integer> ta : tuples.get(0))
+			for (ArrayList<Integer> tb : tuples.get(1))
+				for (ArrayList<Integer> tc : tuples.get(2))
+					if (ta.get(0).equals(tb.get(0)) && tb.get(1).equals(tc.get(1)) && tc.get(0) < ta.get(1))
+						expected++;
+		Assert.assertTrue(expected > 0);
+		Assert.assertEquals(expected, count(lp, new TransactionId(), stats));
+		JoinOptimizer.setMaxExhaustiveJoins(0);
+		Assert.assertEquals(expected, count(lp, new TransactionId(), stats));
+	}
+	
+	/**
+	 * Test that a join to a subquery is planned along with the joins of tables, and runs
+	 * correctly, whether it is planned exhaustively or greedily
+	 */
+	@Test public void subqueryOrderJoinsTest() throws Exception {
+		final int IO_COST = 100;
+		String[] names = new String[] { "a", "b" };
+		ArrayList<ArrayList<ArrayList<Integer>>> tuples = new ArrayList<ArrayList<ArrayList<Integer>>>();
+		HashMap<String, TableStats> stats = new HashMap<String,TableStats>();
+		int[] ids = new int[names.length];
+		for (int i = 0; i < names.length; i++) {
+			tuples.add(new ArrayList<ArrayList<Integer>>());
+			HeapFile table = SystemTestUtil.createRandomHeapFile(2, 60 + 20 * i, 8, null, tuples.get(i), "c");
+			Database.getCatalog().addTable(table, names[i]);
+			ids[i] = table.getId();
+			stats.put(names[i], new TableStats(table.getId(), IO_COST));
+		}
+
+		int expected = 0;
+		for (ArrayList<Integer> ta : tuples.get(0))
+			for (ArrayList<Integer> tb : tuples.get(1))
+				for (ArrayList<Integer> ts : tuples.get(1))
+					if (ta.get(0).equals(tb.get(0)) && ta.get(1).equals(ts.get(0)) && ts.get(1) < 4)
+						expected++;
+		Assert.assertTrue(expected > 0);
+		for (int exhaustive : new int[] { 10, 0 }) {
+			JoinOptimizer.setMaxExhaustiveJoins(exhaustive);
+			ArrayList<Integer> fields = new ArrayList<Integer>();
+			fields.add(0);
+			DbIterator sub = new Project(fields, new Type[] { Type.INT_TYPE },
+					new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(4)),
+							new SeqScan(new TransactionId(), ids[1], "s")));
+			LogicalPlan lp = new LogicalPlan();
+			lp.addScan(ids[0], "a");
+			lp.addScan(ids[1], "b");
+			lp.addJoin("a.c0", "b.c0", Predicate.Op.EQUALS);
+			lp.addJoin("a.c1", sub, Predicate.Op.EQUALS);
+			lp.addProjectField("a.c0", null);
+			Assert.assertEquals(expected, count(lp, new TransactionId(), stats));
+		}
+	}
+	
 	/**
 	 * Test a join ordering with an inequality, to make sure the inequality gets put
 	 * as the innermost join
@@ -0,0 +1,100 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LimitTest extends SimpleDbTestBase {
+
+  int testWidth = 2;
+  TestUtil.MockScan scan;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void setUp() {
+    this.scan = new TestUtil.MockScan(0, 10, testWidth);
+  }
+
+  private int firstField(Tuple t) {
+    return ((IntField) t.getField(0)).getValue();
+  }
+
+  /**
+   * Unit test for Limit.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    Limit op = new Limit(3, 0, scan);
+    assertEquals(Utility.getTupleDesc(testWidth), op.getTupleDesc());
+  }
+
+  /**
+   * Unit test for Limit.getNext() with a limit only
+   */
+  @Test public void limit() throws Exception {
+    Limit op = new Limit(3, 0, scan);
+    op.open();
+    for (int i = 0; i < 3; i++)
+      assertEquals(i, firstField(op.next()));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for Limit.getNext() with a limit and an offset
+   */
+  @Test public void limitOffset() throws Exception {
+    Limit op = new Limit(3, 5, scan);
+    op.open();
+    for (int i = 5; i < 8; i++)
+      assertEquals(i, firstField(op.next()));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * Limits and offsets past the end of the input
+   */
+  @Test public void pastEnd() throws Exception {
+    Limit op = new Limit(100, 8, scan);
+    op.open();
+    assertEquals(8, firstField(op.next()));
+    assertEquals(9, firstField(op.next()));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+
+    op = new Limit(0, 0, new TestUtil.MockScan(0, 10, testWidth));
+    op.open();
+    assertFalse(op.hasNext());
+    op.close();
+  }
+
+  /**
+   * Unit test for Limit.rewind(), after the child was closed early
+   */
+  @Test public void rewind() throws Exception {
+    Limit op = new Limit(2, 1, scan);
+    op.open();
+    assertEquals(1, firstField(op.next()));
+    assertEquals(2, firstField(op.next()));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+    assertEquals(1, firstField(op.next()));
+    assertEquals(2, firstField(op.next()));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LimitTest.class);
+  }
+}
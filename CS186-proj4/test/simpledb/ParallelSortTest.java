@@ -0,0 +1,118 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ParallelSortTest extends SimpleDbTestBase {
+
+  private static final int PARTS = 4;
+
+  /**
+   * Random int keys in the first field, input position in the second
+   */
+  private ArrayList<Tuple> intTuples(int n, int maxValue) {
+    Random r = new Random(186);
+    TupleDesc td = Utility.getTupleDesc(2);
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < n; i++) {
+      Tuple t = new Tuple(td);
+      // negative values too, to check the key encoding
+      t.setField(0, new IntField(r.nextInt(maxValue) - r.nextInt(maxValue)));
+      t.setField(1, new IntField(i));
+      tuples.add(t);
+    }
+    return tuples;
+  }
+
+  /**
+   * Strings sharing long prefixes in the first field, input position in the
+   * second
+   */
+  private ArrayList<Tuple> stringTuples(int n) {
+    Random r = new Random(186);
+    TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE,
+        Type.INT_TYPE });
+    String[] prefixes = { "", "a", "ab", "abc", "abcd", "abcde", "b\u0000" };
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < n; i++) {
+      Tuple t = new Tuple(td);
+      String s = prefixes[r.nextInt(prefixes.length)];
+      if (r.nextBoolean())
+        s += (char) ('a' + r.nextInt(3));
+      t.setField(0, new StringField(s, Type.STRING_LEN));
+      t.setField(1, new IntField(i));
+      tuples.add(t);
+    }
+    return tuples;
+  }
+
+  /**
+   * Sorts the tuples with ParallelSort, and checks the result against a
+   * (stable) sort with the tuple comparator
+   */
+  private void checkSort(ArrayList<Tuple> tuples, boolean asc, int dop) {
+    ArrayList<Tuple> expected = new ArrayList<Tuple>(tuples);
+    Collections.sort(expected, new TupleComparator(0, asc));
+    ArrayList<Tuple> actual = new ArrayList<Tuple>(tuples);
+    ParallelSort.sort(actual, 0, asc, dop);
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++)
+      assertEquals(expected.get(i), actual.get(i));
+  }
+
+  /**
+   * Int fields, ascending and descending, with many ties kept in input order
+   */
+  @Test public void intFields() {
+    checkSort(intTuples(1000, 50), true, 1);
+    checkSort(intTuples(1000, 50), false, 1);
+    checkSort(intTuples(1000, Integer.MAX_VALUE), true, 1);
+    checkSort(intTuples(1000, Integer.MAX_VALUE), false, 1);
+  }
+
+  /**
+   * String fields whose key prefixes tie are ordered on the whole value
+   */
+  @Test public void stringFields() {
+    checkSort(stringTuples(1000), true, 1);
+    checkSort(stringTuples(1000), false, 1);
+  }
+
+  /**
+   * Large inputs are split between several threads, with the same result
+   */
+  @Test public void parallel() {
+    int saved = ParallelSort.getMinParallelTuples();
+    try {
+      ParallelSort.setMinParallelTuples(1);
+      int n = 4 * ParallelSort.SEQUENTIAL_CUTOFF + 17;
+      checkSort(intTuples(n, 1000), true, PARTS);
+      checkSort(intTuples(n, 1000), false, PARTS);
+      checkSort(stringTuples(n), true, PARTS);
+    } finally {
+      ParallelSort.setMinParallelTuples(saved);
+    }
+  }
+
+  /**
+   * Empty and single tuple inputs
+   */
+  @Test public void small() {
+    checkSort(intTuples(0, 10), true, PARTS);
+    checkSort(intTuples(1, 10), true, PARTS);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParallelSortTest.class);
+  }
+}
@@ -0,0 +1,197 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.Assert;
+
+import Zql.ZQuery;
+import Zql.ZqlParser;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PreparedQueryTest extends SimpleDbTestBase {
+
+	private ArrayList<ArrayList<Integer>> tuples1, tuples2;
+	private Parser parser;
+	private TransactionId tid;
+
+	@Before public void setUp() throws Exception {
+		super.setUp();
+		tuples1 = new ArrayList<ArrayList<Integer>>();
+		tuples2 = new ArrayList<ArrayList<Integer>>();
+		HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, 500, 20, null, tuples1, "c");
+		HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 200, 20, null, tuples2, "c");
+		Database.getCatalog().addTable(f1, "t");
+		Database.getCatalog().addTable(f2, "u");
+		TableStats.setTableStats("t", new TableStats(f1.getId(), 1000));
+		TableStats.setTableStats("u", new TableStats(f2.getId(), 1000));
+		QueryPlanCache.clear();
+		parser = new Parser();
+		tid = new TransactionId();
+	}
+
+	@After public void tearDown() throws Exception {
+		Database.getBufferPool().transactionComplete(tid);
+		QueryPlanCache.clear();
+	}
+
+	private static int count(Query q) throws Exception {
+		int n = 0;
+		q.start();
+		while (q.hasNext()) {
+			q.next();
+			n++;
+		}
+		q.close();
+		return n;
+	}
+
+	/** The number of pairs of t and u equal on c0 with t.c1 < v */
+	private int joined(int v) {
+		int n = 0;
+		for (ArrayList<Integer> t : tuples1)
+			for (ArrayList<Integer> u : tuples2)
+				if (t.get(0).equals(u.get(0)) && t.get(1) < v)
+					n++;
+		return n;
+	}
+
+	/**
+	 * Constants and ? are the parameters of the shape of a query
+	 */
+	@Test public void shapeTest() throws Exception {
+		PreparedQuery q = parser.prepare("SELECT *  FROM t\n WHERE t.c0 = 5 AND t.c1 = ? AND t.c1 <> 'it''s 3';");
+		Assert.assertEquals("SELECT * FROM t WHERE t.c0 = ? AND t.c1 = ? AND t.c1 <> ?", q.getShape());
+		Assert.assertEquals(1, q.numParameters());
+		// fields and aliases with digits are not constants
+		q = parser.prepare("SELECT t1.c0 FROM t t1 WHERE t1.c0 > 10 LIMIT 3;");
+		Assert.assertEquals("SELECT t1.c0 FROM t t1 WHERE t1.c0 > ?", q.getShape());
+		Assert.assertEquals(0, q.numParameters());
+
+		for (String sql : new String[] { "SELECT * FROM t WHERE t.c0 = (SELECT u.c0 FROM u);",
+				"INSERT INTO t VALUES (1, 2);", "SELECT * FROM t; SELECT * FROM u;" }) {
+			try {
+				parser.prepare(sql);
+				Assert.fail("prepared " + sql);
+			} catch (ParsingException e) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * A prepared query is planned once, and run with the values bound each time
+	 */
+	@Test public void bindTest() throws Exception {
+		PreparedQuery q = parser.prepare("SELECT t.c0, u.c1 FROM t, u WHERE t.c0 = u.c0 AND t.c1 < ?;");
+		Assert.assertEquals(joined(5), count(q.bind(tid, "5")));
+		Assert.assertEquals(1, QueryPlanCache.getMisses());
+		Assert.assertEquals(joined(15), count(q.bind(tid, "15")));
+		Assert.assertEquals(1, QueryPlanCache.getHits());
+		Assert.assertEquals(1, QueryPlanCache.size());
+
+		// the same query with a constant shares the plan
+		Query literal = parser.handlePreparedQuery(parser.prepare("SELECT t.c0, u.c1  FROM t, u\n WHERE t.c0 = u.c0 AND t.c1 < 9"), tid);
+		Assert.assertEquals(joined(9), count(literal));
+		Assert.assertEquals(1, QueryPlanCache.size());
+
+		try {
+			q.bind(tid);
+			Assert.fail("bound without a value");
+		} catch (ParsingException e) {
+			// expected
+		}
+		try {
+			q.bind(tid, "five");
+			Assert.fail("bound a string to an integer field");
+		} catch (ParsingException e) {
+			Assert.assertEquals("Parameter 1 is not an integer", e.getMessage());
+		}
+	}
+
+	/**
+	 * Statements run by the parser share the plans of their shape too
+	 */
+	@Test public void statementTest() throws Exception {
+		parser.processNextStatement("SELECT t.c0 FROM t WHERE t.c1 < 3;");
+		parser.processNextStatement("SELECT   t.c0 FROM t WHERE t.c1 < 12;");
+		Assert.assertEquals(1, QueryPlanCache.getHits());
+		// a LIMIT is part of the plan
+		parser.processNextStatement("SELECT t.c0 FROM t WHERE t.c1 < 3 LIMIT 2;");
+		Assert.assertEquals(2, QueryPlanCache.size());
+		// a subquery is planned as before
+		parser.processNextStatement("SELECT t.c0 FROM t WHERE t.c0 = (SELECT u.c0 FROM u WHERE u.c1 = 1);");
+		Assert.assertEquals(2, QueryPlanCache.size());
+	}
+
+	/**
+	 * A filter seen to return far more tuples than estimated makes a new plan, and one
+	 * returning about as many does not
+	 */
+	@Test public void feedbackTest() throws Exception {
+		PreparedQuery q = parser.prepare("SELECT t.c0, u.c1 FROM t, u WHERE t.c0 = u.c0 AND t.c1 < ?;");
+		count(q.bind(tid, "5"));
+		ArrayList<Predicate> preds = new ArrayList<Predicate>();
+		preds.add(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(5)));
+		CardinalityFeedback.recordFilter("t", preds, 100, 110);
+		count(q.bind(tid, "5"));
+		Assert.assertEquals(1, QueryPlanCache.getMisses());
+		CardinalityFeedback.recordFilter("t", preds, 100, 400);
+		count(q.bind(tid, "5"));
+		Assert.assertEquals(2, QueryPlanCache.getMisses());
+	}
+
+	/** The number of tuples of t whose c0 satisfies a predicate */
+	private int filtered(Predicate.Op op, int v) {
+		int n = 0;
+		for (ArrayList<Integer> t : tuples1)
+			if (new IntField(t.get(0)).compare(op, new IntField(v)))
+				n++;
+		return n;
+	}
+
+	/**
+	 * A constant on the left of a comparison, which ZQL cannot parse as a ?, is planned as a
+	 * statement of its own
+	 */
+	@Test public void constantFirstTest() throws Exception {
+		Assert.assertEquals(filtered(Predicate.Op.EQUALS, 5), count(query("SELECT t.c0 FROM t WHERE 5 = t.c0;")));
+		Assert.assertEquals(filtered(Predicate.Op.LESS_THAN, 10), count(query("SELECT t.c0 FROM t WHERE 10 > t.c0;")));
+		Assert.assertEquals(0, QueryPlanCache.size());
+	}
+
+	/** @return a statement run as the parser runs it */
+	private Query query(String sql) throws Exception {
+		ZqlParser p = new ZqlParser(new ByteArrayInputStream(sql.getBytes("UTF-8")));
+		return parser.handleQueryStatement((ZQuery) p.readStatement(), tid);
+	}
+
+	/**
+	 * New statistics make a new plan
+	 */
+	@Test public void statsVersionTest() throws Exception {
+		PreparedQuery q = parser.prepare("SELECT t.c1 FROM t WHERE t.c0 = ?;");
+		count(q.bind(tid, "3"));
+		count(q.bind(tid, "4"));
+		Assert.assertEquals(1, QueryPlanCache.getMisses());
+		TableStats.setTableStats("t", new TableStats(Database.getCatalog().getTableId("t"), 1000));
+		count(q.bind(tid, "5"));
+		Assert.assertEquals(2, QueryPlanCache.getMisses());
+		Assert.assertEquals(2, QueryPlanCache.size());
+
+		// a cache without room plans every time
+		QueryPlanCache.setCapacity(0);
+		try {
+			Assert.assertEquals(0, QueryPlanCache.size());
+			count(q.bind(tid, "6"));
+			count(q.bind(tid, "7"));
+			Assert.assertEquals(4, QueryPlanCache.getMisses());
+		} finally {
+			QueryPlanCache.setCapacity(QueryPlanCache.DEFAULT_CAPACITY);
+		}
+	}
+}
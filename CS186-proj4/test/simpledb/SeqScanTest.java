@@ -0,0 +1,212 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SeqScanTest extends SimpleDbTestBase {
+
+  private TransactionId tid;
+
+  @Before public void setUp() throws Exception {
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * @return the rows of an iterator, as sorted strings, so that results in
+   *         different orders compare equal
+   */
+  private static List<String> rows(DbIterator it) throws Exception {
+    ArrayList<String> rows = new ArrayList<String>();
+    it.open();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      assertTrue(t.getRecordId() != null);
+      rows.add(t.toString() + t.getRecordId().tupleno());
+    }
+    it.close();
+    Collections.sort(rows);
+    return rows;
+  }
+
+  /**
+   * @return a filter and projection of a scan of the table, computing what a
+   *         scan with the fields and predicates pushed down returns
+   */
+  private DbIterator filterProject(int tableid, int[] fields,
+      Predicate[] preds) {
+    DbIterator child = new SeqScan(tid, tableid, "t");
+    if (preds.length > 0)
+      child = new Filter(preds, child);
+    ArrayList<Integer> fieldList = new ArrayList<Integer>();
+    Type[] types = new Type[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      fieldList.add(fields[i]);
+      types[i] = child.getTupleDesc().getFieldType(fields[i]);
+    }
+    return new Project(fieldList, types, child);
+  }
+
+  private SeqScan pushedScan(int tableid, int[] fields, Predicate[] preds) {
+    SeqScan ss = new SeqScan(tid, tableid, "t");
+    ss.pushDown(fields, preds);
+    return ss;
+  }
+
+  /**
+   * A scan returns the tuples satisfying predicates over int fields pushed
+   * into it, with only the requested fields, for every operator
+   */
+  @Test public void intPushDown() throws Exception {
+    HeapFile table = SystemTestUtil.createRandomHeapFile(3, 3000, 50, null,
+        new ArrayList<ArrayList<Integer>>(), "c");
+    int[] fields = new int[] { 2, 0 };
+    for (Predicate.Op op : Predicate.Op.values()) {
+      Predicate[] preds = new Predicate[] {
+          new Predicate(1, op, new IntField(25)),
+          new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(5)) };
+      SeqScan ss = pushedScan(table.getId(), fields, preds);
+      DbIterator expected = filterProject(table.getId(), fields, preds);
+      assertEquals(expected.getTupleDesc(), ss.getTupleDesc());
+      assertEquals(rows(expected), rows(ss));
+    }
+
+    // no predicate, and every field
+    assertEquals(rows(new SeqScan(tid, table.getId(), "t")), rows(pushedScan(
+        table.getId(), null, new Predicate[0])));
+  }
+
+  /**
+   * A pushed down scan can be rewound, and reopened after being closed
+   */
+  @Test public void rewind() throws Exception {
+    HeapFile table = SystemTestUtil.createRandomHeapFile(2, 3000, 50, null,
+        new ArrayList<ArrayList<Integer>>(), "c");
+    SeqScan ss = pushedScan(table.getId(), new int[] { 1 },
+        new Predicate[] { new Predicate(0, Predicate.Op.LESS_THAN,
+            new IntField(3)) });
+    List<String> expected = rows(ss);
+    assertTrue(expected.size() > 0);
+    ArrayList<String> rewound = new ArrayList<String>();
+    ss.open();
+    while (ss.hasNext())
+      ss.next();
+    ss.rewind();
+    while (ss.hasNext()) {
+      Tuple t = ss.next();
+      rewound.add(t.toString() + t.getRecordId().tupleno());
+    }
+    ss.close();
+    Collections.sort(rewound);
+    assertEquals(expected, rewound);
+  }
+
+  /**
+   * @return a table of an int and a string field, holding each of the
+   *         given strings
+   */
+  private HeapFile stringTable(String[] values) throws Exception {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE,
+        Type.STRING_TYPE }, new String[] { "i", "s" });
+    File f = File.createTempFile("seqscan", "dat");
+    f.deleteOnExit();
+    HeapFile table = new HeapFile(f, td);
+    Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+    table.writePage(new HeapPage(new HeapPageId(table.getId(), 0),
+        HeapPage.createEmptyPageData()));
+    for (int i = 0; i < values.length; i++)
+      Database.getBufferPool().insertTuple(tid, table.getId(),
+          stringTuple(td, i, values[i]));
+    // the pages are locked by tid: write them out, and read them back
+    Database.getBufferPool().flushAllPages();
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    tid = new TransactionId();
+    return table;
+  }
+
+  private static Tuple stringTuple(TupleDesc td, int i, String s) {
+    Tuple t = new Tuple(td);
+    t.setField(0, new IntField(i));
+    t.setField(1, new StringField(s, Type.STRING_LEN));
+    return t;
+  }
+
+  private static final String[] STRINGS = new String[] { "a", "ab", "b",
+      "abc", "", "ba", "\u00e9t\u00e9", "ab\u00e9" };
+
+  /**
+   * Predicates over string fields pushed into a scan, tested on the bytes of
+   * its pages, give the same result as a filter
+   */
+  @Test public void stringPushDown() throws Exception {
+    String[] values = new String[400];
+    for (int i = 0; i < values.length; i++)
+      values[i] = STRINGS[i % STRINGS.length];
+    HeapFile table = stringTable(values);
+    int[] fields = new int[] { 1 };
+    for (String v : new String[] { "ab", "\u00e9t\u00e9", "" }) {
+      for (Predicate.Op op : Predicate.Op.values()) {
+        Predicate[] preds = new Predicate[] { new Predicate(1, op,
+            new StringField(v, Type.STRING_LEN)) };
+        assertEquals(rows(filterProject(table.getId(), fields, preds)),
+            rows(pushedScan(table.getId(), fields, preds)));
+      }
+    }
+  }
+
+  /**
+   * A modified page, whose bytes are out of date, returns the same tuples as
+   * one read from the bytes it writes out
+   */
+  @Test public void modifiedPage() throws Exception {
+    HeapFile table = stringTable(new String[0]);
+    TupleDesc td = table.getTupleDesc();
+    HeapPageId pid = new HeapPageId(table.getId(), 0);
+    HeapPage modified = new HeapPage(pid, HeapPage.createEmptyPageData());
+    // strings that are written out as they are, whatever the charset
+    for (int i = 0; i < 20; i++)
+      modified.insertTuple(stringTuple(td, i, STRINGS[i % 6]));
+    modified.deleteTuple(modified.iterator().next());
+    HeapPage read = new HeapPage(pid, modified.getPageData());
+
+    TupleDesc outTd = new TupleDesc(new Type[] { Type.STRING_TYPE,
+        Type.INT_TYPE });
+    int[] fields = new int[] { 1, 0 };
+    for (Predicate.Op op : Predicate.Op.values()) {
+      CompiledPredicate pred = CompiledPredicate.compile(new Predicate[] {
+          new Predicate(1, op, new StringField("ab", Type.STRING_LEN)),
+          new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(2)) }, td);
+      ArrayList<String> expected = new ArrayList<String>();
+      Iterator<Tuple> it = read.iterator(fields, pred, outTd);
+      while (it.hasNext())
+        expected.add(it.next().toString());
+      ArrayList<String> actual = new ArrayList<String>();
+      it = modified.iterator(fields, pred, outTd);
+      while (it.hasNext())
+        actual.add(it.next().toString());
+      assertEquals(expected, actual);
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SeqScanTest.class);
+  }
+}
@@ -0,0 +1,140 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  int[] data1;
+  int[] data2;
+
+  /**
+   * Initialize each unit test. Both inputs are sorted on their first field
+   * and contain duplicate keys.
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.data1 = new int[] { 1, 2,
+                             3, 4,
+                             3, 5,
+                             5, 6,
+                             7, 8,
+                             7, 9 };
+    this.data2 = new int[] { 1, 2, 3,
+                             3, 4, 5,
+                             3, 5, 6,
+                             3, 6, 7,
+                             4, 5, 6,
+                             7, 8, 9,
+                             9, 9, 9 };
+  }
+
+  private int count(DbIterator it) throws Exception {
+    int n = 0;
+    it.rewind();
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Checks the merge join against a nested loops join of the same inputs
+   */
+  private void checkAgainstJoin(Predicate.Op op) throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, op, 0);
+    Join expected = new Join(pred, TestUtil.createTupleList(width1, data1),
+        TestUtil.createTupleList(width2, data2));
+    SortMergeJoin actual = new SortMergeJoin(pred,
+        TestUtil.createTupleList(width1, data1),
+        TestUtil.createTupleList(width2, data2));
+    expected.open();
+    actual.open();
+    TestUtil.matchAllTuples(expected, actual);
+    assertEquals(count(expected), count(actual));
+
+    // output is ordered on the outer join field
+    actual.rewind();
+    int last = Integer.MIN_VALUE;
+    while (actual.hasNext()) {
+      int k = ((IntField) actual.next().getField(0)).getValue();
+      assertTrue(k >= last);
+      last = k;
+    }
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred,
+        TestUtil.createTupleList(width1, data1),
+        TestUtil.createTupleList(width2, data2));
+    TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+    TupleDesc actual = op.getTupleDesc();
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using an = predicate with
+   * duplicate keys on both sides
+   */
+  @Test public void eqJoin() throws Exception {
+    checkAgainstJoin(Predicate.Op.EQUALS);
+  }
+
+  @Test public void ltJoin() throws Exception {
+    checkAgainstJoin(Predicate.Op.LESS_THAN);
+  }
+
+  @Test public void leJoin() throws Exception {
+    checkAgainstJoin(Predicate.Op.LESS_THAN_OR_EQ);
+  }
+
+  @Test public void gtJoin() throws Exception {
+    checkAgainstJoin(Predicate.Op.GREATER_THAN);
+  }
+
+  @Test public void geJoin() throws Exception {
+    checkAgainstJoin(Predicate.Op.GREATER_THAN_OR_EQ);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred,
+        TestUtil.createTupleList(width1, data1),
+        TestUtil.createTupleList(width2, data2));
+    op.open();
+    int n = count(op);
+    assertTrue(TestUtil.checkExhausted(op));
+    assertEquals(n, count(op));
+  }
+
+  /**
+   * Predicates that cannot be evaluated by merging are rejected
+   */
+  @Test(expected = IllegalArgumentException.class) public void notEquals() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0);
+    new SortMergeJoin(pred, TestUtil.createTupleList(width1, data1),
+        TestUtil.createTupleList(width2, data2));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
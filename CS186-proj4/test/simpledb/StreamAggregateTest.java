@@ -0,0 +1,142 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class StreamAggregateTest extends SimpleDbTestBase {
+
+  private static final Aggregator.Op[] ALL_OPS = new Aggregator.Op[] {
+      Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+      Aggregator.Op.AVG, Aggregator.Op.COUNT };
+
+  /**
+   * Unit test for StreamAggregate.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    DbIterator scan = TestUtil.createTupleList(2, new int[] { 1, 2 });
+    StreamAggregate op = new StreamAggregate(scan, 1, 0, Aggregator.Op.SUM);
+    TupleDesc expected = new Aggregate(scan, 1, 0, Aggregator.Op.SUM)
+        .getTupleDesc();
+    assertEquals(expected, op.getTupleDesc());
+    assertEquals(expected.getFieldName(1), op.getTupleDesc().getFieldName(1));
+  }
+
+  /**
+   * Unit test for StreamAggregate.getNext() over grouped input, returning
+   * the groups in input order
+   */
+  @Test public void groupedInput() throws Exception {
+    DbIterator scan = TestUtil.createTupleList(2,
+        new int[] { 3, 2,
+                    3, 4,
+                    1, 6,
+                    5, 7,
+                    5, -1 });
+    StreamAggregate op = new StreamAggregate(scan, new int[] { 1, 1, 1 },
+        new int[] { 0 }, new Aggregator.Op[] { Aggregator.Op.SUM,
+        Aggregator.Op.MIN, Aggregator.Op.COUNT });
+    DbIterator expected = TestUtil.createTupleList(4,
+        new int[] { 3, 6, 2, 2,
+                    1, 6, 6, 1,
+                    5, 6, -1, 2 });
+    op.open();
+    expected.open();
+    while (expected.hasNext())
+      assertTrue(TestUtil.compareTuples(expected.next(), op.next()));
+    assertTrue(TestUtil.checkExhausted(op));
+
+    op.rewind();
+    expected.rewind();
+    while (expected.hasNext())
+      assertTrue(TestUtil.compareTuples(expected.next(), op.next()));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * StreamAggregate over sorted input returns the same groups as Aggregate,
+   * for every aggregation operator, grouping by one and by two fields
+   */
+  @Test public void matchesAggregate() throws Exception {
+    Random r = new Random(186);
+    int n = 2000;
+    int[] data = new int[n * 3];
+    for (int i = 0; i < n; i++) {
+      data[3 * i] = r.nextInt(20);
+      data[3 * i + 1] = r.nextInt(3);
+      data[3 * i + 2] = r.nextInt(1000) - 500;
+    }
+    int[] afields = new int[ALL_OPS.length];
+    Arrays.fill(afields, 2);
+    int[][] groupings = new int[][] { { 0 }, { 0, 1 } };
+    for (int[] gfields : groupings) {
+      // sorted on the first field, then on the second within it
+      DbIterator sorted = new OrderBy(0, true, new OrderBy(1, true,
+          TestUtil.createTupleList(3, data)));
+      StreamAggregate stream = new StreamAggregate(sorted, afields, gfields,
+          ALL_OPS);
+      Aggregate hash = new Aggregate(TestUtil.createTupleList(3, data),
+          afields, gfields, ALL_OPS);
+      stream.open();
+      hash.open();
+      TestUtil.matchAllTuples(hash, stream);
+      int groups = 0;
+      hash.rewind();
+      while (hash.hasNext()) {
+        hash.next();
+        groups++;
+      }
+      stream.rewind();
+      int streamed = 0;
+      while (stream.hasNext()) {
+        stream.next();
+        streamed++;
+      }
+      assertEquals(groups, streamed);
+      stream.close();
+      hash.close();
+    }
+  }
+
+  /**
+   * Unit test for StreamAggregate.getNext() without grouping
+   */
+  @Test public void noGrouping() throws Exception {
+    DbIterator scan = TestUtil.createTupleList(1, new int[] { 4, 8, 3 });
+    StreamAggregate op = new StreamAggregate(scan, 0,
+        Aggregator.NO_GROUPING, Aggregator.Op.AVG);
+    op.open();
+    assertEquals(new IntField(5), op.next().getField(0));
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+  }
+
+  /**
+   * The planner keeps track of the order of the output
+   */
+  @Test public void ordering() {
+    DbIterator scan = TestUtil.createTupleList(2, new int[] { 1, 2 });
+    String gname = scan.getTupleDesc().getFieldName(0);
+    StreamAggregate sorted = new StreamAggregate(new OrderBy(0, true, scan),
+        1, 0, Aggregator.Op.SUM);
+    assertTrue(OperatorOrdering.isOrderedOn(sorted, gname));
+    StreamAggregate unsorted = new StreamAggregate(scan, 1, 0,
+        Aggregator.Op.SUM);
+    assertTrue(OperatorOrdering.ascendingFields(unsorted).isEmpty());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(StreamAggregateTest.class);
+  }
+}
@@ -1,8 +1,11 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.Assert;
@@ -28,6 +31,28 @@ public class TableStatsTest extends SimpleDbTestBase {
 		this.tableId = Database.getCatalog().getTableId(tableName);		
 	}
 	
+	@After public void tearDown() {
+		TableStats.setSampleRate(0.01);
+		TableStats.setStatsFile(null);
+	}
+
+	/** Inserts tuples whose fields are all v into the table, n times, and returns them */
+	private ArrayList<Tuple> insert(TransactionId tid, int v, int n) throws Exception {
+		ArrayList<Tuple> ts = new ArrayList<Tuple>();
+		for (int i = 0; i < n; i++) {
+			Tuple t = new Tuple(f.getTupleDesc());
+			for (int col = 0; col < 10; col++)
+				t.setField(col, new IntField(v));
+			ts.add(t);
+		}
+		Insert op = new Insert(tid, new TupleIterator(f.getTupleDesc(), ts), tableId);
+		op.open();
+		while (op.hasNext())
+			op.next();
+		op.close();
+		return ts;
+	}
+
 	private double[] getRandomTableScanCosts(int[] pageNums, int[] ioCosts) throws IOException, DbException, TransactionAbortedException {
 		double[] ret = new double[ioCosts.length];
 		for(int i = 0; i < ioCosts.length; ++i) {
@@ -151,4 +176,195 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Verify that the number of distinct values of each column is estimated from the
+	 * sketches built while scanning the table
+	 */
+	@Test public void estimateDistinctTest() {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		for (int col = 0; col < 10; col++) {
+			HashSet<Integer> values = new HashSet<Integer>();
+			for (ArrayList<Integer> t : tuples)
+				values.add(t.get(col));
+			Assert.assertEquals(values.size(), s.estimateDistinct(col), 2.0);
+		}
+	}
+
+	/**
+	 * Verify that statistics computed from a sample of the pages of a large table scale up
+	 * to the whole table, without reading its pages into the buffer pool
+	 */
+	@Test public void sampledStatisticsTest() throws IOException {
+		// a unique column, and one of ten values
+		ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < 300000; i++) {
+			ArrayList<Integer> row = new ArrayList<Integer>();
+			row.add(i);
+			row.add(i % 10);
+			rows.add(row);
+		}
+		File temp = File.createTempFile("sampled", ".dat");
+		temp.deleteOnExit();
+		HeapFileEncoder.convert(rows, temp, BufferPool.PAGE_SIZE, 2);
+		HeapFile big = Utility.openHeapFile(2, "c", temp);
+		Database.getCatalog().addTable(big, "big");
+		Assert.assertTrue(big.numPages() > 2 * TableStats.MIN_SAMPLE_PAGES);
+
+		TableStats.setSampleRate(0.1);
+		TableStats.computeStatistics();
+		TableStats s = TableStats.getTableStats("big");
+		Assert.assertEquals(1000.0 * big.numPages(), s.estimateScanCost(), 0.001);
+		Assert.assertEquals(300000, s.totalTuples(), 3000);
+		Assert.assertEquals(300000, s.estimateDistinct(0), 300000 * 0.1);
+		Assert.assertEquals(10, s.estimateDistinct(1), 1.0);
+		Assert.assertEquals(0.1, s.estimateSelectivity(1, Predicate.Op.EQUALS, new IntField(3)), 0.01);
+		Assert.assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(150000)), 0.05);
+		for (int p = 0; p < big.numPages(); p++)
+			Assert.assertNull(Database.getBufferPool().peekPage(new HeapPageId(big.getId(), p)));
+	}
+
+	/**
+	 * Verify that inserts and deletes adjust the statistics of the table as they happen,
+	 * and that enough of them get the statistics gathered again in the background
+	 */
+	@Test public void incrementalTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(tableName, s);
+		Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(100)), 0.001);
+
+		Transaction tr = new Transaction();
+		tr.start();
+		ArrayList<Tuple> inserted = insert(tr.getId(), 100, 100);
+		Assert.assertEquals(1120, s.totalTuples());
+		Assert.assertEquals(100, s.maxValue(0));
+		Assert.assertEquals(100.0 / 1120, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(100)), 0.05);
+		Assert.assertEquals(f.numPages() * (double) IO_COST, s.estimateScanCost(), 0.001);
+
+		Delete op = new Delete(tr.getId(), new TupleIterator(f.getTupleDesc(), inserted));
+		op.open();
+		while (op.hasNext())
+			op.next();
+		op.close();
+		Assert.assertEquals(1020, s.totalTuples());
+		Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(100)), 0.02);
+		Assert.assertSame(s, TableStats.getTableStats(tableName));
+
+		// the last insert passes the threshold, and fresh statistics replace these
+		int n = 1;
+		while (200 + n <= TableStats.ANALYZE_THRESHOLD + TableStats.ANALYZE_SCALE * (1020 + n))
+			n++;
+		insert(tr.getId(), 200, n);
+		for (int i = 0; i < 100 && TableStats.getTableStats(tableName) == s; i++)
+			Thread.sleep(100);
+		TableStats fresh = TableStats.getTableStats(tableName);
+		Assert.assertNotSame(s, fresh);
+		Assert.assertEquals(1020 + n, fresh.totalTuples());
+		Assert.assertEquals((double) n / (1020 + n), fresh.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(200)), 0.01);
+		tr.commit();
+	}
+
+	/**
+	 * Verify that saved statistics are loaded back for the tables that did not change,
+	 * and computed again for the others
+	 */
+	@Test public void persistTest() throws Exception {
+		File file = File.createTempFile("table", ".stats");
+		file.delete();
+		file.deleteOnExit();
+		TableStats.loadStatistics(file);
+		Assert.assertTrue(file.exists());
+		TableStats s = TableStats.getTableStats(tableName);
+		Assert.assertEquals(1020, s.totalTuples());
+
+		// a new page, counted in the statistics, which are saved
+		Transaction tr = new Transaction();
+		tr.start();
+		insert(tr.getId(), 100, 1);
+		tr.commit();
+		TableStats.saveStatistics();
+		TableStats.setTableStats(tableName, new TableStats(this.tableId, IO_COST));
+		TableStats.loadStatistics(file);
+		TableStats loaded = TableStats.getTableStats(tableName);
+		Assert.assertNotSame(s, loaded);
+		Assert.assertEquals(1021, loaded.totalTuples());
+		Assert.assertEquals(s.estimateScanCost(), loaded.estimateScanCost(), 0.001);
+		Assert.assertEquals(s.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(16)),
+				loaded.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(16)), 0.0001);
+		Assert.assertEquals(s.estimateDistinct(2), loaded.estimateDistinct(2), 0.0001);
+
+		// the table replaced by one of another size
+		HeapFile other = SystemTestUtil.createRandomHeapFile(10, 2040, 32, null, null);
+		Database.getCatalog().addTable(other, tableName);
+		TableStats.loadStatistics(file);
+		Assert.assertEquals(2040, TableStats.getTableStats(tableName).totalTuples());
+	}
+
+	/**
+	 * Verify that the column groups declared for a table are saved with the statistics,
+	 * and declared again when they are loaded back
+	 */
+	@Test public void persistColumnGroupTest() throws Exception {
+		File file = File.createTempFile("table", ".stats");
+		file.delete();
+		file.deleteOnExit();
+		HeapFile named = Utility.openHeapFile(10, "c", f.getFile());
+		Database.getCatalog().addTable(named, tableName);
+		try {
+			TableStats.loadStatistics(file);
+			TableStats.addColumnGroup(tableName, "c0", "c1");
+			TableStats.loadStatistics(file);
+			TableStats s = TableStats.getTableStats(tableName);
+			Assert.assertTrue(s.estimateDistinct(0, 1) > 0);
+
+			// a restart, which forgets the declarations
+			TableStats.setStatsFile(null);
+			TableStats.removeColumnGroups(tableName);
+			TableStats.setTableStats(tableName, new TableStats(named.getId(), IO_COST));
+			TableStats.loadStatistics(file);
+			TableStats loaded = TableStats.getTableStats(tableName);
+			Assert.assertNotSame(s, loaded);
+			Assert.assertEquals(s.estimateDistinct(0, 1), loaded.estimateDistinct(0, 1), 0.0001);
+			Assert.assertEquals(-1, loaded.estimateDistinct(0, 2), 0.001);
+		} finally {
+			TableStats.setStatsFile(null);
+			TableStats.removeColumnGroups(tableName);
+		}
+	}
+
+	/**
+	 * Verify that predicates on both columns of a declared column group are estimated
+	 * together, and the others as if independent
+	 */
+	@Test public void columnGroupTest() throws IOException {
+		// a zip code, its city, and a column independent of both
+		ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < 20000; i++) {
+			ArrayList<Integer> row = new ArrayList<Integer>();
+			row.add(i % 1000 / 10);
+			row.add(i % 1000);
+			row.add(i % 7);
+			rows.add(row);
+		}
+		File temp = File.createTempFile("grouped", ".dat");
+		temp.deleteOnExit();
+		HeapFileEncoder.convert(rows, temp, BufferPool.PAGE_SIZE, 3);
+		HeapFile table = Utility.openHeapFile(3, "c", temp);
+		Database.getCatalog().addTable(table, "grouped");
+		try {
+			TableStats.addColumnGroup("grouped", "c0", "c1");
+			TableStats s = new TableStats(table.getId(), IO_COST);
+			Assert.assertEquals(1000, s.estimateDistinct(0, 1), 50);
+			Assert.assertEquals(-1, s.estimateDistinct(0, 2), 0.001);
+
+			ArrayList<Predicate> preds = new ArrayList<Predicate>();
+			preds.add(new Predicate(0, Predicate.Op.EQUALS, new IntField(5)));
+			preds.add(new Predicate(1, Predicate.Op.EQUALS, new IntField(53)));
+			Assert.assertEquals(0.001, s.estimateSelectivity(preds), 0.0005);
+			preds.add(new Predicate(2, Predicate.Op.EQUALS, new IntField(3)));
+			Assert.assertEquals(0.001 / 7, s.estimateSelectivity(preds), 0.0001);
+		} finally {
+			TableStats.removeColumnGroups("grouped");
+		}
+	}
 }
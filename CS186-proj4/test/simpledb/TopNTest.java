@@ -0,0 +1,107 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  int width = 2;
+
+  private int value(Tuple t, int field) {
+    return ((IntField) t.getField(field)).getValue();
+  }
+
+  /**
+   * Random keys in the first field, input position in the second
+   */
+  private int[] randomData(int numTuples) {
+    Random r = new Random(186);
+    int[] data = new int[numTuples * width];
+    for (int i = 0; i < numTuples; i++) {
+      data[i * width] = r.nextInt(50);
+      data[i * width + 1] = i;
+    }
+    return data;
+  }
+
+  /**
+   * Checks TopN against the first n tuples of a full OrderBy of the same
+   * input, including the order of ties
+   */
+  private void checkAgainstOrderBy(int numTuples, int n, boolean asc)
+      throws Exception {
+    int[] data = randomData(numTuples);
+    TopN top = new TopN(0, asc, n, TestUtil.createTupleList(width, data));
+    OrderBy all = new OrderBy(0, asc, TestUtil.createTupleList(width, data));
+    top.open();
+    all.open();
+    for (int i = 0; i < Math.min(n, numTuples); i++) {
+      Tuple expected = all.next();
+      Tuple actual = top.next();
+      assertTrue(TestUtil.compareTuples(expected, actual));
+    }
+    assertTrue(TestUtil.checkExhausted(top));
+    top.close();
+    all.close();
+  }
+
+  /**
+   * Unit test for TopN.getNext() in ascending order
+   */
+  @Test public void ascending() throws Exception {
+    checkAgainstOrderBy(1000, 10, true);
+  }
+
+  /**
+   * Unit test for TopN.getNext() in descending order
+   */
+  @Test public void descending() throws Exception {
+    checkAgainstOrderBy(1000, 10, false);
+  }
+
+  /**
+   * n larger than the input returns all of it, sorted
+   */
+  @Test public void largerThanInput() throws Exception {
+    checkAgainstOrderBy(20, 50, true);
+  }
+
+  /**
+   * n of zero returns nothing
+   */
+  @Test public void zero() throws Exception {
+    TopN top = new TopN(0, true, 0, TestUtil.createTupleList(width,
+        randomData(10)));
+    top.open();
+    assertTrue(TestUtil.checkExhausted(top));
+  }
+
+  /**
+   * Unit test for TopN.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    TopN top = new TopN(0, true, 5, TestUtil.createTupleList(width,
+        randomData(100)));
+    top.open();
+    int first = value(top.next(), 1);
+    while (top.hasNext())
+      top.next();
+    top.rewind();
+    assertEquals(first, value(top.next(), 1));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}